@@ -35,6 +35,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -75,7 +78,20 @@ public class AlmaInventoryClient {
                                                 .path("/bibs/")
                                                 .path(mmsID), Bib.class);
     }
-
+    
+    /**
+     * Async version of {@link #getBib(String)}. The calling thread is not blocked while waiting for Alma. See
+     * {@link HttpClient#getAsync(WebClient, Class)} for which threads are held.
+     *
+     * @param mmsID the mms id of the bib
+     * @return a future of the bib. Completes exceptionally with the exceptions {@link #getBib(String)} would throw
+     */
+    public CompletableFuture<Bib> getBibAsync(@NotBlank String mmsID) {
+        return almaRestClient.getAsync(almaRestClient.constructLink()
+                                                     .path("/bibs/")
+                                                     .path(mmsID), Bib.class);
+    }
+    
     public Bib updateBib(@NotNull Bib record) throws AlmaConnectionException {
         WebClient link = almaRestClient.constructLink().path("/bibs/")
                                        .path(record.getMmsId());
@@ -228,6 +244,18 @@ public class AlmaInventoryClient {
         
     }
     
+    /**
+     * Async version of {@link #getHolding(String, String)}. The calling thread is not blocked while waiting for Alma.
+     * See {@link HttpClient#getAsync(WebClient, Class)} for which threads are held.
+     */
+    public CompletableFuture<Holding> getHoldingAsync(@NotBlank String bibId, @NotBlank String holdingId) {
+        return almaRestClient.getAsync(almaRestClient.constructLink()
+                                                     .path("/bibs/")
+                                                     .path(bibId)
+                                                     .path("/holdings/")
+                                                     .path(holdingId), Holding.class);
+    }
+    
     public Holding updateHolding(@NotBlank String bibId, @NotNull Holding holding) throws AlmaConnectionException {
         WebClient link = almaRestClient.constructLink()
                                        .path("/bibs/")
@@ -267,6 +295,43 @@ public class AlmaInventoryClient {
         return result;
     }
     
+    /**
+     * Like {@link #getItems(String, String)}, but each item is given to the consumer as soon as it is parsed, so the
+     * items are never all in memory at once. Items are not cached.
+     *
+     * @param bibId     the mms id of the bib
+     * @param holdingId the id of the holding
+     * @param consumer  the consumer of the items
+     * @return the number of items given to the consumer
+     */
+    public long streamItems(@NotBlank String bibId, @NotBlank String holdingId, @NotNull Consumer<Item> consumer)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        int limit = 100;
+        long offset = 0;
+        while (true) {
+            AtomicLong pageSize = new AtomicLong();
+            Long totalRecordCount = almaRestClient.getStreaming(almaRestClient.constructLink().path("/bibs/")
+                                                                              .path(bibId)
+                                                                              .path("/holdings/")
+                                                                              .path(holdingId)
+                                                                              .path("/items")
+                                                                              .query("limit", limit)
+                                                                              .query("offset", offset),
+                                                                "item",
+                                                                Item.class,
+                                                                item -> {
+                                                                    pageSize.incrementAndGet();
+                                                                    consumer.accept(item);
+                                                                });
+            offset += pageSize.get();
+            
+            if (pageSize.get() != limit || totalRecordCount == null || offset >= totalRecordCount) {
+                break;
+            }
+        }
+        return offset;
+    }
+    
     
     public Item getItem(@NotBlank String bibId, @NotBlank String holdingId, @NotBlank String itemId)
             throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
@@ -305,11 +370,38 @@ public class AlmaInventoryClient {
         
         return item;
     }
+    
+    /**
+     * Async version of {@link #getItem(String, String, String)}. The calling thread is not blocked while waiting for
+     * Alma. See {@link HttpClient#getAsync(WebClient, Class)} for which threads are held.
+     */
+    public CompletableFuture<Item> getItemAsync(@NotBlank String bibId,
+                                                @NotBlank String holdingId,
+                                                @NotBlank String itemId) {
+        return almaRestClient.getAsync(almaRestClient.constructLink()
+                                                     .path("/bibs/")
+                                                     .path(bibId)
+                                                     .path("/holdings/")
+                                                     .path(holdingId)
+                                                     .path("/items/")
+                                                     .path(itemId), Item.class);
+    }
+    
     public Item getItem(String barcode) throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
         return almaRestClient.get(almaRestClient.constructLink()
                                                 .path("/items")
                                                 .query("item_barcode", barcode), Item.class);
     }
+    
+    /**
+     * Async version of {@link #getItem(String)}. The redirect from the barcode to the item is followed as for the
+     * blocking method.
+     */
+    public CompletableFuture<Item> getItemAsync(String barcode) {
+        return almaRestClient.getAsync(almaRestClient.constructLink()
+                                                     .path("/items")
+                                                     .query("item_barcode", barcode), Item.class);
+    }
     //TODO create getItemID method to return the mmsID, holdingID and itemID from the redirection, without actually fetching this whole thing
     //From
     //2022-01-17 17:03:51 [http-nio-8211-exec-10->130023138892-color.pdf] DEBUG dk.kb.alma.client.HttpClient(HttpClient.java:327) - GETing on https://api-eu.hosted.exlibrisgroup.com/almaws/v1/items?lang=da&item_barcode=130023138892
@@ -3,13 +3,24 @@ package dk.kb.alma.client;
 import dk.kb.alma.client.exceptions.AlmaConnectionException;
 import dk.kb.alma.client.exceptions.AlmaKnownException;
 import dk.kb.alma.client.exceptions.AlmaUnknownException;
+import dk.kb.alma.client.utils.ApiKeyPool;
+import dk.kb.alma.client.utils.CacheKeys;
+import dk.kb.alma.client.utils.HttpUtils;
+import dk.kb.alma.client.utils.TransportResponse;
+import dk.kb.alma.gen.bibs.Bib;
+import dk.kb.alma.gen.bibs.Bibs;
 import dk.kb.alma.gen.general.General;
 import org.apache.cxf.jaxrs.client.WebClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.core.UriBuilder;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -22,12 +33,19 @@ public class AlmaRestClient extends HttpClient {
     
     public static final String APIKEY = "apikey";
     
-    private final String alma_apikey;
+    private static final String AUTHORIZATION = "Authorization";
+    
+    private static final String AUTHORIZATION_PREFIX = "apikey ";
+    
+    private final ApiKeyPool apiKeys;
     
     
     private final String almaEnvType;
     private final String almaHost;
     
+    //The link getBib fetches bibs under, with the global parameters
+    private final URI bibsURI;
+    
     public AlmaRestClient(String almaTarget, String alma_apikey)
             throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
         this(almaTarget, alma_apikey,
@@ -55,6 +73,38 @@ public class AlmaRestClient extends HttpClient {
                           long cacheTimeMillis,
                          Integer maxRetries)
             throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        this(almaTarget,
+             new ApiKeyPool(alma_apikey),
+             minSleep,
+             sleepVariation,
+             lang,
+             connectTimeout,
+             readTimeout,
+             cacheTimeMillis,
+             maxRetries);
+    }
+    
+    /**
+     * Create a client that spreads its requests over several API keys, see {@link ApiKeyPool}
+     *
+     * @param almaTarget the url of the Alma API
+     * @param apiKeys    the API keys
+     */
+    public AlmaRestClient(String almaTarget, ApiKeyPool apiKeys)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        this(almaTarget, apiKeys, 2000, 3000, "da", 30000, 30000, TimeUnit.HOURS.toMillis(1), 3);
+    }
+    
+    public AlmaRestClient(String almaTarget,
+                          ApiKeyPool apiKeys,
+                          long minSleep,
+                          long sleepVariation,
+                          String lang,
+                          int connectTimeout,
+                          int readTimeout,
+                          long cacheTimeMillis,
+                          Integer maxRetries)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
         super(almaTarget,
               minSleep,
               sleepVariation,
@@ -66,7 +116,11 @@ public class AlmaRestClient extends HttpClient {
               readTimeout,
               cacheTimeMillis,
               maxRetries);
-        this.alma_apikey = alma_apikey;
+        this.apiKeys = Objects.requireNonNull(apiKeys, "apiKeys");
+        
+        //So the bibs fetched by AlmaInventoryClient.getBibs are served from the cache to getBib
+        this.bibsURI = constructLink().path("/bibs/").getCurrentURI();
+        setCacheSplitter(Bibs.class, Bib.class, this::splitBibs);
         
         log.debug("Getting ALMA general info to determine alma host");
         General almaGeneral = get(constructLink().path("/conf/general"), General.class);
@@ -83,15 +137,60 @@ public class AlmaRestClient extends HttpClient {
         
     }
     
+    /**
+     * Split a GET of {@code /bibs?mms_id=...} into the bibs, keyed as {@link AlmaInventoryClient#getBib(String)} would
+     * fetch them. Only done if the bibs were fetched as getBib fetches them, i.e. with Alma's default view full and
+     * expand none, and no other parameters than the global ones
+     */
+    private Map<URI, Bib> splitBibs(URI batchKey, Bibs bibs) {
+        Map<String, List<String>> parameters = CacheKeys.getQueryParameters(batchKey);
+        if (bibs.getBibs() == null
+            || !parameters.containsKey("mms_id")
+            || !parameters.getOrDefault("view", List.of("full")).equals(List.of("full"))
+            || !parameters.getOrDefault("expand", List.of("None")).equals(List.of("None"))) {
+            return Map.of();
+        }
+        Map<String, List<String>> otherParameters = new HashMap<>(parameters);
+        otherParameters.keySet().removeAll(List.of("mms_id", "view", "expand"));
+        if (!otherParameters.equals(CacheKeys.getQueryParameters(CacheKeys.canonical(bibsURI)))) {
+            return Map.of();
+        }
+        Map<URI, Bib> result = new HashMap<>();
+        for (Bib bib : bibs.getBibs()) {
+            if (bib.getMmsId() != null) {
+                result.put(UriBuilder.fromUri(bibsURI).path(bib.getMmsId()).build(), bib);
+            }
+        }
+        return result;
+    }
+    
     protected WebClient removeAuth(WebClient link) {
         return link.replaceQueryParam(APIKEY);
     }
     
     protected WebClient addAuth(WebClient link) {
-        return link.header("Authorization","apikey "+alma_apikey);
+        //Replace rather than add, as a retry may go out with another key
+        return link.replaceHeader(AUTHORIZATION, AUTHORIZATION_PREFIX + apiKeys.select());
         //return link.replaceQueryParam(APIKEY, alma_apikey);
     }
     
+    @Override
+    protected void authFeedback(WebClient link, TransportResponse response) {
+        String authorization = link.getHeaders().getFirst(AUTHORIZATION);
+        if (authorization != null && authorization.startsWith(AUTHORIZATION_PREFIX)) {
+            apiKeys.onResponse(authorization.substring(AUTHORIZATION_PREFIX.length()),
+                               response.getStatus(),
+                               HttpUtils.getApiRemaining(response));
+        }
+    }
+    
+    /**
+     * @return the API keys of this client, with the metrics of each key
+     */
+    public ApiKeyPool getApiKeys() {
+        return apiKeys;
+    }
+    
     public String getAlmaEnvType() {
         return almaEnvType;
     }
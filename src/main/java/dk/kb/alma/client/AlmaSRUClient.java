@@ -1,12 +1,12 @@
 package dk.kb.alma.client;
 
 import dk.kb.alma.client.sru.Query;
+import dk.kb.alma.client.utils.JaxbContexts;
 import dk.kb.alma.gen.sru.Explain;
 import dk.kb.alma.gen.sru.ExplainResponse;
 import dk.kb.alma.gen.sru.Record;
 import dk.kb.alma.gen.sru.Records;
 import dk.kb.alma.gen.sru.SearchRetrieveResponse;
-import dk.kb.util.xml.XML;
 import org.apache.cxf.jaxrs.client.WebClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -171,7 +171,7 @@ public class AlmaSRUClient extends HttpClient {
             return "null";
         } else {
             try {
-                return XML.marshall(result);
+                return JaxbContexts.getDefault().marshal(result);
             } catch (JAXBException e) {
                 log.error("Failed to remarshal result object as xml for log message. "
                           + "Not escalating this exception as it will block out whatever called this",e);
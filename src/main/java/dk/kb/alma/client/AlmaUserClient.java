@@ -20,6 +20,7 @@ import javax.validation.constraints.NotNull;
 import java.net.URI;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 
 public class AlmaUserClient {
@@ -58,6 +59,21 @@ public class AlmaUserClient {
                                                 .query("user_id_type", userIDType), User.class);
     }
     
+    /**
+     * Async version of {@link #getUser(String)}. The calling thread is not blocked while waiting for Alma. See
+     * {@link HttpClient#getAsync(WebClient, Class)} for which threads are held.
+     */
+    public CompletableFuture<User> getUserAsync(String userID) {
+        return getUserAsync(userID, "all_unique");
+    }
+    
+    public CompletableFuture<User> getUserAsync(String userID, String userIDType) {
+        return almaRestClient.getAsync(almaRestClient.constructLink()
+                                                     .path("/users/")
+                                                     .path(userID)
+                                                     .query("user_id_type", userIDType), User.class);
+    }
+    
     /*LOANS*/
     
     /*REQUESTS*/
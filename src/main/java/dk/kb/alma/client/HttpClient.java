@@ -1,18 +1,43 @@
 package dk.kb.alma.client;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.json.JsonReadFeature;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
-import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import dk.kb.alma.client.exceptions.AlmaCircuitOpenException;
 import dk.kb.alma.client.exceptions.AlmaConnectionException;
+import dk.kb.alma.client.exceptions.AlmaDeadlineExceededException;
 import dk.kb.alma.client.exceptions.AlmaKnownException;
 import dk.kb.alma.client.exceptions.AlmaNotFoundException;
+import dk.kb.alma.client.exceptions.AlmaQuotaReservedException;
 import dk.kb.alma.client.exceptions.AlmaUnknownException;
+import dk.kb.alma.client.utils.AdaptiveConcurrencyLimiter;
+import dk.kb.alma.client.utils.AdaptiveTimeoutPolicy;
+import dk.kb.alma.client.utils.ApiQuota;
+import dk.kb.alma.client.utils.BackOffPolicy;
+import dk.kb.alma.client.utils.BackOffStatistics;
+import dk.kb.alma.client.utils.CacheKeys;
+import dk.kb.alma.client.utils.CacheSplitter;
+import dk.kb.alma.client.utils.CircuitBreaker;
+import dk.kb.alma.client.utils.CircuitBreakerRegistry;
+import dk.kb.alma.client.utils.Deadline;
+import dk.kb.alma.client.utils.ClientMetrics;
+import dk.kb.alma.client.utils.ContentEncoding;
+import dk.kb.alma.client.utils.CxfTransport;
+import dk.kb.alma.client.utils.DiskResponseCache;
+import dk.kb.alma.client.utils.FixedBackOff;
+import dk.kb.alma.client.utils.HedgingPolicy;
 import dk.kb.alma.client.utils.HttpUtils;
 import dk.kb.alma.client.utils.Invocation;
+import dk.kb.alma.client.utils.Priority;
+import dk.kb.alma.client.utils.JaxbContexts;
+import dk.kb.alma.client.utils.ResponseCache;
+import dk.kb.alma.client.utils.RetryReason;
+import dk.kb.alma.client.utils.RetryScheduler;
+import dk.kb.alma.client.utils.SingleFlight;
+import dk.kb.alma.client.utils.StreamedResponse;
+import dk.kb.alma.client.utils.StreamingListReader;
+import dk.kb.alma.client.utils.TokenBucketRateLimiter;
+import dk.kb.alma.client.utils.Transport;
+import dk.kb.alma.client.utils.TransportResponse;
+import dk.kb.alma.client.utils.WebClientFactory;
+import dk.kb.alma.client.utils.WireFormat;
 import dk.kb.alma.gen.web_service_result.Error;
 import dk.kb.alma.gen.web_service_result.WebServiceResult;
 import org.apache.cxf.interceptor.Fault;
@@ -26,30 +51,54 @@ import javax.annotation.Nullable;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.RedirectionException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
+import java.io.ByteArrayInputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.Arrays;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public abstract class HttpClient {
     
     protected final static Logger log = LoggerFactory.getLogger(HttpClient.class);
     
+    /**
+     * The default memory budget of the cache of GET results, in approximate bytes retained
+     */
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    
+    
+    private ResponseCache responseCache;
     
-    private final Cache<URI, Object> cache;
+    private DiskResponseCache diskCache = null;
+    
+    private final Map<Class<?>, Splitter<?, ?>> cacheSplitters = new ConcurrentHashMap<>();
     
     private final Map<String, String> globalParams;
     
-    private final long minSleepMillis;
-    private final long sleepVariationMillis;
+    private BackOffPolicy backOffPolicy;
+    
+    private final BackOffStatistics backOffStatistics = new BackOffStatistics();
     
     
     private final int connectTimeout;
@@ -65,8 +114,40 @@ public abstract class HttpClient {
     
     private boolean retryOn429 = true;
     
+    private boolean compressionEnabled = true;
+    
+    private WireFormat wireFormat = WireFormat.XML;
+    
     private final String target;
     
+    private WebClientFactory webClientFactory = WebClientFactory.getDefault();
+    
+    private Transport transport = new CxfTransport();
+    
+    private Executor asyncExecutor = ForkJoinPool.commonPool();
+    
+    private RetryScheduler retryScheduler = RetryScheduler.getDefault();
+    
+    private AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter(10, 1, 50);
+    
+    private TokenBucketRateLimiter rateLimiter = null;
+    
+    private CircuitBreakerRegistry circuitBreakers = null;
+    
+    private HedgingPolicy hedgingPolicy = null;
+    
+    private AdaptiveTimeoutPolicy adaptiveTimeouts = null;
+    
+    private Duration defaultDeadline = null;
+    
+    private Priority defaultPriority = Priority.NORMAL;
+    
+    private ApiQuota apiQuota = null;
+    
+    private final SingleFlight<Object, Object> singleFlight = new SingleFlight<>();
+    
+    private ClientMetrics metrics = ClientMetrics.NOOP;
+    
     public HttpClient(String target,
                       long minSleep,
                       long sleepVariation,
@@ -76,20 +157,14 @@ public abstract class HttpClient {
                       long cacheTimeMillis,
                       Integer maxRetries) throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
         this.target               = target;
-        this.minSleepMillis       = minSleep;
-        this.sleepVariationMillis = sleepVariation;
+        this.backOffPolicy        = new FixedBackOff(minSleep, sleepVariation);
         this.globalParams         = globalParams;
         
         this.connectTimeout = connectTimeout;
         this.readTimeout    = readTimeout;
         this.maxRetries     = Optional.ofNullable(maxRetries).orElse(3);
         
-        int cacheSize = 1000;
-        cache = CacheBuilder
-                .newBuilder()
-                .maximumSize(cacheSize)
-                .expireAfterAccess(cacheTimeMillis, TimeUnit.MILLISECONDS)
-                .build();
+        this.responseCache = new ResponseCache(DEFAULT_CACHE_BYTES, cacheTimeMillis);
     }
     
     //GETTERS + SETTERS
@@ -99,264 +174,1955 @@ public abstract class HttpClient {
     }
     
     /**
-     * Controls whether or not we use caching for GET requests. Non-GET requests never use caching. If this is true
-     * (default), GET requests use caching.
+     * Controls whether or not we use caching for GET requests. Non-GET requests never use caching. If this is true
+     * (default), GET requests use caching.
+     *
+     * @param cachingEnabled should caching be enabled for GET requests
+     */
+    public void setCachingEnabled(boolean cachingEnabled) {
+        this.cachingEnabled = cachingEnabled;
+    }
+    
+    public BackOffPolicy getBackOffPolicy() {
+        return backOffPolicy;
+    }
+    
+    /**
+     * Set how long to wait before retrying a request. Per default, a {@link FixedBackOff} with the minimum sleep and
+     * sleep variation given to the constructor. Use {@link dk.kb.alma.client.utils.ExponentialBackOff} to retry
+     * transient errors sooner and back off further during outages.
+     *
+     * @param backOffPolicy the back-off policy
+     */
+    public void setBackOffPolicy(BackOffPolicy backOffPolicy) {
+        this.backOffPolicy = Objects.requireNonNull(backOffPolicy, "backOffPolicy");
+    }
+    
+    /**
+     * @return the statistics of the back-offs of this client, per reason
+     */
+    public BackOffStatistics getBackOffStatistics() {
+        return backOffStatistics;
+    }
+    
+    @Nullable
+    public Duration getDefaultDeadline() {
+        return defaultDeadline;
+    }
+    
+    /**
+     * Set the time allowed for each call, including all retries and back-offs. Calls that do not complete in time
+     * fail with {@link AlmaDeadlineExceededException}. A shorter deadline for some calls can be applied to the calling
+     * thread with {@link Deadline#apply()}.
+     *
+     * @param defaultDeadline the time allowed, or null for no limit. Default null
+     */
+    public void setDefaultDeadline(@Nullable Duration defaultDeadline) {
+        this.defaultDeadline = defaultDeadline;
+    }
+    
+    public Priority getDefaultPriority() {
+        return defaultPriority;
+    }
+    
+    /**
+     * Set the priority of the calls of this client when they wait for the rate and concurrency limits, see
+     * {@link Priority}. A different priority for some calls can be applied to the calling thread with
+     * {@link Priority#apply()}.
+     * <p>
+     * To give e.g. the interactive and the batch parts of an application each their own priority, give them each
+     * their own client, sharing the limiters
+     * <pre>
+     * batchClient.setDefaultPriority(Priority.BULK);
+     * batchClient.setRateLimiter(interactiveClient.getRateLimiter());
+     * batchClient.setConcurrencyLimiter(interactiveClient.getConcurrencyLimiter());
+     * </pre>
+     *
+     * @param defaultPriority the priority. Default {@link Priority#NORMAL}
+     */
+    public void setDefaultPriority(Priority defaultPriority) {
+        this.defaultPriority = Objects.requireNonNull(defaultPriority, "defaultPriority");
+    }
+    
+    @Nullable
+    public ApiQuota getApiQuota() {
+        return apiQuota;
+    }
+    
+    /**
+     * Track the daily API quota from the responses, to forecast when it runs out and keep a reserve of it from
+     * {@link Priority#BULK} calls, see {@link ApiQuota}. Bulk calls beyond the reserve fail with
+     * {@link AlmaQuotaReservedException} or are throttled. Give the same quota to all clients using the same API key.
+     * Per default, the quota is not tracked.
+     *
+     * @param apiQuota the quota, or null to not track it
+     */
+    public void setApiQuota(@Nullable ApiQuota apiQuota) {
+        this.apiQuota = apiQuota;
+    }
+    
+    public CircuitBreakerRegistry getCircuitBreakers() {
+        return circuitBreakers;
+    }
+    
+    /**
+     * Set the circuit breakers, one per endpoint group (the first path segment below the API root, e.g. {@code bibs}).
+     * When Alma keeps failing with 5xx responses or connection failures for a group, its breaker opens and requests
+     * to the group fail fast with an {@link AlmaCircuitOpenException} instead of being sent and retried. Per default
+     * there are no circuit breakers.
+     *
+     * @param circuitBreakers the circuit breakers. Null to disable
+     */
+    public void setCircuitBreakers(CircuitBreakerRegistry circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+    }
+    
+    /**
+     * Check the circuit breaker for a link before sending requests, e.g. to stop taking on work while Alma is down
+     *
+     * @param link the link
+     * @return the circuit breaker for the endpoint group of the link, or null if there are no circuit breakers
+     */
+    @Nullable
+    public CircuitBreaker getCircuitBreaker(WebClient link) {
+        return getCircuitBreaker(link.getCurrentURI());
+    }
+    
+    @Nullable
+    private CircuitBreaker getCircuitBreaker(URI uri) {
+        CircuitBreakerRegistry registry = circuitBreakers;
+        if (registry == null) {
+            return null;
+        }
+        return registry.get(getEndpointGroup(uri));
+    }
+    
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+    
+    /**
+     * Hedge GETs: if a GET has not completed within the delay given by the policy, a duplicate is sent, and the first
+     * response wins. This cuts the tail latency caused by the occasional stalled request, at the cost of a budgeted
+     * number of extra requests. Per default, requests are not hedged. The streamed GETs of {@link #getIterator} are
+     * not hedged.
+     *
+     * @param hedgingPolicy the policy. Null to disable hedging
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+    
+    public AdaptiveTimeoutPolicy getAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+    
+    /**
+     * Set the receive timeout of each request from the recent latencies of its endpoint, instead of using the read
+     * timeout of this client for all endpoints. The read timeout is still used for endpoints with too few known
+     * latencies. Per default, the read timeout is used for all requests.
+     *
+     * @param adaptiveTimeouts the policy. Null to use the read timeout for all requests
+     */
+    public void setAdaptiveTimeouts(@Nullable AdaptiveTimeoutPolicy adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
+    
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Set where to report the latency, retries, back-off, cache use etc. of the requests, per endpoint. Per default,
+     * nothing is reported. Use {@link dk.kb.alma.client.utils.InMemoryClientMetrics} to poll the metrics or expose
+     * them through JMX, or implement {@link ClientMetrics} to report to a metrics library.
+     *
+     * @param metrics the metrics. Null to report nothing
+     */
+    public void setMetrics(ClientMetrics metrics) {
+        this.metrics = Optional.ofNullable(metrics).orElse(ClientMetrics.NOOP);
+    }
+    
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+    
+    /**
+     * Set the cache of GET results. Per default, results are cached within a budget of {@link #DEFAULT_CACHE_BYTES}
+     * for the cache time given to the constructor. Use {@link ResponseCache#setLimits(Class, long, long)} on the cache
+     * to give results of specific types their own budget and time to live, i.e.
+     * <pre>
+     * client.getResponseCache().setLimits(CodeTable.class, 1024 * 1024, TimeUnit.DAYS.toMillis(1));
+     * client.getResponseCache().setLimits(Item.class, 16 * 1024 * 1024, TimeUnit.MINUTES.toMillis(1));
+     * </pre>
+     *
+     * @param responseCache the cache to use
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+    
+    @Nullable
+    public DiskResponseCache getDiskCache() {
+        return diskCache;
+    }
+    
+    /**
+     * Set a second level cache on disk, below the cache in memory. GET responses are stored there as well, and results
+     * not in memory are looked up there before they are fetched, so a restarted client does not have to fetch them
+     * again. Per default, there is no disk cache.
+     *
+     * @param diskCache the disk cache to use, or null to not use one
+     */
+    public void setDiskCache(@Nullable DiskResponseCache diskCache) {
+        this.diskCache = diskCache;
+    }
+    
+    /**
+     * Split the results of a type into the resources they hold when they are cached, so a later GET of one of the
+     * resources on its own is served from the cache, i.e. the bibs of {@code /bibs?mms_id=1,2,3} for
+     * {@code /bibs/2}. The resources are only kept in memory, for the cache time of their own type. Per default,
+     * no results are split.
+     *
+     * @param batchType the type of the results to split
+     * @param partType  the type the resources are fetched as on their own
+     * @param splitter  the splitter, or null to stop splitting results of the type
+     * @param <T>       the type of the results to split
+     * @param <P>       the type of the resources
+     */
+    public <T, P> void setCacheSplitter(Class<T> batchType, Class<P> partType, @Nullable CacheSplitter<T, P> splitter) {
+        if (splitter == null) {
+            cacheSplitters.remove(batchType);
+        } else {
+            cacheSplitters.put(batchType, new Splitter<>(batchType, partType, splitter));
+        }
+    }
+    
+    public boolean isRetryOnTimeouts() {
+        return retryOnTimeouts;
+    }
+    
+    /**
+     * retryOnTimeouts control whether or not we automatically retry non-GET requests that time out.
+     * This is always enabled for GET requests. This parameter controls whether or not we also retry for non-GET
+     * requests
+     *
+     * @param retryOnTimeouts should we retry non-GET requests that time out?
+     */
+    public void setRetryOnTimeouts(boolean retryOnTimeouts) {
+        this.retryOnTimeouts = retryOnTimeouts;
+    }
+    
+    
+    public boolean isRetryOnSocketExceptions() {
+        return retryOnSocketExceptions;
+    }
+    
+    /**
+     * retryOnSocketExceptions control whether or not we automatically retry non-GET requests that fail on a socket
+     * exception.
+     * This is always enabled for GET requests. This parameter controls whether or not we also retry for non-GET
+     * requests
+     *
+     * @param retryOnSocketExceptions should we retry non-GET requests that fail out?
+     */
+    public void setRetryOnSocketExceptions(boolean retryOnSocketExceptions) {
+        this.retryOnSocketExceptions = retryOnSocketExceptions;
+    }
+    
+    public boolean isRetryOn429() {
+        return retryOn429;
+    }
+    
+    /**
+     * retryOn429 control whether or not we automatically retry non-GET requests that receive ALMA HTTP 429 (rate
+     * limit)
+     * errors.
+     * This is always enabled for GET requests. This parameter controls whether or not we also retry for non-GET
+     * requests
+     *
+     * @param retryOn429 should we retry non-GET requests that fail on rate limit.
+     */
+    public void setRetryOn429(boolean retryOn429) {
+        this.retryOn429 = retryOn429;
+    }
+    
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+    
+    /**
+     * Control whether responses are requested compressed, by sending {@code Accept-Encoding: gzip, deflate}.
+     * Compressed responses are decoded by the {@link Transport} while they are read. Enabled per default, as the XML
+     * of Alma compresses well.
+     *
+     * @param compressionEnabled should responses be requested compressed
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+    
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+    
+    /**
+     * Set the format of request bodies and the preferred format of responses. Responses are read in whichever
+     * format the server chose, so this only changes what is sent over the wire, not the results.
+     * {@link #getStreaming} and {@link #getIterator} always use XML.
+     *
+     * @param wireFormat the format to use for new WebClients
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = Objects.requireNonNull(wireFormat, "wireFormat");
+    }
+    
+    public WebClientFactory getWebClientFactory() {
+        return webClientFactory;
+    }
+    
+    /**
+     * Set the factory used to create WebClients. The factory holds the connection pool, so clients sharing a
+     * factory also share connections. Per default, all clients use {@link WebClientFactory#getDefault()}.
+     *
+     * @param webClientFactory the factory to use for new WebClients
+     */
+    public void setWebClientFactory(WebClientFactory webClientFactory) {
+        this.webClientFactory = webClientFactory;
+    }
+    
+    public Transport getTransport() {
+        return transport;
+    }
+    
+    /**
+     * Set the transport used to send requests. Per default, requests are sent through CXF ({@link CxfTransport}).
+     * Use {@link dk.kb.alma.client.utils.JdkHttpTransport} to multiplex concurrent requests over HTTP/2.
+     * <p>
+     * Retries, redirects and error handling are the same for all transports.
+     *
+     * @param transport the transport to use
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+    
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+    
+    /**
+     * Set the executor used by the async methods (i.e. {@link #getAsync(WebClient, Class)}) to unmarshal responses and
+     * decide on retries, so this work is not done on the I/O threads of the transport. Per default, this is
+     * {@link ForkJoinPool#commonPool()}.
+     *
+     * @param asyncExecutor the executor to use for async responses
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+    
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+    
+    /**
+     * Set the scheduler used to delay the retries of async requests. Per default, all clients use
+     * {@link RetryScheduler#getDefault()}.
+     *
+     * @param retryScheduler the scheduler to use for retries
+     */
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+    
+    @Nullable
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+    
+    /**
+     * Set the limiter for the number of requests in flight from this client. The limit adapts to the 429 responses
+     * from the server, see {@link AdaptiveConcurrencyLimiter}. Per default, the limit starts at 10 and is kept between
+     * 1 and 50. Use {@link AdaptiveConcurrencyLimiter#getLimit()} to see the current limit.
+     *
+     * @param concurrencyLimiter the limiter to use, or null to not limit the number of requests in flight
+     */
+    public void setConcurrencyLimiter(@Nullable AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+    
+    @Nullable
+    public TokenBucketRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+    
+    /**
+     * Set a limiter for the rate of requests. Give the same limiter to several clients to keep their combined rate
+     * below the threshold of the server, i.e.
+     * <pre>
+     * TokenBucketRateLimiter shared = new TokenBucketRateLimiter(20, 5);
+     * restClient.setRateLimiter(shared);
+     * sruClient.setRateLimiter(shared);
+     * </pre>
+     * Requests over the rate are queued by priority and paced, rather than sent to receive a 429. Per default, there is
+     * no rate limiter.
+     *
+     * @param rateLimiter the limiter to use, or null to not limit the rate
+     */
+    public void setRateLimiter(@Nullable TokenBucketRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+    
+    /**
+     * Concurrent GETs of the same URI as the same type are coalesced into one request. Cached and uncached GETs are
+     * not coalesced, nor are GETs of different priorities. A caller waiting for the request of another is bound by
+     * its own deadline, not that of the other. The returned object counts the requests performed and the calls that
+     * were served by a request already in flight.
+     *
+     * @return the coalescer of concurrent GETs
+     */
+    public SingleFlight<?, Object> getSingleFlight() {
+        return singleFlight;
+    }
+    
+    
+    //PUBLIC METHODS
+    
+    /**
+     * Create the JAXB contexts of all the generated Alma packages in the background, so the first requests do not
+     * have to wait for them. Call this right after constructing the client.
+     *
+     * @return a future of the number of packages with a context
+     * @see JaxbContexts
+     */
+    public CompletableFuture<Integer> prewarmJaxbContexts() {
+        return CompletableFuture.supplyAsync(() -> JaxbContexts.getDefault().prewarm(JaxbContexts.GENERATED_PACKAGES),
+                                             asyncExecutor);
+    }
+    
+    public WebClient constructLink() {
+        return getWebClient(target);
+    }
+    
+    public WebClient getWebClient(URI link) {
+        URI host = new UriBuilderImpl(link).replaceQuery(null).replacePath(null).replaceMatrix(null).build();
+        
+        //Providers and connections are shared, so creating a WebClient is cheap
+        WebClient client = webClientFactory.create(host.toString());
+        
+        
+        HTTPConduit conduit = WebClient.getConfig(client).getHttpConduit();
+        conduit.getClient().setConnectionTimeout(connectTimeout);
+        conduit.getClient().setConnectionRequestTimeout(connectTimeout);
+        conduit.getClient().setReceiveTimeout(readTimeout);
+        
+        if (link.getPath() != null) {
+            client = client.path(link.getPath());
+        }
+        if (link.getQuery() != null) {
+            client = client.replaceQuery(link.getQuery());
+        }
+        
+        //client = client
+        //        .accept(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_XML_TYPE)
+        //        .type(MediaType.APPLICATION_JSON_TYPE);
+    
+        client = client
+                .accept(wireFormat.getAccept())
+                .type(wireFormat.getMediaType());
+        
+        if (compressionEnabled) {
+            client = client.header(HttpHeaders.ACCEPT_ENCODING, ContentEncoding.ACCEPT_ENCODING);
+        }
+        
+        if (globalParams != null) {
+            for (Map.Entry<String, String> globalParam : globalParams.entrySet()) {
+                client = client.replaceQueryParam(globalParam.getKey(), globalParam.getValue());
+            }
+        }
+        
+        
+        return client;
+    }
+    
+    public WebClient getWebClient(String link) {
+        return getWebClient(UriBuilder.fromUri(link).build());
+    }
+    
+    public enum Operation {
+        POST, PUT, DELETE, GET
+    }
+    
+    public <T> T get(final WebClient link, Class<T> type)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        return get(link, type, cachingEnabled);
+    }
+    
+    public <T> T get(final WebClient link, Class<T> type, boolean useCache)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        return invokeCache(link, type, null, useCache, Operation.GET);
+    }
+    
+    public <T, E> T put(final WebClient link, Class<T> type, E entity)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        URI currentURI = removeAuth(link).getCurrentURI();
+        try {
+            return invokeDirect(link, type, entity, Operation.PUT);
+        } finally {
+            invalidateAfterWrite(currentURI);
+        }
+    }
+    
+    public <T, E> T post(final WebClient link, Class<T> type, E entity)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        URI currentURI = removeAuth(link).getCurrentURI();
+        try {
+            return invokeDirect(link, type, entity, Operation.POST);
+        } finally {
+            invalidateAfterWrite(currentURI);
+        }
+    }
+    
+    public <T> T delete(final WebClient link, Class<T> type)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        URI currentURI = removeAuth(link).getCurrentURI();
+        try {
+            return invokeDirect(link, type, null, Operation.DELETE);
+        } finally {
+            invalidateAfterWrite(currentURI);
+        }
+    }
+    
+    /**
+     * Like {@link #get(WebClient, Class)}, but without blocking the calling thread. Caching, retries, rate limiting and
+     * redirects are handled as for the blocking method.
+     * <p>
+     * Back-offs and waits for the rate and concurrency limits hold no thread. Whether the request in flight does
+     * depends on the transport: {@link dk.kb.alma.client.utils.JdkHttpTransport} holds none, while the default
+     * {@link CxfTransport} holds a thread of its bounded pool until the response is read.
+     *
+     * @param link the link to GET
+     * @param type the class of the result
+     * @param <T>  the type of the result
+     * @return a future of the result. On failure, the future completes exceptionally with the same exceptions the
+     *         blocking method would have thrown.
+     */
+    public <T> CompletableFuture<T> getAsync(final WebClient link, Class<T> type) {
+        return getAsync(link, type, cachingEnabled);
+    }
+    
+    public <T> CompletableFuture<T> getAsync(final WebClient link, Class<T> type, boolean useCache) {
+        return invokeCacheAsync(link, type, null, useCache, Operation.GET);
+    }
+    
+    public <T, E> CompletableFuture<T> putAsync(final WebClient link, Class<T> type, E entity) {
+        URI currentURI = removeAuth(link).getCurrentURI();
+        return invalidateAfterWriteAsync(currentURI, invokeDirectAsync(link, type, entity, Operation.PUT));
+    }
+    
+    public <T, E> CompletableFuture<T> postAsync(final WebClient link, Class<T> type, E entity) {
+        URI currentURI = removeAuth(link).getCurrentURI();
+        return invalidateAfterWriteAsync(currentURI, invokeDirectAsync(link, type, entity, Operation.POST));
+    }
+    
+    public <T> CompletableFuture<T> deleteAsync(final WebClient link, Class<T> type) {
+        URI currentURI = removeAuth(link).getCurrentURI();
+        return invalidateAfterWriteAsync(currentURI, invokeDirectAsync(link, type, null, Operation.DELETE));
+    }
+    
+    /**
+     * GET a list, like {@code Items} or {@code Bibs}, and give its elements to the consumer one at a time as they are
+     * parsed from the response, rather than receiving and unmarshalling the whole list first. Retries and deadlines are
+     * handled as for {@link #get(WebClient, Class)} until the first element is parsed, and the response is not cached.
+     *
+     * @param link        the link to GET
+     * @param elementName the local name of the elements of the list, like {@code item}
+     * @param elementType the class of the elements, like {@code Item}
+     * @param consumer    the consumer of the elements
+     * @param <T>         the type of the elements
+     * @return the {@code total_record_count} of the list, or null if it has none
+     * @throws AlmaConnectionException if we failed on a deeper level, like the connection
+     * @throws AlmaKnownException      if we failed on a documented API error code
+     * @throws AlmaUnknownException    if we failed on a higher level, but not in a documented way
+     * @see StreamingListReader
+     */
+    @Nullable
+    public <T> Long getStreaming(final WebClient link,
+                                 String elementName,
+                                 Class<T> elementType,
+                                 Consumer<? super T> consumer)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        try (StreamingListReader<T> reader = getIterator(link, elementName, elementType)) {
+            reader.forEachRemaining(consumer);
+            return reader.getTotalRecordCount();
+        }
+    }
+    
+    /**
+     * GET a list, like {@code Items} or {@code Bibs}, and return a lazy iterator of its elements. The response is read
+     * as the iterator gets to each element, so the list is never held in memory. Retries and deadlines are handled as
+     * for {@link #get(WebClient, Class)} until the iterator is returned, and the response is not cached. Later
+     * failures to read the response are thrown from the iterator as ProcessingExceptions.
+     * <p>
+     * The connection is held until the iterator reaches the end of the list, fails, or is closed. The rate and
+     * concurrency limits only cover the wait for the response, not the reading of it.
+     *
+     * @param link        the link to GET
+     * @param elementName the local name of the elements of the list, like {@code item}
+     * @param elementType the class of the elements, like {@code Item}
+     * @param <T>         the type of the elements
+     * @return the iterator of the elements. Close it when stopping before the end
+     * @throws AlmaConnectionException if we failed on a deeper level, like the connection
+     * @throws AlmaKnownException      if we failed on a documented API error code
+     * @throws AlmaUnknownException    if we failed on a higher level, but not in a documented way
+     */
+    public <T> StreamingListReader<T> getIterator(final WebClient link, String elementName, Class<T> elementType)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        removeAuth(link);
+        //Read as XML, so the elements can be parsed one at a time
+        link.replaceHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_XML);
+        @SuppressWarnings("unchecked")
+        Class<StreamingListReader<T>> readerType = (Class<StreamingListReader<T>>) (Class<?>) StreamingListReader.class;
+        //The reader is created as part of the attempt, so a failure before the first element is retried. Failures
+        // after that are not, as elements have been handed out
+        return invokeDirect(newInvocation(link, readerType, null, Operation.GET)
+                                    .setBodyReader(body -> new StreamingListReader<>(body, elementName, elementType)));
+    }
+    
+    
+    //Actual implementation
+    
+    /**
+     * Attempt to fetch the requested resource from the cache. If not found, fetches it from ACTUAL
+     *
+     * @param uri       the URI to fetch
+     * @param type      the Class of the result
+     * @param entity    the body. Can be null
+     * @param useCache  if false, will bypass cache
+     * @param operation the HTTP operation (GET, POST,...)
+     * @param <T>       the type of the result
+     * @param <E>       the type of the body entity
+     * @return the resulting java object, either from cache or from the actual server
+     * @throws AlmaConnectionException if we failed on a deeper level, like the connection
+     * @throws AlmaKnownException      if we failed on a documented API error code
+     * @throws AlmaUnknownException    if we failed on a higher level, but not in a documented way
+     */
+    protected <T, E> T invokeCache(final WebClient uri, Class<T> type, E entity, boolean useCache, Operation operation)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        
+        //Only use cache on getRequests
+        useCache &= operation == Operation.GET;
+        
+        //Remove the api key from the query string. This is something we handle here, not something you should set
+        removeAuth(uri);
+        URI currentURI = uri.getCurrentURI();
+        URI cacheKey = CacheKeys.canonical(currentURI);
+        Deadline deadline = currentDeadline();
+        
+        try {
+            if (useCache) {
+                T cacheValue = responseCache.get(cacheKey, type);
+                if (cacheValue != null) {
+                    log.debug("cache hit on {}", currentURI);
+                    metrics.recordCacheLookup(HttpUtils.getEndpointTemplate(currentURI), true);
+                    return cacheValue;
+                }
+            }
+            
+            if (operation != Operation.GET) {
+                return invokeDirect(uri, type, entity, operation);
+            }
+            
+            //Concurrent GETs of the same URI share one request, rather than all missing the cache and fetching it
+            final boolean cacheable = useCache;
+            Object flightKey = flightKey(cacheKey, type, cacheable, currentPriority());
+            while (true) {
+                AtomicBoolean performed = new AtomicBoolean(false);
+                try {
+                    return type.cast(singleFlight.execute(flightKey, () -> {
+                        performed.set(true);
+                        if (cacheable) {
+                            T diskValue = readDiskCache(cacheKey, type);
+                            metrics.recordCacheLookup(HttpUtils.getEndpointTemplate(currentURI), diskValue != null);
+                            if (diskValue != null) {
+                                return diskValue;
+                            }
+                        }
+                        ResponseCache.Stale<T> stale = cacheable ? responseCache.getStale(cacheKey, type) : null;
+                        AtomicReference<TransportResponse> response = new AtomicReference<>();
+                        T value = invokeDirect(newInvocation(conditional(uri, stale), type, entity, operation)
+                                                       .setResponseListener(response::set));
+                        return cacheable ? cacheResult(cacheKey, type, value, response.get(), stale) : value;
+                    }, deadline == null ? Long.MAX_VALUE : deadline.getRemainingMillis()));
+                } catch (AlmaDeadlineExceededException e) {
+                    //The request we waited for was made by another caller, and failed on its deadline, not ours
+                    if (performed.get() || (deadline != null && deadline.isExpired())) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (TimeoutException e) {
+            throw new AlmaDeadlineExceededException(operation.name(),
+                                                    currentURI,
+                                                    deadline.getBudgetMillis(),
+                                                    0,
+                                                    "the concurrent GET it waited for was not done in time",
+                                                    null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlmaConnectionException("Interrupted while waiting for concurrent GET of '" + currentURI + "'", e);
+        } finally {
+            uri.close();
+        }
+    }
+    
+    /**
+     * Async version of {@link #invokeCache(WebClient, Class, Object, boolean, Operation)}
+     *
+     * @param uri       the URI to fetch
+     * @param type      the Class of the result
+     * @param entity    the body. Can be null
+     * @param useCache  if false, will bypass cache
+     * @param operation the HTTP operation (GET, POST,...)
+     * @param <T>       the type of the result
+     * @param <E>       the type of the body entity
+     * @return a future of the resulting java object, either from cache or from the actual server
+     */
+    @SuppressWarnings("unchecked")
+    protected <T, E> CompletableFuture<T> invokeCacheAsync(final WebClient uri,
+                                                           Class<T> type,
+                                                           E entity,
+                                                           boolean useCache,
+                                                           Operation operation) {
+        //Only use cache on getRequests
+        final boolean cacheable = useCache && operation == Operation.GET;
+        
+        //Remove the api key from the query string. This is something we handle here, not something you should set
+        removeAuth(uri);
+        URI currentURI = uri.getCurrentURI();
+        URI cacheKey = CacheKeys.canonical(currentURI);
+        
+        if (cacheable) {
+            T cacheValue = responseCache.get(cacheKey, type);
+            if (cacheValue != null) {
+                log.debug("cache hit on {}", currentURI);
+                metrics.recordCacheLookup(HttpUtils.getEndpointTemplate(currentURI), true);
+                uri.close();
+                return CompletableFuture.completedFuture(cacheValue);
+            }
+        }
+        
+        if (operation != Operation.GET) {
+            return invokeAndCacheAsync(uri, type, entity, false, operation);
+        }
+        
+        //Concurrent GETs of the same URI share one request, rather than all missing the cache and fetching it
+        Priority priority = currentPriority();
+        Object flightKey = flightKey(cacheKey, type, cacheable, priority);
+        AtomicBoolean performed = new AtomicBoolean(false);
+        CompletableFuture<Object> shared = singleFlight.executeAsync(flightKey, () -> {
+            performed.set(true);
+            if (cacheable) {
+                T diskValue = readDiskCache(cacheKey, type);
+                metrics.recordCacheLookup(HttpUtils.getEndpointTemplate(currentURI), diskValue != null);
+                if (diskValue != null) {
+                    uri.close();
+                    return CompletableFuture.completedFuture(diskValue);
+                }
+            }
+            //Not thenApply, as cancelling the shared request must reach the request itself
+            CompletableFuture<?> request = invokeAndCacheAsync(uri, type, entity, cacheable, operation);
+            return (CompletableFuture<Object>) request;
+        });
+        if (performed.get()) {
+            CompletableFuture<T> result = shared.thenApply(type::cast);
+            //Cancelling the result should stop any further retries, unless other callers wait for the same request
+            result.whenComplete((value, throwable) -> {
+                if (result.isCancelled()) {
+                    shared.cancel(true);
+                }
+            });
+            return result;
+        }
+        return followAsync(shared, uri, type, entity, useCache, operation, priority);
+    }
+    
+    /**
+     * Wait for the request made by another caller, but do not inherit its deadline: if the request failed on its
+     * deadline before ours, make our own. The link is not used unless we do, the request is made with the link of the
+     * first caller
+     *
+     * @param shared the request made by the other caller
+     */
+    private <T, E> CompletableFuture<T> followAsync(CompletableFuture<Object> shared,
+                                                    final WebClient uri,
+                                                    Class<T> type,
+                                                    E entity,
+                                                    boolean useCache,
+                                                    Operation operation,
+                                                    Priority priority) {
+        URI currentURI = uri.getCurrentURI();
+        Deadline deadline = currentDeadline();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        //The request the result waits for, to cancel if the result is cancelled
+        AtomicReference<CompletableFuture<?>> awaited = new AtomicReference<>(shared);
+        shared.whenComplete((value, throwable) -> {
+            if (throwable != null
+                && asRuntimeException(throwable) instanceof AlmaDeadlineExceededException
+                && (deadline == null || !deadline.isExpired())
+                && !result.isDone()) {
+                CompletableFuture<T> own;
+                try (Deadline.Scope deadlineScope = deadline == null ? null : deadline.apply();
+                     Priority.Scope priorityScope = priority.apply()) {
+                    own = invokeCacheAsync(uri, type, entity, useCache, operation);
+                }
+                awaited.set(own);
+                own.whenComplete((ownValue, ownThrowable) -> complete(result, ownValue, ownThrowable));
+                if (result.isDone()) {
+                    own.cancel(true);
+                }
+                return;
+            }
+            uri.close();
+            complete(result, type.cast(value), throwable);
+        });
+        //Do not wait for the first caller beyond our own deadline
+        if (deadline != null) {
+            retryScheduler.schedule(() -> {
+                if (result.completeExceptionally(
+                        new AlmaDeadlineExceededException(operation.name(),
+                                                          currentURI,
+                                                          deadline.getBudgetMillis(),
+                                                          0,
+                                                          "the concurrent GET it waited for was not done in time",
+                                                          null))) {
+                    awaited.get().cancel(true);
+                }
+            }, deadline.getRemainingMillis(), asyncExecutor);
+        }
+        //Cancelling the result should stop any further retries, unless other callers wait for the same request
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                awaited.get().cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    private static <T> void complete(CompletableFuture<T> result, @Nullable T value, @Nullable Throwable throwable) {
+        if (throwable == null) {
+            result.complete(value);
+        } else {
+            result.completeExceptionally(asRuntimeException(throwable));
+        }
+    }
+    
+    private <T, E> CompletableFuture<T> invokeAndCacheAsync(final WebClient uri,
+                                                            Class<T> type,
+                                                            E entity,
+                                                            boolean cacheable,
+                                                            Operation operation) {
+        URI cacheKey = CacheKeys.canonical(uri.getCurrentURI());
+        ResponseCache.Stale<T> stale = cacheable ? responseCache.getStale(cacheKey, type) : null;
+        AtomicReference<TransportResponse> response = new AtomicReference<>();
+        CompletableFuture<T> direct = invokeDirectAsync(newInvocation(conditional(uri, stale),
+                                                                      type,
+                                                                      entity,
+                                                                      operation).setResponseListener(response::set));
+        CompletableFuture<T> result = direct.thenApply(value -> cacheable
+                                                                ? cacheResult(cacheKey, type, value, response.get(), stale)
+                                                                : value)
+                                            .whenComplete((value, throwable) -> uri.close());
+        //Cancelling the result should stop any further retries
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                direct.cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Look up the result in the disk cache, if any, and keep it in memory if found
+     *
+     * @return the result, or null if not in the disk cache
+     */
+    @Nullable
+    private <T> T readDiskCache(URI uri, Class<T> type) {
+        DiskResponseCache disk = diskCache;
+        if (disk == null) {
+            return null;
+        }
+        TransportResponse response = disk.get(uri);
+        if (response == null) {
+            return null;
+        }
+        try {
+            T value = readEntity(response, type);
+            if (value != null) {
+                log.debug("disk cache hit on {}", uri);
+                responseCache.put(uri, type, value, response);
+            }
+            return value;
+        } catch (RuntimeException e) {
+            log.warn("Failed to read the disk cached response for '{}' as {}, discarding it", uri, type.getName(), e);
+            disk.invalidate(uri);
+            return null;
+        }
+    }
+    
+    /**
+     * Add the validators of an expired cache entry to the request, so the server can answer 304 Not Modified if the
+     * resource has not changed since
+     */
+    private static WebClient conditional(WebClient uri, @Nullable ResponseCache.Stale<?> stale) {
+        if (stale != null) {
+            if (stale.getETag() != null) {
+                uri.header(HttpHeaders.IF_NONE_MATCH, stale.getETag());
+            }
+            if (stale.getLastModified() != null) {
+                uri.header(HttpHeaders.IF_MODIFIED_SINCE, stale.getLastModified());
+            }
+        }
+        return uri;
+    }
+    
+    /**
+     * Cache the result of a GET, or if the server answered 304 Not Modified, refresh the expired entry and return it
+     *
+     * @return the result to give the caller
+     */
+    @Nullable
+    private <T> T cacheResult(URI uri,
+                              Class<T> type,
+                              @Nullable T value,
+                              @Nullable TransportResponse response,
+                              @Nullable ResponseCache.Stale<T> stale) {
+        if (stale != null && response != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+            log.debug("{} not modified, reusing the cached result", uri);
+            if (!responseCache.refresh(uri, type, response)) {
+                //Evicted while we revalidated, so keep it for a while again. The body size is unknown without a body
+                responseCache.put(uri, type, stale.getValue(), 1);
+            }
+            return stale.getValue();
+        }
+        if (value == null || response == null) {
+            return value;
+        }
+        responseCache.put(uri, type, value, response);
+        DiskResponseCache disk = diskCache;
+        if (disk != null) {
+            disk.put(uri, response);
+        }
+        Splitter<?, ?> splitter = cacheSplitters.get(type);
+        if (splitter != null) {
+            splitter.cache(uri, value, response.getBody().length);
+        }
+        return value;
+    }
+    
+    /**
+     * @return the key identifying concurrent GETs that can share one request: of the same resource as the same type,
+     *         cached or not, and of the same priority, so no caller waits behind a request of a lower priority
+     */
+    private static Object flightKey(URI cacheKey, Class<?> type, boolean cacheable, Priority priority) {
+        return List.of(cacheKey, type, cacheable, priority);
+    }
+    
+    /**
+     * A {@link CacheSplitter} with the types it splits from and into
+     */
+    private class Splitter<T, P> {
+        private final Class<T> batchType;
+        private final Class<P> partType;
+        private final CacheSplitter<T, P> splitter;
+        
+        private Splitter(Class<T> batchType, Class<P> partType, CacheSplitter<T, P> splitter) {
+            this.batchType = batchType;
+            this.partType  = partType;
+            this.splitter  = splitter;
+        }
+        
+        private void cache(URI batchKey, Object batch, long bodyBytes) {
+            Map<URI, P> parts;
+            try {
+                parts = splitter.split(batchKey, batchType.cast(batch));
+            } catch (RuntimeException e) {
+                log.warn("Failed to split the result of '{}' into {}, so only caching it whole",
+                         batchKey,
+                         partType.getName(),
+                         e);
+                return;
+            }
+            if (parts == null || parts.isEmpty()) {
+                return;
+            }
+            //The size of each part is not known, so the body is shared evenly between them
+            long partBytes = Math.max(1, bodyBytes / parts.size());
+            for (Map.Entry<URI, P> part : parts.entrySet()) {
+                if (part.getValue() != null) {
+                    responseCache.put(CacheKeys.canonical(part.getKey()), partType, part.getValue(), partBytes);
+                }
+            }
+            log.debug("Cached the result of '{}' as {} {}", batchKey, parts.size(), partType.getSimpleName());
+        }
+    }
+    
+    protected abstract WebClient removeAuth(WebClient link);
+    
+    protected abstract WebClient addAuth(WebClient link);
+    
+    /**
+     * Called with every response, with the link as returned by {@link #addAuth(WebClient)}, so subclasses can learn
+     * how the credentials they added fare. Does nothing per default.
+     *
+     * @param link     the link the request was sent with
+     * @param response the response
+     */
+    protected void authFeedback(WebClient link, TransportResponse response) {
+    }
+    
+    
+    /**
+     * Invoke the actual server and return the result.
+     *
+     * @param <T>       the type of the result
+     * @param <E>       the type of the entity
+     * @param uri       the uri to invoke
+     * @param type      the class of the result
+     * @param entity    the body entity. Can be null
+     * @param operation the operation (GET, POST,...)
+     * @return the result
+     * @throws AlmaConnectionException if we failed on a deeper level, like the connection
+     * @throws AlmaKnownException      if we failed on a documented API error code
+     * @throws AlmaUnknownException    if we failed on a higher level, but not in a documented way
+     */
+    @Nullable
+    protected <T, E> T invokeDirect(final WebClient uri, Class<T> type, E entity, Operation operation)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        return invokeDirect(newInvocation(uri, type, entity, operation));
+    }
+    
+    /**
+     * Invoke the server until the invocation succeeds, fails in a way that should not be retried, runs out of retries
+     * or passes its deadline. Retries and redirects are followed in a loop, so long chains of retries do not grow the
+     * stack.
+     */
+    @Nullable
+    protected <T, E> T invokeDirect(Invocation<T, E> invocation)
+            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
+        Invocation<T, E> attempt = invocation;
+        try {
+            while (true) {
+                //Remove the api key from the query string. This is something we handle here, not something you should set
+                removeAuth(attempt.getUri());
+                
+                URI currentURI = attempt.getUri().getCurrentURI();
+                log.debug("{}ing on {}", attempt.getOperation(), currentURI);
+                failIfDeadlineExceeded(attempt, "no time left for another attempt", null);
+                
+                Invocation<T, E> retryInvocation;
+                try {
+                    WebClient webClient = addAuth(attempt.getUri());
+                    TransportResponse response = sendRequest(attempt, webClient);
+                    if (isNotModified(response)) {
+                        notifyResponseListener(attempt, response);
+                        return null;
+                    }
+                    T value = readResult(attempt, currentURI, response);
+                    log.trace("{}ed on {}", attempt.getOperation(), currentURI);
+                    notifyResponseListener(attempt, response);
+                    if (value == null && (attempt.getType() == null || Void.TYPE == attempt.getType())){
+                        log.warn("Beware: Returning null from invocation {} but caller expected type {}", attempt, attempt.getType());
+                    }
+                    return value;
+                } catch (Fault | ProcessingException e) {
+                    //I am not entirely sure that Fault can reach this far, without being converted to a ProcessingException,
+                    // but better safe than sorry
+                    
+                    //This throws exception if we should NOT retry
+                    retryInvocation = handleProcessingException(attempt, e);
+                } catch (RedirectionException e) {
+                    //This throws exception if we should NOT retry
+                    retryInvocation = handleRedirection(attempt, e);
+                } catch (WebApplicationException e) {
+                    //This throws exception if we should NOT retry
+                    retryInvocation = handleWebApplicationException(attempt, e);
+                }
+                
+                if (retryInvocation != attempt) {
+                    attempt.close();
+                    attempt = retryInvocation;
+                }
+                awaitBackOff(attempt);
+            }
+        } finally {
+            attempt.close();
+        }
+    }
+    
+    
+    /**
+     * Async version of {@link #invokeDirect(WebClient, Class, Object, Operation)}
+     *
+     * @param <T>       the type of the result
+     * @param <E>       the type of the entity
+     * @param uri       the uri to invoke
+     * @param type      the class of the result
+     * @param entity    the body entity. Can be null
+     * @param operation the operation (GET, POST,...)
+     * @return a future of the result
+     */
+    protected <T, E> CompletableFuture<T> invokeDirectAsync(final WebClient uri,
+                                                            Class<T> type,
+                                                            E entity,
+                                                            Operation operation) {
+        return invokeDirectAsync(newInvocation(uri, type, entity, operation));
+    }
+    
+    /**
+     * Create an invocation with the retries of this client, the earliest of the deadline of the calling thread
+     * and the default deadline of this client, and the priority of the calling thread or else of this client
+     */
+    private <T, E> Invocation<T, E> newInvocation(WebClient uri, Class<T> type, E entity, Operation operation) {
+        return new Invocation<>(uri, type, entity, operation, maxRetries).setDeadline(currentDeadline())
+                                                                         .setPriority(currentPriority());
+    }
+    
+    /**
+     * @return the priority of the calling thread, or else of this client
+     */
+    private Priority currentPriority() {
+        return Optional.ofNullable(Priority.current()).orElse(defaultPriority);
+    }
+    
+    /**
+     * @return the earliest of the deadline of the calling thread and the default deadline of this client, or null if
+     *         neither is set
+     */
+    @Nullable
+    private Deadline currentDeadline() {
+        Duration budget = defaultDeadline;
+        return Deadline.earliest(Deadline.current(), budget == null ? null : Deadline.after(budget));
+    }
+    
+    protected <T, E> CompletableFuture<T> invokeDirectAsync(Invocation<T, E> invocation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        invokeDirectAsync(invocation, result);
+        return result;
+    }
+    
+    /**
+     * Make one attempt at the invocation and complete the result with the outcome. If the attempt should be retried,
+     * the retry is scheduled with the {@link RetryScheduler}, so no thread is held while backing off. If the result
+     * is cancelled, no further attempts are made.
+     */
+    private <T, E> void invokeDirectAsync(Invocation<T, E> invocation, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            //Cancelled by the caller while we were backing off
+            invocation.close();
+            return;
+        }
+        
+        //Remove the api key from the query string. This is something we handle here, not something you should set
+        removeAuth(invocation.getUri());
+        
+        URI currentURI = invocation.getUri().getCurrentURI();
+        log.debug("{}ing async on {}", invocation.getOperation(), currentURI);
+        
+        CompletableFuture<TransportResponse> responseFuture;
+        try {
+            failIfDeadlineExceeded(invocation, "no time left for another attempt", null);
+            WebClient webClient = addAuth(invocation.getUri());
+            responseFuture = sendRequestAsync(invocation, webClient);
+        } catch (RuntimeException e) {
+            responseFuture = CompletableFuture.failedFuture(e);
+        }
+        //Propagate cancellation to the request in flight
+        CompletableFuture<TransportResponse> inFlight = responseFuture;
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                inFlight.cancel(true);
+            }
+        });
+        
+        responseFuture.whenCompleteAsync((response, throwable) -> {
+            Invocation<T, E> retryInvocation;
+            try {
+                if (throwable != null) {
+                    throw asRuntimeException(throwable);
+                }
+                if (isNotModified(response)) {
+                    notifyResponseListener(invocation, response);
+                    invocation.close();
+                    result.complete(null);
+                    return;
+                }
+                T value = readResult(invocation, currentURI, response);
+                log.trace("{}ed async on {}", invocation.getOperation(), currentURI);
+                notifyResponseListener(invocation, response);
+                invocation.close();
+                result.complete(value);
+                return;
+            } catch (Fault | ProcessingException e) {
+                retryInvocation = handleAsyncFailure(invocation, result, () -> handleProcessingException(invocation, e));
+            } catch (RedirectionException e) {
+                retryInvocation = handleAsyncFailure(invocation, result, () -> handleRedirection(invocation, e));
+            } catch (WebApplicationException e) {
+                retryInvocation = handleAsyncFailure(invocation, result, () -> handleWebApplicationException(invocation, e));
+            } catch (RuntimeException e) {
+                retryInvocation = handleAsyncFailure(invocation, result, () -> {
+                    throw e;
+                });
+            }
+            if (retryInvocation == null) {
+                return;
+            }
+            if (retryInvocation != invocation) {
+                invocation.close();
+            }
+            
+            long backOffMillis = retryInvocation.getBackOffMillis();
+            retryInvocation.setBackOffMillis(0);
+            if (backOffMillis > 0) {
+                metrics.recordBackOff(invocation.getOperation(), HttpUtils.getEndpointTemplate(currentURI), backOffMillis);
+            }
+            retryScheduler.schedule(() -> invokeDirectAsync(retryInvocation, result), backOffMillis, asyncExecutor);
+        }, asyncExecutor);
+    }
+    
+    /**
+     * Run one of the handlers. If it throws, i.e. we should NOT retry, complete the result with the exception and
+     * return null.
+     */
+    @Nullable
+    private <T, E> Invocation<T, E> handleAsyncFailure(Invocation<T, E> invocation,
+                                                       CompletableFuture<T> result,
+                                                       Supplier<Invocation<T, E>> handler) {
+        try {
+            return handler.get();
+        } catch (RuntimeException e) {
+            invocation.close();
+            result.completeExceptionally(e);
+            return null;
+        }
+    }
+    
+    /**
+     * Send one attempt of the invocation through the transport, within the rate and concurrency limits
+     *
+     * @throws AlmaConnectionException if interrupted while waiting for the rate or concurrency limit. The interrupt
+     *                                 flag is restored.
+     * @throws ProcessingException     if the transport failed
+     */
+    private <T, E> TransportResponse sendRequest(Invocation<T, E> invocation, WebClient webClient)
+            throws AlmaConnectionException, ProcessingException {
+        HedgingPolicy policy = hedgingPolicy;
+        //A streamed response is read by the caller, so there is no losing response to discard
+        if (policy != null && invocation.getOperation() == Operation.GET && invocation.getBodyReader() == null) {
+            return awaitResponse(invocation, webClient, sendHedgedAsync(policy, invocation, webClient));
+        }
+        CircuitBreaker breaker = acquireCircuit(invocation, webClient.getCurrentURI());
+        if (breaker == null) {
+            return sendWithinLimits(invocation, webClient);
+        }
+        TransportResponse response;
+        try {
+            response = sendWithinLimits(invocation, webClient);
+        } catch (AlmaConnectionException e) {
+            //Interrupted before sending
+            breaker.onIgnore();
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.onFailure();
+            throw e;
+        }
+        circuitFeedback(breaker, response);
+        return response;
+    }
+    
+    private <T, E> TransportResponse sendWithinLimits(Invocation<T, E> invocation, WebClient webClient)
+            throws AlmaConnectionException, ProcessingException {
+        long queuedNanos = System.nanoTime();
+        awaitQuota(invocation, webClient);
+        awaitRateLimit(invocation, webClient);
+        
+        AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) {
+            metrics.recordQueueTime(invocation.getPriority(), System.nanoTime() - queuedNanos);
+            return execute(invocation, webClient);
+        }
+        try {
+            Deadline deadline = invocation.getDeadline();
+            if (deadline == null) {
+                limiter.acquire(invocation.getPriority());
+            } else if (!limiter.tryAcquire(invocation.getPriority(), deadline.getRemainingMillis())) {
+                throw deadlineExceeded(invocation, "no concurrency permit before the deadline", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlmaConnectionException("Interrupted while waiting to "
+                                              + invocation.getOperation()
+                                              + " '"
+                                              + webClient.getCurrentURI()
+                                              + "'", e);
+        }
+        metrics.recordQueueTime(invocation.getPriority(), System.nanoTime() - queuedNanos);
+        TransportResponse response;
+        try {
+            response = execute(invocation, webClient);
+        } catch (RuntimeException e) {
+            limiter.onIgnore();
+            throw e;
+        }
+        limiterFeedback(limiter, response);
+        return response;
+    }
+    
+    /**
+     * Wait on the calling thread until the API quota allows the request
+     *
+     * @throws AlmaQuotaReservedException if the request is not allowed
+     */
+    private <T, E> void awaitQuota(Invocation<T, E> invocation, WebClient webClient)
+            throws AlmaConnectionException, AlmaQuotaReservedException {
+        long waitMillis = getQuotaDelayMillis(invocation, webClient);
+        if (waitMillis <= 0) {
+            return;
+        }
+        log.trace("Throttling {} on '{}' for {} ms to keep the API quota reserve",
+                  invocation.getOperation(),
+                  webClient.getCurrentURI(),
+                  waitMillis);
+        try {
+            Thread.sleep(waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlmaConnectionException("Interrupted while waiting to "
+                                              + invocation.getOperation()
+                                              + " '"
+                                              + webClient.getCurrentURI()
+                                              + "'", e);
+        }
+    }
+    
+    /**
+     * @return the time to wait before sending the request, to keep the reserve of the API quota
+     * @throws AlmaQuotaReservedException    if the request is not allowed
+     * @throws AlmaDeadlineExceededException if the wait would pass the deadline of the invocation
+     */
+    private long getQuotaDelayMillis(Invocation<?, ?> invocation, WebClient webClient)
+            throws AlmaQuotaReservedException, AlmaDeadlineExceededException {
+        ApiQuota quota = apiQuota;
+        if (quota == null) {
+            return 0;
+        }
+        Deadline deadline = invocation.getDeadline();
+        long maxWaitMillis = deadline == null ? Long.MAX_VALUE : deadline.getRemainingMillis();
+        //Does not take the slot of a wait that would pass the deadline, so the next bulk call is not pushed back
+        long waitMillis = quota.getDelayMillis(invocation.getPriority(), maxWaitMillis);
+        if (waitMillis < 0) {
+            throw new AlmaQuotaReservedException(invocation.getOperation().name(),
+                                                 webClient.getCurrentURI(),
+                                                 Optional.ofNullable(quota.getRemaining()).orElse(0L),
+                                                 quota.getReserve());
+        }
+        if (waitMillis > 0 && waitMillis >= maxWaitMillis) {
+            //No point in waiting, when there will be no time left for the request
+            throw deadlineExceeded(invocation,
+                                   "the API quota would throttle it " + waitMillis + " ms, past the deadline",
+                                   null);
+        }
+        return waitMillis;
+    }
+    
+    /**
+     * Wait on the calling thread until the rate limiter allows the request
+     */
+    private <T, E> void awaitRateLimit(Invocation<T, E> invocation, WebClient webClient)
+            throws AlmaConnectionException {
+        TokenBucketRateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return;
+        }
+        try {
+            Deadline deadline = invocation.getDeadline();
+            if (deadline == null) {
+                limiter.acquire(invocation.getPriority());
+            } else if (!limiter.tryAcquire(invocation.getPriority(), deadline.getRemainingMillis())) {
+                throw deadlineExceeded(invocation, "rate limited until the deadline", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlmaConnectionException("Interrupted while waiting to "
+                                              + invocation.getOperation()
+                                              + " '"
+                                              + webClient.getCurrentURI()
+                                              + "'", e);
+        }
+    }
+    
+    /**
+     * Async version of {@link #sendRequest(Invocation, WebClient)}. Waiting for the rate and concurrency limits holds
+     * no thread.
+     */
+    private <T, E> CompletableFuture<TransportResponse> sendRequestAsync(Invocation<T, E> invocation,
+                                                                         WebClient webClient) {
+        HedgingPolicy policy = hedgingPolicy;
+        if (policy != null && invocation.getOperation() == Operation.GET) {
+            return sendHedgedAsync(policy, invocation, webClient);
+        }
+        return sendOnceAsync(invocation, webClient);
+    }
+    
+    /**
+     * Send the GET, and if it has not completed within the delay of the policy, send a duplicate with its own
+     * WebClient. The first successful response wins and the other request is cancelled. If both fail, the failure of
+     * the first is reported.
+     * <p>
+     * The time the first request took is given to the policy whatever the outcome. If the duplicate won, that is the
+     * time until then, which is less than the first request would have taken, but keeps stalled requests in the
+     * latencies the delay is computed from.
+     */
+    private <T, E> CompletableFuture<TransportResponse> sendHedgedAsync(HedgingPolicy policy,
+                                                                        Invocation<T, E> invocation,
+                                                                        WebClient webClient) {
+        URI currentURI = webClient.getCurrentURI();
+        String endpoint = HttpUtils.getEndpointTemplate(currentURI);
+        long delayMillis = policy.onRequest(endpoint);
+        long start = System.nanoTime();
+        
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        CompletableFuture<TransportResponse> primary = sendOnceAsync(invocation, webClient);
+        AtomicReference<CompletableFuture<TransportResponse>> hedge = new AtomicReference<>();
+        AtomicReference<Throwable> primaryFailure = new AtomicReference<>();
+        AtomicReference<Throwable> hedgeFailure = new AtomicReference<>();
+        AtomicBoolean primaryRecorded = new AtomicBoolean(false);
+        Runnable recordPrimary = () -> {
+            if (primaryRecorded.compareAndSet(false, true)) {
+                policy.recordLatency(endpoint, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        };
+        
+        primary.whenComplete((response, throwable) -> {
+            synchronized (result) {
+                if (primary.isCancelled()) {
+                    return;
+                }
+                recordPrimary.run();
+                if (throwable == null) {
+                    result.complete(response);
+                } else {
+                    primaryFailure.set(throwable);
+                    if (hedge.get() == null || hedgeFailure.get() != null) {
+                        result.completeExceptionally(throwable);
+                    }
+                }
+            }
+        });
+        
+        retryScheduler.schedule(() -> {
+            synchronized (result) {
+                if (result.isDone() || primaryFailure.get() != null || !policy.tryAcquireHedge()) {
+                    return;
+                }
+                log.debug("No response to GET on '{}' after {} ms, so hedging it", currentURI, delayMillis);
+                WebClient hedgeClient = getWebClient(currentURI).headers(webClient.getHeaders());
+                CompletableFuture<TransportResponse> hedgeRequest;
+                try {
+                    hedgeRequest = sendOnceAsync(invocation, hedgeClient);
+                } catch (RuntimeException e) {
+                    hedgeRequest = CompletableFuture.failedFuture(e);
+                }
+                hedge.set(hedgeRequest);
+                hedgeRequest.whenComplete((response, throwable) -> {
+                    hedgeClient.close();
+                    synchronized (result) {
+                        if (throwable == null) {
+                            //Counted before the result completes, so the caller sees the hedge as won
+                            if (!result.isDone()) {
+                                recordPrimary.run();
+                                policy.onHedgeWon();
+                                result.complete(response);
+                            }
+                        } else {
+                            hedgeFailure.set(throwable);
+                            if (primaryFailure.get() != null) {
+                                result.completeExceptionally(primaryFailure.get());
+                            }
+                        }
+                    }
+                });
+            }
+        }, delayMillis, asyncExecutor);
+        
+        //Cancel the loser, or both if the caller cancels
+        result.whenComplete((response, throwable) -> {
+            primary.cancel(true);
+            CompletableFuture<TransportResponse> hedgeRequest = hedge.get();
+            if (hedgeRequest != null) {
+                hedgeRequest.cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Wait on the calling thread for a response sent with the async methods
+     *
+     * @throws AlmaConnectionException if interrupted while waiting. The request is cancelled and the interrupt flag is
+     *                                 restored.
+     */
+    private <T, E> TransportResponse awaitResponse(Invocation<T, E> invocation,
+                                                   WebClient webClient,
+                                                   CompletableFuture<TransportResponse> response)
+            throws AlmaConnectionException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AlmaConnectionException("Interrupted while waiting to "
+                                              + invocation.getOperation()
+                                              + " '"
+                                              + webClient.getCurrentURI()
+                                              + "'", e);
+        } catch (ExecutionException e) {
+            throw asRuntimeException(e.getCause());
+        }
+    }
+    
+    private <T, E> CompletableFuture<TransportResponse> sendOnceAsync(Invocation<T, E> invocation,
+                                                                      WebClient webClient) {
+        CircuitBreaker breaker = acquireCircuit(invocation, webClient.getCurrentURI());
+        CompletableFuture<TransportResponse> result = sendWithinLimitsAsync(invocation, webClient);
+        if (breaker != null) {
+            result.whenComplete((response, throwable) -> {
+                if (result.isCancelled()) {
+                    breaker.onIgnore();
+                } else if (throwable != null) {
+                    breaker.onFailure();
+                } else {
+                    circuitFeedback(breaker, response);
+                }
+            });
+        }
+        return result;
+    }
+    
+    private <T, E> CompletableFuture<TransportResponse> sendWithinLimitsAsync(Invocation<T, E> invocation,
+                                                                              WebClient webClient) {
+        long queuedNanos = System.nanoTime();
+        long quotaMillis;
+        try {
+            quotaMillis = getQuotaDelayMillis(invocation, webClient);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (quotaMillis <= 0) {
+            return sendWithinRateLimitAsync(invocation, webClient, queuedNanos);
+        }
+        
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        retryScheduler.schedule(() -> {
+            if (result.isDone()) {
+                //Cancelled while throttled by the API quota
+                return;
+            }
+            relay(sendWithinRateLimitAsync(invocation, webClient, queuedNanos), result);
+        }, quotaMillis, asyncExecutor);
+        return result;
+    }
+    
+    /**
+     * @param queuedNanos when the request started waiting for the limits, to record its queue time
+     */
+    private <T, E> CompletableFuture<TransportResponse> sendWithinRateLimitAsync(Invocation<T, E> invocation,
+                                                                                 WebClient webClient,
+                                                                                 long queuedNanos) {
+        TokenBucketRateLimiter limiter = rateLimiter;
+        CompletableFuture<Void> token = limiter == null ? null : limiter.acquireAsync(invocation.getPriority());
+        if (token == null || token.isDone()) {
+            return sendWithinConcurrencyLimitAsync(invocation, webClient, queuedNanos);
+        }
+        
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        //Continue on the async executor rather than the thread handing out the tokens
+        token.whenCompleteAsync((ignored, throwable) -> {
+            if (throwable != null) {
+                //Cancelled while waiting, so we hold no token
+                result.completeExceptionally(throwable);
+                return;
+            }
+            if (result.isDone()) {
+                //Cancelled just as we got the token, which is spent
+                return;
+            }
+            relay(sendWithinConcurrencyLimitAsync(invocation, webClient, queuedNanos), result);
+        }, asyncExecutor);
+        //Stop waiting for a token if the request is cancelled, or when the deadline passes
+        result.whenComplete((response, throwable) -> {
+            if (result.isCancelled()) {
+                token.cancel(false);
+            }
+        });
+        failAtDeadline(invocation, token, result, "rate limited until the deadline");
+        return result;
+    }
+    
+    /**
+     * @param queuedNanos when the request started waiting for the limits, to record its queue time
+     */
+    private <T, E> CompletableFuture<TransportResponse> sendWithinConcurrencyLimitAsync(Invocation<T, E> invocation,
+                                                                                        WebClient webClient,
+                                                                                        long queuedNanos) {
+        AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) {
+            metrics.recordQueueTime(invocation.getPriority(), System.nanoTime() - queuedNanos);
+            return executeAsync(invocation, webClient);
+        }
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        CompletableFuture<Void> permit = limiter.acquireAsync(invocation.getPriority());
+        permit.whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+                //Cancelled while waiting, so we hold no permit
+                result.completeExceptionally(throwable);
+                return;
+            }
+            if (result.isDone()) {
+                //Cancelled just as we got the permit
+                limiter.onIgnore();
+                return;
+            }
+            metrics.recordQueueTime(invocation.getPriority(), System.nanoTime() - queuedNanos);
+            CompletableFuture<TransportResponse> response;
+            try {
+                response = executeAsync(invocation, webClient);
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((transportResponse, failure) -> {
+                if (failure != null) {
+                    limiter.onIgnore();
+                    result.completeExceptionally(failure);
+                } else {
+                    limiterFeedback(limiter, transportResponse);
+                    result.complete(transportResponse);
+                }
+            });
+            //Abort the request if cancelled while in flight, which also frees the permit
+            CompletableFuture<TransportResponse> inFlight = response;
+            result.whenComplete((transportResponse, failure) -> {
+                if (result.isCancelled()) {
+                    inFlight.cancel(true);
+                }
+            });
+        });
+        //Stop waiting for a permit if the request is cancelled, or when the deadline passes
+        result.whenComplete((response, throwable) -> {
+            if (result.isCancelled()) {
+                permit.cancel(false);
+            }
+        });
+        failAtDeadline(invocation, permit, result, "no concurrency permit before the deadline");
+        return result;
+    }
+    
+    /**
+     * Fail the result of the invocation if it is still waiting for a limiter when its deadline passes
      *
-     * @param cachingEnabled should caching be enabled for GET requests
+     * @param wait   the wait for the limiter, which is cancelled then
+     * @param result the result of the invocation
+     * @param reason the reason to give
      */
-    public void setCachingEnabled(boolean cachingEnabled) {
-        this.cachingEnabled = cachingEnabled;
-    }
-    
-    public boolean isRetryOnTimeouts() {
-        return retryOnTimeouts;
+    private void failAtDeadline(Invocation<?, ?> invocation,
+                                CompletableFuture<Void> wait,
+                                CompletableFuture<TransportResponse> result,
+                                String reason) {
+        Deadline deadline = invocation.getDeadline();
+        if (deadline == null || wait.isDone()) {
+            return;
+        }
+        ScheduledFuture<?> timeout = retryScheduler.schedule(() -> {
+            //Fail before cancelling the wait, so the failure is the deadline, not the cancellation. If the limiter let
+            //the request through meanwhile, the continuation of the wait sees that the result is done
+            if (!wait.isDone() && result.completeExceptionally(deadlineExceeded(invocation, reason, null))) {
+                wait.cancel(false);
+            }
+        }, deadline.getRemainingMillis(), asyncExecutor);
+        wait.whenComplete((ignored, throwable) -> timeout.cancel(false));
     }
     
     /**
-     * retryOnTimeouts control whether or not we automatically retry non-GET requests that time out.
-     * This is always enabled for GET requests. This parameter controls whether or not we also retry for non-GET
-     * requests
-     *
-     * @param retryOnTimeouts should we retry non-GET requests that time out?
+     * Complete the target like the source, and cancel the source if the target is cancelled first
      */
-    public void setRetryOnTimeouts(boolean retryOnTimeouts) {
-        this.retryOnTimeouts = retryOnTimeouts;
+    private static <V> void relay(CompletableFuture<V> source, CompletableFuture<V> target) {
+        source.whenComplete((value, throwable) -> {
+            if (throwable != null) {
+                target.completeExceptionally(throwable);
+            } else {
+                target.complete(value);
+            }
+        });
+        target.whenComplete((value, throwable) -> {
+            if (target.isCancelled()) {
+                source.cancel(true);
+            }
+        });
     }
     
-    
-    public boolean isRetryOnSocketExceptions() {
-        return retryOnSocketExceptions;
+    /**
+     * Send one attempt of the invocation through the transport, and report its latency and size
+     */
+    private <T, E> TransportResponse execute(Invocation<T, E> invocation, WebClient webClient) {
+        setTimeouts(invocation, webClient);
+        long start = System.nanoTime();
+        TransportResponse response;
+        try {
+            response = invocation.getBodyReader() == null
+                       ? transport.execute(webClient, invocation.getOperation(), invocation.getEntity())
+                       : transport.executeStreaming(webClient, invocation.getOperation(), invocation.getEntity());
+        } catch (RuntimeException e) {
+            recordFailure(invocation, webClient, e, System.nanoTime() - start);
+            throw e;
+        }
+        recordResponse(invocation, webClient, response, System.nanoTime() - start);
+        return response;
     }
     
     /**
-     * retryOnSocketExceptions control whether or not we automatically retry non-GET requests that fail on a socket
-     * exception.
-     * This is always enabled for GET requests. This parameter controls whether or not we also retry for non-GET
-     * requests
-     *
-     * @param retryOnSocketExceptions should we retry non-GET requests that fail out?
+     * Async version of {@link #execute(Invocation, WebClient)}. The future of the transport is returned as is, so
+     * cancelling it still reaches the transport
      */
-    public void setRetryOnSocketExceptions(boolean retryOnSocketExceptions) {
-        this.retryOnSocketExceptions = retryOnSocketExceptions;
+    private <T, E> CompletableFuture<TransportResponse> executeAsync(Invocation<T, E> invocation, WebClient webClient) {
+        setTimeouts(invocation, webClient);
+        long start = System.nanoTime();
+        CompletableFuture<TransportResponse> response
+                = transport.executeAsync(webClient, invocation.getOperation(), invocation.getEntity());
+        response.whenComplete((transportResponse, throwable) -> {
+            if (throwable != null) {
+                recordFailure(invocation, webClient, throwable, System.nanoTime() - start);
+            } else {
+                recordResponse(invocation, webClient, transportResponse, System.nanoTime() - start);
+            }
+        });
+        return response;
     }
     
-    public boolean isRetryOn429() {
-        return retryOn429;
+    /**
+     * Set the receive timeout of the attempt from the latencies of its endpoint, if timeouts are adaptive, and cut
+     * the timeouts to the time left before the deadline of the invocation, if any
+     */
+    private void setTimeouts(Invocation<?, ?> invocation, WebClient webClient) {
+        AdaptiveTimeoutPolicy policy = adaptiveTimeouts;
+        if (policy != null) {
+            long timeout = policy.getTimeoutMillis(HttpUtils.getEndpointTemplate(webClient.getCurrentURI()),
+                                                   readTimeout,
+                                                   invocation.getTimeouts());
+            WebClient.getConfig(webClient).getHttpConduit().getClient().setReceiveTimeout(timeout);
+        }
+        Deadline deadline = invocation.getDeadline();
+        if (deadline != null) {
+            HttpUtils.capTimeouts(webClient, deadline.getRemainingMillis());
+        }
     }
     
     /**
-     * retryOn429 control whether or not we automatically retry non-GET requests that receive ALMA HTTP 429 (rate
-     * limit)
-     * errors.
-     * This is always enabled for GET requests. This parameter controls whether or not we also retry for non-GET
-     * requests
+     * Fail the invocation if it has passed its deadline
      *
-     * @param retryOn429 should we retry non-GET requests that fail on rate limit.
+     * @param reason the reason to give if it has
+     * @param cause  the failure of the last attempt, or null
+     * @throws AlmaDeadlineExceededException if the deadline of the invocation has passed
      */
-    public void setRetryOn429(boolean retryOn429) {
-        this.retryOn429 = retryOn429;
+    private void failIfDeadlineExceeded(Invocation<?, ?> invocation, String reason, @Nullable Throwable cause)
+            throws AlmaDeadlineExceededException {
+        Deadline deadline = invocation.getDeadline();
+        if (deadline != null && deadline.isExpired()) {
+            throw deadlineExceeded(invocation, reason, cause);
+        }
     }
     
-    
-    //PUBLIC METHODS
-    
-    public WebClient constructLink() {
-        return getWebClient(target);
+    private AlmaDeadlineExceededException deadlineExceeded(Invocation<?, ?> invocation,
+                                                           String reason,
+                                                           @Nullable Throwable cause) {
+        return new AlmaDeadlineExceededException(invocation.getOperation().name(),
+                                                 invocation.getUri().getCurrentURI(),
+                                                 invocation.getDeadline().getBudgetMillis(),
+                                                 invocation.getRetries(),
+                                                 reason,
+                                                 cause);
     }
     
-    public WebClient getWebClient(URI link) {
-        URI host = new UriBuilderImpl(link).replaceQuery(null).replacePath(null).replaceMatrix(null).build();
-        
-        JacksonJsonProvider jacksonJaxbJsonProvider = new JacksonJaxbJsonProvider();
-        jacksonJaxbJsonProvider.disable(DeserializationFeature.UNWRAP_ROOT_VALUE);
-        jacksonJaxbJsonProvider.disable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY);
-        jacksonJaxbJsonProvider.enable(DeserializationFeature.WRAP_EXCEPTIONS);
-        
-        jacksonJaxbJsonProvider.enable(JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS.mappedFeature());
-        jacksonJaxbJsonProvider.enable(JsonParser.Feature.IGNORE_UNDEFINED);
-        
-        final List<?> providers = Arrays.asList(jacksonJaxbJsonProvider);
-        WebClient client = WebClient.create(host.toString(), providers);
-        
-        
-        HTTPConduit conduit = WebClient.getConfig(client).getHttpConduit();
-        conduit.getClient().setConnectionTimeout(connectTimeout);
-        conduit.getClient().setConnectionRequestTimeout(connectTimeout);
-        conduit.getClient().setReceiveTimeout(readTimeout);
-        
-        if (link.getPath() != null) {
-            client = client.path(link.getPath());
-        }
-        if (link.getQuery() != null) {
-            client = client.replaceQuery(link.getQuery());
-        }
-        
-        //client = client
-        //        .accept(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_XML_TYPE)
-        //        .type(MediaType.APPLICATION_JSON_TYPE);
-    
-        client = client
-                .accept(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE)
-                .type(MediaType.APPLICATION_XML_TYPE);
-        
-        if (globalParams != null) {
-            for (Map.Entry<String, String> globalParam : globalParams.entrySet()) {
-                client = client.replaceQueryParam(globalParam.getKey(), globalParam.getValue());
-            }
+    private void recordFailure(Invocation<?, ?> invocation, WebClient webClient, Throwable failure, long latencyNanos) {
+        String endpoint = HttpUtils.getEndpointTemplate(webClient.getCurrentURI());
+        metrics.recordFailure(invocation.getOperation(), endpoint, latencyNanos, failure);
+        AdaptiveTimeoutPolicy policy = adaptiveTimeouts;
+        if (policy != null && HttpUtils.getCauses(failure)
+                                       .stream()
+                                       .anyMatch(cause -> cause instanceof SocketTimeoutException)) {
+            policy.recordTimeout(endpoint,
+                                 WebClient.getConfig(webClient).getHttpConduit().getClient().getReceiveTimeout());
         }
-        
-        
-        return client;
     }
     
-    public WebClient getWebClient(String link) {
-        return getWebClient(UriBuilder.fromUri(link).build());
+    private void recordResponse(Invocation<?, ?> invocation,
+                                WebClient webClient,
+                                TransportResponse response,
+                                long latencyNanos) {
+        String endpoint = HttpUtils.getEndpointTemplate(webClient.getCurrentURI());
+        AdaptiveTimeoutPolicy policy = adaptiveTimeouts;
+        //Rate limited and failed requests are often answered at once, which says little of the usual latency
+        if (policy != null && response.getStatus() != 429 && response.getStatus() < 500) {
+            policy.recordLatency(endpoint, TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        }
+        metrics.recordResponse(invocation.getOperation(),
+                               endpoint,
+                               response.getStatus(),
+                               latencyNanos,
+                               response.getBody() == null ? 0 : response.getBody().length);
+        metrics.recordWireBytes(invocation.getOperation(), endpoint, response.getWireLength());
+        ApiQuota quota = apiQuota;
+        if (quota != null) {
+            quota.record(invocation.getPriority(), HttpUtils.getApiRemaining(response));
+        }
+        authFeedback(webClient, response);
     }
     
-    public enum Operation {
-        POST, PUT, DELETE, GET
+    /**
+     * Ask the circuit breaker of the endpoint group, if any, to send the request
+     *
+     * @return the breaker to report the outcome to, or null if there are no circuit breakers
+     * @throws AlmaCircuitOpenException if the breaker is open
+     */
+    @Nullable
+    private CircuitBreaker acquireCircuit(Invocation<?, ?> invocation, URI currentURI) throws AlmaCircuitOpenException {
+        CircuitBreaker breaker = getCircuitBreaker(currentURI);
+        if (breaker != null && !breaker.tryAcquire()) {
+            throw new AlmaCircuitOpenException(invocation.getOperation().name(),
+                                               currentURI,
+                                               getEndpointGroup(currentURI),
+                                               breaker.getRemainingOpenMillis());
+        }
+        return breaker;
     }
     
-    public <T> T get(final WebClient link, Class<T> type)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        return get(link, type, cachingEnabled);
+    /**
+     * Fail at once rather than back off and retry, if the circuit breaker of the endpoint group is open
+     */
+    private void failIfCircuitOpen(Invocation<?, ?> invocation) throws AlmaCircuitOpenException {
+        URI currentURI = invocation.getUri().getCurrentURI();
+        CircuitBreaker breaker = getCircuitBreaker(currentURI);
+        if (breaker != null && breaker.getState() == CircuitBreaker.State.OPEN) {
+            throw new AlmaCircuitOpenException(invocation.getOperation().name(),
+                                               currentURI,
+                                               getEndpointGroup(currentURI),
+                                               breaker.getRemainingOpenMillis());
+        }
     }
     
-    public <T> T get(final WebClient link, Class<T> type, boolean useCache)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        return invokeCache(link, type, null, useCache, Operation.GET);
+    private static void circuitFeedback(CircuitBreaker breaker, TransportResponse response) {
+        if (response.getStatus() >= 500) {
+            breaker.onFailure();
+        } else if (response.getStatus() == 429) {
+            //Alma is up, just busy
+            breaker.onIgnore();
+        } else {
+            breaker.onSuccess();
+        }
     }
     
-    public <T, E> T put(final WebClient link, Class<T> type, E entity)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        return invokeDirect(link, type, entity, Operation.PUT);
+    /**
+     * Only conditional requests are answered with 304 Not Modified. There is no result to read, the caller has it
+     * cached already and learns of the 304 through the response listener
+     */
+    private static boolean isNotModified(TransportResponse response) {
+        return response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode();
     }
     
-    public <T, E> T post(final WebClient link, Class<T> type, E entity)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        return invokeDirect(link, type, entity, Operation.POST);
+    private static void notifyResponseListener(Invocation<?, ?> invocation, TransportResponse response) {
+        if (invocation.getResponseListener() != null) {
+            invocation.getResponseListener().accept(response);
+        }
     }
     
-    public <T> T delete(final WebClient link, Class<T> type)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        return invokeDirect(link, type, null, Operation.DELETE);
+    private static void limiterFeedback(AdaptiveConcurrencyLimiter limiter, TransportResponse response) {
+        if (response.getStatus() == 429) {
+            limiter.onRateLimited();
+        } else {
+            limiter.onSuccess(HttpUtils.getApiRemaining(response));
+        }
     }
     
-    
-    //Actual implementation
-    
     /**
-     * Attempt to fetch the requested resource from the cache. If not found, fetches it from ACTUAL
-     *
-     * @param uri       the URI to fetch
-     * @param type      the Class of the result
-     * @param entity    the body. Can be null
-     * @param useCache  if false, will bypass cache
-     * @param operation the HTTP operation (GET, POST,...)
-     * @param <T>       the type of the result
-     * @param <E>       the type of the body entity
-     * @return the resulting java object, either from cache or from the actual server
-     * @throws AlmaConnectionException if we failed on a deeper level, like the connection
-     * @throws AlmaKnownException      if we failed on a documented API error code
-     * @throws AlmaUnknownException    if we failed on a higher level, but not in a documented way
+     * Unwrap the exception a transport future completed with, so it can be handled like the exceptions of the
+     * blocking transport methods
      */
-    protected <T, E> T invokeCache(final WebClient uri, Class<T> type, E entity, boolean useCache, Operation operation)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        
-        //Only use cache on getRequests
-        useCache &= operation == Operation.GET;
-        
-        //Remove the api key from the query string. This is something we handle here, not something you should set
-        removeAuth(uri);
-        URI currentURI = uri.getCurrentURI();
-        
-        try {
-            if (useCache) {
-                Object cacheValue = cache.getIfPresent(currentURI);
-                if (type.isInstance(cacheValue)) {
-                    log.debug("cache hit on {}", currentURI);
-                    return (T) cacheValue;
-                }
-            }
-            
-            //It is possible for multiple threads to run here, potentially getting the same URI concurrently
-            T value = invokeDirect(uri, type, entity, operation);
-            
-            if (useCache) {
-                cache.put(currentURI, value);
-            }
-            return value;
-        } finally {
-            uri.close();
+    private static RuntimeException asRuntimeException(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
         }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new ProcessingException(cause);
     }
     
-    protected abstract WebClient removeAuth(WebClient link);
-    
-    protected abstract WebClient addAuth(WebClient link);
-    
-    
     /**
-     * Invoke the actual server and return the result.
+     * Read the entity of a response, or throw the same exceptions as CXF would for redirects and error statuses.
      *
-     * @param <T>       the type of the result
-     * @param <E>       the type of the entity
-     * @param uri       the uri to invoke
-     * @param type      the class of the result
-     * @param entity    the body entity. Can be null
-     * @param operation the operation (GET, POST,...)
-     * @return the result
-     * @throws AlmaConnectionException if we failed on a deeper level, like the connection
-     * @throws AlmaKnownException      if we failed on a documented API error code
-     * @throws AlmaUnknownException    if we failed on a higher level, but not in a documented way
+     * @param response the response from the transport
+     * @param type     the class of the result
+     * @param <T>      the type of the result
+     * @return the entity of the response
+     * @throws RedirectionException    if the response is a redirect
+     * @throws WebApplicationException if the response is an error
+     * @throws ProcessingException     if the body could not be read as the type
      */
     @Nullable
-    protected <T, E> T invokeDirect(final WebClient uri, Class<T> type, E entity, Operation operation)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        return invokeDirect(new Invocation<>(uri, type, entity, operation, maxRetries));
+    protected <T> T readEntity(TransportResponse response, Class<T> type)
+            throws RedirectionException, WebApplicationException, ProcessingException {
+        HttpUtils.checkStatus(response, webClientFactory.getEntityCodec());
+        return webClientFactory.getEntityCodec().read(response.getBody(), response.getMediaType(), type);
     }
     
+    /**
+     * Read the result of the invocation from the response, and report the time spent parsing it. The result of a
+     * streamed response is read with the body reader of the invocation, see {@link Invocation#setBodyReader}
+     */
     @Nullable
-    protected <T, E> T invokeDirect(Invocation<T, E> invocation)
-            throws AlmaConnectionException, AlmaKnownException, AlmaUnknownException {
-        
-        //Remove the api key from the query string. This is something we handle here, not something you should set
-        removeAuth(invocation.getUri());
-        
-        URI currentURI = invocation.getUri().getCurrentURI();
-        log.debug("{}ing on {}", invocation.getOperation(), currentURI);
+    private <T, E> T readResult(Invocation<T, E> invocation, URI currentURI, TransportResponse response) {
+        long start = System.nanoTime();
         T value;
-        try (invocation) {
-            Invocation<T, E> retryInvocation;
-        
-            try {
-                WebClient webClient = addAuth(invocation.getUri());
-                value = webClient.invoke(invocation.getOperation().name(),
-                                         invocation.getEntity(),
-                                         invocation.getType());
-                log.trace("{}ed on {}", invocation.getOperation(), currentURI);
-                if (value == null && (invocation.getType() == null || Void.TYPE == invocation.getType())){
-                    log.warn("Beware: Returning null from invocation {} but caller expected type {}", invocation, invocation.getType());
-                }
-                return value;
-            } catch (Fault | ProcessingException e) {
-                //I am not entirely sure that Fault can reach this far, without being converted to a ProcessingException,
-                // but better safe than sorry
-            
-                //This throws exception if we should NOT retry
-                retryInvocation = handleProcessingException(invocation, e);
-            } catch (RedirectionException e) {
-                //This throws exception if we should NOT retry
-                retryInvocation = handleRedirection(invocation, e);
-            } catch (WebApplicationException e) {
-                //This throws exception if we should NOT retry
-                retryInvocation = handleWebApplicationException(invocation, e);
-            }
-        
-            return invokeDirect(retryInvocation);
+        if (response instanceof StreamedResponse) {
+            value = readStreamed(invocation, (StreamedResponse) response);
+        } else if (invocation.getBodyReader() != null && response.getStatus() < 300) {
+            value = invocation.getBodyReader().apply(new ByteArrayInputStream(response.getBody()));
+        } else {
+            value = readEntity(response, invocation.getType());
         }
+        metrics.recordParse(invocation.getOperation(),
+                            HttpUtils.getEndpointTemplate(currentURI),
+                            System.nanoTime() - start);
+        return value;
     }
     
+    /**
+     * Hand the body of a successful response to the body reader of the invocation. The body of other responses is read
+     * in full, for the error handling
+     */
+    private <T, E> T readStreamed(Invocation<T, E> invocation, StreamedResponse response) {
+        if (response.getStatus() >= 300) {
+            return readEntity(response.buffer(), invocation.getType());
+        }
+        try {
+            return invocation.getBodyReader().apply(response.getBodyStream());
+        } catch (RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
     
     private <T, E> Invocation<T, E> handleProcessingException(Invocation<T, E> invocation, RuntimeException e)
             throws AlmaConnectionException {
@@ -369,6 +2135,9 @@ public abstract class HttpClient {
                 "Failed to " + operation.name() + "ing '" + currentURI + "'",
                 e);
         
+        //An attempt cut short by the deadline should not be reported as an ordinary timeout
+        failIfDeadlineExceeded(invocation, "the last attempt failed", e);
+        
         invocation.decrementRetryCount(almaConnectionExceptionSupplier);
         
         
@@ -380,16 +2149,17 @@ public abstract class HttpClient {
             //Multiple things, like SSL and ordinary reads and connects can cause SocketTimeouts, but at
             // different levels of the hierachy
             log.trace("Socket timeout for " + operation.name() + " on " + currentURI, e);
-            sleep("Socket timeout exception for '" + currentURI + "'");
+            backOff(invocation, RetryReason.TIMEOUT, null, "Socket timeout exception for '" + currentURI + "'");
             
             HttpUtils.extendTimeouts(operation, uri, currentURI);
+            invocation.countTimeout();
             
         } else if (shouldRetryOnSocketException(operation) && causes
                 .stream()
                 .anyMatch(cause -> cause instanceof SocketException)) {
             
             log.trace("Socket Exception for " + operation.name() + " on " + currentURI, e);
-            sleep("Socket exception for '" + currentURI + "'");
+            backOff(invocation, RetryReason.SOCKET_EXCEPTION, null, "Socket exception for '" + currentURI + "'");
             
         } else {
             throw almaConnectionExceptionSupplier.get();
@@ -405,7 +2175,7 @@ public abstract class HttpClient {
         final URI currentURI = invocation.getUri().getCurrentURI();
         final E entity = invocation.getEntity();
         
-        if (shouldRetryOn429(operation) && rateLimitSleep(e, currentURI)) {
+        if (shouldRetryOn429(operation) && rateLimitBackOff(invocation, e, currentURI)) {
             //Do not increment retryCount as 429's should be retried forever. They do not count as errors with
             // a limited number of retries
             return invocation;
@@ -424,6 +2194,8 @@ public abstract class HttpClient {
     private <T, E> Invocation<T, E> handleRedirection(Invocation<T, E> invocation, RedirectionException e) {
         URI redirectLocation = e.getLocation();
         log.debug("Redirecting {} to {}", invocation.getOperation(), redirectLocation.getPath());
+        metrics.recordRedirect(invocation.getOperation(),
+                               HttpUtils.getEndpointTemplate(invocation.getUri().getCurrentURI()));
         if (redirectLocation.isAbsolute()) {
             return invocation.withNewUri(getWebClient(redirectLocation));
         } else {
@@ -471,7 +2243,10 @@ public abstract class HttpClient {
                     // Full message seems to be "503 Service Unavailable - General error with the API Gateway – please retry later."
                     if (error.getErrorMessage().contains("please retry later")) {
                         invocation.decrementRetryCount(defaultException);
-                        sleep("ALMA responded '" + error.getErrorMessage() + "'");
+                        backOff(invocation,
+                                RetryReason.UNAVAILABLE,
+                                HttpUtils.getRetryAfterMillis(response),
+                                "ALMA responded '" + error.getErrorMessage() + "'");
                         return invocation;
                     }
                     break;
@@ -522,33 +2297,83 @@ public abstract class HttpClient {
     
     
     /**
-     * If the exception is a rate-limit, then sleep for the defined time and return true.
+     * If the exception is a rate-limit, then set the back-off of the invocation and return true.
      * Otherwise return false immediately
      * <p>
-     * The duration of sleep will be
-     * <p>
-     * long sleepTimeMillis = minSleepMillis + Math.round(Math.random() * sleepVariationMillis);
+     * The duration of the back-off is decided by the {@link #setBackOffPolicy(BackOffPolicy) back-off policy}, which
+     * is told of any Retry-After header of the response.
      *
      * @param e the web application exception
      * @return true if the error was a rate limit
-     * @see #minSleepMillis
-     * @see #sleepVariationMillis
      */
-    private boolean rateLimitSleep(WebApplicationException e, URI currentURI) {
+    private boolean rateLimitBackOff(Invocation<?, ?> invocation, WebApplicationException e, URI currentURI) {
         if (429 == e.getResponse().getStatusInfo().getStatusCode()) {
-            sleep("Received response status 429(rate-limiting) for '" + currentURI + "'");
+            backOff(invocation,
+                    RetryReason.RATE_LIMITED,
+                    HttpUtils.getRetryAfterMillis(e.getResponse()),
+                    "Received response status 429(rate-limiting) for '" + currentURI + "'");
             return true;
         }
         return false;
     }
     
+    /**
+     * Decide how long to wait before the invocation is retried, with the {@link #setBackOffPolicy(BackOffPolicy)
+     * back-off policy}. The waiting itself is done by the caller, see {@link #awaitBackOff(Invocation)} and
+     * {@link RetryScheduler}.
+     *
+     * @param reason           why the invocation is retried
+     * @param retryAfterMillis the wait asked for in a Retry-After header, or null
+     * @param s                the message to log
+     * @throws AlmaDeadlineExceededException if the back-off would pass the deadline of the invocation
+     */
+    private void backOff(Invocation<?, ?> invocation, RetryReason reason, @Nullable Long retryAfterMillis, String s)
+            throws AlmaCircuitOpenException, AlmaDeadlineExceededException {
+        failIfCircuitOpen(invocation);
+        int retry = invocation.nextRetry();
+        long sleepTimeMillis = backOffPolicy.getBackOffMillis(reason, retry, retryAfterMillis);
+        Deadline deadline = invocation.getDeadline();
+        if (deadline != null && sleepTimeMillis >= deadline.getRemainingMillis()) {
+            //No point in waiting, when there will be no time left for the retry
+            throw deadlineExceeded(invocation,
+                                   s + " and backing off " + sleepTimeMillis + " ms would pass the deadline",
+                                   null);
+        }
+        log.warn(s + ", so backing off for {} ms before retry {}", sleepTimeMillis, retry);
+        invocation.setBackOffMillis(sleepTimeMillis);
+        backOffStatistics.record(reason, sleepTimeMillis, retryAfterMillis != null);
+        metrics.recordRetry(invocation.getOperation(),
+                            HttpUtils.getEndpointTemplate(invocation.getUri().getCurrentURI()),
+                            reason);
+    }
     
-    private void sleep(String s) {
-        long sleepTimeMillis = minSleepMillis + Math.round(Math.random() * sleepVariationMillis);
-        log.warn(s + ", so backing off for {} seconds", Math.round(sleepTimeMillis / 1000.0));
+    /**
+     * Wait for the back-off of the invocation on the calling thread. Used by the blocking methods only, the async
+     * methods schedule the retry instead.
+     *
+     * @throws AlmaConnectionException if the thread was interrupted while waiting. The interrupt flag is restored, so
+     *                                 the caller can see that it was interrupted
+     */
+    private void awaitBackOff(Invocation<?, ?> invocation) throws AlmaConnectionException {
+        long backOffMillis = invocation.getBackOffMillis();
+        invocation.setBackOffMillis(0);
+        if (backOffMillis <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            Thread.sleep(sleepTimeMillis);
-        } catch (InterruptedException ex) {
+            Thread.sleep(backOffMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlmaConnectionException("Interrupted while backing off before retrying "
+                                              + invocation.getOperation()
+                                              + " on '"
+                                              + invocation.getUri().getCurrentURI()
+                                              + "'", e);
+        } finally {
+            metrics.recordBackOff(invocation.getOperation(),
+                                  HttpUtils.getEndpointTemplate(invocation.getUri().getCurrentURI()),
+                                  TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         }
     }
     
@@ -561,7 +2386,113 @@ public abstract class HttpClient {
      * @param currentURI the URI to invalidate cache for.
      */
     protected void invalidateCacheEntry(URI currentURI) {
-        cache.invalidate(currentURI);
+        URI cacheKey = CacheKeys.canonical(currentURI);
+        responseCache.invalidate(cacheKey);
+        if (diskCache != null) {
+            diskCache.invalidate(cacheKey);
+        }
+    }
+    
+    /**
+     * Invalidate the cached results for the path of the URI and for all paths below it, whatever their query string.
+     * Use this if the resources have been changed by other means than this client, e.g.
+     * {@code invalidateCachePrefix(constructLink().path("/bibs/1234").getCurrentURI())} to drop a bib with all its
+     * holdings and items.
+     *
+     * @param prefix the URI of the path to invalidate. The query string is ignored
+     */
+    public void invalidateCachePrefix(URI prefix) {
+        URI cacheKey = CacheKeys.canonical(prefix);
+        responseCache.invalidatePrefix(cacheKey);
+        if (diskCache != null) {
+            diskCache.invalidatePrefix(cacheKey);
+        }
+    }
+    
+    /**
+     * Invalidate the cached results that a PUT, POST or DELETE on the URI can have changed. These are
+     * <ul>
+     *     <li>the resource itself, with any query string, and everything below it,
+     *     e.g. {@code /bibs/1/holdings/2/items/3?view=label} for {@code /bibs/1/holdings/2/items/3}</li>
+     *     <li>the resources above it, e.g. the list {@code /bibs/1/holdings/2/items} and {@code /bibs/1}</li>
+     *     <li>the lookups on the collections it is part of, e.g. {@code /items?item_barcode=...} and
+     *     {@code /bibs?mms_id=...}</li>
+     * </ul>
+     * This is done whether or not the request succeeded, as a failed request might still have changed the resource.
+     *
+     * @param currentURI the URI that was written to
+     */
+    protected void invalidateAfterWrite(URI currentURI) {
+        if (currentURI == null) {
+            return;
+        }
+        invalidateCachePrefix(currentURI);
+        
+        String basePath = getBasePath();
+        String[] segments = getRelativeSegments(currentURI);
+        
+        StringBuilder ancestor = new StringBuilder(basePath);
+        for (int i = 0; i < segments.length - 1; i++) {
+            ancestor.append('/').append(segments[i]);
+            invalidateCachePath(currentURI.resolve(ancestor.toString()));
+        }
+        //Every other segment is the name of a collection, which can also be looked up from the top level
+        for (int i = 0; i < segments.length; i += 2) {
+            if (!segments[i].isEmpty()) {
+                invalidateCachePath(currentURI.resolve(basePath + "/" + segments[i]));
+            }
+        }
+    }
+    
+    /**
+     * @return a future completed like the request, after the cached results it can have changed are invalidated.
+     *         Cancelling the future cancels the request.
+     */
+    private <T> CompletableFuture<T> invalidateAfterWriteAsync(URI currentURI, CompletableFuture<T> request) {
+        CompletableFuture<T> result = request.whenComplete((value, throwable) -> invalidateAfterWrite(currentURI));
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * @return the path of the target, i.e. the API root, without a trailing '/'
+     */
+    private String getBasePath() {
+        String basePath = Optional.ofNullable(URI.create(target).getRawPath()).orElse("");
+        if (basePath.endsWith("/")) {
+            basePath = basePath.substring(0, basePath.length() - 1);
+        }
+        return basePath;
+    }
+    
+    /**
+     * @return the segments of the path of the URI below the API root, e.g. {@code [bibs, 1234, holdings]}
+     */
+    private String[] getRelativeSegments(URI uri) {
+        String basePath = getBasePath();
+        String path = Optional.ofNullable(uri.normalize().getRawPath()).orElse("");
+        String relativePath = path.startsWith(basePath + "/") ? path.substring(basePath.length()) : path;
+        return relativePath.replaceFirst("^/+", "").split("/+");
+    }
+    
+    /**
+     * @return the endpoint group of the URI, i.e. the first segment of its path below the API root
+     */
+    private String getEndpointGroup(URI uri) {
+        String[] segments = getRelativeSegments(uri);
+        return segments.length == 0 || segments[0].isEmpty() ? "/" : segments[0];
+    }
+    
+    private void invalidateCachePath(URI uri) {
+        URI cacheKey = CacheKeys.canonical(uri);
+        responseCache.invalidatePath(cacheKey);
+        if (diskCache != null) {
+            diskCache.invalidatePath(cacheKey);
+        }
     }
     
     
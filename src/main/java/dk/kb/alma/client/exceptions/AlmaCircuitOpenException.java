@@ -0,0 +1,39 @@
+package dk.kb.alma.client.exceptions;
+
+import java.net.URI;
+
+/**
+ * Thrown without sending the request, when the circuit breaker for the endpoint group is open because Alma has been
+ * failing. See {@link dk.kb.alma.client.utils.CircuitBreaker}.
+ */
+public class AlmaCircuitOpenException extends AlmaClientException {
+    
+    private final String group;
+    private final long retryAfterMillis;
+    
+    public AlmaCircuitOpenException(String operation, URI currentURI, String group, long retryAfterMillis) {
+        super("Circuit breaker for '" + group + "' is open, so failing " + operation + " on '" + currentURI
+              + "' without sending it. Trial requests will be sent in " + retryAfterMillis + " ms",
+              operation,
+              null,
+              currentURI,
+              null);
+        this.group            = group;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+    
+    /**
+     * @return the endpoint group of the open breaker
+     */
+    public String getGroup() {
+        return group;
+    }
+    
+    /**
+     * @return the number of milliseconds until the breaker lets trial requests through. 0 if it already does, but
+     *         all trial requests are in flight
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
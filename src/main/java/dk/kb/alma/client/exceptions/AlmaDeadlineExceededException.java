@@ -0,0 +1,51 @@
+package dk.kb.alma.client.exceptions;
+
+import java.net.URI;
+
+/**
+ * Thrown when a call could not be completed within its {@link dk.kb.alma.client.utils.Deadline}, including retries.
+ * The cause, if any, is the failure of the last attempt.
+ */
+public class AlmaDeadlineExceededException extends AlmaConnectionException {
+    
+    private final String operation;
+    private final URI currentURI;
+    private final long budgetMillis;
+    private final int retries;
+    
+    public AlmaDeadlineExceededException(String operation,
+                                         URI currentURI,
+                                         long budgetMillis,
+                                         int retries,
+                                         String reason,
+                                         Throwable cause) {
+        super("Deadline of " + budgetMillis + " ms exceeded for " + operation + " on '" + currentURI + "' after "
+              + retries + " retries: " + reason, cause);
+        this.operation    = operation;
+        this.currentURI   = currentURI;
+        this.budgetMillis = budgetMillis;
+        this.retries      = retries;
+    }
+    
+    public String getOperation() {
+        return operation;
+    }
+    
+    public URI getCurrentURI() {
+        return currentURI;
+    }
+    
+    /**
+     * @return the time allowed for the call, in milliseconds
+     */
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+    
+    /**
+     * @return the number of retries made before giving up
+     */
+    public int getRetries() {
+        return retries;
+    }
+}
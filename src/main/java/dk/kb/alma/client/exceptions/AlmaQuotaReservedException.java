@@ -0,0 +1,38 @@
+package dk.kb.alma.client.exceptions;
+
+import java.net.URI;
+
+/**
+ * Thrown without sending a {@link dk.kb.alma.client.utils.Priority#BULK} request, when the daily API quota is down to
+ * the reserve kept for other calls. See {@link dk.kb.alma.client.utils.ApiQuota}.
+ */
+public class AlmaQuotaReservedException extends AlmaClientException {
+    
+    private final long remaining;
+    private final long reserve;
+    
+    public AlmaQuotaReservedException(String operation, URI currentURI, long remaining, long reserve) {
+        super("Only " + remaining + " API calls are left today, within the reserve of " + reserve
+              + ", so failing bulk " + operation + " on '" + currentURI + "' without sending it",
+              operation,
+              null,
+              currentURI,
+              null);
+        this.remaining = remaining;
+        this.reserve   = reserve;
+    }
+    
+    /**
+     * @return the number of API calls left today, as last reported by Alma
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+    
+    /**
+     * @return the number of API calls kept for calls that are not bulk
+     */
+    public long getReserve() {
+        return reserve;
+    }
+}
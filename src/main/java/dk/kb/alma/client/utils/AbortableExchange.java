@@ -0,0 +1,156 @@
+package dk.kb.alma.client.utils;
+
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduit;
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduitFactory;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Lets a request sent through the pooling conduit of a {@link WebClientFactory} be aborted from another thread.
+ * <p>
+ * CXF 3.4 offers no way to abort a request in flight. Cancelling its futures, closing the WebClient or interrupting
+ * the sending thread all leave the exchange running, and holding its connection, until the response arrives or the
+ * receive timeout passes. The HttpAsyncClient under the conduit can abort an exchange, but the conduit discards the
+ * future of the exchange. The {@link ConduitFactory} thus wraps the client of each conduit, and the wrapper hands the
+ * future of each exchange to the AbortableExchange the sending thread runs in.
+ */
+class AbortableExchange {
+    
+    private static final ThreadLocal<AbortableExchange> current = new ThreadLocal<>();
+    
+    private Future<?> exchange;
+    
+    private boolean aborted = false;
+    
+    /**
+     * Send a request on the calling thread, so it can be aborted with {@link #abort()}
+     *
+     * @param request sends the request through a conduit of a {@link WebClientFactory}
+     * @return the result of the request
+     */
+    <T> T run(Supplier<T> request) {
+        current.set(this);
+        try {
+            return request.get();
+        } finally {
+            current.remove();
+        }
+    }
+    
+    /**
+     * Abort the exchange in flight, if any, and any exchange started later. The connection is closed rather than
+     * returned to the pool, and the sending thread fails with a ProcessingException.
+     */
+    synchronized void abort() {
+        aborted = true;
+        if (exchange != null) {
+            exchange.cancel(true);
+        }
+    }
+    
+    private synchronized void started(Future<?> exchange) {
+        //A request can take several exchanges, e.g. when the conduit retransmits for authentication
+        this.exchange = exchange;
+        if (aborted) {
+            exchange.cancel(true);
+        }
+    }
+    
+    private synchronized boolean isAborted() {
+        return aborted;
+    }
+    
+    /**
+     * When an exchange is aborted, the conduit is told that it completed without a result, or that it was
+     * cancelled. Either way the sending thread waits on for the receive timeout. A failure makes it give up at once.
+     */
+    private <T> FutureCallback<T> failIfAborted(FutureCallback<T> callback) {
+        return new FutureCallback<>() {
+            @Override
+            public void completed(T result) {
+                if (isAborted()) {
+                    callback.failed(new IOException("The exchange was aborted"));
+                } else {
+                    callback.completed(result);
+                }
+            }
+            
+            @Override
+            public void failed(Exception ex) {
+                callback.failed(ex);
+            }
+            
+            @Override
+            public void cancelled() {
+                callback.failed(new IOException("The exchange was aborted"));
+            }
+        };
+    }
+    
+    /**
+     * The conduit factory of {@link WebClientFactory}, which lets the exchanges of its conduits be aborted
+     */
+    static class ConduitFactory extends AsyncHTTPConduitFactory {
+        
+        ConduitFactory(Map<String, Object> conduitProperties) {
+            super(conduitProperties);
+        }
+        
+        @Override
+        public CloseableHttpAsyncClient createClient(AsyncHTTPConduit conduit) throws IOException {
+            return new AbortableClient(super.createClient(conduit));
+        }
+    }
+    
+    /**
+     * Hands the future of each exchange to the AbortableExchange of the calling thread, if any
+     */
+    private static class AbortableClient extends CloseableHttpAsyncClient {
+        
+        private final CloseableHttpAsyncClient client;
+        
+        private AbortableClient(CloseableHttpAsyncClient client) {
+            this.client = client;
+        }
+        
+        @Override
+        public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer,
+                                     HttpAsyncResponseConsumer<T> responseConsumer,
+                                     HttpContext context,
+                                     FutureCallback<T> callback) {
+            AbortableExchange abortable = current.get();
+            if (abortable == null || callback == null) {
+                return client.execute(requestProducer, responseConsumer, context, callback);
+            }
+            Future<T> exchange = client.execute(requestProducer,
+                                                responseConsumer,
+                                                context,
+                                                abortable.failIfAborted(callback));
+            abortable.started(exchange);
+            return exchange;
+        }
+        
+        @Override
+        public boolean isRunning() {
+            return client.isRunning();
+        }
+        
+        @Override
+        public void start() {
+            client.start();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package dk.kb.alma.client.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the number of requests in flight with an AIMD (additive increase, multiplicative decrease) algorithm.
+ * <p>
+ * Every healthy response raises the limit by {@code 1/limit}, so the limit grows by up to one per round of requests.
+ * A 429 (rate limited) response cuts the limit by the backoff ratio. Alma only tells us about its per-second
+ * threshold through 429s, so this makes bulk jobs run close to the real limit instead of alternating between bursts
+ * and long back-offs.
+ * <p>
+ * A burst of concurrent 429s is the result of a single overload, so the limit is cut at most once per
+ * {@link #setDecreaseCooldownMillis(long) cooldown}. The limit is not raised while the daily quota reported in the
+ * {@code X-Exl-Api-Remaining} header is below the {@link #setRemainingReserve(long) reserve}, as there is no point
+ * in going faster when the quota is almost spent.
+ * <p>
+ * Requests waiting for a permit are queued per {@link Priority}. A freed permit goes to the oldest request of the
+ * highest priority waiting, so interactive calls are not stuck behind a bulk job that has filled the queue. So that
+ * bulk jobs still make progress under steady interactive load, a lane that has been passed over
+ * {@link #setMaxPassOvers(int) a number of times} in a row is served next.
+ * <p>
+ * Waiting for a permit with {@link #acquireAsync()} holds no thread. The limiter is threadsafe.
+ */
+public class AdaptiveConcurrencyLimiter {
+    
+    protected final static Logger log = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+    
+    private final int minLimit;
+    private final int maxLimit;
+    
+    private double backoffRatio = 0.5;
+    
+    private long decreaseCooldownMillis = 1000;
+    
+    private long remainingReserve = 0;
+    
+    private double limit;
+    
+    private int inFlight = 0;
+    
+    private long lastDecreaseMillis = 0;
+    
+    private final PriorityLanes<CompletableFuture<Void>> waiting = new PriorityLanes<>();
+    
+    /**
+     * @param initialLimit the number of requests allowed in flight to begin with
+     * @param minLimit     the limit is never cut below this
+     * @param maxLimit     the limit is never raised above this
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits min=" + minLimit + ", max=" + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit    = Math.min(maxLimit, Math.max(minLimit, initialLimit));
+    }
+    
+    /**
+     * Get a permit to send a request. The future completes when the request can be sent. Every permit must be
+     * returned with exactly one of {@link #onSuccess(Long)}, {@link #onRateLimited()} or {@link #onIgnore()}.
+     * <p>
+     * Cancel the future to stop waiting. A cancelled future does not hold a permit.
+     *
+     * @return a future that completes when a permit is available
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        return acquireAsync(Priority.NORMAL);
+    }
+    
+    /**
+     * Get a permit to send a request of the given priority. See {@link #acquireAsync()}.
+     *
+     * @param priority the priority of the request
+     * @return a future that completes when a permit is available
+     */
+    public CompletableFuture<Void> acquireAsync(Priority priority) {
+        synchronized (this) {
+            if (waiting.isEmpty() && inFlight < getLimit()) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> permit = new CompletableFuture<>();
+            waiting.add(priority, permit);
+            return permit;
+        }
+    }
+    
+    /**
+     * Get a permit to send a request, blocking until one is available. See {@link #acquireAsync()}.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting. No permit is held then.
+     */
+    public void acquire() throws InterruptedException {
+        acquire(Priority.NORMAL);
+    }
+    
+    /**
+     * Get a permit to send a request of the given priority, blocking until one is available. See
+     * {@link #acquireAsync(Priority)}.
+     *
+     * @param priority the priority of the request
+     * @throws InterruptedException if the thread was interrupted while waiting. No permit is held then.
+     */
+    public void acquire(Priority priority) throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync(priority);
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            giveBack(permit);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Permit future failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Get a permit to send a request of the given priority, blocking until one is available or the timeout passes.
+     * See {@link #acquireAsync(Priority)}.
+     *
+     * @param priority      the priority of the request
+     * @param timeoutMillis the longest time to wait
+     * @return true if a permit was acquired, false if the timeout passed first. No permit is held then
+     * @throws InterruptedException if the thread was interrupted while waiting. No permit is held then.
+     */
+    public boolean tryAcquire(Priority priority, long timeoutMillis) throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync(priority);
+        try {
+            permit.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            giveBack(permit);
+            throw e;
+        } catch (TimeoutException e) {
+            giveBack(permit);
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Permit future failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Stop waiting for a permit, and return it if it was given just as we stopped
+     */
+    private void giveBack(CompletableFuture<Void> permit) {
+        if (!permit.cancel(false)) {
+            onIgnore();
+        }
+    }
+    
+    /**
+     * Return a permit after a healthy response. Raises the limit.
+     *
+     * @param apiRemaining the value of the X-Exl-Api-Remaining header, if present
+     */
+    public void onSuccess(@Nullable Long apiRemaining) {
+        release(() -> {
+            if (apiRemaining != null && apiRemaining < remainingReserve) {
+                return;
+            }
+            //Only raise the limit if we are using at least half of it, otherwise it grows without ever being tested
+            if ((inFlight + 1) * 2 >= getLimit()) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        });
+    }
+    
+    /**
+     * Return a permit after a 429 response. Cuts the limit, unless it was cut within the cooldown period.
+     */
+    public void onRateLimited() {
+        release(() -> {
+            long now = System.currentTimeMillis();
+            if (now - lastDecreaseMillis >= decreaseCooldownMillis) {
+                lastDecreaseMillis = now;
+                double oldLimit = limit;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                log.debug("Rate limited, so cutting concurrency limit from {} to {}", (int) oldLimit, getLimit());
+            }
+        });
+    }
+    
+    /**
+     * Return a permit without adjusting the limit, i.e. when the request failed on the connection level.
+     */
+    public void onIgnore() {
+        release(() -> {});
+    }
+    
+    private void release(Runnable adjustment) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            adjustment.run();
+            CompletableFuture<Void> permit;
+            while (inFlight < getLimit() && (permit = waiting.poll()) != null) {
+                inFlight++;
+                granted.add(permit);
+            }
+        }
+        //Complete outside the lock, as completing runs the continuations of the waiters
+        for (CompletableFuture<Void> permit : granted) {
+            if (!permit.complete(null)) {
+                //Cancelled after we took it from the queue
+                onIgnore();
+            }
+        }
+    }
+    
+    /**
+     * @return the current number of requests allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+    
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+    
+    /**
+     * @return the number of requests waiting for a permit
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+    
+    /**
+     * @param priority the priority
+     * @return the number of requests of the priority waiting for a permit
+     */
+    public synchronized int getWaiting(Priority priority) {
+        return waiting.size(priority);
+    }
+    
+    public int getMinLimit() {
+        return minLimit;
+    }
+    
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+    
+    public synchronized double getBackoffRatio() {
+        return backoffRatio;
+    }
+    
+    /**
+     * @param backoffRatio the limit is multiplied by this on 429 responses. Default 0.5
+     */
+    public synchronized void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+    
+    public synchronized long getDecreaseCooldownMillis() {
+        return decreaseCooldownMillis;
+    }
+    
+    /**
+     * @param decreaseCooldownMillis after a cut, further 429s within this period do not cut the limit again.
+     *                               Default 1000, as Alma's threshold is per second
+     */
+    public synchronized void setDecreaseCooldownMillis(long decreaseCooldownMillis) {
+        this.decreaseCooldownMillis = decreaseCooldownMillis;
+    }
+    
+    public synchronized long getRemainingReserve() {
+        return remainingReserve;
+    }
+    
+    /**
+     * @param remainingReserve the limit is not raised while X-Exl-Api-Remaining is below this. Default 0
+     */
+    public synchronized void setRemainingReserve(long remainingReserve) {
+        this.remainingReserve = remainingReserve;
+    }
+    
+    public synchronized int getMaxPassOvers() {
+        return waiting.getMaxPassOvers();
+    }
+    
+    /**
+     * @param maxPassOvers a waiting request is served after permits have gone to higher priorities this many times
+     *                     since its priority was last served, so low priorities are slowed, not starved. Default 4,
+     *                     i.e. bulk requests get at least one in five permits while they wait
+     */
+    public synchronized void setMaxPassOvers(int maxPassOvers) {
+        waiting.setMaxPassOvers(maxPassOvers);
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveConcurrencyLimiter{"
+               + "limit=" + getLimit()
+               + ", inFlight=" + inFlight
+               + ", waiting=" + getWaiting()
+               + ", minLimit=" + minLimit
+               + ", maxLimit=" + maxLimit
+               + '}';
+    }
+}
@@ -0,0 +1,134 @@
+package dk.kb.alma.client.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sets the receive timeout of each request from the recent latencies of its endpoint (see
+ * {@link HttpUtils#getEndpointTemplate(java.net.URI)}), rather than using one timeout for all endpoints.
+ * <p>
+ * The timeout is a multiple of a high percentile of the recent latencies, kept between a floor and a ceiling. Fast
+ * endpoints thus get short timeouts, so hung requests are detected and retried early, while slow endpoints, like
+ * analytics reports, get long timeouts and stop timing out and being retried needlessly. Until enough latencies are
+ * known for an endpoint, the read timeout of the client is used.
+ * <p>
+ * A request that times out is recorded with the timeout as its latency, as it took at least that long. An endpoint
+ * that has become slower thus gets a longer timeout. As with fixed timeouts, the timeout is doubled for each retry
+ * after a timeout.
+ * <p>
+ * The policy is threadsafe and can be shared between clients.
+ */
+public class AdaptiveTimeoutPolicy {
+    
+    private final double percentile;
+    
+    private final double multiplier;
+    
+    private final long minTimeoutMillis;
+    
+    private final long maxTimeoutMillis;
+    
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    
+    /**
+     * @param percentile       the percentile of the recent latencies to base the timeout on, e.g. 0.99
+     * @param multiplier       the timeout is this multiple of the percentile, e.g. 3
+     * @param minTimeoutMillis the floor, never time out sooner than this
+     * @param maxTimeoutMillis the ceiling, never wait longer than this
+     */
+    public AdaptiveTimeoutPolicy(double percentile, double multiplier, long minTimeoutMillis, long maxTimeoutMillis) {
+        if (percentile <= 0 || percentile >= 1 || multiplier < 1) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile + " or multiplier " + multiplier);
+        }
+        if (minTimeoutMillis <= 0 || maxTimeoutMillis < minTimeoutMillis) {
+            throw new IllegalArgumentException("Invalid floor " + minTimeoutMillis + " or ceiling "
+                                               + maxTimeoutMillis);
+        }
+        this.percentile       = percentile;
+        this.multiplier       = multiplier;
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+    }
+    
+    /**
+     * @param endpoint             the endpoint template
+     * @param defaultTimeoutMillis the timeout to use if too few latencies are known for the endpoint
+     * @param timeouts             the number of times the request has already timed out. The timeout is doubled for
+     *                             each, up to the ceiling
+     * @return the receive timeout for a request to the endpoint
+     */
+    public long getTimeoutMillis(String endpoint, long defaultTimeoutMillis, int timeouts) {
+        LatencyWindow window = latencies.get(endpoint);
+        long percentileMillis = window == null ? -1 : window.getPercentileMillis();
+        if (percentileMillis < 0) {
+            return defaultTimeoutMillis;
+        }
+        long timeout = Math.max(minTimeoutMillis, (long) Math.ceil(percentileMillis * multiplier));
+        for (int i = 0; i < timeouts && timeout < maxTimeoutMillis; i++) {
+            timeout *= 2;
+        }
+        return Math.min(maxTimeoutMillis, timeout);
+    }
+    
+    /**
+     * Record the latency of a response
+     *
+     * @param endpoint      the endpoint template of the request
+     * @param latencyMillis the time from sending the request until the response was received
+     */
+    public void recordLatency(String endpoint, long latencyMillis) {
+        latencies.computeIfAbsent(endpoint, key -> new LatencyWindow(percentile)).add(latencyMillis);
+    }
+    
+    /**
+     * Record a request that timed out
+     *
+     * @param endpoint      the endpoint template of the request
+     * @param timeoutMillis the receive timeout of the request, the least time the response would have taken
+     */
+    public void recordTimeout(String endpoint, long timeoutMillis) {
+        recordLatency(endpoint, timeoutMillis);
+    }
+    
+    /**
+     * @return the current timeouts of all endpoints with enough known latencies
+     */
+    public Map<String, Long> getTimeouts() {
+        Map<String, Long> result = new TreeMap<>();
+        latencies.forEach((endpoint, window) -> {
+            if (window.getPercentileMillis() >= 0) {
+                result.put(endpoint, getTimeoutMillis(endpoint, -1, 0));
+            }
+        });
+        return result;
+    }
+    
+    public double getPercentile() {
+        return percentile;
+    }
+    
+    public double getMultiplier() {
+        return multiplier;
+    }
+    
+    public long getMinTimeoutMillis() {
+        return minTimeoutMillis;
+    }
+    
+    public long getMaxTimeoutMillis() {
+        return maxTimeoutMillis;
+    }
+    
+    @Override
+    public String toString() {
+        return "AdaptiveTimeoutPolicy{" +
+               "percentile=" + percentile +
+               ", multiplier=" + multiplier +
+               ", minTimeoutMillis=" + minTimeoutMillis +
+               ", maxTimeoutMillis=" + maxTimeoutMillis +
+               ", timeouts=" + getTimeouts() +
+               '}';
+    }
+}
@@ -0,0 +1,347 @@
+package dk.kb.alma.client.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyName;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.Deserializers;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.AnnotatedField;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.fasterxml.jackson.databind.introspect.NopAnnotationIntrospector;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.Serializers;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSSerializer;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Jackson module for reading and writing the generated {@code dk.kb.alma.gen} classes as the JSON of the Alma API.
+ * <p>
+ * The JAXB annotations of the classes give the JSON names (which Alma shares with the XML), but three things differ
+ * from what Jackson does per default:
+ * <ul>
+ *     <li>{@code @XmlAnyElement} DOM elements, such as the MARC record in the {@code anies} of a {@code Bib}, are
+ *     serialised XML strings in JSON</li>
+ *     <li>Dates are the lexical {@code xs:date}/{@code xs:dateTime} strings, e.g. {@code 2030-01-01Z}, not
+ *     timestamps</li>
+ *     <li>Lists wrapped in an element of their own in XML, such as
+ *     {@code <user_identifiers><user_identifier/></user_identifiers>}, are unwrapped in JSON, i.e.
+ *     {@code "user_identifier":[...]}. A generated class is taken to be such a wrapper if it is not a root element
+ *     and its only field is a list of elements, i.e. it has no attributes</li>
+ * </ul>
+ * Use {@link #createObjectMapper()} to get a mapper set up with the module and the JAXB annotations.
+ */
+public class AlmaJsonModule extends SimpleModule {
+    
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = createDocumentBuilderFactory();
+    
+    private static final DatatypeFactory DATATYPE_FACTORY = createDatatypeFactory();
+    
+    //The list field of each class that wraps a list, or null for other classes
+    private static final ClassValue<Field> WRAPPED_LISTS = new ClassValue<>() {
+        @Override
+        protected Field computeValue(Class<?> type) {
+            return findWrappedList(type);
+        }
+    };
+    
+    public AlmaJsonModule() {
+        super("AlmaJsonModule");
+        addSerializer(Element.class, new ElementSerializer());
+        addDeserializer(Element.class, new ElementDeserializer());
+        addSerializer(XMLGregorianCalendar.class, new XMLGregorianCalendarSerializer());
+        addDeserializer(XMLGregorianCalendar.class, new XMLGregorianCalendarDeserializer());
+    }
+    
+    /**
+     * @return a new mapper that reads and writes the generated classes as Alma does, i.e. with the names of the JAXB
+     *         annotations, unset fields left out, and this module. Unknown properties fail, as per default in Jackson
+     */
+    public static ObjectMapper createObjectMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        //Jackson annotations first, then JAXB, like JacksonJaxbJsonProvider.DEFAULT_ANNOTATIONS. Set before the module
+        //is registered, as the module adds an introspector in front of these
+        mapper.setAnnotationIntrospector(AnnotationIntrospector.pair(new JacksonAnnotationIntrospector(),
+                                                                     new JaxbAnnotationIntrospector(
+                                                                             mapper.getTypeFactory())));
+        mapper.registerModule(new AlmaJsonModule());
+        //Like JAXB, leave out unset fields rather than sending nulls
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        return mapper;
+    }
+    
+    @Override
+    public void setupModule(SetupContext context) {
+        super.setupModule(context);
+        context.insertAnnotationIntrospector(new WrappedListNames());
+        context.addSerializers(new Serializers.Base() {
+            @Override
+            public JsonSerializer<?> findSerializer(SerializationConfig config,
+                                                    JavaType type,
+                                                    BeanDescription beanDesc) {
+                Field list = WRAPPED_LISTS.get(type.getRawClass());
+                return list == null ? null : new WrappedListSerializer(list);
+            }
+        });
+        context.addDeserializers(new Deserializers.Base() {
+            @Override
+            public JsonDeserializer<?> findBeanDeserializer(JavaType type,
+                                                            DeserializationConfig config,
+                                                            BeanDescription beanDesc) {
+                Field list = WRAPPED_LISTS.get(type.getRawClass());
+                return list == null ? null : new WrappedListDeserializer(list);
+            }
+        });
+    }
+    
+    /**
+     * @return the list field of the class, if it is a generated class that only wraps a list of elements, else null
+     */
+    @Nullable
+    private static Field findWrappedList(Class<?> type) {
+        XmlAccessorType accessorType = type.getAnnotation(XmlAccessorType.class);
+        if (accessorType == null
+            || accessorType.value() != XmlAccessType.FIELD
+            || type.isAnnotationPresent(XmlRootElement.class)
+            || type.getSuperclass() != Object.class) {
+            return null;
+        }
+        Field list = null;
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())
+                || Modifier.isTransient(field.getModifiers())
+                || field.isSynthetic()
+                || field.isAnnotationPresent(XmlTransient.class)) {
+                continue;
+            }
+            //xjc leaves out @XmlElement if the names match, but never adds other annotations to lists of elements
+            boolean onlyElement = Arrays.stream(field.getAnnotations())
+                                        .allMatch(annotation -> annotation instanceof XmlElement);
+            if (list != null || !onlyElement || !List.class.isAssignableFrom(field.getType())) {
+                return null;
+            }
+            list = field;
+        }
+        if (list != null) {
+            list.setAccessible(true);
+        }
+        return list;
+    }
+    
+    private static DocumentBuilderFactory createDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setExpandEntityReferences(false);
+        try {
+            //The XML comes from the server, so do not resolve anything it refers to
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Failed to configure a secure XML parser", e);
+        }
+        return factory;
+    }
+    
+    private static DatatypeFactory createDatatypeFactory() {
+        try {
+            return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("Failed to create DatatypeFactory", e);
+        }
+    }
+    
+    /**
+     * Names a field holding a list wrapper after the elements of the list, e.g. {@code user_identifier} rather than
+     * {@code user_identifiers}
+     */
+    private static class WrappedListNames extends NopAnnotationIntrospector {
+        
+        @Override
+        public PropertyName findNameForSerialization(Annotated annotated) {
+            return findWrappedName(annotated);
+        }
+        
+        @Override
+        public PropertyName findNameForDeserialization(Annotated annotated) {
+            return findWrappedName(annotated);
+        }
+        
+        @Nullable
+        private static PropertyName findWrappedName(Annotated annotated) {
+            if (!(annotated instanceof AnnotatedField)) {
+                return null;
+            }
+            Field list = WRAPPED_LISTS.get(annotated.getRawType());
+            if (list == null) {
+                return null;
+            }
+            XmlElement element = list.getAnnotation(XmlElement.class);
+            return PropertyName.construct(element == null || element.name().equals("##default")
+                                          ? list.getName()
+                                          : element.name());
+        }
+    }
+    
+    /**
+     * Writes a list wrapper as the list
+     */
+    private static class WrappedListSerializer extends StdSerializer<Object> {
+        
+        private final Field list;
+        
+        private WrappedListSerializer(Field list) {
+            super(Object.class);
+            this.list = list;
+        }
+        
+        @Override
+        public void serialize(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            Object items;
+            try {
+                items = list.get(value);
+            } catch (IllegalAccessException e) {
+                throw JsonMappingException.from(gen, "Failed to read " + list, e);
+            }
+            provider.defaultSerializeValue(items == null ? List.of() : items, gen);
+        }
+    }
+    
+    /**
+     * Reads a list into a list wrapper
+     */
+    private static class WrappedListDeserializer extends StdDeserializer<Object> {
+        
+        private final Field list;
+        
+        private WrappedListDeserializer(Field list) {
+            super(list.getDeclaringClass());
+            this.list = list;
+        }
+        
+        @Override
+        public Object deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            Object items = context.readValue(parser, context.getTypeFactory().constructType(list.getGenericType()));
+            try {
+                Object wrapper = list.getDeclaringClass().getDeclaredConstructor().newInstance();
+                list.set(wrapper, items);
+                return wrapper;
+            } catch (ReflectiveOperationException e) {
+                return context.handleInstantiationProblem(list.getDeclaringClass(), items, e);
+            }
+        }
+    }
+    
+    private static class ElementSerializer extends StdSerializer<Element> {
+        
+        private ElementSerializer() {
+            super(Element.class);
+        }
+        
+        @Override
+        public void serialize(Element value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            DOMImplementationLS implementation = (DOMImplementationLS) value.getOwnerDocument().getImplementation();
+            LSSerializer serializer = implementation.createLSSerializer();
+            serializer.getDomConfig().setParameter("xml-declaration", false);
+            gen.writeString(serializer.writeToString(value));
+        }
+    }
+    
+    private static class ElementDeserializer extends StdDeserializer<Element> {
+        
+        private ElementDeserializer() {
+            super(Element.class);
+        }
+        
+        @Override
+        public Element deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                return (Element) context.handleUnexpectedToken(Element.class, parser);
+            }
+            String xml = parser.getText();
+            try {
+                Document document = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder()
+                                                            .parse(new InputSource(new StringReader(xml)));
+                return document.getDocumentElement();
+            } catch (ParserConfigurationException | SAXException e) {
+                return (Element) context.handleWeirdStringValue(Element.class, xml, "Invalid XML: " + e.getMessage());
+            }
+        }
+    }
+    
+    private static class XMLGregorianCalendarSerializer extends StdSerializer<XMLGregorianCalendar> {
+        
+        private XMLGregorianCalendarSerializer() {
+            super(XMLGregorianCalendar.class);
+        }
+        
+        @Override
+        public void serialize(XMLGregorianCalendar value, JsonGenerator gen, SerializerProvider provider)
+                throws IOException {
+            gen.writeString(value.toXMLFormat());
+        }
+    }
+    
+    private static class XMLGregorianCalendarDeserializer extends StdDeserializer<XMLGregorianCalendar> {
+        
+        private XMLGregorianCalendarDeserializer() {
+            super(XMLGregorianCalendar.class);
+        }
+        
+        @Override
+        public XMLGregorianCalendar deserialize(JsonParser parser, DeserializationContext context)
+                throws IOException {
+            if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                return (XMLGregorianCalendar) context.handleUnexpectedToken(XMLGregorianCalendar.class, parser);
+            }
+            String text = parser.getText().trim();
+            if (text.isEmpty()) {
+                return null;
+            }
+            try {
+                return DATATYPE_FACTORY.newXMLGregorianCalendar(text);
+            } catch (IllegalArgumentException e) {
+                return (XMLGregorianCalendar) context.handleWeirdStringValue(XMLGregorianCalendar.class,
+                                                                             text,
+                                                                             "Not an XML date: " + e.getMessage());
+            }
+        }
+    }
+}
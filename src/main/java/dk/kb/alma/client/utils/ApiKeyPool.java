@@ -0,0 +1,311 @@
+package dk.kb.alma.client.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of Alma API keys to spread the requests of a {@link dk.kb.alma.client.AlmaRestClient} over, as Alma throttles
+ * and counts the requests per key.
+ * <p>
+ * Each request is sent with a key picked by the {@link Strategy}. A key that gets a 429 response is taken out of
+ * rotation for a cooldown, which doubles for each further 429 in a row, up to a maximum, and resets on any other
+ * response. If all keys are cooling down, the one that is back first is used, and the back-off of the client paces
+ * the requests.
+ * <p>
+ * The keys only authenticate the requests, so responses are cached once, whatever key fetched them. Remember that
+ * the rate and concurrency limiters of the client cap the combined throughput of all keys.
+ * <p>
+ * The pool is threadsafe.
+ */
+public class ApiKeyPool {
+    
+    protected final static Logger log = LoggerFactory.getLogger(ApiKeyPool.class);
+    
+    /**
+     * How to pick the key for the next request
+     */
+    public enum Strategy {
+        /**
+         * Take the keys in turn
+         */
+        ROUND_ROBIN,
+        /**
+         * Take the key that was throttled the longest time ago, or never. Keys that are equally good are taken in
+         * turn
+         */
+        LEAST_RECENTLY_THROTTLED
+    }
+    
+    private final List<Key> keys = new ArrayList<>();
+    
+    private final Map<String, Key> byApiKey = new HashMap<>();
+    
+    private final Strategy strategy;
+    
+    private long baseCooldownNanos = TimeUnit.SECONDS.toNanos(1);
+    
+    private long maxCooldownNanos = TimeUnit.MINUTES.toNanos(1);
+    
+    private int next = 0;
+    
+    /**
+     * @param apiKey a single API key
+     */
+    public ApiKeyPool(String apiKey) {
+        this(List.of(apiKey), Strategy.ROUND_ROBIN);
+    }
+    
+    /**
+     * @param apiKeys  the API keys, at least one
+     * @param strategy how to pick the key for each request
+     */
+    public ApiKeyPool(List<String> apiKeys, Strategy strategy) {
+        if (apiKeys.isEmpty()) {
+            throw new IllegalArgumentException("No API keys given");
+        }
+        for (String apiKey : apiKeys) {
+            if (byApiKey.containsKey(apiKey)) {
+                throw new IllegalArgumentException("API key " + mask(apiKey) + " is given twice");
+            }
+            Key key = new Key(apiKey);
+            keys.add(key);
+            byApiKey.put(apiKey, key);
+        }
+        this.strategy = strategy;
+    }
+    
+    /**
+     * Pick the key for a request
+     *
+     * @return the API key
+     */
+    public synchronized String select() {
+        long now = System.nanoTime();
+        Key selected = null;
+        for (int i = 0; i < keys.size(); i++) {
+            Key candidate = keys.get((next + i) % keys.size());
+            if (selected == null || isBetter(candidate, selected, now)) {
+                selected = candidate;
+                if (strategy == Strategy.ROUND_ROBIN && !selected.isCoolingDown(now)) {
+                    break;
+                }
+            }
+        }
+        next = (keys.indexOf(selected) + 1) % keys.size();
+        selected.requests++;
+        return selected.apiKey;
+    }
+    
+    private boolean isBetter(Key candidate, Key selected, long now) {
+        boolean candidateCooling = candidate.isCoolingDown(now);
+        if (candidateCooling != selected.isCoolingDown(now)) {
+            return !candidateCooling;
+        }
+        if (candidateCooling) {
+            return candidate.cooldownUntilNanos - selected.cooldownUntilNanos < 0;
+        }
+        return strategy == Strategy.LEAST_RECENTLY_THROTTLED && candidate.throttledBefore(selected);
+    }
+    
+    /**
+     * Record the response to a request sent with a key of this pool
+     *
+     * @param apiKey       the API key the request was sent with. Keys not in the pool are ignored
+     * @param status       the HTTP status of the response
+     * @param apiRemaining the value of the {@value HttpUtils#API_REMAINING_HEADER} header, if present
+     */
+    public synchronized void onResponse(String apiKey, int status, @Nullable Long apiRemaining) {
+        Key key = byApiKey.get(apiKey);
+        if (key == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (apiRemaining != null) {
+            key.remaining = apiRemaining;
+        }
+        if (status != 429) {
+            key.consecutiveThrottles = 0;
+            return;
+        }
+        key.throttled++;
+        key.consecutiveThrottles++;
+        key.lastThrottledNanos = now;
+        long cooldown = baseCooldownNanos;
+        for (int i = 1; i < key.consecutiveThrottles && cooldown < maxCooldownNanos; i++) {
+            cooldown *= 2;
+        }
+        cooldown = Math.min(cooldown, maxCooldownNanos);
+        key.cooldownUntilNanos = now + cooldown;
+        log.debug("API key {} was throttled, so taking it out of rotation for {} ms",
+                  mask(apiKey),
+                  TimeUnit.NANOSECONDS.toMillis(cooldown));
+    }
+    
+    /**
+     * @return a snapshot of the metrics of each key, in the order the keys were given
+     */
+    public synchronized List<KeyMetrics> getKeyMetrics() {
+        long now = System.nanoTime();
+        List<KeyMetrics> result = new ArrayList<>();
+        for (Key key : keys) {
+            result.add(new KeyMetrics(mask(key.apiKey),
+                                      key.requests,
+                                      key.throttled,
+                                      key.remaining,
+                                      key.isCoolingDown(now)
+                                      ? TimeUnit.NANOSECONDS.toMillis(key.cooldownUntilNanos - now)
+                                      : 0));
+        }
+        return result;
+    }
+    
+    /**
+     * @return the number of keys in the pool
+     */
+    public int size() {
+        return keys.size();
+    }
+    
+    public Strategy getStrategy() {
+        return strategy;
+    }
+    
+    public synchronized Duration getBaseCooldown() {
+        return Duration.ofNanos(baseCooldownNanos);
+    }
+    
+    public synchronized Duration getMaxCooldown() {
+        return Duration.ofNanos(maxCooldownNanos);
+    }
+    
+    /**
+     * @param baseCooldown how long a key is out of rotation after a 429. Doubled for each further 429 in a row.
+     *                     Default 1 second, as Alma's threshold is per second
+     * @param maxCooldown  the longest a key is out of rotation. Default 1 minute
+     */
+    public synchronized void setCooldown(Duration baseCooldown, Duration maxCooldown) {
+        if (baseCooldown.isNegative() || maxCooldown.compareTo(baseCooldown) < 0) {
+            throw new IllegalArgumentException("Invalid cooldown " + baseCooldown + " or maximum " + maxCooldown);
+        }
+        this.baseCooldownNanos = baseCooldown.toNanos();
+        this.maxCooldownNanos  = maxCooldown.toNanos();
+    }
+    
+    /**
+     * @param apiKey an API key
+     * @return the key with all but the last 4 characters hidden, for logs and metrics
+     */
+    public static String mask(String apiKey) {
+        return apiKey.length() <= 4 ? "****" : "****" + apiKey.substring(apiKey.length() - 4);
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "ApiKeyPool{"
+               + "strategy=" + strategy
+               + ", keys=" + getKeyMetrics()
+               + '}';
+    }
+    
+    private static class Key {
+        private final String apiKey;
+        private long requests = 0;
+        private long throttled = 0;
+        private int consecutiveThrottles = 0;
+        private long lastThrottledNanos = 0;
+        private long cooldownUntilNanos = 0;
+        private Long remaining = null;
+        
+        private Key(String apiKey) {
+            this.apiKey = apiKey;
+        }
+        
+        private boolean isCoolingDown(long now) {
+            return throttled > 0 && cooldownUntilNanos - now > 0;
+        }
+        
+        private boolean throttledBefore(Key other) {
+            if (throttled == 0 || other.throttled == 0) {
+                return throttled == 0 && other.throttled > 0;
+            }
+            return lastThrottledNanos - other.lastThrottledNanos < 0;
+        }
+    }
+    
+    /**
+     * The metrics of one key of the pool, at the time they were read
+     */
+    public static class KeyMetrics {
+        private final String maskedKey;
+        private final long requests;
+        private final long throttled;
+        private final Long remaining;
+        private final long cooldownMillis;
+        
+        public KeyMetrics(String maskedKey,
+                          long requests,
+                          long throttled,
+                          @Nullable Long remaining,
+                          long cooldownMillis) {
+            this.maskedKey      = maskedKey;
+            this.requests       = requests;
+            this.throttled      = throttled;
+            this.remaining      = remaining;
+            this.cooldownMillis = cooldownMillis;
+        }
+        
+        /**
+         * @return the key with all but the last 4 characters hidden
+         */
+        public String getMaskedKey() {
+            return maskedKey;
+        }
+        
+        /**
+         * @return the number of requests sent with the key, counting each attempt
+         */
+        public long getRequests() {
+            return requests;
+        }
+        
+        /**
+         * @return the number of 429 responses to requests sent with the key
+         */
+        public long getThrottled() {
+            return throttled;
+        }
+        
+        /**
+         * @return the API calls left today for the key, as last reported by Alma, or null if not known
+         */
+        @Nullable
+        public Long getRemaining() {
+            return remaining;
+        }
+        
+        /**
+         * @return the time until the key is back in rotation, in milliseconds. 0 if it is in rotation
+         */
+        public long getCooldownMillis() {
+            return cooldownMillis;
+        }
+        
+        @Override
+        public String toString() {
+            return maskedKey + "{"
+                   + "requests=" + requests
+                   + ", throttled=" + throttled
+                   + ", remaining=" + remaining
+                   + ", cooldown=" + cooldownMillis + "ms"
+                   + '}';
+        }
+    }
+}
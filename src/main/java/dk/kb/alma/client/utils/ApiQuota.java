@@ -0,0 +1,280 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the daily API quota of Alma from the {@value HttpUtils#API_REMAINING_HEADER} header of the responses, and
+ * keeps a reserve of it from {@link Priority#BULK} calls.
+ * <p>
+ * The rate the quota is used is the drop of the remaining calls over a recent window, so it includes the calls of
+ * everyone sharing the API key, not only this client. From it, {@link #getTimeToExhaustion()} forecasts when the
+ * quota runs out. The calls of this client are also counted per priority, see {@link #getCallsPerMinute(Priority)},
+ * to tell who is using the quota.
+ * <p>
+ * Once the remaining calls are down to the reserve, bulk calls are rejected with
+ * {@link dk.kb.alma.client.exceptions.AlmaQuotaReservedException} before they are sent, or, if a
+ * {@link #setBulkInterval(Duration) bulk interval} is set, throttled to one per interval. This way a runaway harvest
+ * cannot spend the quota needed by interactive calls for the rest of the day. Other priorities are not limited.
+ * <p>
+ * If nothing has been heard from Alma for a window, bulk calls are let through again, to learn whether the quota has
+ * been renewed. The quota is threadsafe. Share it between the clients using the same API key.
+ */
+public class ApiQuota {
+    
+    /**
+     * The window of recent calls used to measure the rate, unless another is given
+     */
+    public static final Duration DEFAULT_WINDOW = Duration.ofMinutes(10);
+    
+    //Bounds the memory used in a busy window. At Alma's 25 calls per second, about 7 minutes
+    private static final int MAX_SAMPLES = 10000;
+    
+    private final long reserve;
+    
+    private final long windowNanos;
+    
+    private final long startNanos = System.nanoTime();
+    
+    private long bulkIntervalNanos = 0;
+    
+    private long nextBulkNanos = 0;
+    
+    private final Deque<Sample> samples = new ArrayDeque<>();
+    
+    //The samples with the header in the window, from which the rate is measured
+    private final Deque<Sample> remainingSamples = new ArrayDeque<>();
+    
+    private Long lastRemaining = null;
+    
+    private long lastRemainingNanos = 0;
+    
+    private final Map<Priority, Long> callsInWindow = new EnumMap<>(Priority.class);
+    
+    private long rejected = 0;
+    private long throttled = 0;
+    
+    /**
+     * @param reserve the number of calls kept from bulk calls
+     */
+    public ApiQuota(long reserve) {
+        this(reserve, DEFAULT_WINDOW);
+    }
+    
+    /**
+     * @param reserve the number of calls kept from bulk calls
+     * @param window  the window of recent calls used to measure the rate
+     */
+    public ApiQuota(long reserve, Duration window) {
+        if (reserve < 0 || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("Invalid reserve " + reserve + " or window " + window);
+        }
+        this.reserve     = reserve;
+        this.windowNanos = window.toNanos();
+    }
+    
+    /**
+     * Record a response
+     *
+     * @param priority     the priority of the call
+     * @param apiRemaining the value of the {@value HttpUtils#API_REMAINING_HEADER} header, or null if not present
+     */
+    public synchronized void record(Priority priority, @Nullable Long apiRemaining) {
+        long now = System.nanoTime();
+        if (apiRemaining != null && !remainingSamples.isEmpty()
+            && apiRemaining > remainingSamples.peekFirst().remaining) {
+            //More left than at the start of the window, so the quota has been renewed
+            remainingSamples.clear();
+        }
+        Sample sample = new Sample(now, priority, apiRemaining == null ? -1 : apiRemaining);
+        samples.addLast(sample);
+        callsInWindow.merge(priority, 1L, Long::sum);
+        if (apiRemaining != null) {
+            remainingSamples.addLast(sample);
+            lastRemaining      = apiRemaining;
+            lastRemainingNanos = now;
+        }
+        prune(now);
+    }
+    
+    private void prune(long now) {
+        while (!samples.isEmpty() && (samples.size() > MAX_SAMPLES || now - samples.peekFirst().nanos > windowNanos)) {
+            Sample oldest = samples.pollFirst();
+            callsInWindow.merge(oldest.priority, -1L, Long::sum);
+            if (remainingSamples.peekFirst() == oldest) {
+                remainingSamples.pollFirst();
+            }
+        }
+    }
+    
+    /**
+     * Ask whether a call can be sent now
+     *
+     * @param priority the priority of the call
+     * @return 0 to send it now, the number of milliseconds to wait before sending it if it is throttled, or -1 if it
+     *         should be rejected
+     */
+    public long getDelayMillis(Priority priority) {
+        return getDelayMillis(priority, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Ask whether a call that can wait a limited time can be sent now
+     *
+     * @param priority       the priority of the call
+     * @param maxDelayMillis the time the call can wait. If it would be throttled this long or longer, the wait is
+     *                       returned without taking the slot, so the next bulk call is not pushed back by a call that
+     *                       gives up
+     * @return as {@link #getDelayMillis(Priority)}
+     */
+    public synchronized long getDelayMillis(Priority priority, long maxDelayMillis) {
+        long now = System.nanoTime();
+        //Let calls through when we have not heard from Alma for a window, to learn if the quota has been renewed
+        if (priority != Priority.BULK
+            || lastRemaining == null
+            || lastRemaining > reserve
+            || now - lastRemainingNanos > windowNanos) {
+            return 0;
+        }
+        if (bulkIntervalNanos <= 0) {
+            rejected++;
+            return -1;
+        }
+        long next = nextBulkNanos - now > 0 ? nextBulkNanos : now;
+        long delayMillis = (long) Math.ceil((double) (next - now) / TimeUnit.MILLISECONDS.toNanos(1));
+        if (delayMillis > 0 && delayMillis >= maxDelayMillis) {
+            return delayMillis;
+        }
+        throttled++;
+        nextBulkNanos = next + bulkIntervalNanos;
+        return delayMillis;
+    }
+    
+    /**
+     * @return the number of calls left today, as last reported by Alma, or null if not known
+     */
+    @Nullable
+    public synchronized Long getRemaining() {
+        return lastRemaining;
+    }
+    
+    /**
+     * @return the number of calls per minute using the quota, by everyone sharing the API key, over the recent
+     *         window. -1 if not known
+     */
+    public synchronized double getCallsPerMinute() {
+        prune(System.nanoTime());
+        Sample oldest = remainingSamples.peekFirst();
+        Sample newest = remainingSamples.peekLast();
+        if (oldest == null || newest.nanos == oldest.nanos) {
+            return -1;
+        }
+        return (double) (oldest.remaining - newest.remaining) / (newest.nanos - oldest.nanos)
+               * TimeUnit.MINUTES.toNanos(1);
+    }
+    
+    /**
+     * @param priority the priority
+     * @return the number of calls per minute of the priority made by the clients recording to this quota, over the
+     *         recent window
+     */
+    public synchronized double getCallsPerMinute(Priority priority) {
+        long now = System.nanoTime();
+        prune(now);
+        long elapsedNanos = Math.min(windowNanos, now - startNanos);
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return (double) callsInWindow.getOrDefault(priority, 0L) / elapsedNanos * TimeUnit.MINUTES.toNanos(1);
+    }
+    
+    /**
+     * @return the time until the quota runs out at the current rate, see {@link #getCallsPerMinute()}, or null if
+     *         not known or it is not being used
+     */
+    @Nullable
+    public synchronized Duration getTimeToExhaustion() {
+        return getTimeToRemaining(0);
+    }
+    
+    /**
+     * @return the time until the quota is down to the reserve at the current rate, or null if not known or it is not
+     *         being used. {@link Duration#ZERO} if it is already
+     */
+    @Nullable
+    public synchronized Duration getTimeToReserve() {
+        return getTimeToRemaining(reserve);
+    }
+    
+    @Nullable
+    private Duration getTimeToRemaining(long left) {
+        Long remaining = getRemaining();
+        double callsPerMinute = getCallsPerMinute();
+        if (remaining == null || callsPerMinute <= 0) {
+            return null;
+        }
+        if (remaining <= left) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos((long) ((remaining - left) / callsPerMinute * TimeUnit.MINUTES.toNanos(1)));
+    }
+    
+    public long getReserve() {
+        return reserve;
+    }
+    
+    public synchronized Duration getBulkInterval() {
+        return Duration.ofNanos(bulkIntervalNanos);
+    }
+    
+    /**
+     * @param bulkInterval when the quota is down to the reserve, send one bulk call per this interval rather than
+     *                     reject them. Null or zero to reject them, the default
+     */
+    public synchronized void setBulkInterval(@Nullable Duration bulkInterval) {
+        this.bulkIntervalNanos = bulkInterval == null ? 0 : Math.max(0, bulkInterval.toNanos());
+    }
+    
+    /**
+     * @return the number of bulk calls rejected, as the quota was down to the reserve
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+    
+    /**
+     * @return the number of bulk calls throttled, as the quota was down to the reserve
+     */
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "ApiQuota{"
+               + "remaining=" + getRemaining()
+               + ", reserve=" + reserve
+               + ", callsPerMinute=" + Math.round(getCallsPerMinute())
+               + ", timeToExhaustion=" + getTimeToExhaustion()
+               + ", rejected=" + rejected
+               + ", throttled=" + throttled
+               + '}';
+    }
+    
+    private static class Sample {
+        private final long nanos;
+        private final Priority priority;
+        private final long remaining;
+        
+        private Sample(long nanos, Priority priority, long remaining) {
+            this.nanos     = nanos;
+            this.priority  = priority;
+            this.remaining = remaining;
+        }
+    }
+}
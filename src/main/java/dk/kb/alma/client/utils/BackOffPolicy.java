@@ -0,0 +1,21 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides how long {@link dk.kb.alma.client.HttpClient} waits before retrying a request. See
+ * {@link ExponentialBackOff} and {@link FixedBackOff}.
+ * <p>
+ * Implementations must be threadsafe, as one policy is used for all requests of a client.
+ */
+public interface BackOffPolicy {
+    
+    /**
+     * @param reason           why the request is retried
+     * @param retry            the number of this retry of the request, starting at 1
+     * @param retryAfterMillis the wait asked for by the server in a {@code Retry-After} header, or null if it did not
+     *                         ask
+     * @return the number of milliseconds to wait before retrying
+     */
+    long getBackOffMillis(RetryReason reason, int retry, @Nullable Long retryAfterMillis);
+}
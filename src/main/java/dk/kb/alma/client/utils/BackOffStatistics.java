@@ -0,0 +1,88 @@
+package dk.kb.alma.client.utils;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Counts the back-offs of a client per {@link RetryReason}: how many, how long in total and at most, and how many
+ * were decided by a {@code Retry-After} header from the server. Threadsafe.
+ */
+public class BackOffStatistics {
+    
+    private final Map<RetryReason, long[]> stats = new EnumMap<>(RetryReason.class);
+    
+    private static final int COUNT = 0;
+    private static final int TOTAL_MILLIS = 1;
+    private static final int MAX_MILLIS = 2;
+    private static final int RETRY_AFTER = 3;
+    
+    public BackOffStatistics() {
+        for (RetryReason reason : RetryReason.values()) {
+            stats.put(reason, new long[4]);
+        }
+    }
+    
+    /**
+     * @param reason        why the request is retried
+     * @param backOffMillis the chosen back-off
+     * @param retryAfter    true if the server asked for the back-off with a {@code Retry-After} header
+     */
+    public synchronized void record(RetryReason reason, long backOffMillis, boolean retryAfter) {
+        long[] stat = stats.get(reason);
+        stat[COUNT]++;
+        stat[TOTAL_MILLIS] += backOffMillis;
+        stat[MAX_MILLIS] = Math.max(stat[MAX_MILLIS], backOffMillis);
+        if (retryAfter) {
+            stat[RETRY_AFTER]++;
+        }
+    }
+    
+    public synchronized long getCount(RetryReason reason) {
+        return stats.get(reason)[COUNT];
+    }
+    
+    public synchronized long getTotalMillis(RetryReason reason) {
+        return stats.get(reason)[TOTAL_MILLIS];
+    }
+    
+    public synchronized long getMaxMillis(RetryReason reason) {
+        return stats.get(reason)[MAX_MILLIS];
+    }
+    
+    /**
+     * @return the number of back-offs for the reason that were asked for with a {@code Retry-After} header
+     */
+    public synchronized long getRetryAfterCount(RetryReason reason) {
+        return stats.get(reason)[RETRY_AFTER];
+    }
+    
+    /**
+     * @return the number of back-offs for all reasons
+     */
+    public synchronized long getCount() {
+        return stats.values().stream().mapToLong(stat -> stat[COUNT]).sum();
+    }
+    
+    /**
+     * @return the total time of the back-offs for all reasons
+     */
+    public synchronized long getTotalMillis() {
+        return stats.values().stream().mapToLong(stat -> stat[TOTAL_MILLIS]).sum();
+    }
+    
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("BackOffStatistics{");
+        stats.forEach((reason, stat) -> {
+            if (stat[COUNT] > 0) {
+                result.append(reason)
+                      .append("={count=").append(stat[COUNT])
+                      .append(", total=").append(stat[TOTAL_MILLIS])
+                      .append("ms, max=").append(stat[MAX_MILLIS])
+                      .append("ms, retryAfter=").append(stat[RETRY_AFTER])
+                      .append("}, ");
+            }
+        });
+        return result.append('}').toString();
+    }
+}
@@ -0,0 +1,247 @@
+package dk.kb.alma.client.utils;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A read-only {@link Response} over a {@link TransportResponse}. The body is already in memory, so the entity can be
+ * read any number of times.
+ * <p>
+ * This is what HttpClient puts in the WebApplicationExceptions it throws for error statuses, so the error handling
+ * (i.e. {@link HttpUtils#readWebServiceResult}) works the same regardless of the transport.
+ */
+public class BufferedResponse extends Response {
+    
+    private final TransportResponse transportResponse;
+    
+    private final EntityCodec entityCodec;
+    
+    public BufferedResponse(TransportResponse transportResponse, EntityCodec entityCodec) {
+        this.transportResponse = transportResponse;
+        this.entityCodec       = entityCodec;
+    }
+    
+    public TransportResponse getTransportResponse() {
+        return transportResponse;
+    }
+    
+    @Override
+    public int getStatus() {
+        return transportResponse.getStatus();
+    }
+    
+    @Override
+    public StatusType getStatusInfo() {
+        Status status = Status.fromStatusCode(getStatus());
+        if (status != null) {
+            return status;
+        }
+        //Not all codes are in the enum
+        final int statusCode = getStatus();
+        return new StatusType() {
+            @Override
+            public int getStatusCode() {
+                return statusCode;
+            }
+            
+            @Override
+            public Status.Family getFamily() {
+                return Status.Family.familyOf(statusCode);
+            }
+            
+            @Override
+            public String getReasonPhrase() {
+                return "HTTP " + statusCode;
+            }
+        };
+    }
+    
+    @Override
+    public Object getEntity() {
+        return new ByteArrayInputStream(transportResponse.getBody());
+    }
+    
+    @Override
+    public <T> T readEntity(Class<T> entityType) {
+        return entityCodec.read(transportResponse.getBody(), getMediaType(), entityType);
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readEntity(GenericType<T> entityType) {
+        return (T) readEntity(entityType.getRawType());
+    }
+    
+    @Override
+    public <T> T readEntity(Class<T> entityType, Annotation[] annotations) {
+        return readEntity(entityType);
+    }
+    
+    @Override
+    public <T> T readEntity(GenericType<T> entityType, Annotation[] annotations) {
+        return readEntity(entityType);
+    }
+    
+    @Override
+    public boolean hasEntity() {
+        return transportResponse.getBody().length > 0;
+    }
+    
+    @Override
+    public boolean bufferEntity() {
+        //Always buffered
+        return true;
+    }
+    
+    @Override
+    public void close() {
+        //Nothing to release
+    }
+    
+    @Override
+    public MediaType getMediaType() {
+        return transportResponse.getMediaType();
+    }
+    
+    @Override
+    public Locale getLanguage() {
+        String language = getHeaderString(HttpHeaders.CONTENT_LANGUAGE);
+        return language == null ? null : Locale.forLanguageTag(language);
+    }
+    
+    @Override
+    public int getLength() {
+        String length = getHeaderString(HttpHeaders.CONTENT_LENGTH);
+        try {
+            return length == null ? -1 : Integer.parseInt(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    @Override
+    public Set<String> getAllowedMethods() {
+        List<String> allowed = transportResponse.getHeaders().get(HttpHeaders.ALLOW);
+        if (allowed == null) {
+            return Collections.emptySet();
+        }
+        return allowed.stream()
+                      .flatMap(value -> List.of(value.split(",")).stream())
+                      .map(String::trim)
+                      .map(method -> method.toUpperCase(Locale.ROOT))
+                      .collect(Collectors.toSet());
+    }
+    
+    @Override
+    public Map<String, NewCookie> getCookies() {
+        List<String> cookies = transportResponse.getHeaders().get(HttpHeaders.SET_COOKIE);
+        if (cookies == null) {
+            return Collections.emptyMap();
+        }
+        return cookies.stream()
+                      .map(NewCookie::valueOf)
+                      .collect(Collectors.toMap(NewCookie::getName, cookie -> cookie, (a, b) -> b));
+    }
+    
+    @Override
+    public EntityTag getEntityTag() {
+        String etag = getHeaderString(HttpHeaders.ETAG);
+        return etag == null ? null : EntityTag.valueOf(etag);
+    }
+    
+    @Override
+    public Date getDate() {
+        return parseDate(getHeaderString(HttpHeaders.DATE));
+    }
+    
+    @Override
+    public Date getLastModified() {
+        return parseDate(getHeaderString(HttpHeaders.LAST_MODIFIED));
+    }
+    
+    @Override
+    public URI getLocation() {
+        String location = getHeaderString(HttpHeaders.LOCATION);
+        return location == null ? null : URI.create(location);
+    }
+    
+    @Override
+    public Set<Link> getLinks() {
+        List<String> links = transportResponse.getHeaders().get(HttpHeaders.LINK);
+        if (links == null) {
+            return Collections.emptySet();
+        }
+        return links.stream().map(Link::valueOf).collect(Collectors.toCollection(HashSet::new));
+    }
+    
+    @Override
+    public boolean hasLink(String relation) {
+        return getLink(relation) != null;
+    }
+    
+    @Override
+    public Link getLink(String relation) {
+        return getLinks().stream().filter(link -> link.getRels().contains(relation)).findFirst().orElse(null);
+    }
+    
+    @Override
+    public Link.Builder getLinkBuilder(String relation) {
+        Link link = getLink(relation);
+        return link == null ? null : Link.fromLink(link);
+    }
+    
+    @Override
+    public MultivaluedMap<String, Object> getMetadata() {
+        MultivaluedMap<String, Object> metadata = new MultivaluedHashMap<>();
+        transportResponse.getHeaders().forEach((key, values) -> metadata.addAll(key, values.toArray()));
+        return metadata;
+    }
+    
+    @Override
+    public MultivaluedMap<String, String> getStringHeaders() {
+        return transportResponse.getHeaders();
+    }
+    
+    @Override
+    public String getHeaderString(String name) {
+        List<String> values = transportResponse.getHeaders().get(name);
+        return values == null ? null : String.join(",", values);
+    }
+    
+    private static Date parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return Date.from(ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "BufferedResponse{" + transportResponse + '}';
+    }
+}
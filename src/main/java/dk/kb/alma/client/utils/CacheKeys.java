@@ -0,0 +1,194 @@
+package dk.kb.alma.client.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Canonical cache keys for GET requests, so links to the same resource share a cache entry however they were built.
+ * <p>
+ * The key of a URI is the URI with
+ * <ul>
+ *     <li>the scheme and authority in lower case and the path normalised, see {@link URI#normalize()}</li>
+ *     <li>the percent-encoding normalised, i.e. unreserved characters decoded and hex digits in upper case</li>
+ *     <li>repeated identical parameters, such as a {@code lang} from both the global parameters and the caller,
+ *     given once</li>
+ *     <li>the parameters sorted by name. The order of values of the same parameter is kept</li>
+ *     <li>the comma separated IDs of the {@link #ID_LIST_PARAMETERS}, such as {@code /bibs?mms_id=2,1}, sorted and
+ *     given once</li>
+ *     <li>no fragment</li>
+ * </ul>
+ * The key is only used to look up cached results. The request is still sent to the URI as given.
+ */
+public class CacheKeys {
+    
+    /**
+     * The parameters that take a comma separated list of IDs, where the order of the IDs only affects the order of
+     * the results
+     */
+    public static final Set<String> ID_LIST_PARAMETERS = Set.of("mms_id",
+                                                                "ie_id",
+                                                                "holdings_id",
+                                                                "representation_id",
+                                                                "nz_mms_id",
+                                                                "cz_mms_id");
+    
+    private static final String UNRESERVED = "-._~";
+    
+    /**
+     * @param uri the URI the result is fetched from, without credentials
+     * @return the canonical cache key of the URI
+     */
+    public static URI canonical(URI uri) {
+        if (uri.isOpaque()) {
+            return uri;
+        }
+        URI normalised = uri.normalize();
+        StringBuilder key = new StringBuilder();
+        if (normalised.getScheme() != null) {
+            key.append(normalised.getScheme().toLowerCase(Locale.ROOT)).append(':');
+        }
+        if (normalised.getRawAuthority() != null) {
+            key.append("//").append(normalised.getRawAuthority().toLowerCase(Locale.ROOT));
+        }
+        if (normalised.getRawPath() != null) {
+            key.append(normaliseEncoding(normalised.getRawPath()));
+        }
+        String query = canonicalQuery(normalised.getRawQuery());
+        if (!query.isEmpty()) {
+            key.append('?').append(query);
+        }
+        return URI.create(key.toString());
+    }
+    
+    /**
+     * @param uri the URI
+     * @return the decoded query parameters of the URI, by name in the order they are given. A parameter without a
+     *         value has the value ""
+     */
+    public static Map<String, List<String>> getQueryParameters(URI uri) {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return result;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+            String value = equals < 0 ? "" : decode(parameter.substring(equals + 1));
+            result.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+        return result;
+    }
+    
+    private static String canonicalQuery(String rawQuery) {
+        if (rawQuery == null) {
+            return "";
+        }
+        Set<String> parameters = new LinkedHashSet<>();
+        for (String parameter : rawQuery.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = normaliseEncoding(equals < 0 ? parameter : parameter.substring(0, equals));
+            if (equals < 0) {
+                parameters.add(name);
+                continue;
+            }
+            String value = normaliseEncoding(parameter.substring(equals + 1));
+            if (ID_LIST_PARAMETERS.contains(decode(name))) {
+                value = Arrays.stream(value.split(",|%2C"))
+                              .filter(id -> !id.isEmpty())
+                              .distinct()
+                              .sorted()
+                              .collect(Collectors.joining(","));
+            }
+            parameters.add(name + "=" + value);
+        }
+        //A stable sort, so the values of a parameter keep their order
+        return parameters.stream()
+                         .sorted(Comparator.comparing(parameter -> parameter.split("=", 2)[0]))
+                         .collect(Collectors.joining("&"));
+    }
+    
+    /**
+     * @return the raw URI component with unreserved characters decoded and other escapes in upper case
+     */
+    private static String normaliseEncoding(String raw) {
+        if (raw.indexOf('%') < 0) {
+            return raw;
+        }
+        StringBuilder result = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            int value = c == '%' ? hexValue(raw, i + 1) : -1;
+            if (value < 0) {
+                result.append(c);
+            } else if (isUnreserved((char) value)) {
+                result.append((char) value);
+                i += 2;
+            } else {
+                result.append('%').append(raw.substring(i + 1, i + 3).toUpperCase(Locale.ROOT));
+                i += 2;
+            }
+        }
+        return result.toString();
+    }
+    
+    /**
+     * @return the raw URI component with all escapes decoded as UTF-8. Unlike form decoding, '+' is kept
+     */
+    private static String decode(String raw) {
+        if (raw.indexOf('%') < 0) {
+            return raw;
+        }
+        StringBuilder result = new StringBuilder(raw.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < raw.length(); i++) {
+            int value = raw.charAt(i) == '%' ? hexValue(raw, i + 1) : -1;
+            if (value >= 0) {
+                //Consecutive escapes are the bytes of one UTF-8 string
+                bytes.write(value);
+                i += 2;
+                continue;
+            }
+            if (bytes.size() > 0) {
+                result.append(bytes.toString(StandardCharsets.UTF_8));
+                bytes.reset();
+            }
+            result.append(raw.charAt(i));
+        }
+        result.append(bytes.toString(StandardCharsets.UTF_8));
+        return result.toString();
+    }
+    
+    /**
+     * @return the value of the two hex digits at the index, or -1 if there are not two hex digits there
+     */
+    private static int hexValue(String raw, int index) {
+        if (index + 1 >= raw.length()) {
+            return -1;
+        }
+        int high = Character.digit(raw.charAt(index), 16);
+        int low = Character.digit(raw.charAt(index + 1), 16);
+        return high < 0 || low < 0 ? -1 : high * 16 + low;
+    }
+    
+    private static boolean isUnreserved(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || UNRESERVED.indexOf(c) >= 0;
+    }
+}
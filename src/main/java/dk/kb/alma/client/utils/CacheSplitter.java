@@ -0,0 +1,27 @@
+package dk.kb.alma.client.utils;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Splits the result of a GET of several resources, such as {@code /bibs?mms_id=1,2,3}, into the resources, so they
+ * are cached as if each had been fetched on its own. See
+ * {@link dk.kb.alma.client.HttpClient#setCacheSplitter(Class, Class, CacheSplitter)}.
+ *
+ * @param <T> the type of the result of several resources
+ * @param <P> the type of each resource
+ */
+@FunctionalInterface
+public interface CacheSplitter<T, P> {
+    
+    /**
+     * Called on the request thread with each result of the type fetched from the server, so it must be threadsafe
+     * and should be fast.
+     *
+     * @param batchKey the canonical cache key of the result, see {@link CacheKeys#canonical(URI)}
+     * @param batch    the result
+     * @return the resources to cache, by the URI each would be fetched from on its own. Empty to not split the result,
+     *         e.g. if the resources were fetched with other parameters than they would be on their own
+     */
+    Map<URI, P> split(URI batchKey, T batch);
+}
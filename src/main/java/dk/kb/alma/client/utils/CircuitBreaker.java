@@ -0,0 +1,208 @@
+package dk.kb.alma.client.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to a failing server for a while, so callers fail fast instead of all waiting through their
+ * retries.
+ * <p>
+ * The breaker starts {@link State#CLOSED}, where all requests are sent. After {@code failureThreshold} consecutive
+ * failures (5xx responses or connection failures) it opens. While {@link State#OPEN}, no requests are sent, see
+ * {@link #tryAcquire()}. When the open period has passed, the breaker is {@link State#HALF_OPEN} and lets
+ * {@code halfOpenTrials} trial requests through. If they all succeed, the breaker closes again. If any of them fails,
+ * it opens for another period.
+ * <p>
+ * Every request let through by {@link #tryAcquire()} must be reported with exactly one of {@link #onSuccess()},
+ * {@link #onFailure()} or {@link #onIgnore()}. The breaker is threadsafe.
+ */
+public class CircuitBreaker {
+    
+    protected final static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+    
+    public enum State {
+        /**
+         * Requests are sent
+         */
+        CLOSED,
+        /**
+         * Requests are rejected without being sent
+         */
+        OPEN,
+        /**
+         * A limited number of trial requests are sent, to see if the server has recovered
+         */
+        HALF_OPEN
+    }
+    
+    private final int failureThreshold;
+    
+    private final long openMillis;
+    
+    private final int halfOpenTrials;
+    
+    private State state = State.CLOSED;
+    
+    private int consecutiveFailures = 0;
+    
+    private long openedAtNanos = 0;
+    
+    private int trialsInFlight = 0;
+    
+    private int trialSuccesses = 0;
+    
+    private long opened = 0;
+    private long rejected = 0;
+    
+    /**
+     * @param failureThreshold the number of consecutive failures that opens the breaker
+     * @param openMillis       how long the breaker stays open before trial requests are sent
+     * @param halfOpenTrials   the number of trial requests that must succeed to close the breaker
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis, int halfOpenTrials) {
+        if (failureThreshold < 1 || openMillis < 0 || halfOpenTrials < 1) {
+            throw new IllegalArgumentException("Invalid failure threshold " + failureThreshold
+                                               + ", open period " + openMillis
+                                               + "ms or trials " + halfOpenTrials);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis       = openMillis;
+        this.halfOpenTrials   = halfOpenTrials;
+    }
+    
+    /**
+     * Ask to send a request
+     *
+     * @return true if the request can be sent, false if the breaker is open, or half-open with all trial requests
+     *         already in flight
+     */
+    public synchronized boolean tryAcquire() {
+        switch (getState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (trialsInFlight + trialSuccesses < halfOpenTrials) {
+                    trialsInFlight++;
+                    return true;
+                }
+                rejected++;
+                return false;
+            case OPEN:
+            default:
+                rejected++;
+                return false;
+        }
+    }
+    
+    /**
+     * Report that a request succeeded, i.e. the server responded with anything but a 5xx
+     */
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            trialSuccesses++;
+            if (trialSuccesses >= halfOpenTrials) {
+                log.info("Closing circuit breaker after {} successful trial requests", trialSuccesses);
+                state = State.CLOSED;
+            }
+        }
+        consecutiveFailures = 0;
+    }
+    
+    /**
+     * Report that a request failed, i.e. with a 5xx response or on the connection level
+     */
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            open();
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+    
+    /**
+     * Report that a request tells nothing about the health of the server, e.g. it was rate limited or cancelled
+     */
+    public synchronized void onIgnore() {
+        if (state == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+        }
+    }
+    
+    private void open() {
+        log.warn("Opening circuit breaker for {} ms after {} consecutive failures", openMillis, consecutiveFailures);
+        state          = State.OPEN;
+        openedAtNanos  = System.nanoTime();
+        trialSuccesses = 0;
+        opened++;
+    }
+    
+    /**
+     * @return the current state. An open breaker becomes half-open when the open period has passed
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && getRemainingOpenMillis() <= 0) {
+            state          = State.HALF_OPEN;
+            trialsInFlight = 0;
+            trialSuccesses = 0;
+        }
+        return state;
+    }
+    
+    /**
+     * @return the number of milliseconds until trial requests are sent. 0 if the breaker is not open
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAtNanos);
+        return Math.max(0, openMillis - elapsedMillis);
+    }
+    
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+    
+    /**
+     * @return the number of times the breaker has opened
+     */
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+    
+    /**
+     * @return the number of requests rejected without being sent
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+    
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+    
+    public long getOpenMillis() {
+        return openMillis;
+    }
+    
+    public int getHalfOpenTrials() {
+        return halfOpenTrials;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+               "state=" + getState() +
+               ", consecutiveFailures=" + consecutiveFailures +
+               ", opened=" + opened +
+               ", rejected=" + rejected +
+               '}';
+    }
+}
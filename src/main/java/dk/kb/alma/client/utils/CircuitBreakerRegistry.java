@@ -0,0 +1,72 @@
+package dk.kb.alma.client.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * The {@link CircuitBreaker}s of a client, one per endpoint group. The group of a request is the first segment of its
+ * path below the API root, e.g. {@code bibs}, {@code users} or {@code conf}, so an outage of one Alma area does not
+ * stop requests to the others.
+ * <p>
+ * Groups get a breaker from the default factory when first used, unless one has been {@link #configure configured}
+ * for them.
+ */
+public class CircuitBreakerRegistry {
+    
+    private final Supplier<CircuitBreaker> defaultFactory;
+    
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    
+    /**
+     * @param defaultFactory creates the breakers of the groups that have not been configured
+     */
+    public CircuitBreakerRegistry(Supplier<CircuitBreaker> defaultFactory) {
+        this.defaultFactory = defaultFactory;
+    }
+    
+    /**
+     * @param failureThreshold the number of consecutive failures that opens a breaker
+     * @param openMillis       how long a breaker stays open before trial requests are sent
+     * @param halfOpenTrials   the number of trial requests that must succeed to close a breaker
+     */
+    public CircuitBreakerRegistry(int failureThreshold, long openMillis, int halfOpenTrials) {
+        this(() -> new CircuitBreaker(failureThreshold, openMillis, halfOpenTrials));
+    }
+    
+    /**
+     * Use the given breaker for the group, rather than one from the default factory
+     *
+     * @param group   the endpoint group, e.g. {@code bibs}
+     * @param breaker the breaker
+     * @return this registry
+     */
+    public CircuitBreakerRegistry configure(String group, CircuitBreaker breaker) {
+        breakers.put(group, breaker);
+        return this;
+    }
+    
+    /**
+     * @param group the endpoint group, e.g. {@code bibs}
+     * @return the breaker of the group
+     */
+    public CircuitBreaker get(String group) {
+        return breakers.computeIfAbsent(group, key -> defaultFactory.get());
+    }
+    
+    /**
+     * @return the states of the breakers of the groups used so far, sorted by group
+     */
+    public Map<String, CircuitBreaker.State> getStates() {
+        Map<String, CircuitBreaker.State> states = new TreeMap<>();
+        breakers.forEach((group, breaker) -> states.put(group, breaker.getState()));
+        return states;
+    }
+    
+    @Override
+    public String toString() {
+        return "CircuitBreakerRegistry{" + new TreeMap<>(breakers) + '}';
+    }
+}
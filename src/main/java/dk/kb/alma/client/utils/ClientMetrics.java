@@ -0,0 +1,120 @@
+package dk.kb.alma.client.utils;
+
+import dk.kb.alma.client.HttpClient;
+
+/**
+ * Receives measurements of the requests made by a {@link HttpClient}, so they can be exposed through any metrics
+ * library. See {@link InMemoryClientMetrics} for an implementation that can be polled and exposed through JMX.
+ * <p>
+ * Measurements are reported per operation and endpoint. The endpoint is the path of the request with the ids
+ * replaced by {@code {id}}, see {@link HttpUtils#getEndpointTemplate(java.net.URI)}, so e.g. all GETs of items are
+ * reported for {@code /almaws/v1/bibs/{id}/holdings/{id}/items/{id}}.
+ * <p>
+ * All methods have empty defaults, so implementations only need to override what they use. The methods are called
+ * on the request threads, so they must be threadsafe and should be fast.
+ */
+public interface ClientMetrics {
+    
+    /**
+     * Metrics that are not recorded anywhere. The default of {@link HttpClient}
+     */
+    ClientMetrics NOOP = new ClientMetrics() {
+    };
+    
+    /**
+     * A response was received from the server, whatever its status
+     *
+     * @param operation     the operation
+     * @param endpoint      the endpoint template
+     * @param status        the HTTP status of the response
+     * @param latencyNanos  the time from sending the request until the full response was received
+     * @param bytesReceived the size of the response body
+     */
+    default void recordResponse(HttpClient.Operation operation,
+                                String endpoint,
+                                int status,
+                                long latencyNanos,
+                                long bytesReceived) {
+    }
+    
+    /**
+     * The size of a response body on the wire. Called after {@link #recordResponse}, where the size is that of the
+     * decoded body
+     *
+     * @param operation the operation
+     * @param endpoint  the endpoint template
+     * @param wireBytes the number of body bytes received, which is less than the decoded size if the body was
+     *                  compressed
+     */
+    default void recordWireBytes(HttpClient.Operation operation, String endpoint, long wireBytes) {
+    }
+    
+    /**
+     * No response was received, as the request failed on the connection level
+     *
+     * @param operation    the operation
+     * @param endpoint     the endpoint template
+     * @param latencyNanos the time from sending the request until it failed
+     * @param failure      the failure
+     */
+    default void recordFailure(HttpClient.Operation operation, String endpoint, long latencyNanos, Throwable failure) {
+    }
+    
+    /**
+     * The request will be retried
+     *
+     * @param operation the operation
+     * @param endpoint  the endpoint template
+     * @param reason    the reason for the retry
+     */
+    default void recordRetry(HttpClient.Operation operation, String endpoint, RetryReason reason) {
+    }
+    
+    /**
+     * The request was redirected
+     *
+     * @param operation the operation
+     * @param endpoint  the endpoint template of the request that was redirected
+     */
+    default void recordRedirect(HttpClient.Operation operation, String endpoint) {
+    }
+    
+    /**
+     * The client waited before retrying the request
+     *
+     * @param operation     the operation
+     * @param endpoint      the endpoint template
+     * @param backOffMillis the time waited
+     */
+    default void recordBackOff(HttpClient.Operation operation, String endpoint, long backOffMillis) {
+    }
+    
+    /**
+     * A GET was looked up in the cache
+     *
+     * @param endpoint the endpoint template
+     * @param hit      true if the result was cached, in memory or on disk
+     */
+    default void recordCacheLookup(String endpoint, boolean hit) {
+    }
+    
+    /**
+     * A response body was parsed into a result
+     *
+     * @param operation  the operation
+     * @param endpoint   the endpoint template
+     * @param parseNanos the time spent parsing
+     */
+    default void recordParse(HttpClient.Operation operation, String endpoint, long parseNanos) {
+    }
+    
+    /**
+     * A request waited for the rate and concurrency limits of the client before it was sent. Called for every
+     * attempt, also those that did not wait
+     *
+     * @param priority   the priority of the request
+     * @param queueNanos the time from the request was ready to send until it was sent
+     */
+    default void recordQueueTime(Priority priority, long queueNanos) {
+    }
+}
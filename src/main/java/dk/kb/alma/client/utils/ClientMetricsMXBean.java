@@ -0,0 +1,40 @@
+package dk.kb.alma.client.utils;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link InMemoryClientMetrics}, see {@link InMemoryClientMetrics#registerMBean(String)}
+ */
+public interface ClientMetricsMXBean {
+    
+    /**
+     * @return the metrics per operation and endpoint, keyed as e.g. {@code "GET /almaws/v1/bibs/{id}"}
+     */
+    Map<String, InMemoryClientMetrics.EndpointMetrics> getEndpoints();
+    
+    /**
+     * @return the time requests waited for the rate and concurrency limits, per priority, keyed as e.g.
+     *         {@code "INTERACTIVE"}
+     */
+    Map<String, InMemoryClientMetrics.QueueMetrics> getQueues();
+    
+    /**
+     * @return the total number of requests sent to all endpoints
+     */
+    long getRequests();
+    
+    /**
+     * @return the total number of 429 responses received for all endpoints
+     */
+    long getRateLimited();
+    
+    /**
+     * @return the total time spent backing off before retries, in milliseconds
+     */
+    long getBackOffMillis();
+    
+    /**
+     * Forget all metrics recorded so far
+     */
+    void reset();
+}
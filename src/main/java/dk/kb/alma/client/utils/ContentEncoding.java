@@ -0,0 +1,175 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes gzip and deflate compressed response bodies for the {@link Transport}s, and counts the bytes on the wire.
+ * <p>
+ * The body is inflated while it is read, so the compressed body is never held in memory as a whole.
+ */
+public final class ContentEncoding {
+    
+    /**
+     * The value of the {@code Accept-Encoding} header sent when compression is enabled
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+    
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    
+    private ContentEncoding() {
+    }
+    
+    /**
+     * @param contentEncoding the {@code Content-Encoding} of a response, or null
+     * @return true if the encoding is one this class can decode, i.e. not null or identity
+     */
+    public static boolean isCompressed(@Nullable String contentEncoding) {
+        if (contentEncoding == null) {
+            return false;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        return encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate");
+    }
+    
+    /**
+     * Read the body of a response, decoding it if it is compressed. If it was, the {@code Content-Encoding} and
+     * {@code Content-Length} headers are removed, as they describe the compressed body.
+     *
+     * @param body    the body as received. Closed when read
+     * @param headers the headers of the response
+     * @return the decoded body, and the number of bytes received
+     * @throws IOException if the body could not be read or decoded
+     */
+    public static Decoded decode(InputStream body, MultivaluedMap<String, String> headers) throws IOException {
+        try (CountingInputStream counting = new CountingInputStream(body);
+             InputStream decoding = decoding(counting, headers)) {
+            byte[] bytes = decoding.readAllBytes();
+            return new Decoded(bytes, counting.getCount());
+        }
+    }
+    
+    /**
+     * Decode the body of a response while it is read, if it is compressed. If it is, the {@code Content-Encoding}
+     * and {@code Content-Length} headers are removed, as they describe the compressed body.
+     *
+     * @param body    the body as received
+     * @param headers the headers of the response
+     * @return the decoded body. Closing it closes the body as received
+     * @throws IOException if the start of a compressed body could not be read
+     */
+    public static InputStream decoding(InputStream body, MultivaluedMap<String, String> headers) throws IOException {
+        String contentEncoding = getHeader(headers, CONTENT_ENCODING);
+        if (!isCompressed(contentEncoding)) {
+            return body;
+        }
+        InputStream decoding = decoder(body, contentEncoding);
+        removeHeader(headers, CONTENT_ENCODING);
+        removeHeader(headers, HttpHeaders.CONTENT_LENGTH);
+        return decoding;
+    }
+    
+    private static InputStream decoder(InputStream body, String contentEncoding) throws IOException {
+        if (contentEncoding.trim().toLowerCase(Locale.ROOT).endsWith("gzip")) {
+            return new GZIPInputStream(body, 8192);
+        }
+        //deflate should be zlib wrapped, but some servers send raw deflate data. A zlib stream starts with a header
+        // byte 0x?8 where the header, read as a big-endian short, is divisible by 31
+        BufferedInputStream buffered = new BufferedInputStream(body, 8192);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        boolean zlib = first >= 0 && second >= 0 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(buffered, new Inflater(!zlib), 8192);
+    }
+    
+    @Nullable
+    private static String getHeader(MultivaluedMap<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key != null && key.equalsIgnoreCase(name)) {
+                return headers.getFirst(key);
+            }
+        }
+        return null;
+    }
+    
+    private static void removeHeader(MultivaluedMap<String, String> headers, String name) {
+        headers.keySet().removeIf(key -> key != null && key.equalsIgnoreCase(name));
+    }
+    
+    /**
+     * A decoded body
+     */
+    public static class Decoded {
+        private final byte[] body;
+        private final long wireLength;
+        
+        public Decoded(byte[] body, long wireLength) {
+            this.body       = body;
+            this.wireLength = wireLength;
+        }
+        
+        public byte[] getBody() {
+            return body;
+        }
+        
+        /**
+         * @return the number of bytes received, i.e. the size of the compressed body
+         */
+        public long getWireLength() {
+            return wireLength;
+        }
+    }
+    
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+        
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        private long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package dk.kb.alma.client.utils;
+
+import dk.kb.alma.client.HttpClient;
+import org.apache.cxf.jaxrs.client.WebClient;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport that sends requests through the CXF WebClient itself, i.e. through the conduit of the WebClient. This is
+ * the default transport.
+ */
+public class CxfTransport implements Transport {
+    
+    /**
+     * The number of threads of the shared pool, i.e. the number of async requests in flight at once. Further requests
+     * wait in line for a thread. This is the maximum of the default concurrency limit of the HttpClient
+     */
+    public static final int DEFAULT_THREADS = 50;
+    
+    private static final Executor defaultExecutor = createDefaultExecutor();
+    
+    private final Executor executor;
+    
+    /**
+     * Create a transport that sends async requests on a shared pool of {@link #DEFAULT_THREADS} daemon threads
+     */
+    public CxfTransport() {
+        this(defaultExecutor);
+    }
+    
+    /**
+     * @param executor the executor to send async requests on. Each request in flight occupies a thread
+     */
+    public CxfTransport(Executor executor) {
+        this.executor = executor;
+    }
+    
+    private static Executor createDefaultExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "alma-client-cxf-" + threadCount.incrementAndGet());
+            //Requests in flight should not keep the JVM alive
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS,
+                                                             DEFAULT_THREADS,
+                                                             1,
+                                                             TimeUnit.MINUTES,
+                                                             new LinkedBlockingQueue<>(),
+                                                             threadFactory);
+        //Idle threads are stopped, so a quiet client holds no threads
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    @Override
+    public <E> TransportResponse execute(WebClient request, HttpClient.Operation operation, @Nullable E entity)
+            throws ProcessingException {
+        //Asking for a Response means CXF will not throw on error statuses, we map them ourselves
+        Response response = request.invoke(operation.name(), entity, Response.class);
+        return toTransportResponse(response);
+    }
+    
+    /**
+     * The body is read from the connection while the caller reads the stream, on the calling thread, so this is safe
+     * from the body corruption described for {@link #executeAsync}
+     */
+    @Override
+    public <E> StreamedResponse executeStreaming(WebClient request,
+                                                 HttpClient.Operation operation,
+                                                 @Nullable E entity) throws ProcessingException {
+        Response response = request.invoke(operation.name(), entity, Response.class);
+        try {
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>(response.getStringHeaders());
+            //The entity of a client response is the stream from the connection. hasEntity() would wait for its first
+            // byte
+            Object body = response.getEntity();
+            if (!(body instanceof InputStream)) {
+                response.close();
+                return new StreamedResponse(response.getStatus(), headers, InputStream.nullInputStream());
+            }
+            return new StreamedResponse(response.getStatus(),
+                                        headers,
+                                        ContentEncoding.decoding(new BodyStream((InputStream) body, response),
+                                                                 headers));
+        } catch (IOException e) {
+            response.close();
+            throw new ProcessingException("Failed to read response body", e);
+        } catch (RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Send the request on the executor of this transport.
+     * <p>
+     * The async invocation of the CXF WebClient is not used, as the async conduit of CXF 3.4 lets two threads read
+     * the same response body when the body is read from an InvocationCallback: the SharedInputBuffer of the
+     * connection remembers the buffer of one pending read at a time, so the second reader loses bytes or fails with a
+     * NullPointerException (see CxfTransportTest). A synchronous invocation reads the body on the calling thread
+     * only, which is safe. The request thus holds a thread of the executor while in flight, so use
+     * {@link JdkHttpTransport} if many concurrent requests should share few threads.
+     * <p>
+     * Cancelling the future aborts the exchange, which frees its connection, if the WebClient was created by a
+     * {@link WebClientFactory}. Otherwise the exchange runs until the response or the receive timeout.
+     */
+    @Override
+    public <E> CompletableFuture<TransportResponse> executeAsync(WebClient request,
+                                                                 HttpClient.Operation operation,
+                                                                 @Nullable E entity) {
+        AbortableExchange exchange = new AbortableExchange();
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    exchange.abort();
+                }
+                return cancelled;
+            }
+        };
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    //Cancelled while waiting for a thread
+                    return;
+                }
+                try {
+                    result.complete(exchange.run(() -> execute(request, operation, entity)));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new ProcessingException("Failed to " + operation.name() + " '"
+                                                                 + request.getCurrentURI() + "'", e));
+        }
+        return result;
+    }
+    
+    /**
+     * Read the body of the response, inflating it while it is read from the connection if it is compressed
+     */
+    protected TransportResponse toTransportResponse(Response response) {
+        try {
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>(response.getStringHeaders());
+            InputStream body = response.hasEntity() ? response.readEntity(InputStream.class) : null;
+            if (body == null) {
+                return new TransportResponse(response.getStatus(), headers, new byte[0]);
+            }
+            ContentEncoding.Decoded decoded = ContentEncoding.decode(new BodyStream(body, response), headers);
+            return new TransportResponse(response.getStatus(), headers, decoded.getBody(), decoded.getWireLength());
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to read response body", e);
+        } finally {
+            response.close();
+        }
+    }
+    
+    /**
+     * The body of a response, as read from the conduit. Closing it closes the response, which releases the connection.
+     * <p>
+     * When the exchange fails while the body is read, e.g. on the receive timeout, the conduit aborts the read with an
+     * InterruptedIOException, which does not say why. It is thrown as a SocketException, so the read is retried like
+     * other failures of the connection.
+     */
+    private static class BodyStream extends FilterInputStream {
+        
+        private final Response response;
+        
+        private BodyStream(InputStream body, Response response) {
+            super(body);
+            this.response = response;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (InterruptedIOException e) {
+                throw aborted(e);
+            }
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (InterruptedIOException e) {
+                throw aborted(e);
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                response.close();
+            }
+        }
+        
+        private static IOException aborted(InterruptedIOException e) {
+            if (e instanceof SocketTimeoutException || Thread.currentThread().isInterrupted()) {
+                return e;
+            }
+            SocketException socketException = new SocketException("The exchange failed while reading the body");
+            socketException.initCause(e);
+            return socketException;
+        }
+    }
+}
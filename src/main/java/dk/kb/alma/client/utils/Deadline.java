@@ -0,0 +1,126 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a call to {@link dk.kb.alma.client.HttpClient} must be done, including all its attempts,
+ * back-offs and waits for the rate limiter. The socket timeouts of each attempt are cut to the time remaining.
+ * <p>
+ * A client can have a default deadline, see {@link dk.kb.alma.client.HttpClient#setDefaultDeadline(Duration)}. To give
+ * the calls made by a piece of code their own deadline, whatever client methods they go through, apply one to the
+ * calling thread
+ * <pre>
+ * try (Deadline.Scope ignored = Deadline.after(Duration.ofSeconds(2)).apply()) {
+ *     Bib bib = inventoryClient.getBib(mmsId);
+ * }
+ * </pre>
+ * Scopes can be nested, and the earliest deadline wins. Async calls use the deadline of the thread they are started
+ * from.
+ */
+public final class Deadline {
+    
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    
+    private final long deadlineNanos;
+    private final long budgetMillis;
+    
+    private Deadline(long deadlineNanos, long budgetMillis) {
+        this.deadlineNanos = deadlineNanos;
+        this.budgetMillis  = budgetMillis;
+    }
+    
+    /**
+     * @param budget the time allowed from now
+     * @return a deadline the given time from now
+     */
+    public static Deadline after(Duration budget) {
+        long budgetMillis = Math.max(0, budget.toMillis());
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis), budgetMillis);
+    }
+    
+    /**
+     * @return the deadline applied to the calling thread, or null if none
+     */
+    @Nullable
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+    
+    /**
+     * @param a a deadline, or null
+     * @param b another deadline, or null
+     * @return the earliest of the deadlines, or null if both are null
+     */
+    @Nullable
+    public static Deadline earliest(@Nullable Deadline a, @Nullable Deadline b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return a.deadlineNanos - b.deadlineNanos <= 0 ? a : b;
+    }
+    
+    /**
+     * Apply this deadline to the calling thread, until the returned scope is closed. If the thread already has an
+     * earlier deadline, that is kept.
+     *
+     * @return the scope to close when done
+     */
+    public Scope apply() {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(earliest(previous, this));
+        return new Scope(previous);
+    }
+    
+    /**
+     * @return the number of milliseconds left, never negative
+     */
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+    
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+    
+    /**
+     * @return the time allowed when the deadline was made, in milliseconds
+     */
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+    
+    @Override
+    public String toString() {
+        return "Deadline{" +
+               "budgetMillis=" + budgetMillis +
+               ", remainingMillis=" + getRemainingMillis() +
+               '}';
+    }
+    
+    /**
+     * Restores the deadline of the thread from before {@link #apply()} when closed
+     */
+    public static final class Scope implements AutoCloseable {
+        
+        @Nullable
+        private final Deadline previous;
+        
+        private Scope(@Nullable Deadline previous) {
+            this.previous = previous;
+        }
+        
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
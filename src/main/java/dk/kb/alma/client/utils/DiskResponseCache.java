@@ -0,0 +1,437 @@
+package dk.kb.alma.client.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A second level cache of GET responses on disk, below the in-memory {@link ResponseCache} of
+ * {@link dk.kb.alma.client.HttpClient}. As it survives restarts, a restarted service does not have to fetch everything
+ * it used before again.
+ * <p>
+ * The raw responses (status, headers and body) are stored, one file per normalised URI, so they can be read as any
+ * type. The directories mirror the paths of the URIs, i.e. the responses for {@code /bibs/1234?view=full} and
+ * {@code /bibs/1234/holdings} are in {@code <host>/bibs/1234/} and {@code <host>/bibs/1234/holdings/}, so all
+ * responses for or below a path can be removed without reading any of them. Each entry expires a fixed time after
+ * it was stored. When the files take up more than the given number of bytes, the least recently used entries are
+ * deleted.
+ * <p>
+ * Nothing is read up front: on first use, only the names, sizes and modification times of the files are listed, to
+ * know what is cached and in which order it was used. An entry is read when it is requested.
+ * <p>
+ * Failing to read or write an entry is logged and treated as a miss, never as an error of the request. The cache is
+ * threadsafe, but the directory should not be shared by several caches at once.
+ */
+public class DiskResponseCache {
+    
+    protected final static Logger log = LoggerFactory.getLogger(DiskResponseCache.class);
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    private static final String SUFFIX = ".entry";
+    
+    private final Path directory;
+    
+    private final long maxBytes;
+    
+    private final long ttlMillis;
+    
+    //Access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    
+    private boolean indexLoaded = false;
+    
+    private long totalBytes = 0;
+    
+    private long hits = 0;
+    private long misses = 0;
+    private long writes = 0;
+    private long evictions = 0;
+    
+    /**
+     * @param directory the directory to keep the entries in. Created if it does not exist
+     * @param maxBytes  the maximum number of bytes the entries may take up on disk
+     * @param ttlMillis how long entries are kept
+     */
+    public DiskResponseCache(Path directory, long maxBytes, long ttlMillis) {
+        this.directory = directory;
+        this.maxBytes  = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+    
+    /**
+     * @param uri the URI the response was fetched from
+     * @return the stored response, or null if not stored or expired
+     */
+    @Nullable
+    public TransportResponse get(URI uri) {
+        String key = key(uri);
+        synchronized (this) {
+            loadIndex();
+            if (index.get(key) == null) {
+                misses++;
+                return null;
+            }
+        }
+        Path file = path(key);
+        try {
+            TransportResponse response = read(file, uri);
+            if (response != null) {
+                //Remember the use across restarts
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                synchronized (this) {
+                    hits++;
+                }
+                return response;
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("Disk cache entry for '{}' was deleted", uri);
+        } catch (IOException e) {
+            log.warn("Failed to read disk cache entry for '{}'", uri, e);
+        }
+        remove(key);
+        synchronized (this) {
+            misses++;
+        }
+        return null;
+    }
+    
+    /**
+     * Store the response, with the default time to live
+     *
+     * @param uri      the URI the response was fetched from
+     * @param response the response
+     */
+    public void put(URI uri, TransportResponse response) {
+        put(uri, response, ttlMillis);
+    }
+    
+    /**
+     * @param uri       the URI the response was fetched from
+     * @param response  the response
+     * @param ttlMillis how long to keep the response
+     */
+    public void put(URI uri, TransportResponse response, long ttlMillis) {
+        String key = key(uri);
+        try {
+            byte[] bytes = serialise(uri, response, System.currentTimeMillis() + ttlMillis);
+            if (bytes.length > maxBytes) {
+                return;
+            }
+            Path file = path(key);
+            Files.createDirectories(file.getParent());
+            //Write to a temporary file first, so readers never see half an entry
+            Path tempFile = Files.createTempFile(file.getParent(), "entry", ".tmp");
+            try {
+                Files.write(tempFile, bytes);
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            synchronized (this) {
+                loadIndex();
+                Long previous = index.put(key, (long) bytes.length);
+                totalBytes += bytes.length - (previous == null ? 0 : previous);
+                writes++;
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write disk cache entry for '{}'", uri, e);
+        }
+    }
+    
+    /**
+     * Remove the response stored for the URI
+     *
+     * @param uri the URI to remove
+     */
+    public void invalidate(URI uri) {
+        remove(key(uri));
+    }
+    
+    /**
+     * Remove the responses stored for the path of the URI, whatever their query string
+     *
+     * @param uri the URI of the path to remove. The query string is ignored
+     */
+    public synchronized void invalidatePath(URI uri) {
+        loadIndex();
+        String directoryKey = directoryKey(uri) + "/";
+        for (String key : new ArrayList<>(index.keySet())) {
+            if (key.startsWith(directoryKey) && key.indexOf('/', directoryKey.length()) < 0) {
+                remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Remove the responses stored for the path of the URI and for all paths below it, whatever their query string
+     *
+     * @param prefix the URI of the path to remove. The query string is ignored
+     */
+    public synchronized void invalidatePrefix(URI prefix) {
+        loadIndex();
+        String directoryKey = directoryKey(prefix) + "/";
+        for (String key : new ArrayList<>(index.keySet())) {
+            if (key.startsWith(directoryKey)) {
+                remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Remove all stored responses
+     */
+    public synchronized void invalidateAll() {
+        loadIndex();
+        for (String key : new ArrayList<>(index.keySet())) {
+            remove(key);
+        }
+    }
+    
+    private synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        try {
+            Files.deleteIfExists(path(key));
+        } catch (IOException e) {
+            log.warn("Failed to delete disk cache entry '{}'", key, e);
+        }
+    }
+    
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            evictions++;
+            try {
+                Files.deleteIfExists(path(eldest.getKey()));
+            } catch (IOException e) {
+                log.warn("Failed to delete disk cache entry '{}'", eldest.getKey(), e);
+            }
+        }
+    }
+    
+    /**
+     * List the entries on disk, oldest first, without reading them
+     */
+    private void loadIndex() {
+        if (indexLoaded) {
+            return;
+        }
+        indexLoaded = true;
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.filter(Files::isRegularFile).forEach(files::add);
+        } catch (IOException e) {
+            log.warn("Failed to list disk cache '{}', starting empty", directory, e);
+            return;
+        }
+        List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                if (file.getFileName().toString().endsWith(SUFFIX)) {
+                    entries.add(Map.entry(file, Files.readAttributes(file, BasicFileAttributes.class)));
+                } else {
+                    //Left over from an interrupted write
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                log.debug("Failed to inspect disk cache file '{}'", file, e);
+            }
+        }
+        entries.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+        for (Map.Entry<Path, BasicFileAttributes> entry : entries) {
+            String fileName = directory.relativize(entry.getKey()).toString().replace(File.separatorChar, '/');
+            index.put(fileName.substring(0, fileName.length() - SUFFIX.length()), entry.getValue().size());
+            totalBytes += entry.getValue().size();
+        }
+        log.debug("Found {} entries of {} bytes in disk cache '{}'", index.size(), totalBytes, directory);
+        evict();
+    }
+    
+    private static byte[] serialise(URI uri, TransportResponse response, long expiresAtMillis) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(response.getBody().length + 512);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(expiresAtMillis);
+            out.writeUTF(uri.normalize().toString());
+            out.writeInt(response.getStatus());
+            out.writeInt(response.getHeaders().size());
+            for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeInt(header.getValue().size());
+                for (String value : header.getValue()) {
+                    out.writeUTF(value);
+                }
+            }
+            out.writeInt(response.getBody().length);
+            out.write(response.getBody());
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * @return the response in the file, or null if it has expired or is not for the uri
+     */
+    @Nullable
+    private static TransportResponse read(Path file, URI uri) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            if (in.readLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            if (!uri.normalize().toString().equals(in.readUTF())) {
+                return null;
+            }
+            int status = in.readInt();
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+            int headerCount = in.readInt();
+            for (int i = 0; i < headerCount; i++) {
+                String name = in.readUTF();
+                int valueCount = in.readInt();
+                for (int j = 0; j < valueCount; j++) {
+                    headers.add(name, in.readUTF());
+                }
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new TransportResponse(status, headers, body);
+        }
+    }
+    
+    private Path path(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+    
+    /**
+     * @return the path of the file for the URI, relative to the directory and without suffix
+     */
+    private static String key(URI uri) {
+        return directoryKey(uri) + "/" + hash(uri.normalize().toString());
+    }
+    
+    /**
+     * @return the path of the directory for the path of the URI, relative to the directory
+     */
+    private static String directoryKey(URI uri) {
+        URI normalised = uri.normalize();
+        StringBuilder key = new StringBuilder();
+        key.append(directoryName(normalised.getScheme() + "_" + normalised.getRawAuthority()));
+        if (normalised.getRawPath() != null) {
+            for (String segment : normalised.getRawPath().split("/")) {
+                if (!segment.isEmpty()) {
+                    key.append('/').append(directoryName(segment));
+                }
+            }
+        }
+        return key.toString();
+    }
+    
+    /**
+     * @return the segment encoded so it is a safe directory name on any file system
+     */
+    private static String directoryName(String segment) {
+        String name = URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("*", "%2A");
+        if (name.length() > 100 || name.startsWith(".")) {
+            //Overly long segments (and hidden names) are hashed instead
+            return "%" + hash(segment).substring(0, 32);
+        }
+        return name;
+    }
+    
+    private static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported", e);
+        }
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    public synchronized long getWrites() {
+        return writes;
+    }
+    
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    
+    /**
+     * @return the number of bytes the entries take up on disk
+     */
+    public synchronized long getSizeBytes() {
+        loadIndex();
+        return totalBytes;
+    }
+    
+    /**
+     * @return the number of entries on disk
+     */
+    public synchronized int size() {
+        loadIndex();
+        return index.size();
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "DiskResponseCache{" +
+               "directory=" + directory +
+               ", entries=" + index.size() +
+               ", sizeBytes=" + totalBytes +
+               ", hits=" + hits +
+               ", misses=" + misses +
+               ", writes=" + writes +
+               ", evictions=" + evictions +
+               '}';
+    }
+}
@@ -0,0 +1,164 @@
+package dk.kb.alma.client.utils;
+
+import org.apache.cxf.jaxrs.provider.JAXBElementProvider;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts between response/request bodies and java objects, independently of the transport that moved the bytes.
+ * <p>
+ * Bodies are handled by the providers given to the constructor, i.e. Jackson for JSON and {@link PooledJaxbProvider}
+ * for XML. XML the providers cannot handle falls back to the JAXB provider CXF uses per default. String, byte[] and
+ * InputStream bodies are passed through as-is.
+ */
+public class EntityCodec {
+    
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+    
+    private final JAXBElementProvider<Object> xmlProvider = new JAXBElementProvider<>();
+    
+    private final List<Object> providers;
+    
+    public EntityCodec(List<?> providers) {
+        this.providers = new ArrayList<>(providers);
+    }
+    
+    /**
+     * Read a body as the given type
+     *
+     * @param body      the raw body bytes
+     * @param mediaType the media type of the body. If null, XML is assumed
+     * @param type      the class to read the body as. If null or Void, null is returned
+     * @param <T>       the type to read as
+     * @return the body as an object of the type, or null if the body was empty
+     * @throws ProcessingException if the body could not be read as the type
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> T read(byte[] body, @Nullable MediaType mediaType, @Nullable Class<T> type)
+            throws ProcessingException {
+        if (type == null || type == Void.class || type == Void.TYPE) {
+            return null;
+        }
+        if (type == byte[].class) {
+            return (T) body;
+        }
+        if (type == InputStream.class) {
+            return (T) new ByteArrayInputStream(body);
+        }
+        if (type == String.class) {
+            return (T) new String(body, charset(mediaType));
+        }
+        if (body.length == 0) {
+            return null;
+        }
+        
+        mediaType = mediaType == null ? MediaType.APPLICATION_XML_TYPE : mediaType;
+        MessageBodyReader<T> reader = getReader(type, mediaType);
+        if (reader == null) {
+            throw new ProcessingException("No reader for type '" + type.getName() + "' and media type '" + mediaType + "'");
+        }
+        try (InputStream inputStream = new ByteArrayInputStream(body)) {
+            return reader.readFrom(type, type, NO_ANNOTATIONS, mediaType, new MultivaluedHashMap<>(), inputStream);
+        } catch (IOException | WebApplicationException e) {
+            throw new ProcessingException("Failed to read body as '" + type.getName() + "'", e);
+        }
+    }
+    
+    /**
+     * Write an entity as the given media type
+     *
+     * @param entity    the entity to write. If null, an empty array is returned
+     * @param mediaType the media type to write as. If null, XML is assumed
+     * @param <E>       the type of the entity
+     * @return the serialised entity
+     * @throws ProcessingException if the entity could not be written
+     */
+    @SuppressWarnings("unchecked")
+    public <E> byte[] write(@Nullable E entity, @Nullable MediaType mediaType) throws ProcessingException {
+        if (entity == null) {
+            return new byte[0];
+        }
+        if (entity instanceof byte[]) {
+            return (byte[]) entity;
+        }
+        if (entity instanceof String) {
+            return ((String) entity).getBytes(charset(mediaType));
+        }
+        
+        mediaType = mediaType == null ? MediaType.APPLICATION_XML_TYPE : mediaType;
+        Class<E> type = (Class<E>) entity.getClass();
+        MessageBodyWriter<E> writer = getWriter(type, mediaType);
+        if (writer == null) {
+            throw new ProcessingException("No writer for type '" + type.getName() + "' and media type '" + mediaType + "'");
+        }
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            writer.writeTo(entity, type, type, NO_ANNOTATIONS, mediaType, new MultivaluedHashMap<>(), outputStream);
+            return outputStream.toByteArray();
+        } catch (IOException | WebApplicationException e) {
+            throw new ProcessingException("Failed to write entity of type '" + type.getName() + "'", e);
+        }
+    }
+    
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> MessageBodyReader<T> getReader(Class<T> type, MediaType mediaType) {
+        for (Object provider : providers) {
+            if (provider instanceof MessageBodyReader
+                && ((MessageBodyReader<?>) provider).isReadable(type, type, NO_ANNOTATIONS, mediaType)) {
+                return (MessageBodyReader<T>) provider;
+            }
+        }
+        if (isJson(mediaType)) {
+            return null;
+        }
+        if (xmlProvider.isReadable(type, type, NO_ANNOTATIONS, mediaType)) {
+            return (MessageBodyReader<T>) xmlProvider;
+        }
+        return null;
+    }
+    
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <E> MessageBodyWriter<E> getWriter(Class<E> type, MediaType mediaType) {
+        for (Object provider : providers) {
+            if (provider instanceof MessageBodyWriter
+                && ((MessageBodyWriter<?>) provider).isWriteable(type, type, NO_ANNOTATIONS, mediaType)) {
+                return (MessageBodyWriter<E>) provider;
+            }
+        }
+        if (isJson(mediaType)) {
+            return null;
+        }
+        if (xmlProvider.isWriteable(type, type, NO_ANNOTATIONS, mediaType)) {
+            return (MessageBodyWriter<E>) xmlProvider;
+        }
+        return null;
+    }
+    
+    private static boolean isJson(MediaType mediaType) {
+        return "json".equalsIgnoreCase(mediaType.getSubtype()) || mediaType.getSubtype().endsWith("+json");
+    }
+    
+    private static Charset charset(@Nullable MediaType mediaType) {
+        if (mediaType != null && mediaType.getParameters().containsKey(MediaType.CHARSET_PARAMETER)) {
+            return Charset.forName(mediaType.getParameters().get(MediaType.CHARSET_PARAMETER));
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,97 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential back-off with full jitter: before retry {@code n}, wait a random time between 0 and
+ * {@code min(cap, base * 2^(n-1))}. The base and cap are set per {@link RetryReason}, so a transient 429 is retried
+ * quickly, while a gateway outage is given time to recover. The randomness keeps the retries of many threads from
+ * hitting the server in sync.
+ * <p>
+ * If the server sends a {@code Retry-After} header, it is obeyed, up to {@link #setMaxRetryAfterMillis(long)}.
+ */
+public class ExponentialBackOff implements BackOffPolicy {
+    
+    private final Map<RetryReason, long[]> limits = new EnumMap<>(RetryReason.class);
+    
+    private long maxRetryAfterMillis = 5 * 60 * 1000;
+    
+    /**
+     * Create a back-off with the defaults: 250ms up to 10s for 429s, 500ms up to 30s for connection failures, 1s up
+     * to 30s for timeouts and 2s up to 2 minutes when Alma asks us to retry later
+     */
+    public ExponentialBackOff() {
+        setLimits(RetryReason.RATE_LIMITED, 250, 10_000);
+        setLimits(RetryReason.SOCKET_EXCEPTION, 500, 30_000);
+        setLimits(RetryReason.TIMEOUT, 1000, 30_000);
+        setLimits(RetryReason.UNAVAILABLE, 2000, 120_000);
+    }
+    
+    /**
+     * @param reason     the error class
+     * @param baseMillis the maximum wait before the first retry
+     * @param capMillis  the maximum wait before any retry
+     * @return this back-off
+     */
+    public synchronized ExponentialBackOff setLimits(RetryReason reason, long baseMillis, long capMillis) {
+        if (baseMillis < 0 || capMillis < baseMillis) {
+            throw new IllegalArgumentException("Invalid base " + baseMillis + "ms or cap " + capMillis + "ms");
+        }
+        limits.put(reason, new long[]{baseMillis, capMillis});
+        return this;
+    }
+    
+    @Override
+    public long getBackOffMillis(RetryReason reason, int retry, @Nullable Long retryAfterMillis) {
+        if (retryAfterMillis != null) {
+            return Math.min(Math.max(0, retryAfterMillis), getMaxRetryAfterMillis());
+        }
+        long ceiling = getCeilingMillis(reason, retry);
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+    
+    /**
+     * @param reason the error class
+     * @param retry  the number of the retry, starting at 1
+     * @return the maximum wait before the retry
+     */
+    public synchronized long getCeilingMillis(RetryReason reason, int retry) {
+        long[] limit = limits.get(reason);
+        long baseMillis = limit[0];
+        long capMillis = limit[1];
+        //Shifting more than 62 places overflows, and the cap is reached long before
+        int doublings = Math.min(62, Math.max(0, retry - 1));
+        if (baseMillis > 0 && baseMillis > capMillis >> doublings) {
+            return capMillis;
+        }
+        return Math.min(capMillis, baseMillis << doublings);
+    }
+    
+    public synchronized long getMaxRetryAfterMillis() {
+        return maxRetryAfterMillis;
+    }
+    
+    /**
+     * @param maxRetryAfterMillis the longest {@code Retry-After} to obey. Default 5 minutes
+     * @return this back-off
+     */
+    public synchronized ExponentialBackOff setMaxRetryAfterMillis(long maxRetryAfterMillis) {
+        this.maxRetryAfterMillis = maxRetryAfterMillis;
+        return this;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("ExponentialBackOff{");
+        limits.forEach((reason, limit) -> result.append(reason)
+                                                .append('=')
+                                                .append(limit[0])
+                                                .append("..")
+                                                .append(limit[1])
+                                                .append("ms, "));
+        return result.append("maxRetryAfterMillis=").append(maxRetryAfterMillis).append('}').toString();
+    }
+}
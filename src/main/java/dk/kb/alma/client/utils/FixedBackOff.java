@@ -0,0 +1,51 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Waits {@code minMillis} plus a random part of {@code variationMillis} before every retry, whatever the reason. This
+ * is the default of {@link dk.kb.alma.client.HttpClient}, with the minimum sleep and sleep variation given to its
+ * constructor.
+ * <p>
+ * If the server asks for a longer wait with a {@code Retry-After} header, that is used instead.
+ */
+public class FixedBackOff implements BackOffPolicy {
+    
+    private final long minMillis;
+    private final long variationMillis;
+    
+    /**
+     * @param minMillis       the minimum wait
+     * @param variationMillis the maximum random addition to the minimum wait
+     */
+    public FixedBackOff(long minMillis, long variationMillis) {
+        this.minMillis       = minMillis;
+        this.variationMillis = variationMillis;
+    }
+    
+    @Override
+    public long getBackOffMillis(RetryReason reason, int retry, @Nullable Long retryAfterMillis) {
+        long backOffMillis = minMillis + Math.round(ThreadLocalRandom.current().nextDouble() * variationMillis);
+        if (retryAfterMillis != null) {
+            return Math.max(backOffMillis, retryAfterMillis);
+        }
+        return backOffMillis;
+    }
+    
+    public long getMinMillis() {
+        return minMillis;
+    }
+    
+    public long getVariationMillis() {
+        return variationMillis;
+    }
+    
+    @Override
+    public String toString() {
+        return "FixedBackOff{" +
+               "minMillis=" + minMillis +
+               ", variationMillis=" + variationMillis +
+               '}';
+    }
+}
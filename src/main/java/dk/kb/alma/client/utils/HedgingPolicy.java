@@ -0,0 +1,180 @@
+package dk.kb.alma.client.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when to hedge a GET, i.e. send a duplicate request when the first has not completed in time, so the
+ * occasional stalled request does not dominate the tail latency. The first response wins, the other request is
+ * cancelled.
+ * <p>
+ * The hedge is sent when the request has taken longer than the given percentile of the recent latencies of its
+ * endpoint (see {@link HttpUtils#getEndpointTemplate(java.net.URI)}). Until enough latencies are known, the
+ * {@link #setInitialDelayMillis(long) initial delay} is used.
+ * <p>
+ * Hedges are budgeted, so they cannot use up the rate limit: every request earns {@code budgetRatio} of a hedge, and
+ * a hedge is only sent if a whole one has been earned. With a ratio of 0.05, at most 5% extra requests are sent.
+ * <p>
+ * The policy is threadsafe and can be shared between clients, which then share the budget.
+ */
+public class HedgingPolicy {
+    
+    private final double percentile;
+    
+    private final double budgetRatio;
+    
+    private long initialDelayMillis = 1000;
+    
+    private long minDelayMillis = 10;
+    
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    
+    private double budget = 0;
+    
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesDenied = new AtomicLong();
+    
+    /**
+     * @param percentile  the percentile of the recent latencies after which to hedge, e.g. 0.95
+     * @param budgetRatio the maximum number of hedges per request, e.g. 0.05 for 5% extra requests
+     */
+    public HedgingPolicy(double percentile, double budgetRatio) {
+        if (percentile <= 0 || percentile >= 1 || budgetRatio < 0) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile + " or budget " + budgetRatio);
+        }
+        this.percentile  = percentile;
+        this.budgetRatio = budgetRatio;
+    }
+    
+    /**
+     * Register a request that might be hedged, which earns a part of a hedge
+     *
+     * @param endpoint the endpoint template of the request
+     * @return the number of milliseconds to wait for the response before hedging
+     */
+    public long onRequest(String endpoint) {
+        requests.incrementAndGet();
+        synchronized (this) {
+            //Do not save up for more than a small burst of hedges
+            budget = Math.min(Math.max(1, budgetRatio * 100), budget + budgetRatio);
+        }
+        return getDelayMillis(endpoint);
+    }
+    
+    /**
+     * Take a hedge from the budget
+     *
+     * @return true if the hedge can be sent
+     */
+    public synchronized boolean tryAcquireHedge() {
+        if (budget >= 1) {
+            budget -= 1;
+            hedgesSent.incrementAndGet();
+            return true;
+        }
+        hedgesDenied.incrementAndGet();
+        return false;
+    }
+    
+    /**
+     * Record the latency of a request, whether it succeeded, failed or was beaten by its hedge
+     *
+     * @param endpoint      the endpoint template of the request
+     * @param latencyMillis the time from sending the request until the response was received or it failed. If the
+     *                      hedge won, the time until then, i.e. a lower bound of the latency
+     */
+    public void recordLatency(String endpoint, long latencyMillis) {
+        latencies.computeIfAbsent(endpoint, key -> new LatencyWindow(percentile)).add(latencyMillis);
+    }
+    
+    /**
+     * Register that a hedge completed before the request it duplicated
+     */
+    public void onHedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+    
+    /**
+     * @param endpoint the endpoint template
+     * @return the current delay before requests to the endpoint are hedged
+     */
+    public long getDelayMillis(String endpoint) {
+        LatencyWindow window = latencies.get(endpoint);
+        long percentileMillis = window == null ? -1 : window.getPercentileMillis();
+        return percentileMillis < 0 ? initialDelayMillis : Math.max(minDelayMillis, percentileMillis);
+    }
+    
+    /**
+     * @return the number of requests that could have been hedged
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+    
+    /**
+     * @return the number of hedges sent
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+    
+    /**
+     * @return the number of hedges that completed before the request they duplicated
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+    
+    /**
+     * @return the number of hedges not sent, as the budget was spent
+     */
+    public long getHedgesDenied() {
+        return hedgesDenied.get();
+    }
+    
+    public double getPercentile() {
+        return percentile;
+    }
+    
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+    
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+    
+    /**
+     * @param initialDelayMillis the delay before hedging requests to endpoints with too few known latencies. Default
+     *                           1000
+     */
+    public void setInitialDelayMillis(long initialDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+    }
+    
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+    
+    /**
+     * @param minDelayMillis never hedge sooner than this, however fast the endpoint usually is. Default 10
+     */
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+    }
+    
+    @Override
+    public String toString() {
+        return "HedgingPolicy{" +
+               "percentile=" + percentile +
+               ", budgetRatio=" + budgetRatio +
+               ", requests=" + requests +
+               ", hedgesSent=" + hedgesSent +
+               ", hedgesWon=" + hedgesWon +
+               ", hedgesDenied=" + hedgesDenied +
+               '}';
+    }
+}
@@ -6,29 +6,46 @@ import dk.kb.alma.client.exceptions.AlmaUnknownException;
 import dk.kb.alma.gen.web_service_result.Error;
 import dk.kb.alma.gen.web_service_result.ErrorList;
 import dk.kb.alma.gen.web_service_result.WebServiceResult;
-import dk.kb.util.xml.XML;
 import org.apache.cxf.jaxrs.client.WebClient;
 import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.ws.rs.RedirectionException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.xml.bind.JAXBException;
 import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 public class HttpUtils {
     
     protected final static Logger log = LoggerFactory.getLogger(HttpUtils.class);
     
+    /**
+     * The header in which Alma reports the remaining number of API calls for today
+     */
+    public static final String API_REMAINING_HEADER = "X-Exl-Api-Remaining";
+    
+    private static final Pattern API_VERSION = Pattern.compile("v[0-9]+");
+    
+    //Path segments that group resources rather than name one, so no id follows them, e.g. /conf/libraries/{id}
+    private static final Set<String> API_AREAS = Set.of("acq", "analytics", "conf", "electronic", "rs", "task-lists");
+    
     public static WebServiceResult readWebServiceResult(HttpClient.Operation operation,
                                                         URI currentURI,
                                                         WebApplicationException e,
@@ -61,11 +78,47 @@ public class HttpUtils {
         return result;
     }
     
+    /**
+     * Throw the exception CXF would have thrown for this response status, if it is not a success
+     *
+     * @param response    the response
+     * @param entityCodec the codec used to read the body of the exception response
+     * @throws RedirectionException    for 3xx statuses
+     * @throws WebApplicationException for 4xx and 5xx statuses
+     */
+    public static void checkStatus(TransportResponse response, EntityCodec entityCodec)
+            throws RedirectionException, WebApplicationException {
+        int status = response.getStatus();
+        if (status >= 300 && status < 400) {
+            throw new RedirectionException(new BufferedResponse(response, entityCodec));
+        } else if (status >= 400) {
+            throw new WebApplicationException(new BufferedResponse(response, entityCodec));
+        }
+    }
+    
+    /**
+     * @param response the response
+     * @return the value of the {@value #API_REMAINING_HEADER} header, or null if not present or not a number
+     */
+    @Nullable
+    public static Long getApiRemaining(TransportResponse response) {
+        String remaining = response.getHeader(API_REMAINING_HEADER);
+        if (remaining == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(remaining.trim());
+        } catch (NumberFormatException e) {
+            log.debug("Failed to parse {} header '{}'", API_REMAINING_HEADER, remaining);
+            return null;
+        }
+    }
+    
     public static <E> String formatEntityMessage(E entity, WebApplicationException e) {
         String entityMessage = "";
         if (entity != null) {
             try {
-                entityMessage = "with entity '" + XML.marshall(entity) + "' ";
+                entityMessage = "with entity '" + JaxbContexts.getDefault().marshal(entity) + "' ";
             } catch (JAXBException jaxbException) {
                 throw new AlmaConnectionException(jaxbException
                                                   + ": Failed to parse entity '"
@@ -110,6 +163,103 @@ public class HttpUtils {
                   currentURI);
     }
     
+    /**
+     * Cut the timeouts of the web client to at most the given time, so a single attempt cannot outlive a deadline.
+     * Unlimited (0) timeouts are cut as well.
+     *
+     * @param uri       the web client
+     * @param maxMillis the longest allowed timeout, in milliseconds
+     */
+    public static void capTimeouts(WebClient uri, long maxMillis) {
+        HTTPClientPolicy clientPolicy = WebClient.getConfig(uri).getHttpConduit().getClient();
+        long max = Math.max(1, maxMillis);
+        clientPolicy.setConnectionTimeout(capTimeout(clientPolicy.getConnectionTimeout(), max));
+        clientPolicy.setReceiveTimeout(capTimeout(clientPolicy.getReceiveTimeout(), max));
+        clientPolicy.setConnectionRequestTimeout(capTimeout(clientPolicy.getConnectionRequestTimeout(), max));
+    }
+    
+    private static long capTimeout(long timeout, long max) {
+        return timeout <= 0 ? max : Math.min(timeout, max);
+    }
+    
+    /**
+     * Read the {@code Retry-After} header of a response, given either as a number of seconds or as an HTTP date
+     *
+     * @param response the response. Can be null
+     * @return the number of milliseconds the server asked us to wait, or null if it did not ask or the header could
+     *         not be parsed
+     */
+    @Nullable
+    public static Long getRetryAfterMillis(@Nullable Response response) {
+        if (response == null) {
+            return null;
+        }
+        String retryAfter = response.getHeaderString(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return null;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter));
+        } catch (NumberFormatException e) {
+            //Not seconds, so it should be a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            log.debug("Failed to parse {} header '{}'", HttpHeaders.RETRY_AFTER, retryAfter);
+            return null;
+        }
+    }
+    
+    /**
+     * Get the template of the endpoint of a URI, for reporting metrics per endpoint rather than per resource. After
+     * the API root (e.g. {@code /almaws/v1}), the path alternates between resource names and ids, so every other
+     * segment is replaced by {@code {id}}, whatever it looks like. Segments that group resources, like {@code conf} or
+     * {@code electronic}, are kept and not followed by an id. The query string is dropped.
+     * <p>
+     * E.g. {@code /almaws/v1/bibs/99122652604305763/holdings/22475975970005763/items?limit=100} gives
+     * {@code /almaws/v1/bibs/{id}/holdings/{id}/items}, and {@code /almaws/v1/conf/libraries/KB} gives
+     * {@code /almaws/v1/conf/libraries/{id}}
+     *
+     * @param uri the URI
+     * @return the template of the path of the URI
+     */
+    public static String getEndpointTemplate(URI uri) {
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            return "/";
+        }
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        //The API root is everything up to the version, if any
+        int resources = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (API_VERSION.matcher(segments.get(i)).matches()) {
+                resources = i + 1;
+                break;
+            }
+        }
+        StringBuilder template = new StringBuilder(path.length());
+        boolean id = false;
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            template.append('/');
+            if (i < resources || (!id && API_AREAS.contains(segment))) {
+                template.append(segment);
+            } else {
+                template.append(id ? "{id}" : segment);
+                id = !id;
+            }
+        }
+        return template.length() == 0 ? "/" : template.toString();
+    }
+    
     /**
      * Walk through the Throwable cause-tree and return it as a list
      *
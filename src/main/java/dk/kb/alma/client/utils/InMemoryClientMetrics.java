@@ -0,0 +1,591 @@
+package dk.kb.alma.client.utils;
+
+import dk.kb.alma.client.HttpClient;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ClientMetrics} kept in memory, per operation and endpoint, so they can be polled with
+ * {@link #getEndpoints()} or through JMX with {@link #registerMBean(String)}.
+ * <p>
+ * Latencies are counted in fixed buckets (see {@link #LATENCY_BUCKETS_MILLIS}), so recording is cheap and the memory
+ * used per endpoint is constant. Percentiles are therefore estimates, reported as the upper bound of the bucket they
+ * fall in.
+ * <p>
+ * Share one instance between clients to see their combined load, e.g. the clients of an import job.
+ */
+public class InMemoryClientMetrics implements ClientMetrics, ClientMetricsMXBean {
+    
+    /**
+     * The upper bounds of the latency buckets in milliseconds. Slower requests are counted in a last bucket.
+     */
+    public static final long[] LATENCY_BUCKETS_MILLIS
+            = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000};
+    
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<Priority, Histogram> queueTimes = new ConcurrentHashMap<>();
+    
+    private ObjectName objectName = null;
+    
+    @Override
+    public void recordResponse(HttpClient.Operation operation,
+                               String endpoint,
+                               int status,
+                               long latencyNanos,
+                               long bytesReceived) {
+        Endpoint metrics = endpoint(operation, endpoint);
+        metrics.latency.record(latencyNanos);
+        metrics.bytesReceived.add(bytesReceived);
+        if (status == 429) {
+            metrics.rateLimited.increment();
+        }
+        if (status >= 400) {
+            metrics.errors.increment();
+        }
+    }
+    
+    @Override
+    public void recordWireBytes(HttpClient.Operation operation, String endpoint, long wireBytes) {
+        endpoint(operation, endpoint).wireBytesReceived.add(wireBytes);
+    }
+    
+    @Override
+    public void recordFailure(HttpClient.Operation operation, String endpoint, long latencyNanos, Throwable failure) {
+        Endpoint metrics = endpoint(operation, endpoint);
+        metrics.latency.record(latencyNanos);
+        metrics.failures.increment();
+    }
+    
+    @Override
+    public void recordRetry(HttpClient.Operation operation, String endpoint, RetryReason reason) {
+        Endpoint metrics = endpoint(operation, endpoint);
+        switch (reason) {
+            case TIMEOUT:
+                metrics.timeoutRetries.increment();
+                break;
+            case SOCKET_EXCEPTION:
+                metrics.socketRetries.increment();
+                break;
+            case RATE_LIMITED:
+            case UNAVAILABLE:
+            default:
+                metrics.otherRetries.increment();
+        }
+    }
+    
+    @Override
+    public void recordRedirect(HttpClient.Operation operation, String endpoint) {
+        endpoint(operation, endpoint).redirects.increment();
+    }
+    
+    @Override
+    public void recordBackOff(HttpClient.Operation operation, String endpoint, long backOffMillis) {
+        endpoint(operation, endpoint).backOffMillis.add(backOffMillis);
+    }
+    
+    @Override
+    public void recordCacheLookup(String endpoint, boolean hit) {
+        Endpoint metrics = endpoint(HttpClient.Operation.GET, endpoint);
+        if (hit) {
+            metrics.cacheHits.increment();
+        } else {
+            metrics.cacheMisses.increment();
+        }
+    }
+    
+    @Override
+    public void recordParse(HttpClient.Operation operation, String endpoint, long parseNanos) {
+        endpoint(operation, endpoint).parseNanos.add(parseNanos);
+    }
+    
+    @Override
+    public void recordQueueTime(Priority priority, long queueNanos) {
+        queueTimes.computeIfAbsent(priority, key -> new Histogram()).record(queueNanos);
+    }
+    
+    private Endpoint endpoint(HttpClient.Operation operation, String endpoint) {
+        return endpoints.computeIfAbsent(operation + " " + endpoint, key -> new Endpoint());
+    }
+    
+    /**
+     * @return a snapshot of the metrics per operation and endpoint, keyed as e.g. {@code "GET /almaws/v1/bibs/{id}"}
+     *         and sorted by key
+     */
+    @Override
+    public Map<String, EndpointMetrics> getEndpoints() {
+        Map<String, EndpointMetrics> result = new TreeMap<>();
+        endpoints.forEach((key, endpoint) -> result.put(key, endpoint.snapshot()));
+        return result;
+    }
+    
+    /**
+     * @param operation the operation
+     * @param endpoint  the endpoint template
+     * @return a snapshot of the metrics of the endpoint, or null if nothing was recorded for it
+     */
+    public EndpointMetrics getEndpoint(HttpClient.Operation operation, String endpoint) {
+        Endpoint metrics = endpoints.get(operation + " " + endpoint);
+        return metrics == null ? null : metrics.snapshot();
+    }
+    
+    /**
+     * @return a snapshot of the time requests waited for the rate and concurrency limits, per priority, keyed by the
+     *         name of the priority, highest priority first
+     */
+    @Override
+    public Map<String, QueueMetrics> getQueues() {
+        Map<String, QueueMetrics> result = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            Histogram histogram = queueTimes.get(priority);
+            if (histogram != null) {
+                result.put(priority.name(), histogram.queueSnapshot());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @param priority the priority
+     * @return a snapshot of the time requests of the priority waited to be sent, or null if none were recorded
+     */
+    public QueueMetrics getQueue(Priority priority) {
+        Histogram histogram = queueTimes.get(priority);
+        return histogram == null ? null : histogram.queueSnapshot();
+    }
+    
+    @Override
+    public long getRequests() {
+        return endpoints.values().stream().mapToLong(endpoint -> endpoint.latency.count()).sum();
+    }
+    
+    @Override
+    public long getRateLimited() {
+        return endpoints.values().stream().mapToLong(endpoint -> endpoint.rateLimited.sum()).sum();
+    }
+    
+    @Override
+    public long getBackOffMillis() {
+        return endpoints.values().stream().mapToLong(endpoint -> endpoint.backOffMillis.sum()).sum();
+    }
+    
+    @Override
+    public void reset() {
+        endpoints.clear();
+        queueTimes.clear();
+    }
+    
+    /**
+     * Register these metrics with the platform MBean server, as
+     * {@code dk.kb.alma.client:type=ClientMetrics,name=<name>}
+     *
+     * @param name the name to tell these metrics apart from the metrics of other clients
+     * @return the name the metrics were registered under
+     * @throws IllegalStateException if other metrics are registered with the same name
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        unregisterMBean();
+        try {
+            ObjectName objectName = new ObjectName("dk.kb.alma.client:type=ClientMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+            return objectName;
+        } catch (MalformedObjectNameException | NotCompliantMBeanException | MBeanRegistrationException e) {
+            throw new IllegalArgumentException("Failed to register client metrics as '" + name + "'", e);
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("Client metrics are already registered as '" + name + "'", e);
+        }
+    }
+    
+    /**
+     * Unregister these metrics from the platform MBean server, if they were registered
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            //Already unregistered by someone else
+        } catch (MBeanRegistrationException e) {
+            throw new IllegalStateException("Failed to unregister client metrics '" + objectName + "'", e);
+        } finally {
+            objectName = null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("InMemoryClientMetrics{");
+        getEndpoints().forEach((key, metrics) -> result.append("\n  ").append(key).append(": ").append(metrics));
+        getQueues().forEach((key, metrics) -> result.append("\n  queue ").append(key).append(": ").append(metrics));
+        return result.append("\n}").toString();
+    }
+    
+    private static class Endpoint {
+        private final Histogram latency = new Histogram();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder wireBytesReceived = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder rateLimited = new LongAdder();
+        private final LongAdder timeoutRetries = new LongAdder();
+        private final LongAdder socketRetries = new LongAdder();
+        private final LongAdder otherRetries = new LongAdder();
+        private final LongAdder redirects = new LongAdder();
+        private final LongAdder backOffMillis = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder cacheMisses = new LongAdder();
+        private final LongAdder parseNanos = new LongAdder();
+        
+        private EndpointMetrics snapshot() {
+            long[] buckets = latency.buckets();
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            return new EndpointMetrics(count,
+                                       errors.sum(),
+                                       failures.sum(),
+                                       count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(latency.totalNanos.sum()) / count,
+                                       percentile(buckets, count, 0.50, latency.maxNanos.get()),
+                                       percentile(buckets, count, 0.95, latency.maxNanos.get()),
+                                       percentile(buckets, count, 0.99, latency.maxNanos.get()),
+                                       TimeUnit.NANOSECONDS.toMillis(latency.maxNanos.get()),
+                                       buckets,
+                                       bytesReceived.sum(),
+                                       wireBytesReceived.sum(),
+                                       rateLimited.sum(),
+                                       timeoutRetries.sum(),
+                                       socketRetries.sum(),
+                                       otherRetries.sum(),
+                                       redirects.sum(),
+                                       backOffMillis.sum(),
+                                       cacheHits.sum(),
+                                       cacheMisses.sum(),
+                                       TimeUnit.NANOSECONDS.toMillis(parseNanos.sum()));
+        }
+        
+        private static long percentile(long[] buckets, long count, double fraction, long maxNanos) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            long maxMillis = TimeUnit.NANOSECONDS.toMillis(maxNanos);
+            for (int i = 0; i < LATENCY_BUCKETS_MILLIS.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(LATENCY_BUCKETS_MILLIS[i], maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+    }
+    
+    private static class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(LATENCY_BUCKETS_MILLIS.length + 1);
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        
+        private void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+        
+        private long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+        
+        private long[] buckets() {
+            long[] buckets = new long[counts.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = counts.get(i);
+            }
+            return buckets;
+        }
+        
+        private QueueMetrics queueSnapshot() {
+            long[] buckets = buckets();
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            return new QueueMetrics(count,
+                                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.sum()) / count,
+                                    Endpoint.percentile(buckets, count, 0.95, maxNanos.get()),
+                                    TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+        }
+    }
+    
+    /**
+     * The time the requests of one priority waited for the rate and concurrency limits, at the time it was read. All
+     * times are in milliseconds.
+     */
+    public static class QueueMetrics {
+        private final long requests;
+        private final long queueMeanMillis;
+        private final long queueP95Millis;
+        private final long queueMaxMillis;
+        
+        public QueueMetrics(long requests, long queueMeanMillis, long queueP95Millis, long queueMaxMillis) {
+            this.requests        = requests;
+            this.queueMeanMillis = queueMeanMillis;
+            this.queueP95Millis  = queueP95Millis;
+            this.queueMaxMillis  = queueMaxMillis;
+        }
+        
+        /**
+         * @return the number of requests sent, counting each attempt
+         */
+        public long getRequests() {
+            return requests;
+        }
+        
+        public long getQueueMeanMillis() {
+            return queueMeanMillis;
+        }
+        
+        public long getQueueP95Millis() {
+            return queueP95Millis;
+        }
+        
+        public long getQueueMaxMillis() {
+            return queueMaxMillis;
+        }
+        
+        @Override
+        public String toString() {
+            return "requests=" + requests
+                   + ", queue(mean/p95/max)=" + queueMeanMillis
+                   + "/" + queueP95Millis
+                   + "/" + queueMaxMillis + "ms";
+        }
+    }
+    
+    /**
+     * The metrics of one operation on one endpoint, at the time they were read. All times are in milliseconds.
+     */
+    public static class EndpointMetrics {
+        private final long requests;
+        private final long errors;
+        private final long failures;
+        private final long latencyMeanMillis;
+        private final long latencyP50Millis;
+        private final long latencyP95Millis;
+        private final long latencyP99Millis;
+        private final long latencyMaxMillis;
+        private final long[] latencyBuckets;
+        private final long bytesReceived;
+        private final long wireBytesReceived;
+        private final long rateLimited;
+        private final long timeoutRetries;
+        private final long socketRetries;
+        private final long otherRetries;
+        private final long redirects;
+        private final long backOffMillis;
+        private final long cacheHits;
+        private final long cacheMisses;
+        private final long parseMillis;
+        
+        public EndpointMetrics(long requests,
+                               long errors,
+                               long failures,
+                               long latencyMeanMillis,
+                               long latencyP50Millis,
+                               long latencyP95Millis,
+                               long latencyP99Millis,
+                               long latencyMaxMillis,
+                               long[] latencyBuckets,
+                               long bytesReceived,
+                               long wireBytesReceived,
+                               long rateLimited,
+                               long timeoutRetries,
+                               long socketRetries,
+                               long otherRetries,
+                               long redirects,
+                               long backOffMillis,
+                               long cacheHits,
+                               long cacheMisses,
+                               long parseMillis) {
+            this.requests          = requests;
+            this.errors            = errors;
+            this.failures          = failures;
+            this.latencyMeanMillis = latencyMeanMillis;
+            this.latencyP50Millis  = latencyP50Millis;
+            this.latencyP95Millis  = latencyP95Millis;
+            this.latencyP99Millis  = latencyP99Millis;
+            this.latencyMaxMillis  = latencyMaxMillis;
+            this.latencyBuckets    = latencyBuckets;
+            this.bytesReceived     = bytesReceived;
+            this.wireBytesReceived = wireBytesReceived;
+            this.rateLimited       = rateLimited;
+            this.timeoutRetries    = timeoutRetries;
+            this.socketRetries     = socketRetries;
+            this.otherRetries      = otherRetries;
+            this.redirects         = redirects;
+            this.backOffMillis     = backOffMillis;
+            this.cacheHits         = cacheHits;
+            this.cacheMisses       = cacheMisses;
+            this.parseMillis       = parseMillis;
+        }
+        
+        /**
+         * @return the number of requests sent, including those that failed without a response
+         */
+        public long getRequests() {
+            return requests;
+        }
+        
+        /**
+         * @return the number of responses with a status of 400 or above, including 429s
+         */
+        public long getErrors() {
+            return errors;
+        }
+        
+        /**
+         * @return the number of requests that failed without a response, e.g. on timeouts
+         */
+        public long getFailures() {
+            return failures;
+        }
+        
+        public long getLatencyMeanMillis() {
+            return latencyMeanMillis;
+        }
+        
+        public long getLatencyP50Millis() {
+            return latencyP50Millis;
+        }
+        
+        public long getLatencyP95Millis() {
+            return latencyP95Millis;
+        }
+        
+        public long getLatencyP99Millis() {
+            return latencyP99Millis;
+        }
+        
+        public long getLatencyMaxMillis() {
+            return latencyMaxMillis;
+        }
+        
+        /**
+         * @return the number of requests per latency bucket, see {@link #LATENCY_BUCKETS_MILLIS}
+         */
+        public long[] getLatencyBuckets() {
+            return latencyBuckets.clone();
+        }
+        
+        /**
+         * @return the size of the response bodies, after decoding
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+        
+        /**
+         * @return the size of the response bodies on the wire, i.e. before decoding if compressed
+         */
+        public long getWireBytesReceived() {
+            return wireBytesReceived;
+        }
+        
+        /**
+         * @return the number of 429 Too Many Requests responses
+         */
+        public long getRateLimited() {
+            return rateLimited;
+        }
+        
+        public long getTimeoutRetries() {
+            return timeoutRetries;
+        }
+        
+        public long getSocketRetries() {
+            return socketRetries;
+        }
+        
+        /**
+         * @return the number of retries on 429s and on Alma asking us to retry later
+         */
+        public long getOtherRetries() {
+            return otherRetries;
+        }
+        
+        public long getRedirects() {
+            return redirects;
+        }
+        
+        public long getBackOffMillis() {
+            return backOffMillis;
+        }
+        
+        public long getCacheHits() {
+            return cacheHits;
+        }
+        
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+        
+        /**
+         * @return the time spent parsing response bodies
+         */
+        public long getParseMillis() {
+            return parseMillis;
+        }
+        
+        @Override
+        public String toString() {
+            return "requests=" + requests
+                   + ", errors=" + errors
+                   + ", failures=" + failures
+                   + ", latency(mean/p50/p95/p99/max)=" + latencyMeanMillis
+                   + "/" + latencyP50Millis
+                   + "/" + latencyP95Millis
+                   + "/" + latencyP99Millis
+                   + "/" + latencyMaxMillis + "ms"
+                   + ", bytesReceived=" + bytesReceived
+                   + ", wireBytesReceived=" + wireBytesReceived
+                   + ", rateLimited=" + rateLimited
+                   + ", timeoutRetries=" + timeoutRetries
+                   + ", socketRetries=" + socketRetries
+                   + ", otherRetries=" + otherRetries
+                   + ", redirects=" + redirects
+                   + ", backOff=" + backOffMillis + "ms"
+                   + ", cacheHits=" + cacheHits
+                   + ", cacheMisses=" + cacheMisses
+                   + ", parse=" + parseMillis + "ms";
+        }
+    }
+}
@@ -3,6 +3,11 @@ package dk.kb.alma.client.utils;
 import dk.kb.alma.client.HttpClient;
 import org.apache.cxf.jaxrs.client.WebClient;
 
+import javax.annotation.Nullable;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class Invocation<T, E> implements AutoCloseable {
@@ -17,6 +22,20 @@ public class Invocation<T, E> implements AutoCloseable {
     
     private int retryCount;
     
+    private long backOffMillis = 0;
+    
+    private int retries = 0;
+    
+    private int timeouts = 0;
+    
+    private Deadline deadline = null;
+    
+    private Priority priority = Priority.NORMAL;
+    
+    private Consumer<TransportResponse> responseListener = null;
+    
+    private Function<InputStream, T> bodyReader = null;
+    
     public Invocation(WebClient uri, Class<T> type, E entity, HttpClient.Operation operation, int retryCount) {
         this.uri        = uri;
         this.type       = type;
@@ -30,7 +49,13 @@ public class Invocation<T, E> implements AutoCloseable {
     
     
     public Invocation<T, E> withNewUri(WebClient newUri) {
-        return new Invocation<>(newUri, type, entity, operation, retryCount);
+        Invocation<T, E> invocation = new Invocation<>(newUri, type, entity, operation, retryCount);
+        invocation.retries  = retries;
+        invocation.timeouts = timeouts;
+        invocation.deadline = deadline;
+        invocation.priority = priority;
+        invocation.bodyReader = bodyReader;
+        return invocation.setResponseListener(responseListener);
     }
     
     public WebClient getUri() {
@@ -53,6 +78,122 @@ public class Invocation<T, E> implements AutoCloseable {
         return retryCount;
     }
     
+    /**
+     * @return how long to wait before this invocation is (re)tried, in milliseconds
+     */
+    public long getBackOffMillis() {
+        return backOffMillis;
+    }
+    
+    public Invocation<T, E> setBackOffMillis(long backOffMillis) {
+        this.backOffMillis = backOffMillis;
+        return this;
+    }
+    
+    /**
+     * @return the number of times this invocation has been retried so far, for any reason
+     */
+    public int getRetries() {
+        return retries;
+    }
+    
+    /**
+     * Count a retry of this invocation
+     *
+     * @return the number of this retry, starting at 1
+     */
+    public synchronized int nextRetry() {
+        return ++retries;
+    }
+    
+    /**
+     * @return the number of attempts of this invocation that timed out so far
+     */
+    public int getTimeouts() {
+        return timeouts;
+    }
+    
+    /**
+     * Count an attempt of this invocation that timed out
+     */
+    public synchronized void countTimeout() {
+        timeouts++;
+    }
+    
+    /**
+     * @return the deadline of this invocation, including all retries, or null if it has none
+     */
+    @Nullable
+    public Deadline getDeadline() {
+        return deadline;
+    }
+    
+    /**
+     * @param deadline the deadline of this invocation, including all retries, or null for none. The deadline is
+     *                 carried over to the invocations following redirects.
+     * @return this invocation
+     */
+    public Invocation<T, E> setDeadline(@Nullable Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+    
+    public Priority getPriority() {
+        return priority;
+    }
+    
+    /**
+     * @param priority the priority of this invocation when waiting for the rate and concurrency limits. The priority
+     *                 is carried over to the invocations following redirects.
+     * @return this invocation
+     */
+    public Invocation<T, E> setPriority(Priority priority) {
+        this.priority = Objects.requireNonNull(priority, "priority");
+        return this;
+    }
+    
+    /**
+     * @return the listener to be given the response the result of this invocation is read from, or null
+     */
+    @Nullable
+    public Consumer<TransportResponse> getResponseListener() {
+        return responseListener;
+    }
+    
+    /**
+     * Set a listener to be given the successful response the result is read from, i.e. to learn the size or headers
+     * of the response. The listener is carried over to the invocations following redirects.
+     *
+     * @param responseListener the listener, or null for none
+     * @return this invocation
+     */
+    public Invocation<T, E> setResponseListener(@Nullable Consumer<TransportResponse> responseListener) {
+        this.responseListener = responseListener;
+        return this;
+    }
+    
+    /**
+     * @return the reader of the body of successful responses as it is received, or null if the body is read in full
+     *         and then unmarshalled
+     */
+    @Nullable
+    public Function<InputStream, T> getBodyReader() {
+        return bodyReader;
+    }
+    
+    /**
+     * Read the result from the body of the successful response while it is received, rather than after receiving it
+     * in full. The reader is part of the attempt, so a failure thrown by it as a ProcessingException is retried like
+     * a failure to receive the response. The reader is carried over to the invocations following redirects.
+     *
+     * @param bodyReader the reader of the body, or null to read the body in full
+     * @return this invocation
+     */
+    public Invocation<T, E> setBodyReader(@Nullable Function<InputStream, T> bodyReader) {
+        this.bodyReader = bodyReader;
+        return this;
+    }
+    
     @Override
     public void close() {
         if (uri != null) {
@@ -82,6 +223,16 @@ public class Invocation<T, E> implements AutoCloseable {
                + operation
                + ", retryCount="
                + retryCount
+               + ", retries="
+               + retries
+               + ", timeouts="
+               + timeouts
+               + ", backOffMillis="
+               + backOffMillis
+               + ", deadline="
+               + deadline
+               + ", priority="
+               + priority
                + '}';
     }
 }
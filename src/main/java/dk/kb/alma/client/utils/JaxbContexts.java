@@ -0,0 +1,378 @@
+package dk.kb.alma.client.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.beans.Introspector;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of JAXB contexts, with pools of marshallers and unmarshallers for each.
+ * <p>
+ * Creating a JAXB context is expensive, and creating a marshaller or unmarshaller is not free either. Contexts are
+ * created once per package for the generated {@code dk.kb.alma.gen.*} packages (or any package with an
+ * {@code ObjectFactory}), and once per class otherwise. Marshallers and unmarshallers are not threadsafe, so they are
+ * borrowed from a pool for the duration of one call and returned afterwards.
+ * <p>
+ * The contexts of the generated packages can be created up front with {@link #prewarm(Collection)}, so the first
+ * request does not pay for them.
+ * <p>
+ * Threadsafe. Unless told otherwise, everything shares {@link #getDefault()}.
+ */
+public class JaxbContexts {
+    
+    protected final static Logger log = LoggerFactory.getLogger(JaxbContexts.class);
+    
+    /**
+     * The packages generated from the Alma schemas
+     */
+    public static final List<String> GENERATED_PACKAGES = List.of("dk.kb.alma.gen.analytics",
+                                                                  "dk.kb.alma.gen.bibs",
+                                                                  "dk.kb.alma.gen.code_table",
+                                                                  "dk.kb.alma.gen.fees",
+                                                                  "dk.kb.alma.gen.general",
+                                                                  "dk.kb.alma.gen.holding",
+                                                                  "dk.kb.alma.gen.holdings",
+                                                                  "dk.kb.alma.gen.item.electronic",
+                                                                  "dk.kb.alma.gen.item.loans",
+                                                                  "dk.kb.alma.gen.items",
+                                                                  "dk.kb.alma.gen.libraries",
+                                                                  "dk.kb.alma.gen.locations",
+                                                                  "dk.kb.alma.gen.partners",
+                                                                  "dk.kb.alma.gen.portfolios",
+                                                                  "dk.kb.alma.gen.purchase_requests",
+                                                                  "dk.kb.alma.gen.requested_resources",
+                                                                  "dk.kb.alma.gen.sru",
+                                                                  "dk.kb.alma.gen.user_requests",
+                                                                  "dk.kb.alma.gen.user_resource_sharing_request",
+                                                                  "dk.kb.alma.gen.users",
+                                                                  "dk.kb.alma.gen.vendor",
+                                                                  "dk.kb.alma.gen.web_service_result",
+                                                                  "dk.kb.alma.gen.webhooks");
+    
+    private static final JaxbContexts defaultContexts = new JaxbContexts(16);
+    
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+    
+    /**
+     * Contexts by package name, for packages with an ObjectFactory, or by class name
+     */
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    
+    /**
+     * The same pools by class, so the ObjectFactory of a package is only looked up once
+     */
+    private final Map<Class<?>, Pool> poolsByClass = new ConcurrentHashMap<>();
+    
+    private final int poolSize;
+    
+    private final AtomicLong createdMarshallers = new AtomicLong();
+    private final AtomicLong createdUnmarshallers = new AtomicLong();
+    
+    /**
+     * @param poolSize the maximum number of idle marshallers and of idle unmarshallers kept per context
+     */
+    public JaxbContexts(int poolSize) {
+        this.poolSize = poolSize;
+    }
+    
+    /**
+     * @return the registry shared by all clients
+     */
+    public static JaxbContexts getDefault() {
+        return defaultContexts;
+    }
+    
+    /**
+     * @param type a JAXB bound class
+     * @return the context for the class, shared with the other classes of its package if it has an ObjectFactory
+     * @throws JAXBException if the context could not be created
+     */
+    public JAXBContext getContext(Class<?> type) throws JAXBException {
+        return getPool(type).context;
+    }
+    
+    /**
+     * Create the contexts of the given packages, if not created already. Packages that are not on the classpath are
+     * skipped.
+     *
+     * @param packages the names of the packages, see {@link #GENERATED_PACKAGES}
+     * @return the number of packages with a context
+     */
+    public int prewarm(Collection<String> packages) {
+        int count = 0;
+        for (String packageName : packages) {
+            Class<?> objectFactory;
+            try {
+                objectFactory = Class.forName(packageName + ".ObjectFactory");
+            } catch (ClassNotFoundException e) {
+                log.debug("Not prewarming JAXB context of '{}' as it is not on the classpath", packageName);
+                continue;
+            }
+            try {
+                Pool pool = getPool(objectFactory);
+                //Also create a marshaller and an unmarshaller, as the first of those are slow too
+                pool.releaseMarshaller(pool.borrowMarshaller());
+                pool.releaseUnmarshaller(pool.borrowUnmarshaller());
+                count++;
+            } catch (JAXBException e) {
+                log.warn("Failed to prewarm JAXB context of '{}'", packageName, e);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Read an object from XML
+     *
+     * @param inputStream the XML. Not closed
+     * @param type        the class to read. It does not need to be an {@link XmlRootElement}
+     * @param <T>         the type to read
+     * @return the object
+     * @throws JAXBException if the XML could not be read as the type
+     */
+    public <T> T unmarshal(InputStream inputStream, Class<T> type) throws JAXBException {
+        Pool pool = getPool(type);
+        Unmarshaller unmarshaller = pool.borrowUnmarshaller();
+        XMLStreamReader reader = null;
+        try {
+            reader = createXMLStreamReader(inputStream);
+            return unmarshaller.unmarshal(reader, type).getValue();
+        } catch (XMLStreamException e) {
+            throw new JAXBException("Failed to read XML as '" + type.getName() + "'", e);
+        } finally {
+            closeQuietly(reader);
+            pool.releaseUnmarshaller(unmarshaller);
+        }
+    }
+    
+    /**
+     * Write an object as XML
+     *
+     * @param entity       the object. If it is not an {@link XmlRootElement}, the root element is named after the class
+     * @param outputStream where to write the XML, in UTF-8. Not closed
+     * @throws JAXBException if the object could not be written
+     */
+    public void marshal(Object entity, OutputStream outputStream) throws JAXBException {
+        Pool pool = getPool(entity.getClass());
+        Marshaller marshaller = pool.borrowMarshaller();
+        try {
+            marshaller.marshal(asElement(entity), outputStream);
+        } finally {
+            pool.releaseMarshaller(marshaller);
+        }
+    }
+    
+    /**
+     * Write an object as indented XML, for log and error messages
+     *
+     * @param entity the object. If it is not an {@link XmlRootElement}, the root element is named after the class
+     * @return the XML
+     * @throws JAXBException if the object could not be written
+     */
+    public String marshal(Object entity) throws JAXBException {
+        Pool pool = getPool(entity.getClass());
+        Marshaller marshaller = pool.borrowMarshaller();
+        try {
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            StringWriter writer = new StringWriter();
+            marshaller.marshal(asElement(entity), writer);
+            return writer.toString();
+        } finally {
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+            pool.releaseMarshaller(marshaller);
+        }
+    }
+    
+    /**
+     * Borrow an unmarshaller for the class, for reading more than one object. Give it back with
+     * {@link #releaseUnmarshaller(Class, Unmarshaller)} when done, and do not use it from more than one thread.
+     *
+     * @param type the class to read
+     * @return an unmarshaller
+     * @throws JAXBException if the context or unmarshaller could not be created
+     */
+    public Unmarshaller borrowUnmarshaller(Class<?> type) throws JAXBException {
+        return getPool(type).borrowUnmarshaller();
+    }
+    
+    /**
+     * @param type         the class given to {@link #borrowUnmarshaller(Class)}
+     * @param unmarshaller the unmarshaller borrowed
+     */
+    public void releaseUnmarshaller(Class<?> type, Unmarshaller unmarshaller) {
+        Pool pool = poolsByClass.get(type);
+        if (pool != null) {
+            pool.releaseUnmarshaller(unmarshaller);
+        }
+    }
+    
+    /**
+     * @return a secure StAX reader, which does not resolve DTDs or external entities
+     * @throws XMLStreamException if the reader could not be created
+     */
+    public static XMLStreamReader createXMLStreamReader(InputStream inputStream) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+    }
+    
+    /**
+     * @return the number of contexts created
+     */
+    public int getContextCount() {
+        return (int) pools.values().stream().map(pool -> pool.context).distinct().count();
+    }
+    
+    /**
+     * @return the number of marshallers created, i.e. not taken from a pool
+     */
+    public long getCreatedMarshallers() {
+        return createdMarshallers.get();
+    }
+    
+    /**
+     * @return the number of unmarshallers created, i.e. not taken from a pool
+     */
+    public long getCreatedUnmarshallers() {
+        return createdUnmarshallers.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "JaxbContexts{" +
+               "contexts=" + getContextCount() +
+               ", poolSize=" + poolSize +
+               ", createdMarshallers=" + createdMarshallers +
+               ", createdUnmarshallers=" + createdUnmarshallers +
+               '}';
+    }
+    
+    private Pool getPool(Class<?> type) throws JAXBException {
+        Pool pool = poolsByClass.get(type);
+        if (pool != null) {
+            return pool;
+        }
+        String key = getKey(type);
+        pool = pools.get(key);
+        if (pool == null) {
+            //Creating a context takes a while, so do it outside the map. Two threads may both create it, and one is
+            // wasted
+            JAXBContext context = key.equals(type.getName())
+                                  ? JAXBContext.newInstance(type)
+                                  : JAXBContext.newInstance(key, type.getClassLoader());
+            Pool existing = pools.putIfAbsent(key, new Pool(context));
+            pool = existing == null ? pools.get(key) : existing;
+        }
+        poolsByClass.putIfAbsent(type, pool);
+        return pool;
+    }
+    
+    /**
+     * @return the package of the class if it has an ObjectFactory, otherwise the name of the class
+     */
+    private static String getKey(Class<?> type) {
+        Package typePackage = type.getPackage();
+        if (typePackage == null) {
+            return type.getName();
+        }
+        try {
+            Class.forName(typePackage.getName() + ".ObjectFactory", false, type.getClassLoader());
+            return typePackage.getName();
+        } catch (ClassNotFoundException e) {
+            return type.getName();
+        }
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object asElement(Object entity) {
+        Class<?> type = entity.getClass();
+        if (entity instanceof JAXBElement || type.isAnnotationPresent(XmlRootElement.class)) {
+            return entity;
+        }
+        String namespace = "";
+        XmlType xmlType = type.getAnnotation(XmlType.class);
+        if (xmlType != null && !"##default".equals(xmlType.namespace())) {
+            namespace = xmlType.namespace();
+        }
+        return new JAXBElement(new QName(namespace, Introspector.decapitalize(type.getSimpleName())), type, entity);
+    }
+    
+    private static void closeQuietly(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                //Ignore, we are done with it anyway
+            }
+        }
+    }
+    
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+    
+    /**
+     * A context with its idle marshallers and unmarshallers
+     */
+    private class Pool {
+        
+        private final JAXBContext context;
+        
+        private final BlockingQueue<Marshaller> marshallers = new ArrayBlockingQueue<>(poolSize);
+        private final BlockingQueue<Unmarshaller> unmarshallers = new ArrayBlockingQueue<>(poolSize);
+        
+        private Pool(JAXBContext context) {
+            this.context = context;
+        }
+        
+        private Marshaller borrowMarshaller() throws JAXBException {
+            Marshaller marshaller = marshallers.poll();
+            if (marshaller == null) {
+                marshaller = context.createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+                createdMarshallers.incrementAndGet();
+            }
+            return marshaller;
+        }
+        
+        private void releaseMarshaller(Marshaller marshaller) {
+            //If the pool is full, the marshaller is left for the garbage collector
+            marshallers.offer(marshaller);
+        }
+        
+        private Unmarshaller borrowUnmarshaller() throws JAXBException {
+            Unmarshaller unmarshaller = unmarshallers.poll();
+            if (unmarshaller == null) {
+                unmarshaller = context.createUnmarshaller();
+                createdUnmarshallers.incrementAndGet();
+            }
+            return unmarshaller;
+        }
+        
+        private void releaseUnmarshaller(Unmarshaller unmarshaller) {
+            unmarshallers.offer(unmarshaller);
+        }
+    }
+}
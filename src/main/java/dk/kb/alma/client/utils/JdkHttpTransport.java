@@ -0,0 +1,204 @@
+package dk.kb.alma.client.utils;
+
+import dk.kb.alma.client.HttpClient;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Transport based on the JDK {@link java.net.http.HttpClient}.
+ * <p>
+ * The JDK client negotiates HTTP/2 where the server supports it, so many concurrent requests to the same host are
+ * multiplexed over a few connections instead of needing one connection each. The WebClient is only used to describe
+ * the request (URI, headers and receive timeout), it is never invoked.
+ * <p>
+ * This transport is threadsafe and should be shared.
+ */
+public class JdkHttpTransport implements Transport {
+    
+    //Headers the JDK client sets itself and refuses to have set
+    private static final Set<String> RESTRICTED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    
+    static {
+        RESTRICTED_HEADERS.addAll(List.of("Connection", "Content-Length", "Expect", "Host", "Upgrade"));
+    }
+    
+    private final java.net.http.HttpClient httpClient;
+    
+    private final EntityCodec entityCodec;
+    
+    /**
+     * Create a transport with a connect timeout of 30 seconds, using the entity codec of the default
+     * {@link WebClientFactory}
+     */
+    public JdkHttpTransport() {
+        this(Duration.ofSeconds(30), WebClientFactory.getDefault().getEntityCodec());
+    }
+    
+    /**
+     * @param connectTimeout the timeout for establishing new connections
+     * @param entityCodec    the codec used to write request bodies
+     */
+    public JdkHttpTransport(Duration connectTimeout, EntityCodec entityCodec) {
+        this.entityCodec = entityCodec;
+        this.httpClient  = java.net.http.HttpClient.newBuilder()
+                                                   .version(java.net.http.HttpClient.Version.HTTP_2)
+                                                   //Redirects are handled by HttpClient, like with CXF
+                                                   .followRedirects(java.net.http.HttpClient.Redirect.NEVER)
+                                                   .connectTimeout(connectTimeout)
+                                                   .build();
+    }
+    
+    @Override
+    public <E> TransportResponse execute(WebClient request, HttpClient.Operation operation, @Nullable E entity)
+            throws ProcessingException {
+        HttpRequest httpRequest = toHttpRequest(request, operation, entity);
+        return toTransportResponse(send(httpRequest, HttpResponse.BodyHandlers.ofByteArray()));
+    }
+    
+    /**
+     * The timeout of the request bounds the wait for the status and headers. Reading the body is not bounded by it
+     */
+    @Override
+    public <E> StreamedResponse executeStreaming(WebClient request,
+                                                 HttpClient.Operation operation,
+                                                 @Nullable E entity) throws ProcessingException {
+        HttpRequest httpRequest = toHttpRequest(request, operation, entity);
+        HttpResponse<InputStream> response = send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
+        MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        headers.putAll(response.headers().map());
+        try {
+            return new StreamedResponse(response.statusCode(),
+                                        headers,
+                                        ContentEncoding.decoding(response.body(), headers));
+        } catch (IOException e) {
+            try {
+                response.body().close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw new ProcessingException("Failed to decode response body from '" + response.uri() + "'", e);
+        }
+    }
+    
+    private <B> HttpResponse<B> send(HttpRequest httpRequest, HttpResponse.BodyHandler<B> bodyHandler)
+            throws ProcessingException {
+        try {
+            return httpClient.send(httpRequest, bodyHandler);
+        } catch (HttpTimeoutException e) {
+            throw timeoutException(httpRequest, e);
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to " + httpRequest.method() + " '" + httpRequest.uri() + "'", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted while " + httpRequest.method() + "ing '" + httpRequest.uri()
+                                          + "'", e);
+        }
+    }
+    
+    @Override
+    public <E> CompletableFuture<TransportResponse> executeAsync(WebClient request,
+                                                                 HttpClient.Operation operation,
+                                                                 @Nullable E entity) {
+        HttpRequest httpRequest;
+        try {
+            httpRequest = toHttpRequest(request, operation, entity);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+                         .handle((response, throwable) -> {
+                             if (throwable == null) {
+                                 return toTransportResponse(response);
+                             }
+                             Throwable cause = throwable instanceof CompletionException
+                                               && throwable.getCause() != null
+                                               ? throwable.getCause()
+                                               : throwable;
+                             if (cause instanceof HttpTimeoutException) {
+                                 throw timeoutException(httpRequest, (HttpTimeoutException) cause);
+                             }
+                             throw new ProcessingException("Failed to " + operation.name() + " '" + httpRequest.uri() + "'",
+                                                           cause);
+                         });
+    }
+    
+    protected <E> HttpRequest toHttpRequest(WebClient request, HttpClient.Operation operation, @Nullable E entity) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.getCurrentURI());
+        
+        HTTPClientPolicy clientPolicy = WebClient.getConfig(request).getHttpConduit().getClient();
+        if (clientPolicy.getReceiveTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(clientPolicy.getReceiveTimeout()));
+        }
+        
+        MultivaluedMap<String, String> headers = request.getHeaders();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (RESTRICTED_HEADERS.contains(header.getKey())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                builder.header(header.getKey(), value);
+            }
+        }
+        
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        if (entity != null) {
+            String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
+            MediaType mediaType = contentType == null ? null : MediaType.valueOf(contentType);
+            body = HttpRequest.BodyPublishers.ofByteArray(entityCodec.write(entity, mediaType));
+        }
+        return builder.method(operation.name(), body).build();
+    }
+    
+    /**
+     * Inflate the body of the response if it is compressed. The JDK client does not decompress, and the compressed
+     * body is already read in full, so it is inflated from memory.
+     */
+    protected TransportResponse toTransportResponse(HttpResponse<byte[]> response) {
+        MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        headers.putAll(response.headers().map());
+        byte[] body = response.body();
+        //The JDK headers are case-insensitive, the copy is not
+        String contentEncoding = response.headers().firstValue(ContentEncoding.CONTENT_ENCODING).orElse(null);
+        if (!ContentEncoding.isCompressed(contentEncoding)) {
+            return new TransportResponse(response.statusCode(), headers, body);
+        }
+        try {
+            ContentEncoding.Decoded decoded = ContentEncoding.decode(new ByteArrayInputStream(body), headers);
+            return new TransportResponse(response.statusCode(), headers, decoded.getBody(), decoded.getWireLength());
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to decode response body from '" + response.uri() + "'", e);
+        }
+    }
+    
+    /**
+     * The JDK client throws HttpTimeoutExceptions, where the retry logic of HttpClient looks for
+     * SocketTimeoutExceptions, as thrown by CXF. Translate so both transports are retried the same way.
+     */
+    protected static ProcessingException timeoutException(HttpRequest httpRequest, HttpTimeoutException e) {
+        SocketTimeoutException socketTimeoutException = new SocketTimeoutException(e.getMessage());
+        socketTimeoutException.initCause(e);
+        return new ProcessingException("Timeout on " + httpRequest.method() + " '" + httpRequest.uri() + "'",
+                                       socketTimeoutException);
+    }
+}
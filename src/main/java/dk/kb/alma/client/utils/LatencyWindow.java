@@ -0,0 +1,70 @@
+package dk.kb.alma.client.utils;
+
+import java.util.Arrays;
+
+/**
+ * The recent latencies of one endpoint in a ring buffer, and a percentile of them. Used by {@link HedgingPolicy} and
+ * {@link AdaptiveTimeoutPolicy}.
+ * <p>
+ * The percentile is not recalculated for every latency, but after a number of new ones, so reading it is cheap.
+ */
+class LatencyWindow {
+    
+    /**
+     * The number of recent latencies kept
+     */
+    static final int WINDOW_SIZE = 256;
+    
+    /**
+     * The percentile is recalculated after this many new latencies
+     */
+    static final int RECALCULATE_EVERY = 16;
+    
+    /**
+     * The minimum number of latencies before the percentile is known
+     */
+    static final int MIN_SAMPLES = 20;
+    
+    private final double percentile;
+    
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int count = 0;
+    private int next = 0;
+    private int sinceCalculated = 0;
+    private long percentileMillis = -1;
+    
+    /**
+     * @param percentile the percentile to calculate, e.g. 0.95
+     */
+    LatencyWindow(double percentile) {
+        this.percentile = percentile;
+    }
+    
+    synchronized void add(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next          = (next + 1) % samples.length;
+        count         = Math.min(samples.length, count + 1);
+        sinceCalculated++;
+    }
+    
+    /**
+     * @return the percentile of the recent latencies, or -1 if fewer than {@link #MIN_SAMPLES} are known
+     */
+    synchronized long getPercentileMillis() {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        if (percentileMillis < 0 || sinceCalculated >= RECALCULATE_EVERY) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = Math.min(count - 1, (int) Math.ceil(count * percentile) - 1);
+            percentileMillis = sorted[Math.max(0, index)];
+            sinceCalculated  = 0;
+        }
+        return percentileMillis;
+    }
+    
+    synchronized int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,91 @@
+package dk.kb.alma.client.utils;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Reads and writes JAXB bound classes as XML with the contexts and pooled (un)marshallers of a {@link JaxbContexts},
+ * instead of the default provider of CXF, which creates new (un)marshallers for every request.
+ * <p>
+ * Used both by the WebClients of {@link WebClientFactory} and by the {@link EntityCodec}.
+ */
+@Provider
+@Produces({"application/xml", "text/xml", "application/*+xml"})
+@Consumes({"application/xml", "text/xml", "application/*+xml"})
+public class PooledJaxbProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+    
+    private final JaxbContexts contexts;
+    
+    public PooledJaxbProvider(JaxbContexts contexts) {
+        this.contexts = contexts;
+    }
+    
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return isXml(mediaType) && isJaxbBound(type);
+    }
+    
+    @Override
+    public Object readFrom(Class<Object> type,
+                           Type genericType,
+                           Annotation[] annotations,
+                           MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders,
+                           InputStream entityStream) throws IOException, WebApplicationException {
+        try {
+            return contexts.unmarshal(entityStream, type);
+        } catch (JAXBException e) {
+            throw new IOException("Failed to read XML as '" + type.getName() + "'", e);
+        }
+    }
+    
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return isXml(mediaType) && isJaxbBound(type);
+    }
+    
+    @Override
+    public void writeTo(Object entity,
+                        Class<?> type,
+                        Type genericType,
+                        Annotation[] annotations,
+                        MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders,
+                        OutputStream entityStream) throws IOException, WebApplicationException {
+        try {
+            contexts.marshal(entity, entityStream);
+        } catch (JAXBException e) {
+            throw new IOException("Failed to write '" + type.getName() + "' as XML", e);
+        }
+    }
+    
+    public JaxbContexts getContexts() {
+        return contexts;
+    }
+    
+    private static boolean isJaxbBound(Class<?> type) {
+        return type.isAnnotationPresent(XmlRootElement.class) || type.isAnnotationPresent(XmlType.class);
+    }
+    
+    private static boolean isXml(MediaType mediaType) {
+        if (mediaType == null) {
+            return true;
+        }
+        String subtype = mediaType.getSubtype();
+        return "xml".equalsIgnoreCase(subtype) || subtype.endsWith("+xml") || mediaType.isWildcardSubtype();
+    }
+}
@@ -0,0 +1,80 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+
+/**
+ * The priority of a request, when it has to wait for the rate and concurrency limits of a
+ * {@link dk.kb.alma.client.HttpClient}. Waiting requests of a higher priority are sent before those of a lower one, so
+ * e.g. patron lookups are not stuck behind a nightly batch job that has filled the queues. See
+ * {@link TokenBucketRateLimiter#acquireAsync(Priority)} and {@link AdaptiveConcurrencyLimiter#acquireAsync(Priority)}.
+ * <p>
+ * A client has a default priority, see {@link dk.kb.alma.client.HttpClient#setDefaultPriority(Priority)}. To give
+ * the calls made by a piece of code their own priority, whatever client methods they go through, apply one to the
+ * calling thread
+ * <pre>
+ * try (Priority.Scope ignored = Priority.BULK.apply()) {
+ *     inventoryClient.getBibs(mmsIds);
+ * }
+ * </pre>
+ * Scopes can be nested, and the innermost wins. Async calls use the priority of the thread they are started from.
+ */
+public enum Priority {
+    
+    /**
+     * Calls someone is waiting for, e.g. looking up a patron or an item at the desk
+     */
+    INTERACTIVE,
+    
+    /**
+     * The default
+     */
+    NORMAL,
+    
+    /**
+     * Batch work that can wait, e.g. harvests and analytics reports
+     */
+    BULK;
+    
+    private static final ThreadLocal<Priority> CURRENT = new ThreadLocal<>();
+    
+    /**
+     * @return the priority applied to the calling thread, or null if none
+     */
+    @Nullable
+    public static Priority current() {
+        return CURRENT.get();
+    }
+    
+    /**
+     * Apply this priority to the calling thread, until the returned scope is closed
+     *
+     * @return the scope to close when done
+     */
+    public Scope apply() {
+        Priority previous = CURRENT.get();
+        CURRENT.set(this);
+        return new Scope(previous);
+    }
+    
+    /**
+     * Restores the priority of the thread from before {@link #apply()} when closed
+     */
+    public static final class Scope implements AutoCloseable {
+        
+        @Nullable
+        private final Priority previous;
+        
+        private Scope(@Nullable Priority previous) {
+            this.previous = previous;
+        }
+        
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
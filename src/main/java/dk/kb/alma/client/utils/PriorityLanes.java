@@ -0,0 +1,108 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * The requests waiting for a limiter, queued per {@link Priority}.
+ * <p>
+ * The next request is the oldest of the highest priority waiting, unless a lower priority has been passed over
+ * {@link #setMaxPassOvers(int) a number of times} in a row, in which case that is served next. Requests whose futures
+ * are done, i.e. cancelled while waiting, are skipped.
+ * <p>
+ * The lanes are not threadsafe, the limiter using them must synchronize.
+ *
+ * @param <T> the futures the waiting requests are completed through
+ */
+class PriorityLanes<T extends Future<?>> {
+    
+    //The waiting requests per priority, indexed by ordinal, highest first
+    private final List<Deque<T>> waiting = new ArrayList<>();
+    
+    //The number of requests served from higher lanes since each lane was last served
+    private final int[] passOvers = new int[Priority.values().length];
+    
+    private int maxPassOvers = 4;
+    
+    PriorityLanes() {
+        for (Priority ignored : Priority.values()) {
+            waiting.add(new ArrayDeque<>());
+        }
+    }
+    
+    void add(Priority priority, T request) {
+        waiting.get(priority.ordinal()).add(request);
+    }
+    
+    /**
+     * Take the next request to serve
+     *
+     * @return the request, or null if none is waiting
+     */
+    @Nullable
+    T poll() {
+        int next = -1;
+        for (int lane = 0; lane < waiting.size(); lane++) {
+            Deque<T> queue = waiting.get(lane);
+            //Drop the requests cancelled while waiting
+            while (!queue.isEmpty() && queue.peek().isDone()) {
+                queue.poll();
+            }
+            if (!queue.isEmpty() && (next < 0 || passOvers[lane] >= maxPassOvers)) {
+                next = lane;
+            }
+        }
+        if (next < 0) {
+            return null;
+        }
+        for (int lane = 0; lane < waiting.size(); lane++) {
+            if (lane == next) {
+                passOvers[lane] = 0;
+            } else if (!waiting.get(lane).isEmpty()) {
+                passOvers[lane]++;
+            }
+        }
+        return waiting.get(next).poll();
+    }
+    
+    /**
+     * @return true if no requests are queued. Requests cancelled while waiting may still be queued
+     */
+    boolean isEmpty() {
+        return waiting.stream().allMatch(Deque::isEmpty);
+    }
+    
+    /**
+     * @param priority the priority
+     * @return the number of requests of the priority waiting
+     */
+    int size(Priority priority) {
+        return (int) waiting.get(priority.ordinal()).stream().filter(request -> !request.isDone()).count();
+    }
+    
+    /**
+     * @return the number of requests waiting
+     */
+    int size() {
+        int result = 0;
+        for (Priority priority : Priority.values()) {
+            result += size(priority);
+        }
+        return result;
+    }
+    
+    int getMaxPassOvers() {
+        return maxPassOvers;
+    }
+    
+    void setMaxPassOvers(int maxPassOvers) {
+        if (maxPassOvers < 0) {
+            throw new IllegalArgumentException("Invalid maxPassOvers " + maxPassOvers);
+        }
+        this.maxPassOvers = maxPassOvers;
+    }
+}
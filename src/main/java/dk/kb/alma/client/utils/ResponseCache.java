@@ -0,0 +1,457 @@
+package dk.kb.alma.client.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.core.HttpHeaders;
+import java.net.URI;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache of GET results in {@link dk.kb.alma.client.HttpClient}, sized by memory rather than by number of entries.
+ * <p>
+ * Each entry is weighed by the size of the response body it was read from, as an approximation of the memory the
+ * result retains. A batch of 100 full MARC records thus takes up a hundred times the budget of a single record, where a
+ * cache limited by entry count would treat them the same.
+ * <p>
+ * Results of a given type can be given their own budget and time to live with {@link #setLimits(Class, long, long)},
+ * i.e. long for rarely changing configuration like code tables and libraries, and short for items, which change as
+ * they are loaned. Results of other types share the default budget and time to live. Entries expire the given time
+ * after they were fetched, and the least recently used entries are evicted when a budget is exceeded.
+ * <p>
+ * Expired entries with a validator ({@code ETag} or {@code Last-Modified}) from their response are kept, so they can be
+ * revalidated with a conditional GET, see {@link #getStale(URI, Class)} and {@link #refresh(URI, Class,
+ * TransportResponse)}. If the server answers 304 Not Modified, the entry is fresh again without being downloaded and
+ * read again. Entries without a validator are dropped when they expire.
+ * <p>
+ * The cache is threadsafe.
+ */
+public class ResponseCache {
+    
+    private final Region defaultRegion;
+    
+    private final Map<Class<?>, Region> regions = new ConcurrentHashMap<>();
+    
+    //The cached URIs by their path without query, sorted so the paths below a path are found as a range
+    private final ConcurrentSkipListMap<String, Set<URI>> pathIndex = new ConcurrentSkipListMap<>();
+    
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong notModifiedBytes = new AtomicLong();
+    
+    /**
+     * @param maxBytes  the approximate number of bytes the cached results may retain, for types without their own
+     *                  limits
+     * @param ttlMillis how long results are cached, for types without their own limits
+     */
+    public ResponseCache(long maxBytes, long ttlMillis) {
+        this.defaultRegion = new Region(maxBytes, ttlMillis, this::unindex);
+    }
+    
+    /**
+     * Give the results of the type their own budget and time to live. Results of the type already cached are dropped.
+     *
+     * @param type      the type of the results, as requested from the client
+     * @param maxBytes  the approximate number of bytes the cached results of the type may retain
+     * @param ttlMillis how long results of the type are cached
+     */
+    public void setLimits(Class<?> type, long maxBytes, long ttlMillis) {
+        Region previous = regions.put(type, new Region(maxBytes, ttlMillis, this::unindex));
+        if (previous != null) {
+            previous.cache.invalidateAll();
+        }
+        //The results might have been cached in the default region
+        defaultRegion.cache.asMap().values().removeIf(entry -> type.isInstance(entry.value));
+    }
+    
+    /**
+     * @param uri  the URI the result was fetched from
+     * @param type the type of the result
+     * @param <T>  the type of the result
+     * @return the cached result, or null if not cached as the type
+     */
+    @Nullable
+    public <T> T get(URI uri, Class<T> type) {
+        Region region = region(type);
+        //Not getIfPresent, as that would count expired entries as hits
+        Entry entry = region.cache.asMap().get(uri);
+        if (entry != null && type.isInstance(entry.value)) {
+            if (!entry.isExpired()) {
+                region.hits.incrementAndGet();
+                return type.cast(entry.value);
+            }
+            if (!entry.hasValidators()) {
+                region.cache.asMap().remove(uri, entry);
+            }
+        }
+        region.misses.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * Get an expired entry that can be revalidated
+     *
+     * @param uri  the URI the result was fetched from
+     * @param type the type of the result
+     * @param <T>  the type of the result
+     * @return the expired entry, or null if there is no expired entry with validators for the URI
+     */
+    @Nullable
+    public <T> Stale<T> getStale(URI uri, Class<T> type) {
+        Entry entry = region(type).cache.asMap().get(uri);
+        if (entry == null || !type.isInstance(entry.value) || !entry.isExpired() || !entry.hasValidators()) {
+            return null;
+        }
+        revalidations.incrementAndGet();
+        return new Stale<>(type.cast(entry.value), entry.etag, entry.lastModified);
+    }
+    
+    /**
+     * Make an expired entry fresh again, as the server answered a conditional GET with 304 Not Modified
+     *
+     * @param uri         the URI the result was fetched from
+     * @param type        the type of the result
+     * @param notModified the 304 response, which can carry updated validators
+     * @return true if the entry was refreshed, false if it was evicted meanwhile
+     */
+    public boolean refresh(URI uri, Class<?> type, TransportResponse notModified) {
+        Region region = region(type);
+        Entry entry = region.cache.asMap().get(uri);
+        if (entry == null) {
+            return false;
+        }
+        String etag = notModified.getHeader(HttpHeaders.ETAG);
+        String lastModified = notModified.getHeader(HttpHeaders.LAST_MODIFIED);
+        Entry refreshed = new Entry(entry.value,
+                                    entry.weight,
+                                    System.currentTimeMillis() + region.ttlMillis,
+                                    etag != null ? etag : entry.etag,
+                                    lastModified != null ? lastModified : entry.lastModified);
+        if (!region.cache.asMap().replace(uri, entry, refreshed)) {
+            return false;
+        }
+        notModifiedCount.incrementAndGet();
+        notModifiedBytes.addAndGet(entry.weight);
+        return true;
+    }
+    
+    /**
+     * @param uri       the URI the result was fetched from
+     * @param type      the type the result was requested as
+     * @param value     the result
+     * @param bodyBytes the size of the response body the result was read from
+     */
+    public void put(URI uri, Class<?> type, Object value, long bodyBytes) {
+        put(uri, type, value, bodyBytes, null, null);
+    }
+    
+    /**
+     * Cache a result with the validators of the response it was read from, so it can be revalidated when it expires
+     *
+     * @param uri      the URI the result was fetched from
+     * @param type     the type the result was requested as
+     * @param value    the result
+     * @param response the response the result was read from
+     */
+    public void put(URI uri, Class<?> type, Object value, TransportResponse response) {
+        put(uri,
+            type,
+            value,
+            response.getBody().length,
+            response.getHeader(HttpHeaders.ETAG),
+            response.getHeader(HttpHeaders.LAST_MODIFIED));
+    }
+    
+    private void put(URI uri,
+                     Class<?> type,
+                     Object value,
+                     long bodyBytes,
+                     @Nullable String etag,
+                     @Nullable String lastModified) {
+        Region region = region(type);
+        int weight = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bodyBytes));
+        long expiresAtMillis = System.currentTimeMillis() + region.ttlMillis;
+        pathIndex.computeIfAbsent(pathKey(uri), key -> ConcurrentHashMap.newKeySet()).add(uri);
+        region.cache.put(uri, new Entry(value, weight, expiresAtMillis, etag, lastModified));
+    }
+    
+    /**
+     * Remove the result cached for the URI, whatever its type
+     *
+     * @param uri the URI to remove
+     */
+    public void invalidate(URI uri) {
+        defaultRegion.cache.invalidate(uri);
+        regions.values().forEach(region -> region.cache.invalidate(uri));
+    }
+    
+    /**
+     * Remove the results cached for the path of the URI, whatever their query string or type. I.e. invalidating
+     * {@code /items} removes {@code /items?item_barcode=1234} and {@code /items?item_barcode=5678}.
+     *
+     * @param uri the URI of the path to remove. The query string is ignored
+     */
+    public void invalidatePath(URI uri) {
+        Set<URI> uris = pathIndex.remove(pathKey(uri));
+        if (uris != null) {
+            uris.forEach(this::invalidate);
+        }
+    }
+    
+    /**
+     * Remove the results cached for the path of the URI and for all paths below it, whatever their query string or
+     * type. I.e. invalidating {@code /bibs/1234} removes {@code /bibs/1234?view=full} and
+     * {@code /bibs/1234/holdings/5678/items}, but not {@code /bibs/12345}.
+     *
+     * @param prefix the URI of the path to remove. The query string is ignored
+     */
+    public void invalidatePrefix(URI prefix) {
+        String path = pathKey(prefix);
+        for (String key : pathIndex.subMap(path, true, path + "/\uffff", true).keySet()) {
+            if (key.equals(path) || key.startsWith(path + "/")) {
+                Set<URI> uris = pathIndex.remove(key);
+                if (uris != null) {
+                    uris.forEach(this::invalidate);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Remove all cached results
+     */
+    public void invalidateAll() {
+        defaultRegion.cache.invalidateAll();
+        regions.values().forEach(region -> region.cache.invalidateAll());
+        pathIndex.clear();
+    }
+    
+    private void unindex(RemovalNotification<URI, Entry> notification) {
+        URI uri = notification.getKey();
+        if (uri == null || notification.getCause() == RemovalCause.REPLACED || isCached(uri)) {
+            return;
+        }
+        pathIndex.computeIfPresent(pathKey(uri), (key, uris) -> {
+            uris.remove(uri);
+            return uris.isEmpty() ? null : uris;
+        });
+    }
+    
+    private boolean isCached(URI uri) {
+        if (defaultRegion.cache.asMap().containsKey(uri)) {
+            return true;
+        }
+        return regions.values().stream().anyMatch(region -> region.cache.asMap().containsKey(uri));
+    }
+    
+    /**
+     * @return the URI without query, fragment and trailing slash
+     */
+    private static String pathKey(URI uri) {
+        String key = uri.normalize().toString();
+        int end = key.length();
+        int query = key.indexOf('?');
+        if (query >= 0) {
+            end = query;
+        }
+        int fragment = key.indexOf('#');
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        while (end > 1 && key.charAt(end - 1) == '/') {
+            end--;
+        }
+        return key.substring(0, end);
+    }
+    
+    /**
+     * @return the hit, miss and eviction counts of all types combined
+     */
+    public CacheStats getStats() {
+        CacheStats stats = defaultRegion.getStats();
+        for (Region region : regions.values()) {
+            stats = stats.plus(region.getStats());
+        }
+        return stats;
+    }
+    
+    /**
+     * @return the number of expired entries handed out for revalidation with {@link #getStale(URI, Class)}
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+    
+    /**
+     * @return the number of revalidations answered with 304 Not Modified, i.e. where the result was not downloaded
+     *         again
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+    
+    /**
+     * @return the number of response body bytes that were not downloaded again, thanks to 304 Not Modified
+     */
+    public long getNotModifiedBytes() {
+        return notModifiedBytes.get();
+    }
+    
+    /**
+     * @param type the type of results
+     * @return the hit, miss and eviction counts of the region the type is cached in. Types without their own limits
+     *         share the default region
+     */
+    public CacheStats getStats(Class<?> type) {
+        return region(type).getStats();
+    }
+    
+    /**
+     * @return the approximate number of bytes retained by all cached results
+     */
+    public long getWeightBytes() {
+        long weight = defaultRegion.getWeightBytes();
+        for (Region region : regions.values()) {
+            weight += region.getWeightBytes();
+        }
+        return weight;
+    }
+    
+    /**
+     * @return the number of cached results
+     */
+    public long size() {
+        long size = defaultRegion.cache.size();
+        for (Region region : regions.values()) {
+            size += region.cache.size();
+        }
+        return size;
+    }
+    
+    private Region region(Class<?> type) {
+        return regions.getOrDefault(type, defaultRegion);
+    }
+    
+    @Override
+    public String toString() {
+        return "ResponseCache{" +
+               "size=" + size() +
+               ", weightBytes=" + getWeightBytes() +
+               ", stats=" + getStats() +
+               ", revalidations=" + getRevalidationCount() +
+               ", notModified=" + getNotModifiedCount() +
+               ", notModifiedBytes=" + getNotModifiedBytes() +
+               '}';
+    }
+    
+    /**
+     * An expired result, with the validators to revalidate it with
+     *
+     * @param <T> the type of the result
+     */
+    public static class Stale<T> {
+        
+        private final T value;
+        
+        private final String etag;
+        
+        private final String lastModified;
+        
+        Stale(T value, @Nullable String etag, @Nullable String lastModified) {
+            this.value        = value;
+            this.etag         = etag;
+            this.lastModified = lastModified;
+        }
+        
+        public T getValue() {
+            return value;
+        }
+        
+        /**
+         * @return the ETag of the response the result was read from, for If-None-Match
+         */
+        @Nullable
+        public String getETag() {
+            return etag;
+        }
+        
+        /**
+         * @return the Last-Modified of the response the result was read from, for If-Modified-Since
+         */
+        @Nullable
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+    
+    private static class Region {
+        
+        private final Cache<URI, Entry> cache;
+        
+        private final long ttlMillis;
+        
+        //Counted here, as the Guava cache cannot tell expired entries kept for revalidation from fresh ones
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        
+        Region(long maxBytes, long ttlMillis, RemovalListener<URI, Entry> removalListener) {
+            this.ttlMillis = ttlMillis;
+            this.cache     = CacheBuilder.newBuilder()
+                                         .maximumWeight(maxBytes)
+                                         .<URI, Entry>weigher((uri, entry) -> entry.weight)
+                                         .removalListener(removalListener)
+                                         .recordStats()
+                                         .build();
+        }
+        
+        CacheStats getStats() {
+            return new CacheStats(hits.get(), misses.get(), 0, 0, 0, cache.stats().evictionCount());
+        }
+        
+        long getWeightBytes() {
+            long weight = 0;
+            for (Entry entry : cache.asMap().values()) {
+                weight += entry.weight;
+            }
+            return weight;
+        }
+    }
+    
+    private static class Entry {
+        
+        private final Object value;
+        
+        private final int weight;
+        
+        private final long expiresAtMillis;
+        
+        private final String etag;
+        
+        private final String lastModified;
+        
+        Entry(Object value, int weight, long expiresAtMillis, @Nullable String etag, @Nullable String lastModified) {
+            this.value           = value;
+            this.weight          = weight;
+            this.expiresAtMillis = expiresAtMillis;
+            this.etag            = etag;
+            this.lastModified    = lastModified;
+        }
+        
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAtMillis;
+        }
+        
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+    }
+}
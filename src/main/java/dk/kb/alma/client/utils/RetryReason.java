@@ -0,0 +1,23 @@
+package dk.kb.alma.client.utils;
+
+/**
+ * The reasons a request is retried. Each is an error class with its own back-off, see {@link BackOffPolicy}.
+ */
+public enum RetryReason {
+    /**
+     * The server responded 429 Too Many Requests
+     */
+    RATE_LIMITED,
+    /**
+     * The request timed out
+     */
+    TIMEOUT,
+    /**
+     * The connection failed
+     */
+    SOCKET_EXCEPTION,
+    /**
+     * The server asked us to retry later
+     */
+    UNAVAILABLE
+}
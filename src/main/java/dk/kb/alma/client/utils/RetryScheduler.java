@@ -0,0 +1,78 @@
+package dk.kb.alma.client.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the retries of async requests in {@link dk.kb.alma.client.HttpClient}.
+ * <p>
+ * A request waiting to be retried is just an entry in the queue of a {@link ScheduledExecutorService}, so backing off
+ * (i.e. during a rate-limit storm) holds no threads. When the delay has passed, the retry is handed to the given
+ * executor, so the scheduler thread itself is never busy for long.
+ * <p>
+ * The scheduler is threadsafe. Unless told otherwise, all clients in the JVM share {@link #getDefault()}.
+ */
+public class RetryScheduler implements AutoCloseable {
+    
+    protected final static Logger log = LoggerFactory.getLogger(RetryScheduler.class);
+    
+    private static final RetryScheduler defaultScheduler = new RetryScheduler(createDefaultExecutor());
+    
+    private final ScheduledExecutorService scheduledExecutor;
+    
+    /**
+     * @param scheduledExecutor the executor that keeps track of the pending retries
+     */
+    public RetryScheduler(ScheduledExecutorService scheduledExecutor) {
+        this.scheduledExecutor = scheduledExecutor;
+    }
+    
+    /**
+     * @return the scheduler shared by all clients that have not been given their own
+     */
+    public static RetryScheduler getDefault() {
+        return defaultScheduler;
+    }
+    
+    private static ScheduledExecutorService createDefaultExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "alma-client-retry-" + threadCount.incrementAndGet());
+            //Pending retries should not keep the JVM alive
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Run the task on the executor when the delay has passed
+     *
+     * @param task        the task to run
+     * @param delayMillis the delay in milliseconds. If not positive, the task is handed to the executor at once
+     * @param executor    the executor to run the task on
+     * @return a future that can be used to cancel the task before it is run
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis, Executor executor) {
+        return scheduledExecutor.schedule(() -> executor.execute(task), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+    
+    public ScheduledExecutorService getScheduledExecutor() {
+        return scheduledExecutor;
+    }
+    
+    /**
+     * Stop the scheduler. Pending retries are dropped.
+     */
+    @Override
+    public void close() {
+        log.debug("Shutting down retry scheduler");
+        scheduledExecutor.shutdownNow();
+    }
+}
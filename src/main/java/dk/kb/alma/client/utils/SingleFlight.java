@@ -0,0 +1,222 @@
+package dk.kb.alma.client.utils;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key into one.
+ * <p>
+ * The first caller for a key performs the call. Callers arriving while it is in flight do not perform it again, but
+ * wait for the result, or the exception, of the first. When the call completes, the key is forgotten, so the next
+ * caller performs a new call. Results are thus shared only between calls that overlap in time; this is not a cache.
+ * <p>
+ * Blocking and async callers can be mixed on the same key. An async caller can cancel its own future without affecting
+ * the others; the call itself is only cancelled when every caller waiting for it has cancelled.
+ * <p>
+ * The class is threadsafe.
+ *
+ * @param <K> the type of the keys. Must implement equals and hashCode
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+    
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+    
+    private final AtomicLong performed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    
+    /**
+     * Perform the call, or wait for the call already in flight for the key.
+     *
+     * @param key  the key identifying the call
+     * @param call the call to perform, if no call for the key is in flight
+     * @return the result of the call
+     * @throws InterruptedException if interrupted while waiting for a call made by another caller. The call itself is
+     *                              not affected
+     * @throws RuntimeException     the exception thrown by the call, whether made by this caller or another
+     */
+    public V execute(K key, Supplier<V> call) throws InterruptedException {
+        try {
+            return execute(key, call, Long.MAX_VALUE);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Timed out waiting forever", e);
+        }
+    }
+    
+    /**
+     * Perform the call, or wait for the call already in flight for the key, but no longer than the timeout. The
+     * timeout only bounds the wait for a call made by another caller, not a call made by this caller.
+     *
+     * @param key           the key identifying the call
+     * @param call          the call to perform, if no call for the key is in flight
+     * @param timeoutMillis the longest time to wait for a call made by another caller
+     * @return the result of the call
+     * @throws InterruptedException if interrupted while waiting for a call made by another caller. The call itself is
+     *                              not affected
+     * @throws TimeoutException     if the call made by another caller did not complete within the timeout. The call
+     *                              itself is not affected
+     * @throws RuntimeException     the exception thrown by the call, whether made by this caller or another
+     */
+    public V execute(K key, Supplier<V> call, long timeoutMillis) throws InterruptedException, TimeoutException {
+        Flight<V> flight = new Flight<>();
+        Flight<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            existing.waiters.incrementAndGet();
+            try {
+                return await(existing.future, timeoutMillis);
+            } catch (InterruptedException | TimeoutException e) {
+                existing.leave();
+                throw e;
+            }
+        }
+        performed.incrementAndGet();
+        try {
+            V value = call.get();
+            flight.future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+    
+    /**
+     * Async version of {@link #execute(Object, Supplier)}.
+     *
+     * @param key  the key identifying the call
+     * @param call the call to start, if no call for the key is in flight
+     * @return a future of the result of the call. Cancelling it only cancels the call if no other caller is waiting
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        Flight<V> flight = new Flight<>();
+        Flight<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.join();
+        }
+        performed.incrementAndGet();
+        CompletableFuture<V> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        final CompletableFuture<V> source = started;
+        //Forget the key before the waiting callers are completed, so they can start a new call at once
+        source.whenComplete((value, throwable) -> {
+            flights.remove(key, flight);
+            if (throwable == null) {
+                flight.future.complete(value);
+            } else {
+                flight.future.completeExceptionally(throwable);
+            }
+        });
+        flight.future.whenComplete((value, throwable) -> {
+            if (flight.future.isCancelled()) {
+                flights.remove(key, flight);
+                source.cancel(true);
+            }
+        });
+        //The first caller holds the initial reference to the flight
+        return flight.share();
+    }
+    
+    private static <V> V await(CompletableFuture<V> future, long timeoutMillis)
+            throws InterruptedException, TimeoutException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CompletionException(cause);
+        } catch (CancellationException e) {
+            throw new CompletionException("The call was cancelled by the callers waiting for it", e);
+        }
+    }
+    
+    /**
+     * @return the number of calls that were actually performed
+     */
+    public long getPerformed() {
+        return performed.get();
+    }
+    
+    /**
+     * @return the number of calls that were not performed, but got the result of a call already in flight
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+    
+    /**
+     * @return the number of calls currently in flight
+     */
+    public int getInFlight() {
+        return flights.size();
+    }
+    
+    @Override
+    public String toString() {
+        return "SingleFlight{" +
+               "performed=" + getPerformed() +
+               ", coalesced=" + getCoalesced() +
+               ", inFlight=" + getInFlight() +
+               '}';
+    }
+    
+    private static class Flight<V> {
+        
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        
+        //The caller that started the call counts as the first
+        private final AtomicInteger waiters = new AtomicInteger(1);
+        
+        /**
+         * @return a future for another caller waiting for this flight
+         */
+        CompletableFuture<V> join() {
+            waiters.incrementAndGet();
+            return share();
+        }
+        
+        /**
+         * @return a future that completes with the flight, and that can be cancelled without cancelling the flight,
+         *         unless it is the last one waiting
+         */
+        CompletableFuture<V> share() {
+            CompletableFuture<V> copy = future.copy();
+            copy.whenComplete((value, throwable) -> {
+                if (copy.isCancelled()) {
+                    leave();
+                }
+            });
+            return copy;
+        }
+        
+        /**
+         * Stop waiting for this flight. The last caller to leave cancels it
+         */
+        void leave() {
+            if (waiters.decrementAndGet() == 0) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package dk.kb.alma.client.utils;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response whose body is still being received, as returned by {@link Transport#executeStreaming}. The status and
+ * headers are read, the body is read from {@link #getBodyStream()}, already decoded if it was compressed.
+ * <p>
+ * {@link #getBody()} is empty and {@link #getWireLength()} is 0, as the body has not been read. Close the response, or
+ * its body stream, when done, to release the connection.
+ */
+public class StreamedResponse extends TransportResponse implements AutoCloseable {
+    
+    private final InputStream bodyStream;
+    
+    /**
+     * @param status     the HTTP status code
+     * @param headers    the response headers. Header names are matched case-insensitively
+     * @param bodyStream the response body, decoded if it was compressed. Use an empty stream for no body
+     */
+    public StreamedResponse(int status, MultivaluedMap<String, String> headers, InputStream bodyStream) {
+        super(status, headers, new byte[0], 0);
+        this.bodyStream = bodyStream;
+    }
+    
+    public InputStream getBodyStream() {
+        return bodyStream;
+    }
+    
+    /**
+     * Read the rest of the body and close the response
+     *
+     * @return the response with the body read
+     * @throws ProcessingException if the body could not be read
+     */
+    public TransportResponse buffer() throws ProcessingException {
+        try (InputStream body = bodyStream) {
+            return new TransportResponse(getStatus(), getHeaders(), body.readAllBytes());
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to read response body", e);
+        }
+    }
+    
+    @Override
+    public void close() {
+        try {
+            bodyStream.close();
+        } catch (IOException e) {
+            //Ignore, we are closing anyway
+        }
+    }
+}
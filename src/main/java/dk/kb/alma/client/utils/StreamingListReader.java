@@ -0,0 +1,231 @@
+package dk.kb.alma.client.utils;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.ProcessingException;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Reads the elements of an Alma list response, like {@code <items total_record_count="2"><item>...</item><item>...
+ * </item></items>}, one at a time with StAX. Only the element being read is held in memory as objects, not the whole
+ * list, and each element can be processed before the next is parsed.
+ * <p>
+ * Children of the root element with other names, like the {@code <link>} of some lists, are skipped. The attributes
+ * of the root element are available as soon as the reader is created, see {@link #getTotalRecordCount()}.
+ * <p>
+ * Not threadsafe. The reader closes itself when the end of the list is reached or reading fails, so iterating to the
+ * end releases the stream. Close the reader when stopping before that.
+ *
+ * @param <T> the type of the elements
+ */
+public class StreamingListReader<T> implements Iterator<T>, AutoCloseable {
+    
+    private final InputStream inputStream;
+    private final XMLStreamReader reader;
+    private final Unmarshaller unmarshaller;
+    private final String elementName;
+    private final Class<T> type;
+    
+    private final Map<String, String> rootAttributes = new HashMap<>();
+    
+    private boolean atElement = false;
+    private boolean afterElement = false;
+    private boolean finished = false;
+    private boolean closed = false;
+    private long count = 0;
+    
+    /**
+     * @param inputStream the XML of the list. Closed when the reader is closed or the list is read
+     * @param type        the class of the elements. The name of the elements is taken from its {@link XmlRootElement}
+     * @throws ProcessingException if the stream is not XML
+     */
+    public StreamingListReader(InputStream inputStream, Class<T> type) throws ProcessingException {
+        this(inputStream, getElementName(type), type);
+    }
+    
+    /**
+     * @param inputStream the XML of the list. Closed when the reader is closed or the list is read
+     * @param elementName the local name of the elements to read, like {@code item}
+     * @param type        the class of the elements. It does not need to be an {@link XmlRootElement}
+     * @throws ProcessingException if the stream is not XML
+     */
+    public StreamingListReader(InputStream inputStream, String elementName, Class<T> type)
+            throws ProcessingException {
+        this.inputStream = inputStream;
+        this.elementName = elementName;
+        this.type        = type;
+        try {
+            this.unmarshaller = JaxbContexts.getDefault().borrowUnmarshaller(type);
+            this.reader       = JaxbContexts.createXMLStreamReader(inputStream);
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                throw new ProcessingException("No root element in list of '" + elementName + "'");
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                rootAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        } catch (JAXBException | XMLStreamException e) {
+            close();
+            throw new ProcessingException("Failed to start reading list of '" + elementName + "'", e);
+        }
+    }
+    
+    /**
+     * Read all elements of the list and give them to the consumer as they are read
+     *
+     * @param inputStream the XML of the list. Closed when done
+     * @param elementName the local name of the elements to read, like {@code item}
+     * @param type        the class of the elements
+     * @param consumer    the consumer of the elements
+     * @param <T>         the type of the elements
+     * @return the {@code total_record_count} of the list, or null if it has none
+     * @throws ProcessingException if the stream could not be read
+     */
+    @Nullable
+    public static <T> Long forEach(InputStream inputStream,
+                                   String elementName,
+                                   Class<T> type,
+                                   Consumer<? super T> consumer) throws ProcessingException {
+        try (StreamingListReader<T> reader = new StreamingListReader<>(inputStream, elementName, type)) {
+            reader.forEachRemaining(consumer);
+            return reader.getTotalRecordCount();
+        }
+    }
+    
+    @Override
+    public boolean hasNext() throws ProcessingException {
+        if (atElement) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        try {
+            while (afterElement || reader.hasNext()) {
+                //After unmarshalling an element, the reader is already at the event following it
+                int event = afterElement ? reader.getEventType() : reader.next();
+                afterElement = false;
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (elementName.equals(reader.getLocalName())) {
+                        atElement = true;
+                        return true;
+                    }
+                    skipElement();
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    //The end of the root element
+                    break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            finished = true;
+            close();
+            throw new ProcessingException("Failed to read list of '" + elementName + "'", e);
+        }
+        //Release the stream and the unmarshaller, as the caller may not close an iterator read to the end
+        finished = true;
+        close();
+        return false;
+    }
+    
+    @Override
+    public T next() throws ProcessingException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more '" + elementName + "' elements");
+        }
+        atElement = false;
+        try {
+            //Leaves the reader at the event after the end tag of the element
+            T element = unmarshaller.unmarshal(reader, type).getValue();
+            afterElement = true;
+            count++;
+            return element;
+        } catch (JAXBException e) {
+            finished = true;
+            close();
+            throw new ProcessingException("Failed to read '" + elementName + "' number " + (count + 1), e);
+        }
+    }
+    
+    /**
+     * @return the number of elements read so far
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    /**
+     * @param name the local name of an attribute of the root element
+     * @return the value of the attribute, or null if the root element does not have it
+     */
+    @Nullable
+    public String getRootAttribute(String name) {
+        return rootAttributes.get(name);
+    }
+    
+    /**
+     * @return the {@code total_record_count} attribute of the root element, or null if it has none
+     */
+    @Nullable
+    public Long getTotalRecordCount() {
+        String totalRecordCount = getRootAttribute("total_record_count");
+        return totalRecordCount == null ? null : Long.valueOf(totalRecordCount.trim());
+    }
+    
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            //Ignore, we are closing anyway
+        } finally {
+            if (unmarshaller != null) {
+                JaxbContexts.getDefault().releaseUnmarshaller(type, unmarshaller);
+            }
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                //Ignore, we are closing anyway
+            }
+        }
+    }
+    
+    /**
+     * Skip the element the reader is at the start of, including its children
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+    
+    private static String getElementName(Class<?> type) {
+        XmlRootElement rootElement = type.getAnnotation(XmlRootElement.class);
+        if (rootElement == null || "##default".equals(rootElement.name())) {
+            throw new IllegalArgumentException("Class '" + type.getName() + "' has no XmlRootElement name, so "
+                                               + "give the element name explicitly");
+        }
+        return rootElement.name();
+    }
+}
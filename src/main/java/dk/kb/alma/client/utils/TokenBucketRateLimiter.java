@@ -0,0 +1,310 @@
+package dk.kb.alma.client.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A token bucket that paces requests to a permitted rate, allowing short bursts.
+ * <p>
+ * The bucket holds up to {@code burstSize} tokens and is refilled at {@code permitsPerSecond}. Each request takes a
+ * token. When the bucket is empty, the request is queued, and each token added to the bucket goes to one queued
+ * request. All requests draw from this one timeline, so the combined rate never exceeds the limit, whatever the mix of
+ * priorities.
+ * <p>
+ * Requests are queued per {@link Priority}, see {@link #acquireAsync(Priority)}. A token goes to the oldest request of
+ * the highest priority waiting, so an interactive request only waits for the interactive requests before it, not for
+ * a queue of bulk requests. So that bulk jobs still make progress under steady interactive load, a lane that has been
+ * passed over {@link #setMaxPassOvers(int) a number of times} in a row is served next.
+ * <p>
+ * Waiting for a token with {@link #acquireAsync()} holds no thread. The tokens are handed out by a task on a
+ * scheduler, so the futures complete on the thread of the scheduler, and continuations that are not quick should be
+ * run on another executor. The limiter is threadsafe and can be shared between any number of clients, to keep their
+ * combined rate below the threshold of the server.
+ */
+public class TokenBucketRateLimiter {
+    
+    private final double permitsPerSecond;
+    
+    private final int burstSize;
+    
+    private final ScheduledExecutorService scheduler;
+    
+    private double tokens;
+    
+    private long lastRefillNanos;
+    
+    private final PriorityLanes<Reservation> waiting = new PriorityLanes<>();
+    
+    //Whether a task to hand out the next token is scheduled
+    private boolean grantScheduled = false;
+    
+    private long acquired = 0;
+    private long delayed = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    
+    /**
+     * @param permitsPerSecond the sustained rate of requests
+     * @param burstSize        the number of requests that can be sent at once after an idle period
+     */
+    public TokenBucketRateLimiter(double permitsPerSecond, int burstSize) {
+        this(permitsPerSecond, burstSize, RetryScheduler.getDefault().getScheduledExecutor());
+    }
+    
+    /**
+     * @param permitsPerSecond the sustained rate of requests
+     * @param burstSize        the number of requests that can be sent at once after an idle period
+     * @param scheduler        the scheduler handing out the tokens to the queued requests
+     */
+    public TokenBucketRateLimiter(double permitsPerSecond, int burstSize, ScheduledExecutorService scheduler) {
+        if (permitsPerSecond <= 0 || burstSize < 1) {
+            throw new IllegalArgumentException("Invalid rate " + permitsPerSecond + " or burst size " + burstSize);
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burstSize        = burstSize;
+        this.scheduler        = scheduler;
+        this.tokens           = burstSize;
+        this.lastRefillNanos  = System.nanoTime();
+    }
+    
+    /**
+     * Take a token to send a request. The future completes when the request can be sent.
+     * <p>
+     * Cancel the future to stop waiting. A cancelled future does not hold a token.
+     *
+     * @return a future that completes when a token is available
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        return acquireAsync(Priority.NORMAL);
+    }
+    
+    /**
+     * Take a token to send a request of the given priority. See {@link #acquireAsync()}.
+     *
+     * @param priority the priority of the request
+     * @return a future that completes when a token is available
+     */
+    public CompletableFuture<Void> acquireAsync(Priority priority) {
+        synchronized (this) {
+            refill();
+            if (waiting.isEmpty() && tokens >= 1) {
+                tokens -= 1;
+                acquired++;
+                return CompletableFuture.completedFuture(null);
+            }
+            Reservation reservation = new Reservation();
+            waiting.add(priority, reservation);
+            scheduleGrant();
+            return reservation;
+        }
+    }
+    
+    /**
+     * Take a token to send a request of the given priority, blocking until one is available. See
+     * {@link #acquireAsync(Priority)}.
+     *
+     * @param priority the priority of the request
+     * @throws InterruptedException if the thread was interrupted while waiting. No token is held then.
+     */
+    public void acquire(Priority priority) throws InterruptedException {
+        CompletableFuture<Void> token = acquireAsync(priority);
+        try {
+            token.get();
+        } catch (InterruptedException e) {
+            giveBack(token);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Token future failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Take a token to send a request of the given priority, blocking until one is available or the timeout passes.
+     * See {@link #acquireAsync(Priority)}.
+     *
+     * @param priority      the priority of the request
+     * @param timeoutMillis the longest time to wait
+     * @return true if a token was taken, false if the timeout passed first. No token is held then
+     * @throws InterruptedException if the thread was interrupted while waiting. No token is held then.
+     */
+    public boolean tryAcquire(Priority priority, long timeoutMillis) throws InterruptedException {
+        CompletableFuture<Void> token = acquireAsync(priority);
+        try {
+            token.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            giveBack(token);
+            throw e;
+        } catch (TimeoutException e) {
+            giveBack(token);
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Token future failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Stop waiting for a token, and put it back in the bucket if it was given just as we stopped
+     */
+    private void giveBack(CompletableFuture<Void> token) {
+        if (!token.cancel(false)) {
+            synchronized (this) {
+                refill();
+                tokens = Math.min(burstSize, tokens + 1);
+                scheduleGrant();
+            }
+        }
+    }
+    
+    /**
+     * Schedule the task handing out tokens to the queued requests, for when the next token is added to the bucket
+     */
+    private void scheduleGrant() {
+        if (grantScheduled || waiting.isEmpty()) {
+            return;
+        }
+        grantScheduled = true;
+        long delayNanos = (long) Math.ceil(Math.max(0, 1 - tokens) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        scheduler.schedule(this::grant, delayNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    private void grant() {
+        List<Reservation> granted = new ArrayList<>();
+        synchronized (this) {
+            grantScheduled = false;
+            refill();
+            Reservation reservation;
+            while (tokens >= 1 && (reservation = waiting.poll()) != null) {
+                tokens -= 1;
+                granted.add(reservation);
+            }
+        }
+        //Complete outside the lock, as completing runs the continuations of the waiters
+        long now = System.nanoTime();
+        for (Reservation reservation : granted) {
+            long waitNanos = now - reservation.queuedNanos;
+            //Before completing, so the statistics include the request when it is sent
+            recordWait(waitNanos, 1);
+            if (!reservation.complete(null)) {
+                //Cancelled after we took it from the queue, so the token is unused
+                recordWait(-waitNanos, -1);
+                synchronized (this) {
+                    tokens = Math.min(burstSize, tokens + 1);
+                }
+            }
+        }
+        synchronized (this) {
+            scheduleGrant();
+        }
+    }
+    
+    private synchronized void recordWait(long waitNanos, int requests) {
+        acquired += requests;
+        delayed += requests;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        double newTokens = (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        tokens          = Math.min(burstSize, tokens + newTokens);
+        lastRefillNanos = now;
+    }
+    
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+    
+    public int getBurstSize() {
+        return burstSize;
+    }
+    
+    /**
+     * @return the number of requests waiting for a token
+     */
+    public synchronized int getQueued() {
+        return waiting.size();
+    }
+    
+    /**
+     * @param priority the priority
+     * @return the number of requests of the priority waiting for a token
+     */
+    public synchronized int getQueued(Priority priority) {
+        return waiting.size(priority);
+    }
+    
+    public synchronized int getMaxPassOvers() {
+        return waiting.getMaxPassOvers();
+    }
+    
+    /**
+     * @param maxPassOvers a waiting request is served after tokens have gone to higher priorities this many times
+     *                     since its priority was last served, so low priorities are slowed, not starved. Default 4,
+     *                     i.e. bulk requests get at least one in five tokens while they wait
+     */
+    public synchronized void setMaxPassOvers(int maxPassOvers) {
+        waiting.setMaxPassOvers(maxPassOvers);
+    }
+    
+    /**
+     * @return the total number of tokens taken
+     */
+    public synchronized long getAcquired() {
+        return acquired;
+    }
+    
+    /**
+     * @return the number of requests that had to wait for a token
+     */
+    public synchronized long getDelayed() {
+        return delayed;
+    }
+    
+    /**
+     * @return the total time requests have waited for a token, in milliseconds
+     */
+    public synchronized long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos);
+    }
+    
+    /**
+     * @return the longest time a single request has waited for a token, in milliseconds
+     */
+    public synchronized long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+    
+    /**
+     * @return the average time a request has waited for a token, in milliseconds, over all requests
+     */
+    public synchronized double getAverageWaitMillis() {
+        return acquired == 0 ? 0 : (double) totalWaitNanos / acquired / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "TokenBucketRateLimiter{"
+               + "permitsPerSecond=" + permitsPerSecond
+               + ", burstSize=" + burstSize
+               + ", acquired=" + acquired
+               + ", delayed=" + delayed
+               + ", totalWaitMillis=" + getTotalWaitMillis()
+               + ", maxWaitMillis=" + getMaxWaitMillis()
+               + '}';
+    }
+    
+    /**
+     * A request waiting for a token
+     */
+    private static class Reservation extends CompletableFuture<Void> {
+        
+        private final long queuedNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,78 @@
+package dk.kb.alma.client.utils;
+
+import dk.kb.alma.client.HttpClient;
+import org.apache.cxf.jaxrs.client.WebClient;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.ProcessingException;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The part of {@link HttpClient} that actually moves bytes over the wire.
+ * <p>
+ * A transport sends the request described by a WebClient (URI, headers and timeouts) and returns the status,
+ * headers and body of the response. It does NOT interpret the status code. Retries, redirects, error mapping and
+ * unmarshalling are done by the HttpClient, so all transports behave the same.
+ *
+ * @see CxfTransport
+ * @see JdkHttpTransport
+ */
+public interface Transport {
+    
+    /**
+     * Send the request and read the full response
+     *
+     * @param request   the request. The current URI, the headers and the timeouts of the conduit are used
+     * @param operation the HTTP operation
+     * @param entity    the body entity. Can be null
+     * @param <E>       the type of the body entity
+     * @return the response, whatever the status code
+     * @throws ProcessingException if the request failed on the connection level, i.e. timeouts or socket errors.
+     *                             The cause-tree of the exception will contain the SocketTimeoutException or
+     *                             SocketException, if that was the reason.
+     */
+    <E> TransportResponse execute(WebClient request, HttpClient.Operation operation, @Nullable E entity)
+            throws ProcessingException;
+    
+    /**
+     * Send the request without blocking the calling thread. The future completes when the full response has been
+     * read.
+     *
+     * @param request   the request. The current URI, the headers and the timeouts of the conduit are used
+     * @param operation the HTTP operation
+     * @param entity    the body entity. Can be null
+     * @param <E>       the type of the body entity
+     * @return a future of the response, whatever the status code. If the request failed on the connection level, the
+     *         future completes exceptionally with a ProcessingException, as described for
+     *         {@link #execute(WebClient, HttpClient.Operation, Object)}. Cancelling the future aborts the request, if
+     *         the transport can
+     */
+    <E> CompletableFuture<TransportResponse> executeAsync(WebClient request,
+                                                          HttpClient.Operation operation,
+                                                          @Nullable E entity);
+    
+    /**
+     * Send the request and return as soon as the status and headers are read, so the body can be processed while it
+     * is received. Used for large lists, see {@link HttpClient#getIterator}.
+     * <p>
+     * The default implementation reads the full response with
+     * {@link #execute(WebClient, HttpClient.Operation, Object)}, so transports that cannot stream still work.
+     *
+     * @param request   the request. The current URI, the headers and the timeouts of the conduit are used
+     * @param operation the HTTP operation
+     * @param entity    the body entity. Can be null
+     * @param <E>       the type of the body entity
+     * @return the response, whatever the status code. Close it when done
+     * @throws ProcessingException if the request failed on the connection level, as described for
+     *                             {@link #execute(WebClient, HttpClient.Operation, Object)}
+     */
+    default <E> StreamedResponse executeStreaming(WebClient request,
+                                                  HttpClient.Operation operation,
+                                                  @Nullable E entity) throws ProcessingException {
+        TransportResponse response = execute(request, operation, entity);
+        return new StreamedResponse(response.getStatus(),
+                                    response.getHeaders(),
+                                    new ByteArrayInputStream(response.getBody()));
+    }
+}
@@ -0,0 +1,84 @@
+package dk.kb.alma.client.utils;
+
+import org.apache.cxf.jaxrs.impl.MetadataMap;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+
+/**
+ * The raw result of a request, as returned by a {@link Transport}: the status, the headers and the fully read body.
+ * Error statuses are returned as-is, it is up to the caller to map them to exceptions.
+ */
+public class TransportResponse {
+    
+    private final int status;
+    
+    private final MultivaluedMap<String, String> headers;
+    
+    private final byte[] body;
+    
+    private final long wireLength;
+    
+    /**
+     * @param status  the HTTP status code
+     * @param headers the response headers. Header names are matched case-insensitively
+     * @param body    the response body. Use an empty array for no body
+     */
+    public TransportResponse(int status, MultivaluedMap<String, String> headers, byte[] body) {
+        this(status, headers, body, body.length);
+    }
+    
+    /**
+     * @param status     the HTTP status code
+     * @param headers    the response headers. Header names are matched case-insensitively
+     * @param body       the response body, decoded if it was compressed. Use an empty array for no body
+     * @param wireLength the number of body bytes received, before decoding
+     */
+    public TransportResponse(int status, MultivaluedMap<String, String> headers, byte[] body, long wireLength) {
+        this.status     = status;
+        //Case-insensitive copy, as header names are case-insensitive
+        this.headers    = new MetadataMap<>(false, true);
+        this.headers.putAll(headers);
+        this.body       = body;
+        this.wireLength = wireLength;
+    }
+    
+    public int getStatus() {
+        return status;
+    }
+    
+    public MultivaluedMap<String, String> getHeaders() {
+        return headers;
+    }
+    
+    @Nullable
+    public String getHeader(String name) {
+        return headers.getFirst(name);
+    }
+    
+    public byte[] getBody() {
+        return body;
+    }
+    
+    /**
+     * @return the number of body bytes received. Smaller than the length of {@link #getBody()} if the body was
+     * compressed
+     */
+    public long getWireLength() {
+        return wireLength;
+    }
+    
+    @Nullable
+    public MediaType getMediaType() {
+        String contentType = getHeader(HttpHeaders.CONTENT_TYPE);
+        return contentType == null ? null : MediaType.valueOf(contentType);
+    }
+    
+    @Override
+    public String toString() {
+        return "TransportResponse{" + "status=" + status + ", headers=" + headers + ", bodyLength=" + body.length
+               + ", wireLength=" + wireLength + '}';
+    }
+}
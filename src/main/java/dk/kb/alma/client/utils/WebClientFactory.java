@@ -0,0 +1,172 @@
+package dk.kb.alma.client.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.jaxrs.client.JAXRSClientFactoryBean;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.apache.cxf.transport.http.HTTPConduitFactory;
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduitFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the WebClients used by {@link dk.kb.alma.client.HttpClient}.
+ * <p>
+ * All WebClients created by the same factory share one JSON provider (see {@link AlmaJsonModule}), one XML provider
+ * with pooled JAXB (un)marshallers and one CXF bus. The bus uses the pooling
+ * (apache httpcomponents based) conduit, so connections are kept alive and reused across requests instead of
+ * paying for a new connection and TLS handshake on every call.
+ * <p>
+ * The factory is threadsafe. Unless told otherwise, all clients in the JVM share {@link #getDefault()}.
+ */
+public class WebClientFactory implements AutoCloseable {
+    
+    protected final static Logger log = LoggerFactory.getLogger(WebClientFactory.class);
+    
+    private static final WebClientFactory defaultFactory = new WebClientFactory(1000,
+                                                                                25,
+                                                                                TimeUnit.MINUTES.toMillis(5),
+                                                                                TimeUnit.MINUTES.toMillis(1));
+    
+    private final Bus bus;
+    
+    private final AsyncHTTPConduitFactory conduitFactory;
+    
+    private final List<?> providers;
+    
+    private final EntityCodec entityCodec;
+    
+    private final int maxConnections;
+    private final int maxConnectionsPerHost;
+    private final long connectionTTLMillis;
+    private final long connectionMaxIdleMillis;
+    
+    private volatile boolean closed = false;
+    
+    /**
+     * @param maxConnections          the maximum number of open connections in total
+     * @param maxConnectionsPerHost   the maximum number of open connections to any one host
+     * @param connectionTTLMillis     connections older than this are closed rather than reused
+     * @param connectionMaxIdleMillis connections idle for longer than this are evicted from the pool
+     */
+    public WebClientFactory(int maxConnections,
+                            int maxConnectionsPerHost,
+                            long connectionTTLMillis,
+                            long connectionMaxIdleMillis) {
+        this.maxConnections          = maxConnections;
+        this.maxConnectionsPerHost   = maxConnectionsPerHost;
+        this.connectionTTLMillis     = connectionTTLMillis;
+        this.connectionMaxIdleMillis = connectionMaxIdleMillis;
+        
+        Map<String, Object> conduitProperties = new HashMap<>();
+        //Use the pooling conduit for synchronous requests too, not just for async. This is safe, unlike reading the
+        //body from an async callback (see CxfTransport#executeAsync), as a synchronous request reads the body on
+        //the calling thread only. It gives the synchronous requests pooled keep-alive connections
+        conduitProperties.put(AsyncHTTPConduitFactory.USE_POLICY,
+                              AsyncHTTPConduitFactory.UseAsyncPolicy.ALWAYS.name());
+        conduitProperties.put(AsyncHTTPConduitFactory.MAX_CONNECTIONS, String.valueOf(maxConnections));
+        conduitProperties.put(AsyncHTTPConduitFactory.MAX_PER_HOST_CONNECTIONS,
+                              String.valueOf(maxConnectionsPerHost));
+        conduitProperties.put(AsyncHTTPConduitFactory.CONNECTION_TTL, String.valueOf(connectionTTLMillis));
+        conduitProperties.put(AsyncHTTPConduitFactory.CONNECTION_MAX_IDLE, String.valueOf(connectionMaxIdleMillis));
+        conduitProperties.put(AsyncHTTPConduitFactory.SO_KEEPALIVE, "true");
+        
+        this.conduitFactory = new AbortableExchange.ConduitFactory(conduitProperties);
+        this.bus            = BusFactory.newInstance().createBus();
+        bus.setExtension(conduitFactory, HTTPConduitFactory.class);
+        
+        this.providers   = List.of(createJsonProvider(), new PooledJaxbProvider(JaxbContexts.getDefault()));
+        this.entityCodec = new EntityCodec(providers);
+    }
+    
+    /**
+     * @return the factory shared by all clients that have not been given their own
+     */
+    public static WebClientFactory getDefault() {
+        return defaultFactory;
+    }
+    
+    private static JacksonJaxbJsonProvider createJsonProvider() {
+        //The provider is threadsafe once configured, so we only need one
+        JacksonJaxbJsonProvider jacksonJaxbJsonProvider = new JacksonJaxbJsonProvider();
+        //Alma JSON has DOM elements as XML strings, dates as xs:date strings and no list wrappers. The mapper has the
+        //JAXB annotations already, which the provider would otherwise only apply to mappers it creates itself
+        jacksonJaxbJsonProvider.setMapper(AlmaJsonModule.createObjectMapper());
+        jacksonJaxbJsonProvider.disable(DeserializationFeature.UNWRAP_ROOT_VALUE);
+        jacksonJaxbJsonProvider.disable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY);
+        jacksonJaxbJsonProvider.enable(DeserializationFeature.WRAP_EXCEPTIONS);
+        //Like JAXB, ignore what the generated classes do not know of
+        jacksonJaxbJsonProvider.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        
+        jacksonJaxbJsonProvider.enable(JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS.mappedFeature());
+        jacksonJaxbJsonProvider.enable(JsonParser.Feature.IGNORE_UNDEFINED);
+        return jacksonJaxbJsonProvider;
+    }
+    
+    /**
+     * Create a new WebClient for the given base address. The WebClient itself is cheap and NOT threadsafe, but the
+     * connections it uses are pooled and shared with all other WebClients from this factory.
+     *
+     * @param baseAddress the base address, i.e. scheme, host and port
+     * @return a new WebClient
+     * @throws IllegalStateException if the factory is closed
+     */
+    public WebClient create(String baseAddress) {
+        if (closed) {
+            throw new IllegalStateException("The WebClientFactory is closed");
+        }
+        JAXRSClientFactoryBean bean = new JAXRSClientFactoryBean();
+        bean.setBus(bus);
+        bean.setAddress(baseAddress);
+        bean.setProviders(providers);
+        return bean.createWebClient();
+    }
+    
+    public List<?> getProviders() {
+        return providers;
+    }
+    
+    /**
+     * @return the codec used to read and write bodies with the same providers as the WebClients
+     */
+    public EntityCodec getEntityCodec() {
+        return entityCodec;
+    }
+    
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+    
+    public long getConnectionTTLMillis() {
+        return connectionTTLMillis;
+    }
+    
+    public long getConnectionMaxIdleMillis() {
+        return connectionMaxIdleMillis;
+    }
+    
+    /**
+     * Close all pooled connections. WebClients created by this factory cannot be used afterwards, and no more can be
+     * created.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        log.debug("Shutting down connection pool");
+        conduitFactory.shutdown();
+        bus.shutdown(true);
+    }
+}
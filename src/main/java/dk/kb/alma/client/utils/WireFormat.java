@@ -0,0 +1,42 @@
+package dk.kb.alma.client.utils;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * The format of the bodies sent to and requested from Alma, see {@link dk.kb.alma.client.HttpClient#setWireFormat}.
+ * Alma serves both formats for all its APIs, and the generated classes are read and written in both.
+ */
+public enum WireFormat {
+    /**
+     * XML, read and written with JAXB. The default
+     */
+    XML(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE),
+    /**
+     * JSON, read and written with Jackson and {@link AlmaJsonModule}
+     */
+    JSON(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_XML_TYPE);
+    
+    private final MediaType mediaType;
+    
+    private final MediaType fallback;
+    
+    WireFormat(MediaType mediaType, MediaType fallback) {
+        this.mediaType = mediaType;
+        this.fallback  = fallback;
+    }
+    
+    /**
+     * @return the media type of request bodies
+     */
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+    
+    /**
+     * @return the media types to accept, in order of preference. The other format is accepted too, as some
+     * endpoints only serve one of them
+     */
+    public MediaType[] getAccept() {
+        return new MediaType[]{mediaType, fallback};
+    }
+}
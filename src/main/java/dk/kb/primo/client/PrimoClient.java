@@ -3,11 +3,14 @@ package dk.kb.primo.client;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import dk.kb.alma.client.utils.ContentEncoding;
 import dk.kb.util.json.JSON;
 import org.apache.cxf.jaxrs.client.WebClient;
 import org.apache.cxf.jaxrs.impl.UriBuilderImpl;
+import org.apache.cxf.transport.common.gzip.GZIPInInterceptor;
 import org.apache.cxf.transport.http.HTTPConduit;
 
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import java.net.URI;
 import java.util.Arrays;
@@ -24,6 +27,7 @@ public class PrimoClient {
     private final String vid;
     private final String lang;
     private Map<String, String> globalParams;
+    private boolean compressionEnabled = true;
     
     /**
      * @param restBaseURLSuprima
@@ -51,6 +55,12 @@ public class PrimoClient {
         WebClient client = WebClient.create(host.toString(), providers);
         
         
+        if (compressionEnabled) {
+            //The conduit does not decompress, so let CXF inflate gzip and deflate bodies while they are read
+            WebClient.getConfig(client).getInInterceptors().add(new GZIPInInterceptor());
+            client.header(HttpHeaders.ACCEPT_ENCODING, ContentEncoding.ACCEPT_ENCODING);
+        }
+        
         HTTPConduit conduit = WebClient.getConfig(client).getHttpConduit();
         //conduit.getClient().setConnectionTimeout(connectTimeout);
         //conduit.getClient().setConnectionRequestTimeout(connectTimeout);
@@ -76,6 +86,20 @@ public class PrimoClient {
         return client;
     }
     
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+    
+    /**
+     * Control whether responses are requested compressed, by sending {@code Accept-Encoding: gzip, deflate}. Enabled
+     * per default.
+     *
+     * @param compressionEnabled should responses be requested compressed
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+    
     
     // webpack:///src/main/webapp/components/appConfig/appConfig.ts
     
@@ -0,0 +1,157 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.AdaptiveConcurrencyLimiter;
+import dk.kb.alma.client.utils.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveConcurrencyLimiterTest {
+    
+    @Test
+    void testAdditiveIncreaseMultiplicativeDecrease() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 100);
+        limiter.setDecreaseCooldownMillis(0);
+        
+        //Full rounds of healthy responses at the limit raise the limit
+        for (int round = 0; round < 4; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                limiter.acquireAsync();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.onSuccess(null);
+            }
+        }
+        assertEquals(6, limiter.getLimit());
+        
+        limiter.acquireAsync();
+        limiter.onRateLimited();
+        assertEquals(3, limiter.getLimit());
+        
+        //Healthy responses while the limit is mostly unused do not raise it
+        for (int i = 0; i < 10; i++) {
+            limiter.acquireAsync();
+            limiter.onSuccess(null);
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+    
+    @Test
+    void testCooldownAndReserve() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 100);
+        limiter.setRemainingReserve(1000);
+        
+        //A burst of 429s only cuts the limit once
+        for (int i = 0; i < 4; i++) {
+            limiter.acquireAsync();
+        }
+        for (int i = 0; i < 4; i++) {
+            limiter.onRateLimited();
+        }
+        assertEquals(4, limiter.getLimit());
+        
+        //No increase while the daily quota is below the reserve
+        for (int i = 0; i < 4; i++) {
+            limiter.acquireAsync();
+        }
+        for (int i = 0; i < 4; i++) {
+            limiter.onSuccess(999L);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+    
+    @Test
+    void testWaitersAreGrantedInOrder() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        assertTrue(limiter.acquireAsync().isDone());
+        
+        CompletableFuture<Void> cancelled = limiter.acquireAsync();
+        CompletableFuture<Void> second = limiter.acquireAsync();
+        assertFalse(second.isDone());
+        assertEquals(2, limiter.getWaiting());
+        
+        cancelled.cancel(false);
+        limiter.onIgnore();
+        
+        //The cancelled waiter is skipped and holds no permit
+        assertTrue(second.isDone());
+        assertEquals(1, limiter.getInFlight());
+        limiter.onIgnore();
+        assertEquals(0, limiter.getInFlight());
+    }
+    
+    @Test
+    void testTryAcquireGivesUpAfterTimeout() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        assertTrue(limiter.tryAcquire(Priority.NORMAL, 0));
+        
+        long start = System.currentTimeMillis();
+        assertFalse(limiter.tryAcquire(Priority.NORMAL, 100));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        
+        //The request that gave up is no longer waiting, so the permit is free once returned
+        assertEquals(0, limiter.getWaiting());
+        limiter.onIgnore();
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire(Priority.NORMAL, 0));
+    }
+    
+    @Test
+    void testHigherPrioritiesAreGrantedFirst() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.setMaxPassOvers(2);
+        assertTrue(limiter.acquireAsync(Priority.BULK).isDone());
+        
+        List<CompletableFuture<Void>> bulk = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            bulk.add(limiter.acquireAsync(Priority.BULK));
+        }
+        List<CompletableFuture<Void>> interactive = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            interactive.add(limiter.acquireAsync(Priority.INTERACTIVE));
+        }
+        assertEquals(3, limiter.getWaiting(Priority.BULK));
+        assertEquals(4, limiter.getWaiting(Priority.INTERACTIVE));
+        assertEquals(7, limiter.getWaiting());
+        
+        //Interactive requests overtake the bulk requests queued before them...
+        limiter.onIgnore();
+        assertTrue(interactive.get(0).isDone());
+        limiter.onIgnore();
+        assertTrue(interactive.get(1).isDone());
+        //...but bulk is served after being passed over twice
+        limiter.onIgnore();
+        assertTrue(bulk.get(0).isDone());
+        assertFalse(interactive.get(2).isDone());
+        limiter.onIgnore();
+        assertTrue(interactive.get(2).isDone());
+        assertFalse(bulk.get(1).isDone());
+        assertEquals(2, limiter.getWaiting(Priority.BULK));
+    }
+    
+    @Test
+    void testHttpClientCutsLimitOn429() throws Exception {
+        try (StubServer server = new StubServer()) {
+            server.enqueue("/stub", StubServer.Reply.status(429))
+                  .always("/stub", StubServer.Reply.xml(200, HttpClientTransportTest.STUB_BODY));
+            HttpClient client = server.newClient(1000);
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 50);
+            client.setConcurrencyLimiter(limiter);
+            
+            client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+            assertEquals(5, limiter.getLimit());
+            assertEquals(0, limiter.getInFlight());
+            
+            client.getAsync(client.constructLink().path("/stub").query("async", "true"),
+                            HttpClientTransportTest.StubEntity.class).get();
+            assertEquals(0, limiter.getInFlight());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.AdaptiveTimeoutPolicy;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveTimeoutPolicyTest {
+    
+    @Test
+    void testTimeoutFollowsPercentile() {
+        AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy(0.9, 2, 50, 10_000);
+        assertEquals(3000, policy.getTimeoutMillis("/bibs/{id}", 3000, 0));
+        for (int i = 1; i <= 100; i++) {
+            policy.recordLatency("/bibs/{id}", i);
+        }
+        assertEquals(180, policy.getTimeoutMillis("/bibs/{id}", 3000, 0));
+        //Doubled for each timeout, up to the ceiling
+        assertEquals(360, policy.getTimeoutMillis("/bibs/{id}", 3000, 1));
+        assertEquals(10_000, policy.getTimeoutMillis("/bibs/{id}", 3000, 10));
+        //Other endpoints are not affected
+        assertEquals(3000, policy.getTimeoutMillis("/users/{id}", 3000, 0));
+    }
+    
+    @Test
+    void testFloorAndCeiling() {
+        AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy(0.99, 3, 200, 60_000);
+        for (int i = 0; i < 100; i++) {
+            policy.recordLatency("/items", 5);
+            policy.recordLatency("/analytics/reports", 40_000);
+        }
+        assertEquals(200, policy.getTimeoutMillis("/items", 1000, 0));
+        assertEquals(60_000, policy.getTimeoutMillis("/analytics/reports", 1000, 0));
+    }
+    
+    @Test
+    void testHungRequestOnFastEndpointIsRetriedEarly() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/warmup", StubServer.Reply.xml(200, STUB_BODY))
+                      .enqueue("/stub", StubServer.Reply.xml(200, STUB_BODY).delay(3000))
+                      .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(10_000);
+                client.setTransport(transport);
+                client.get(client.constructLink().path("/warmup"), HttpClientTransportTest.StubEntity.class, false);
+                AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy(0.99, 3, 300, 10_000);
+                client.setAdaptiveTimeouts(policy);
+                for (int i = 0; i < 40; i++) {
+                    policy.recordLatency("/stub", 10);
+                }
+                String message = transport.getClass().getSimpleName();
+                
+                long start = System.nanoTime();
+                client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                //Timed out after 300 ms rather than the 10 second read timeout, and retried
+                assertTrue(millis < 2000, message + ": " + millis + "ms");
+                assertEquals(2, server.getHits("/stub"), message);
+            }
+        }
+    }
+    
+    @Test
+    void testSlowEndpointIsNotTimedOut() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/warmup", StubServer.Reply.xml(200, STUB_BODY))
+                      .always("/slow", StubServer.Reply.xml(200, STUB_BODY).delay(500));
+                //The read timeout alone would time out every request
+                HttpClient client = server.newClient(200);
+                client.setTransport(transport);
+                client.get(client.constructLink().path("/warmup"), HttpClientTransportTest.StubEntity.class, false);
+                AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy(0.99, 3, 100, 10_000);
+                client.setAdaptiveTimeouts(policy);
+                for (int i = 0; i < 40; i++) {
+                    policy.recordLatency("/slow", 500);
+                }
+                String message = transport.getClass().getSimpleName();
+                
+                client.get(client.constructLink().path("/slow"), HttpClientTransportTest.StubEntity.class, false);
+                assertEquals(1, server.getHits("/slow"), message);
+                //The latency of the response is learned
+                assertTrue(policy.getTimeouts().get("/slow") >= 1500, message + ": " + policy.getTimeouts());
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package dk.kb.alma.client;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.alma.client.utils.AlmaJsonModule;
+import dk.kb.alma.client.utils.EntityCodec;
+import dk.kb.alma.client.utils.JaxbContexts;
+import dk.kb.alma.client.utils.WebClientFactory;
+import dk.kb.alma.gen.bibs.Bib;
+import dk.kb.alma.gen.items.Items;
+import dk.kb.alma.gen.users.User;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Reads the JSON of the Alma API, as documented for the GET of a bib, the items of a holding and a user, into the
+ * generated classes, and checks that every field arrives, by comparing with the same record read from XML.
+ */
+class AlmaJsonTest {
+    
+    //Fail on anything not mapped, so fields read under the wrong name are not silently dropped
+    private final ObjectMapper mapper = AlmaJsonModule.createObjectMapper()
+                                                      .enable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    
+    private final EntityCodec codec = WebClientFactory.getDefault().getEntityCodec();
+    
+    @Test
+    void testBib() throws Exception {
+        assertSameAsXml("bib", Bib.class, List.of("network_numbers"));
+    }
+    
+    @Test
+    void testItems() throws Exception {
+        assertSameAsXml("items", Items.class, List.of("network_numbers"));
+    }
+    
+    @Test
+    void testUser() throws Exception {
+        assertSameAsXml("user",
+                        User.class,
+                        List.of("addresses",
+                                "address_types",
+                                "emails",
+                                "email_types",
+                                "user_identifiers",
+                                "user_roles",
+                                "parameters"));
+    }
+    
+    /**
+     * @param wrappers the names of the list wrappers of the XML, which Alma leaves out of the JSON
+     */
+    private <T> void assertSameAsXml(String fixture, Class<T> type, List<String> wrappers) throws Exception {
+        T fromXml = JaxbContexts.getDefault().unmarshal(resource(fixture + ".xml"), type);
+        String xml = JaxbContexts.getDefault().marshal(fromXml);
+        
+        T fromJson = mapper.readValue(resource(fixture + ".json"), type);
+        assertEquals(xml, JaxbContexts.getDefault().marshal(fromJson), fixture);
+        
+        //Written as Alma writes it, and read back the same, also by the clients
+        String json = mapper.writeValueAsString(fromXml);
+        for (String wrapper : wrappers) {
+            assertFalse(json.contains("\"" + wrapper + "\""), fixture + " has " + wrapper + ": " + json);
+        }
+        assertEquals(xml, JaxbContexts.getDefault().marshal(mapper.readValue(json, type)), fixture);
+        assertEquals(xml,
+                     JaxbContexts.getDefault().marshal(codec.read(json.getBytes(StandardCharsets.UTF_8),
+                                                                  MediaType.APPLICATION_JSON_TYPE,
+                                                                  type)),
+                     fixture);
+    }
+    
+    private static InputStream resource(String name) throws IOException {
+        InputStream stream = Thread.currentThread().getContextClassLoader().getResourceAsStream("alma_json/" + name);
+        if (stream == null) {
+            throw new IOException("Missing test resource alma_json/" + name);
+        }
+        return stream;
+    }
+}
@@ -0,0 +1,119 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.ApiKeyPool;
+import dk.kb.alma.client.utils.TransportResponse;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ApiKeyPoolTest {
+    
+    @Test
+    void testRoundRobinSkipsThrottledKeys() {
+        ApiKeyPool pool = new ApiKeyPool(List.of("key-1", "key-2", "key-3"), ApiKeyPool.Strategy.ROUND_ROBIN);
+        assertEquals(List.of("key-1", "key-2", "key-3", "key-1"), select(pool, 4));
+        
+        pool.onResponse("key-2", 429, null);
+        assertEquals(List.of("key-3", "key-1", "key-3", "key-1"), select(pool, 4));
+        
+        ApiKeyPool.KeyMetrics metrics = pool.getKeyMetrics().get(1);
+        assertEquals("****ey-2", metrics.getMaskedKey());
+        assertEquals(1, metrics.getThrottled());
+        assertEquals(1, metrics.getRequests());
+        assertTrue(metrics.getCooldownMillis() > 0 && metrics.getCooldownMillis() <= 1000, metrics.toString());
+    }
+    
+    @Test
+    void testLeastRecentlyThrottled() throws InterruptedException {
+        ApiKeyPool pool = new ApiKeyPool(List.of("key-1", "key-2", "key-3"),
+                                         ApiKeyPool.Strategy.LEAST_RECENTLY_THROTTLED);
+        pool.setCooldown(Duration.ofMillis(20), Duration.ofMillis(100));
+        pool.onResponse("key-1", 429, null);
+        Thread.sleep(2);
+        pool.onResponse("key-3", 429, null);
+        Thread.sleep(50);
+        
+        //All are back in rotation, but only key-2 was never throttled
+        assertEquals(List.of("key-2", "key-2"), select(pool, 2));
+        pool.onResponse("key-2", 429, null);
+        //key-1 was throttled longest ago
+        assertEquals(List.of("key-1", "key-1"), select(pool, 2));
+    }
+    
+    @Test
+    void testCooldownDoublesAndAllThrottled() {
+        ApiKeyPool pool = new ApiKeyPool(List.of("key-1", "key-2"), ApiKeyPool.Strategy.ROUND_ROBIN);
+        pool.setCooldown(Duration.ofSeconds(1), Duration.ofSeconds(3));
+        pool.onResponse("key-1", 429, 1000L);
+        pool.onResponse("key-1", 429, 999L);
+        pool.onResponse("key-1", 429, 998L);
+        pool.onResponse("key-2", 429, null);
+        
+        ApiKeyPool.KeyMetrics key1 = pool.getKeyMetrics().get(0);
+        assertTrue(key1.getCooldownMillis() > 2900, key1.toString());
+        assertEquals(998, key1.getRemaining());
+        //When all keys are cooling down, the one back first is used
+        assertEquals(List.of("key-2", "key-2"), select(pool, 2));
+        
+        //Any other response ends the streak
+        pool.onResponse("key-1", 200, null);
+        pool.onResponse("key-1", 429, null);
+        assertTrue(pool.getKeyMetrics().get(0).getCooldownMillis() <= 1000);
+        
+        //Keys not in the pool are ignored
+        pool.onResponse("other", 429, null);
+        assertThrows(IllegalArgumentException.class,
+                     () -> new ApiKeyPool(List.of("key-1", "key-1"), ApiKeyPool.Strategy.ROUND_ROBIN));
+    }
+    
+    @Test
+    void testHttpClientReportsResponsesForTheKeyUsed() throws Exception {
+        ApiKeyPool pool = new ApiKeyPool(List.of("key-1", "key-2"), ApiKeyPool.Strategy.ROUND_ROBIN);
+        try (StubServer server = new StubServer()) {
+            server.enqueue("/stub", StubServer.Reply.status(429))
+                  .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+            List<String> sentWith = new ArrayList<>();
+            HttpClient client = new HttpClient(server.getBaseUri().toString(), 10, 10, Map.of(), 1000, 1000, 0, 3) {
+                @Override
+                protected WebClient removeAuth(WebClient link) {
+                    return link;
+                }
+                
+                @Override
+                protected WebClient addAuth(WebClient link) {
+                    return link.replaceHeader("X-Key", pool.select());
+                }
+                
+                @Override
+                protected void authFeedback(WebClient link, TransportResponse response) {
+                    String key = link.getHeaders().getFirst("X-Key");
+                    sentWith.add(key);
+                    pool.onResponse(key, response.getStatus(), null);
+                }
+            };
+            client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+            
+            //The retry after the 429 went out with the other key, replacing the first
+            assertEquals(List.of("key-1", "key-2"), sentWith);
+            assertEquals("key-2", server.getLastRequestHeaders("/stub").getFirst("X-Key"));
+            assertEquals(1, pool.getKeyMetrics().get(0).getThrottled());
+        }
+    }
+    
+    private static List<String> select(ApiKeyPool pool, int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add(pool.select());
+        }
+        return result;
+    }
+}
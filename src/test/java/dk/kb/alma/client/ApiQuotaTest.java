@@ -0,0 +1,109 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.exceptions.AlmaQuotaReservedException;
+import dk.kb.alma.client.utils.ApiQuota;
+import dk.kb.alma.client.utils.Priority;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ApiQuotaTest {
+    
+    @Test
+    void testForecast() throws InterruptedException {
+        ApiQuota quota = new ApiQuota(100);
+        assertNull(quota.getRemaining());
+        assertNull(quota.getTimeToExhaustion());
+        
+        quota.record(Priority.BULK, 1000L);
+        Thread.sleep(100);
+        //Others use the same API key, so the quota drops faster than our calls
+        quota.record(Priority.BULK, 995L);
+        quota.record(Priority.INTERACTIVE, 990L);
+        quota.record(Priority.INTERACTIVE, null);
+        
+        assertEquals(990, quota.getRemaining());
+        assertTrue(quota.getCallsPerMinute() > 1000, "rate was " + quota.getCallsPerMinute());
+        Duration timeToExhaustion = quota.getTimeToExhaustion();
+        assertTrue(timeToExhaustion.toMillis() >= 9900 && timeToExhaustion.toMillis() < 60000,
+                   "forecast was " + timeToExhaustion);
+        assertTrue(quota.getTimeToReserve().compareTo(timeToExhaustion) < 0);
+        assertEquals(quota.getCallsPerMinute(Priority.BULK), quota.getCallsPerMinute(Priority.INTERACTIVE), 50);
+        assertEquals(0, quota.getCallsPerMinute(Priority.NORMAL));
+        
+        //A renewed quota starts a new measurement
+        quota.record(Priority.NORMAL, 500000L);
+        assertEquals(500000, quota.getRemaining());
+        assertEquals(-1, quota.getCallsPerMinute());
+    }
+    
+    @Test
+    void testReserve() {
+        ApiQuota quota = new ApiQuota(100);
+        quota.record(Priority.BULK, 101L);
+        assertEquals(0, quota.getDelayMillis(Priority.BULK));
+        
+        quota.record(Priority.BULK, 100L);
+        assertEquals(-1, quota.getDelayMillis(Priority.BULK));
+        assertEquals(0, quota.getDelayMillis(Priority.NORMAL));
+        assertEquals(0, quota.getDelayMillis(Priority.INTERACTIVE));
+        assertEquals(1, quota.getRejected());
+        
+        //Throttled to one bulk call per interval instead
+        quota.setBulkInterval(Duration.ofMillis(200));
+        assertEquals(0, quota.getDelayMillis(Priority.BULK));
+        long second = quota.getDelayMillis(Priority.BULK);
+        long third = quota.getDelayMillis(Priority.BULK);
+        assertTrue(second > 150 && second <= 200, "second waited " + second);
+        assertTrue(third > 350 && third <= 400, "third waited " + third);
+        assertEquals(3, quota.getThrottled());
+    }
+    
+    @Test
+    void testHttpClientKeepsReserveFromBulk() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY).header("X-Exl-Api-Remaining", "50"));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                ApiQuota quota = new ApiQuota(100);
+                client.setApiQuota(quota);
+                String message = transport.getClass().getSimpleName();
+                
+                //Nothing is known before the first response
+                try (Priority.Scope ignored = Priority.BULK.apply()) {
+                    client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+                    assertEquals(50, quota.getRemaining(), message);
+                    
+                    assertThrows(AlmaQuotaReservedException.class,
+                                 () -> client.get(client.constructLink().path("/stub"),
+                                                  HttpClientTransportTest.StubEntity.class,
+                                                  false),
+                                 message);
+                    ExecutionException e = assertThrows(ExecutionException.class,
+                                                        () -> client.getAsync(client.constructLink().path("/stub"),
+                                                                              HttpClientTransportTest.StubEntity.class)
+                                                                    .get(),
+                                                        message);
+                    assertInstanceOf(AlmaQuotaReservedException.class, e.getCause(), message);
+                }
+                assertEquals(1, server.getHits("/stub"), message);
+                
+                //The reserve is for the other priorities
+                client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+                assertEquals(2, server.getHits("/stub"), message);
+                assertEquals(2, quota.getRejected(), message);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.CacheKeys;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.UriBuilder;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CacheKeysTest {
+    
+    @Test
+    void testCanonicalKey() {
+        assertEquals(URI.create("https://api.example.com/almaws/v1/bibs/1?expand=None&lang=da&view=full"),
+                     CacheKeys.canonical(URI.create(
+                             "HTTPS://API.example.com/almaws/v1/./bibs/1?view=full&lang=da&expand=None&lang=da#top")));
+        
+        //Unreserved characters are decoded, other escapes kept in upper case
+        assertEquals(CacheKeys.canonical(URI.create("/items?item_barcode=a-1%2fb")),
+                     CacheKeys.canonical(URI.create("/items?item_barcode=%61%2D1%2Fb")));
+        assertNotEquals(CacheKeys.canonical(URI.create("/items?item_barcode=a/b")),
+                        CacheKeys.canonical(URI.create("/items?item_barcode=a%2Fb")));
+        
+        //The order of values of the same parameter is kept, as it can matter
+        assertEquals(URI.create("/users?a=1&q=2&q=1"), CacheKeys.canonical(URI.create("/users?q=2&a=1&q=1&q=2")));
+        
+        //But not the order of IDs
+        assertEquals(URI.create("/bibs?mms_id=1,2,3&view=brief"),
+                     CacheKeys.canonical(URI.create("/bibs?view=brief&mms_id=3%2C1,2,,1")));
+        
+        assertEquals(Map.of("q", List.of("a b+c", "\u00e6"), "flag", List.of("")),
+                     CacheKeys.getQueryParameters(URI.create("/users?q=a%20b+c&flag&q=%C3%A6")));
+    }
+    
+    @Test
+    void testEquivalentLinksShareTheCachedResult() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                
+                client.get(client.constructLink().path("/stub").query("view", "full").query("expand", "None"),
+                           HttpClientTransportTest.StubEntity.class);
+                client.get(client.constructLink().path("/stub").query("expand", "None").query("view", "full"),
+                           HttpClientTransportTest.StubEntity.class);
+                client.getAsync(client.constructLink()
+                                      .path("/stub")
+                                      .query("expand", "None")
+                                      .query("view", "full")
+                                      .query("view", "full"),
+                                HttpClientTransportTest.StubEntity.class).get();
+                assertEquals(1, server.getHits("/stub"), message);
+                
+                //Invalidation finds the cached result, however the link is encoded
+                client.invalidateCachePrefix(URI.create(server.getBaseUri() + "/%73tub"));
+                client.get(client.constructLink().path("/stub").query("view", "full").query("expand", "None"),
+                           HttpClientTransportTest.StubEntity.class);
+                assertEquals(2, server.getHits("/stub"), message);
+            }
+        }
+    }
+    
+    @Test
+    void testBatchIsSplitIntoTheCache() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stubs",
+                              StubServer.Reply.xml(200,
+                                                   "<stubs><stub><value>1</value></stub>"
+                                                   + "<stub><value>2</value></stub></stubs>"))
+                      .always("/stubs/3", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                client.setCacheSplitter(StubBatch.class,
+                                        HttpClientTransportTest.StubEntity.class,
+                                        (batchKey, batch) -> {
+                                            Map<URI, HttpClientTransportTest.StubEntity> parts = new HashMap<>();
+                                            for (HttpClientTransportTest.StubEntity stub : batch.stubs) {
+                                                parts.put(UriBuilder.fromUri(batchKey)
+                                                                    .replaceQuery(null)
+                                                                    .path(stub.value)
+                                                                    .build(), stub);
+                                            }
+                                            return parts;
+                                        });
+                
+                StubBatch batch = client.get(client.constructLink().path("/stubs").query("mms_id", "2,1"),
+                                             StubBatch.class);
+                assertEquals(2, batch.stubs.size(), message);
+                
+                //The same IDs in another order are the same batch
+                client.get(client.constructLink().path("/stubs").query("mms_id", "1,2"), StubBatch.class);
+                assertEquals(1, server.getHits("/stubs"), message);
+                
+                //And each stub of the batch is cached as if fetched on its own
+                HttpClientTransportTest.StubEntity stub = client.get(client.constructLink().path("/stubs/2"),
+                                                                     HttpClientTransportTest.StubEntity.class);
+                assertEquals("2", stub.value, message);
+                assertEquals(0, server.getHits("/stubs/2"), message);
+                
+                client.setCacheSplitter(StubBatch.class, HttpClientTransportTest.StubEntity.class, null);
+                client.get(client.constructLink().path("/stubs").query("mms_id", "1,3"), StubBatch.class);
+                client.get(client.constructLink().path("/stubs/3"), HttpClientTransportTest.StubEntity.class);
+                assertEquals(1, server.getHits("/stubs/3"), message);
+            }
+        }
+    }
+    
+    @XmlRootElement(name = "stubs")
+    public static class StubBatch {
+        @XmlElement(name = "stub")
+        public List<HttpClientTransportTest.StubEntity> stubs;
+    }
+}
@@ -0,0 +1,114 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.exceptions.AlmaCircuitOpenException;
+import dk.kb.alma.client.utils.CircuitBreaker;
+import dk.kb.alma.client.utils.CircuitBreakerRegistry;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+    
+    static final String RETRY_LATER_BODY
+            = "<web_service_result xmlns=\"http://com/exlibris/urm/general/xmlbeans\">"
+              + "<errorsExist>true</errorsExist><errorList><error>"
+              + "<errorCode>GENERAL_ERROR</errorCode>"
+              + "<errorMessage>General error with the API Gateway - please retry later.</errorMessage>"
+              + "</error></errorList></web_service_result>";
+    
+    @Test
+    void testOpensAndRecovers() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(3, 100, 2);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        //A success resets the count of consecutive failures
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejectedCount());
+        
+        Thread.sleep(150);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        //Only two trials at a time
+        assertFalse(breaker.tryAcquire());
+        breaker.onSuccess();
+        //A failed trial opens the breaker again
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+        
+        Thread.sleep(150);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onSuccess();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+    
+    @Test
+    void testClientFailsFastWhileOpen() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/bibs/1", StubServer.Reply.xml(503, RETRY_LATER_BODY))
+                      .always("/bibs/2", StubServer.Reply.xml(200, STUB_BODY))
+                      .always("/users/1", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                client.setCircuitBreakers(new CircuitBreakerRegistry(2, 300, 1));
+                String message = transport.getClass().getSimpleName();
+                
+                //The second failure opens the breaker, so the request is not retried further
+                assertThrows(AlmaCircuitOpenException.class,
+                             () -> client.get(client.constructLink().path("/bibs/1"),
+                                              HttpClientTransportTest.StubEntity.class),
+                             message);
+                assertEquals(2, server.getHits("/bibs/1"), message);
+                assertEquals(CircuitBreaker.State.OPEN,
+                             client.getCircuitBreaker(client.constructLink().path("/bibs/2")).getState(),
+                             message);
+                
+                //Other requests to the group fail without being sent
+                ExecutionException e = assertThrows(ExecutionException.class,
+                                                    () -> client.getAsync(client.constructLink().path("/bibs/2"),
+                                                                          HttpClientTransportTest.StubEntity.class)
+                                                                .get(),
+                                                    message);
+                assertInstanceOf(AlmaCircuitOpenException.class, e.getCause(), message);
+                assertEquals("bibs", ((AlmaCircuitOpenException) e.getCause()).getGroup(), message);
+                assertEquals(0, server.getHits("/bibs/2"), message);
+                
+                //Other groups are not affected
+                assertEquals("hello",
+                             client.get(client.constructLink().path("/users/1"),
+                                        HttpClientTransportTest.StubEntity.class).value,
+                             message);
+                
+                //After the open period, a trial request closes the breaker again
+                Thread.sleep(400);
+                assertEquals("hello",
+                             client.get(client.constructLink().path("/bibs/2"),
+                                        HttpClientTransportTest.StubEntity.class).value,
+                             message);
+                assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitBreakers().getStates().get("bibs"), message);
+            }
+        }
+    }
+}
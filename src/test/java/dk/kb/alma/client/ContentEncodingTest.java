@@ -0,0 +1,110 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.ContentEncoding;
+import dk.kb.alma.client.utils.InMemoryClientMetrics;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentEncodingTest {
+    
+    //Repetitive, like the XML of Alma
+    static final String LARGE_BODY = "<stub><value>" + "hello ".repeat(2000) + "</value></stub>";
+    
+    @Test
+    void testDecodes() throws IOException {
+        byte[] plain = LARGE_BODY.getBytes(StandardCharsets.UTF_8);
+        for (String encoding : new String[]{"gzip", "x-gzip", "deflate", "raw-deflate"}) {
+            byte[] compressed = encoding.equals("raw-deflate") ? deflate(plain, true) :
+                                encoding.equals("deflate") ? deflate(plain, false) : gzip(plain);
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+            headers.putSingle("content-encoding", encoding.equals("raw-deflate") ? "deflate" : encoding);
+            headers.putSingle("Content-Length", String.valueOf(compressed.length));
+            
+            ContentEncoding.Decoded decoded = ContentEncoding.decode(new ByteArrayInputStream(compressed), headers);
+            assertEquals(LARGE_BODY, new String(decoded.getBody(), StandardCharsets.UTF_8), encoding);
+            assertEquals(compressed.length, decoded.getWireLength(), encoding);
+            //The headers described the compressed body
+            assertTrue(headers.isEmpty(), encoding + ": " + headers);
+        }
+    }
+    
+    @Test
+    void testPassesUncompressedThrough() throws IOException {
+        MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        headers.putSingle("Content-Length", "5");
+        ContentEncoding.Decoded decoded = ContentEncoding.decode(new ByteArrayInputStream("hello".getBytes()), headers);
+        assertEquals("hello", new String(decoded.getBody(), StandardCharsets.UTF_8));
+        assertEquals(5, decoded.getWireLength());
+        assertEquals("5", headers.getFirst("Content-Length"));
+    }
+    
+    @Test
+    void testClientNegotiatesCompression() throws IOException {
+        byte[] compressed = gzip(LARGE_BODY.getBytes(StandardCharsets.UTF_8));
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.bytes(200, compressed)
+                                                       .header("Content-Type", "application/xml")
+                                                       .header("Content-Encoding", "gzip"))
+                      .always("/plain", StubServer.Reply.xml(200, HttpClientTransportTest.STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                client.setCachingEnabled(false);
+                InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+                client.setMetrics(metrics);
+                String message = transport.getClass().getSimpleName();
+                
+                HttpClientTransportTest.StubEntity stub = client.get(client.constructLink().path("/stub"),
+                                                                     HttpClientTransportTest.StubEntity.class);
+                assertEquals("hello ".repeat(2000), stub.value, message);
+                assertEquals(ContentEncoding.ACCEPT_ENCODING,
+                             server.getLastRequestHeaders("/stub").getFirst("Accept-Encoding"),
+                             message);
+                
+                InMemoryClientMetrics.EndpointMetrics endpoint = metrics.getEndpoints().values().iterator().next();
+                assertEquals(LARGE_BODY.length(), endpoint.getBytesReceived(), message);
+                assertEquals(compressed.length, endpoint.getWireBytesReceived(), message);
+                
+                //Servers are free to ignore Accept-Encoding
+                assertEquals("hello", client.get(client.constructLink().path("/plain"),
+                                                 HttpClientTransportTest.StubEntity.class).value, message);
+                
+                client.setCompressionEnabled(false);
+                client.get(client.constructLink().path("/plain"), HttpClientTransportTest.StubEntity.class);
+                assertNull(server.getLastRequestHeaders("/plain").getFirst("Accept-Encoding"), message);
+            }
+        }
+    }
+    
+    private static byte[] gzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(plain);
+        }
+        return out.toByteArray();
+    }
+    
+    private static byte[] deflate(byte[] plain, boolean raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+            deflate.write(plain);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.CxfTransport;
+import dk.kb.alma.client.utils.TransportResponse;
+import dk.kb.alma.client.utils.WebClientFactory;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CxfTransportTest {
+    
+    private static final int CONCURRENT_REQUESTS = 100;
+    
+    private static final int ROUNDS = 20;
+    
+    /**
+     * Reproduces why {@link CxfTransport#executeAsync} does not use the async invocation of CXF: reading the body from
+     * an InvocationCallback intermittently loses bytes, as the thread of the conduit and the callback both read the
+     * body. Around 1% of the bodies are corrupted with CXF 3.4.5. If this fails after upgrading CXF, the workaround
+     * can go.
+     */
+    @Test
+    @Tag("slow")
+    void testAsyncConduitCorruptsBodiesReadInCallbacks() throws Exception {
+        String body = bigBody();
+        try (StubServer server = new StubServer()) {
+            server.always("/big", StubServer.Reply.xml(200, body));
+            int broken = 0;
+            for (int round = 0; round < ROUNDS && broken == 0; round++) {
+                List<CompletableFuture<String>> results = new ArrayList<>();
+                for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+                    CompletableFuture<String> result = new CompletableFuture<>();
+                    WebClient request = WebClientFactory.getDefault().create(server.getBaseUri().toString());
+                    request.path("/big").async().get(new InvocationCallback<Response>() {
+                        @Override
+                        public void completed(Response response) {
+                            try {
+                                result.complete(response.readEntity(String.class));
+                            } catch (RuntimeException e) {
+                                result.completeExceptionally(e);
+                            } finally {
+                                response.close();
+                            }
+                        }
+                        
+                        @Override
+                        public void failed(Throwable throwable) {
+                            result.completeExceptionally(throwable);
+                        }
+                    });
+                    results.add(result);
+                }
+                for (CompletableFuture<String> result : results) {
+                    try {
+                        if (!body.equals(result.get(30, TimeUnit.SECONDS))) {
+                            broken++;
+                        }
+                    } catch (ExecutionException e) {
+                        broken++;
+                    }
+                }
+            }
+            assertTrue(broken > 0, "No corrupted body in " + ROUNDS * CONCURRENT_REQUESTS + " requests");
+        }
+    }
+    
+    @Test
+    void testConcurrentBodiesAreIntact() throws Exception {
+        String body = bigBody();
+        CxfTransport transport = new CxfTransport();
+        try (StubServer server = new StubServer()) {
+            server.always("/big", StubServer.Reply.xml(200, body));
+            for (int round = 0; round < 5; round++) {
+                List<CompletableFuture<TransportResponse>> results = new ArrayList<>();
+                for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+                    WebClient request = WebClientFactory.getDefault().create(server.getBaseUri().toString());
+                    results.add(transport.executeAsync(request.path("/big"), HttpClient.Operation.GET, null)
+                                         .whenComplete((response, throwable) -> request.close()));
+                }
+                for (CompletableFuture<TransportResponse> result : results) {
+                    assertEquals(body, new String(result.get(30, TimeUnit.SECONDS).getBody(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+    
+    @Test
+    void testCancelFreesTheConnectionAndThread() throws Exception {
+        //One thread, and one connection per host, so the second request needs both of the first
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CxfTransport transport = new CxfTransport(executor);
+        try (StubServer server = new StubServer();
+             WebClientFactory factory = new WebClientFactory(10, 1, 60000, 60000)) {
+            server.always("/slow", StubServer.Reply.xml(200, HttpClientTransportTest.STUB_BODY).delay(5000))
+                  .always("/fast", StubServer.Reply.xml(200, HttpClientTransportTest.STUB_BODY));
+            WebClient slow = factory.create(server.getBaseUri().toString()).path("/slow");
+            CompletableFuture<TransportResponse> slowResponse
+                    = transport.executeAsync(slow, HttpClient.Operation.GET, null);
+            while (server.getHits("/slow") == 0) {
+                Thread.sleep(10);
+            }
+            assertTrue(slowResponse.cancel(true));
+            
+            long start = System.nanoTime();
+            WebClient fast = factory.create(server.getBaseUri().toString()).path("/fast");
+            try {
+                assertEquals(200,
+                             transport.executeAsync(fast, HttpClient.Operation.GET, null)
+                                      .get(10, TimeUnit.SECONDS)
+                                      .getStatus());
+            } finally {
+                fast.close();
+                slow.close();
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsedMillis < 2500, "Waited " + elapsedMillis + " ms for the connection");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static String bigBody() {
+        StringBuilder body = new StringBuilder("<stub><value>");
+        for (int i = 0; i < 20000; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        return body.append("</value></stub>").toString();
+    }
+}
@@ -0,0 +1,224 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.exceptions.AlmaDeadlineExceededException;
+import dk.kb.alma.client.utils.AdaptiveConcurrencyLimiter;
+import dk.kb.alma.client.utils.ApiQuota;
+import dk.kb.alma.client.utils.Deadline;
+import dk.kb.alma.client.utils.Priority;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeadlineTest {
+    
+    @Test
+    void testScopesKeepEarliest() {
+        assertNull(Deadline.current());
+        Deadline outer = Deadline.after(Duration.ofSeconds(10));
+        try (Deadline.Scope ignored = outer.apply()) {
+            assertSame(outer, Deadline.current());
+            Deadline inner = Deadline.after(Duration.ofSeconds(1));
+            try (Deadline.Scope ignored2 = inner.apply()) {
+                assertSame(inner, Deadline.current());
+                //A later deadline cannot extend the earlier one
+                try (Deadline.Scope ignored3 = Deadline.after(Duration.ofMinutes(1)).apply()) {
+                    assertSame(inner, Deadline.current());
+                }
+            }
+            assertSame(outer, Deadline.current());
+        }
+        assertNull(Deadline.current());
+        assertTrue(Deadline.after(Duration.ZERO).isExpired());
+    }
+    
+    @Test
+    void testDefaultDeadlineStopsEndless429s() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.status(429))
+                      .always("/warmup", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                //The first request of a client is slow, so do not spend the deadline on that
+                client.get(client.constructLink().path("/warmup"), HttpClientTransportTest.StubEntity.class, false);
+                client.setDefaultDeadline(Duration.ofMillis(500));
+                String message = transport.getClass().getSimpleName();
+                
+                long start = System.currentTimeMillis();
+                AlmaDeadlineExceededException e = assertThrows(AlmaDeadlineExceededException.class,
+                                                               () -> client.get(client.constructLink().path("/stub"),
+                                                                                HttpClientTransportTest.StubEntity.class,
+                                                                                false),
+                                                               message);
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue(elapsed < 1500, message + " gave up after " + elapsed + "ms");
+                assertEquals(500, e.getBudgetMillis(), message);
+                assertTrue(e.getRetries() > 1, message + " retried " + e.getRetries() + " times");
+                //The deadline can pass during the last back-off, before the retry is sent
+                int hits = server.getHits("/stub");
+                assertTrue(hits == e.getRetries() || hits == e.getRetries() + 1, message + " got " + hits + " hits");
+            }
+        }
+    }
+    
+    @Test
+    void testDeadlineCutsTimeouts() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/slow", StubServer.Reply.xml(200, STUB_BODY).delay(3000))
+                      .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(10_000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                
+                long start = System.currentTimeMillis();
+                try (Deadline.Scope ignored = Deadline.after(Duration.ofMillis(300)).apply()) {
+                    assertThrows(AlmaDeadlineExceededException.class,
+                                 () -> client.get(client.constructLink().path("/slow"),
+                                                  HttpClientTransportTest.StubEntity.class,
+                                                  false),
+                                 message);
+                    
+                    //Async calls take the deadline of the thread they are started from
+                    CompletableFuture<HttpClientTransportTest.StubEntity> future
+                            = client.getAsync(client.constructLink().path("/slow"),
+                                              HttpClientTransportTest.StubEntity.class,
+                                              false);
+                    ExecutionException e = assertThrows(ExecutionException.class, future::get, message);
+                    assertInstanceOf(AlmaDeadlineExceededException.class, e.getCause(), message);
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue(elapsed < 2000, message + " gave up after " + elapsed + "ms");
+                
+                //Outside the scope there is no deadline
+                HttpClientTransportTest.StubEntity entity = client.get(client.constructLink().path("/stub"),
+                                                                       HttpClientTransportTest.StubEntity.class,
+                                                                       false);
+                assertEquals("hello", entity.value, message);
+            }
+        }
+    }
+    
+    @Test
+    void testDeadlineCapsWaitsForOtherRequests() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/slow", StubServer.Reply.xml(200, STUB_BODY).delay(3000))
+                      .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(10_000);
+                client.setTransport(transport);
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+                client.setConcurrencyLimiter(limiter);
+                String message = transport.getClass().getSimpleName();
+                
+                //Holds the only permit, and is the request the other GETs of /slow wait for
+                CompletableFuture<HttpClientTransportTest.StubEntity> slow
+                        = client.getAsync(client.constructLink().path("/slow"),
+                                          HttpClientTransportTest.StubEntity.class);
+                while (server.getHits("/slow") == 0) {
+                    Thread.sleep(10);
+                }
+                
+                long start = System.currentTimeMillis();
+                try (Deadline.Scope ignored = Deadline.after(Duration.ofMillis(300)).apply()) {
+                    //Waiting for the permit
+                    assertThrows(AlmaDeadlineExceededException.class,
+                                 () -> client.get(client.constructLink().path("/stub"),
+                                                  HttpClientTransportTest.StubEntity.class,
+                                                  false),
+                                 message);
+                    ExecutionException e = assertThrows(ExecutionException.class,
+                                                        () -> client.getAsync(client.constructLink().path("/stub"),
+                                                                              HttpClientTransportTest.StubEntity.class,
+                                                                              false).get(),
+                                                        message);
+                    assertInstanceOf(AlmaDeadlineExceededException.class, e.getCause(), message);
+                }
+                try (Deadline.Scope ignored = Deadline.after(Duration.ofMillis(300)).apply()) {
+                    //Waiting for the concurrent GET of the same URI
+                    assertThrows(AlmaDeadlineExceededException.class,
+                                 () -> client.get(client.constructLink().path("/slow"),
+                                                  HttpClientTransportTest.StubEntity.class),
+                                 message);
+                    ExecutionException e = assertThrows(ExecutionException.class,
+                                                        () -> client.getAsync(client.constructLink().path("/slow"),
+                                                                              HttpClientTransportTest.StubEntity.class)
+                                                                    .get(),
+                                                        message);
+                    assertInstanceOf(AlmaDeadlineExceededException.class, e.getCause(), message);
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue(elapsed < 2000, message + " gave up after " + elapsed + "ms");
+                assertEquals(0, limiter.getWaiting(), message);
+                
+                //The request waited for is not affected, and the permit is not lost
+                assertEquals("hello", slow.get(10, TimeUnit.SECONDS).value, message);
+                assertEquals("hello",
+                             client.get(client.constructLink().path("/stub"),
+                                        HttpClientTransportTest.StubEntity.class,
+                                        false).value,
+                             message);
+                assertEquals(1, server.getHits("/slow"), message);
+                assertEquals(1, server.getHits("/stub"), message);
+            }
+        }
+    }
+    
+    @Test
+    void testDeadlineCapsQuotaThrottling() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY).header("X-Exl-Api-Remaining", "50"));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                ApiQuota quota = new ApiQuota(100);
+                quota.setBulkInterval(Duration.ofSeconds(5));
+                client.setApiQuota(quota);
+                String message = transport.getClass().getSimpleName();
+                
+                try (Priority.Scope ignored = Priority.BULK.apply()) {
+                    //The first learns that the quota is at its reserve, the second takes the slot of this interval
+                    client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+                    client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+                    
+                    long start = System.currentTimeMillis();
+                    try (Deadline.Scope ignored2 = Deadline.after(Duration.ofMillis(300)).apply()) {
+                        assertThrows(AlmaDeadlineExceededException.class,
+                                     () -> client.get(client.constructLink().path("/stub"),
+                                                      HttpClientTransportTest.StubEntity.class,
+                                                      false),
+                                     message);
+                        CompletableFuture<HttpClientTransportTest.StubEntity> future
+                                = client.getAsync(client.constructLink().path("/stub"),
+                                                  HttpClientTransportTest.StubEntity.class,
+                                                  false);
+                        ExecutionException e = assertThrows(ExecutionException.class, future::get, message);
+                        assertInstanceOf(AlmaDeadlineExceededException.class, e.getCause(), message);
+                    }
+                    long elapsed = System.currentTimeMillis() - start;
+                    assertTrue(elapsed < 1000, message + " gave up after " + elapsed + "ms");
+                }
+                assertEquals(2, server.getHits("/stub"), message);
+                
+                //The calls that gave up did not push back the next bulk call
+                assertEquals(1, quota.getThrottled(), message);
+                long nextMillis = quota.getDelayMillis(Priority.BULK);
+                assertTrue(nextMillis <= 5000, message + " must wait " + nextMillis + "ms");
+            }
+        }
+    }
+}
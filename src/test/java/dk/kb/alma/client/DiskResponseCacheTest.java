@@ -0,0 +1,117 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.DiskResponseCache;
+import dk.kb.alma.client.utils.TransportResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiskResponseCacheTest {
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void testSurvivesRestart() {
+        URI uri = URI.create("http://alma/bibs/1");
+        new DiskResponseCache(directory, 1_000_000, 60_000).put(uri, response("first"));
+        
+        DiskResponseCache restarted = new DiskResponseCache(directory, 1_000_000, 60_000);
+        assertEquals(1, restarted.size());
+        TransportResponse response = restarted.get(URI.create("http://alma/bibs/./1"));
+        assertNotNull(response);
+        assertEquals("first", new String(response.getBody(), StandardCharsets.UTF_8));
+        assertEquals(StubServer.XML, response.getHeader(HttpHeaders.CONTENT_TYPE));
+        assertEquals(1, restarted.getHits());
+    }
+    
+    @Test
+    void testExpiry() throws InterruptedException {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1_000_000, 60_000);
+        URI uri = URI.create("http://alma/items/1");
+        cache.put(uri, response("item"), 50);
+        Thread.sleep(100);
+        assertNull(cache.get(uri));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMisses());
+    }
+    
+    @Test
+    void testEvictsLeastRecentlyUsed() {
+        URI first = URI.create("http://alma/bibs/1");
+        DiskResponseCache cache = new DiskResponseCache(directory, 1_000_000, 60_000);
+        cache.put(first, response("x".repeat(1000)));
+        long entryBytes = cache.getSizeBytes();
+        
+        cache = new DiskResponseCache(directory, entryBytes * 3, 60_000);
+        for (int i = 2; i <= 4; i++) {
+            cache.get(first);
+            cache.put(URI.create("http://alma/bibs/" + i), response("x".repeat(1000)));
+        }
+        assertTrue(cache.getSizeBytes() <= entryBytes * 3, cache.toString());
+        assertEquals(1, cache.getEvictions());
+        //The first entry was used most recently, so the second is the one evicted
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(URI.create("http://alma/bibs/2")));
+    }
+    
+    @Test
+    void testInvalidatesPathsAndPrefixes() {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1_000_000, 60_000);
+        cache.put(URI.create("http://alma/bibs/1"), response("bib"));
+        cache.put(URI.create("http://alma/bibs/1?view=brief"), response("brief bib"));
+        cache.put(URI.create("http://alma/bibs/1/holdings"), response("holdings"));
+        cache.put(URI.create("http://alma/bibs/10"), response("other bib"));
+        
+        cache.invalidatePath(URI.create("http://alma/bibs/1"));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(URI.create("http://alma/bibs/1/holdings")));
+        
+        //Also after a restart, where the entries are found by their directories
+        cache = new DiskResponseCache(directory, 1_000_000, 60_000);
+        cache.invalidatePrefix(URI.create("http://alma/bibs/1"));
+        assertNull(cache.get(URI.create("http://alma/bibs/1/holdings")));
+        assertNotNull(cache.get(URI.create("http://alma/bibs/10")));
+        assertEquals(1, cache.size());
+    }
+    
+    @Test
+    void testClientWarmStart() throws Exception {
+        try (StubServer server = new StubServer()) {
+            server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+            
+            HttpClient client = server.newClient(1000);
+            client.setDiskCache(new DiskResponseCache(directory, 1_000_000, 60_000));
+            client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+            
+            HttpClient restarted = server.newClient(1000);
+            restarted.setDiskCache(new DiskResponseCache(directory, 1_000_000, 60_000));
+            assertEquals("hello",
+                         restarted.getAsync(restarted.constructLink().path("/stub"),
+                                            HttpClientTransportTest.StubEntity.class).get().value);
+            assertEquals("hello",
+                         restarted.get(restarted.constructLink().path("/stub"),
+                                       HttpClientTransportTest.StubEntity.class).value);
+            assertEquals(1, server.getHits("/stub"));
+            assertEquals(1, restarted.getDiskCache().getHits());
+        }
+    }
+    
+    private static TransportResponse response(String body) {
+        MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        headers.putSingle(HttpHeaders.CONTENT_TYPE, StubServer.XML);
+        return new TransportResponse(200, headers, body.getBytes(StandardCharsets.UTF_8));
+    }
+}
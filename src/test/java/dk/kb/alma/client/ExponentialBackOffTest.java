@@ -0,0 +1,90 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.BackOffStatistics;
+import dk.kb.alma.client.utils.ExponentialBackOff;
+import dk.kb.alma.client.utils.FixedBackOff;
+import dk.kb.alma.client.utils.RetryReason;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExponentialBackOffTest {
+    
+    @Test
+    void testCeilingGrowsUpToCap() {
+        ExponentialBackOff backOff = new ExponentialBackOff().setLimits(RetryReason.TIMEOUT, 100, 1000);
+        assertEquals(100, backOff.getCeilingMillis(RetryReason.TIMEOUT, 1));
+        assertEquals(200, backOff.getCeilingMillis(RetryReason.TIMEOUT, 2));
+        assertEquals(800, backOff.getCeilingMillis(RetryReason.TIMEOUT, 4));
+        assertEquals(1000, backOff.getCeilingMillis(RetryReason.TIMEOUT, 5));
+        assertEquals(1000, backOff.getCeilingMillis(RetryReason.TIMEOUT, 100));
+        //The other reasons keep their defaults
+        assertEquals(250, backOff.getCeilingMillis(RetryReason.RATE_LIMITED, 1));
+        assertEquals(120_000, backOff.getCeilingMillis(RetryReason.UNAVAILABLE, 1000));
+    }
+    
+    @Test
+    void testFullJitter() {
+        ExponentialBackOff backOff = new ExponentialBackOff().setLimits(RetryReason.SOCKET_EXCEPTION, 100, 400);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long millis = backOff.getBackOffMillis(RetryReason.SOCKET_EXCEPTION, 3, null);
+            assertTrue(millis >= 0 && millis <= 400, "Back-off " + millis + " outside [0, 400]");
+            min = Math.min(min, millis);
+            max = Math.max(max, millis);
+        }
+        //The whole range is used, not just the top
+        assertTrue(min < 100, "Smallest back-off " + min);
+        assertTrue(max > 300, "Largest back-off " + max);
+    }
+    
+    @Test
+    void testRetryAfter() {
+        ExponentialBackOff backOff = new ExponentialBackOff().setMaxRetryAfterMillis(2000);
+        assertEquals(1500, backOff.getBackOffMillis(RetryReason.RATE_LIMITED, 1, 1500L));
+        assertEquals(2000, backOff.getBackOffMillis(RetryReason.RATE_LIMITED, 1, 60_000L));
+        
+        //The fixed back-off waits at least as long as asked
+        FixedBackOff fixed = new FixedBackOff(100, 0);
+        assertEquals(100, fixed.getBackOffMillis(RetryReason.TIMEOUT, 7, null));
+        assertEquals(100, fixed.getBackOffMillis(RetryReason.RATE_LIMITED, 1, 50L));
+        assertEquals(500, fixed.getBackOffMillis(RetryReason.RATE_LIMITED, 1, 500L));
+    }
+    
+    @Test
+    void testClientObeysRetryAfter() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.enqueue("/stub", StubServer.Reply.status(429).header("Retry-After", "1"))
+                      .enqueue("/stub", StubServer.Reply.status(429))
+                      .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                client.setBackOffPolicy(new ExponentialBackOff().setLimits(RetryReason.RATE_LIMITED, 10, 20));
+                String message = transport.getClass().getSimpleName();
+                
+                long start = System.currentTimeMillis();
+                HttpClientTransportTest.StubEntity entity = client.get(client.constructLink().path("/stub"),
+                                                                       HttpClientTransportTest.StubEntity.class,
+                                                                       false);
+                long elapsed = System.currentTimeMillis() - start;
+                assertEquals("hello", entity.value, message);
+                assertEquals(3, server.getHits("/stub"), message);
+                assertTrue(elapsed >= 1000, message + " returned after " + elapsed + "ms");
+                
+                BackOffStatistics statistics = client.getBackOffStatistics();
+                assertEquals(2, statistics.getCount(RetryReason.RATE_LIMITED), message);
+                assertEquals(1, statistics.getRetryAfterCount(RetryReason.RATE_LIMITED), message);
+                assertEquals(1000, statistics.getMaxMillis(RetryReason.RATE_LIMITED), message);
+                assertEquals(0, statistics.getCount(RetryReason.TIMEOUT), message);
+            }
+        }
+    }
+}
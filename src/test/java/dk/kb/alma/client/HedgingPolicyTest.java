@@ -0,0 +1,98 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.HedgingPolicy;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgingPolicyTest {
+    
+    @Test
+    void testDelayFollowsPercentile() {
+        HedgingPolicy policy = new HedgingPolicy(0.9, 0.05);
+        policy.setInitialDelayMillis(500);
+        assertEquals(500, policy.onRequest("/bibs/{id}"));
+        for (int i = 1; i <= 100; i++) {
+            policy.recordLatency("/bibs/{id}", i);
+        }
+        assertEquals(90, policy.getDelayMillis("/bibs/{id}"));
+        //Other endpoints are not affected
+        assertEquals(500, policy.getDelayMillis("/users/{id}"));
+    }
+    
+    @Test
+    void testBudget() {
+        HedgingPolicy policy = new HedgingPolicy(0.95, 0.25);
+        for (int i = 0; i < 3; i++) {
+            policy.onRequest("/bibs/{id}");
+        }
+        assertFalse(policy.tryAcquireHedge());
+        policy.onRequest("/bibs/{id}");
+        assertTrue(policy.tryAcquireHedge());
+        assertFalse(policy.tryAcquireHedge());
+        assertEquals(1, policy.getHedgesSent());
+        assertEquals(2, policy.getHedgesDenied());
+    }
+    
+    @Test
+    void testHedgeWinsOverStalledRequest() throws Exception {
+        for (Transport transport : transports()) {
+            for (boolean async : new boolean[]{true, false}) {
+                try (StubServer server = new StubServer()) {
+                    server.always("/warmup", StubServer.Reply.xml(200, STUB_BODY))
+                          .enqueue("/stub", StubServer.Reply.xml(200, STUB_BODY).delay(3000))
+                          .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                    HttpClient client = server.newClient(5000);
+                    client.setTransport(transport);
+                    //Otherwise the set-up of the first request can delay it so much that the hedge arrives first
+                    client.get(client.constructLink().path("/warmup"), HttpClientTransportTest.StubEntity.class, false);
+                    List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+                    HedgingPolicy policy = new HedgingPolicy(0.95, 1) {
+                        @Override
+                        public void recordLatency(String endpoint, long latencyMillis) {
+                            latencies.add(latencyMillis);
+                            super.recordLatency(endpoint, latencyMillis);
+                        }
+                    };
+                    policy.setInitialDelayMillis(100);
+                    client.setHedgingPolicy(policy);
+                    String message = transport.getClass().getSimpleName() + " async=" + async;
+                    
+                    long start = System.nanoTime();
+                    HttpClientTransportTest.StubEntity entity = async
+                            ? client.getAsync(client.constructLink().path("/stub"),
+                                              HttpClientTransportTest.StubEntity.class,
+                                              false).get()
+                            : client.get(client.constructLink().path("/stub"),
+                                         HttpClientTransportTest.StubEntity.class,
+                                         false);
+                    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    assertEquals("hello", entity.value, message);
+                    assertTrue(elapsedMillis < 2000, message + " took " + elapsedMillis + " ms");
+                    assertEquals(2, server.getHits("/stub"), message);
+                    assertEquals(1, policy.getHedgesSent(), message);
+                    assertEquals(1, policy.getHedgesWon(), message);
+                    //The stalled request counts with the time until the hedge won
+                    assertEquals(1, latencies.size(), message);
+                    assertTrue(latencies.get(0) >= 100, message + " recorded " + latencies);
+                    
+                    //A fast request is not hedged
+                    client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class, false);
+                    Thread.sleep(200);
+                    assertEquals(3, server.getHits("/stub"), message);
+                    assertEquals(1, policy.getHedgesSent(), message);
+                }
+            }
+        }
+    }
+}
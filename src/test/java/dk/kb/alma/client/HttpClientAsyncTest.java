@@ -0,0 +1,115 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.exceptions.AlmaNotFoundException;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.errorBody;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpClientAsyncTest {
+    
+    @Test
+    void testGetAsyncRetriesAndRedirects() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.enqueue("/items", StubServer.Reply.status(429))
+                      .always("/items", StubServer.Reply.redirect("/bibs/1/holdings/2/items/3"))
+                      .always("/bibs/1/holdings/2/items/3", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                CompletableFuture<HttpClientTransportTest.StubEntity> future
+                        = client.getAsync(client.constructLink().path("/items"),
+                                          HttpClientTransportTest.StubEntity.class);
+                assertEquals("hello", future.get().value, transport.getClass().getSimpleName());
+                assertEquals(2, server.getHits("/items"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testGetAsyncUsesCache() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                client.getAsync(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class).get();
+                client.getAsync(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class).get();
+                assertEquals(1, server.getHits("/stub"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testGetAsyncFailure() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(400, errorBody("NOT_FOUND")));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                ExecutionException e = assertThrows(ExecutionException.class,
+                                                     () -> client.getAsync(client.constructLink().path("/stub"),
+                                                                           HttpClientTransportTest.StubEntity.class)
+                                                                 .get());
+                assertTrue(e.getCause() instanceof AlmaNotFoundException, transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testCancelWhileBackingOff() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.status(429));
+                HttpClient client = server.newClient(1000, 500);
+                client.setTransport(transport);
+                
+                CompletableFuture<HttpClientTransportTest.StubEntity> future
+                        = client.getAsync(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+                //Wait for the first 429, so the retry is pending in the scheduler
+                while (server.getHits("/stub") == 0) {
+                    Thread.sleep(10);
+                }
+                future.cancel(true);
+                Thread.sleep(1000);
+                assertEquals(1, server.getHits("/stub"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testManyConcurrentRequests() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY).delay(20));
+                HttpClient client = server.newClient(10000);
+                client.setTransport(transport);
+                
+                List<CompletableFuture<HttpClientTransportTest.StubEntity>> futures = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    futures.add(client.getAsync(client.constructLink().path("/stub").query("i", i),
+                                                HttpClientTransportTest.StubEntity.class));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+                for (CompletableFuture<HttpClientTransportTest.StubEntity> future : futures) {
+                    assertEquals("hello", future.get().value, transport.getClass().getSimpleName());
+                }
+                assertEquals(200, server.getHits("/stub"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+}
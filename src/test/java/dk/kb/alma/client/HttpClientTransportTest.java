@@ -0,0 +1,176 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.exceptions.AlmaConnectionException;
+import dk.kb.alma.client.exceptions.AlmaKnownException;
+import dk.kb.alma.client.exceptions.AlmaNotFoundException;
+import dk.kb.alma.client.utils.CxfTransport;
+import dk.kb.alma.client.utils.JdkHttpTransport;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the same retry, redirect and error mapping scenarios against all transports
+ */
+class HttpClientTransportTest {
+    
+    static final String STUB_BODY = "<stub><value>hello</value></stub>";
+    
+    static String errorBody(String errorCode) {
+        return "<web_service_result xmlns=\"http://com/exlibris/urm/general/xmlbeans\">"
+               + "<errorsExist>true</errorsExist><errorList><error>"
+               + "<errorCode>" + errorCode + "</errorCode><errorMessage>Failed</errorMessage>"
+               + "</error></errorList></web_service_result>";
+    }
+    
+    static List<Transport> transports() {
+        return List.of(new CxfTransport(), new JdkHttpTransport());
+    }
+    
+    @Test
+    void testGet() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                StubEntity entity = client.get(client.constructLink().path("/stub"), StubEntity.class);
+                assertEquals("hello", entity.value, transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testRetryOn429() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.enqueue("/stub", StubServer.Reply.status(429))
+                      .enqueue("/stub", StubServer.Reply.status(429))
+                      .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                StubEntity entity = client.get(client.constructLink().path("/stub"), StubEntity.class, false);
+                assertEquals("hello", entity.value, transport.getClass().getSimpleName());
+                assertEquals(3, server.getHits("/stub"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testRetryOnTimeout() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.enqueue("/stub", StubServer.Reply.xml(200, STUB_BODY).delay(3000))
+                      .always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(300);
+                client.setTransport(transport);
+                
+                StubEntity entity = client.get(client.constructLink().path("/stub"), StubEntity.class, false);
+                assertEquals("hello", entity.value, transport.getClass().getSimpleName());
+                assertEquals(2, server.getHits("/stub"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testInterruptWhileBackingOff() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.status(429));
+                HttpClient client = server.newClient(1000, 60_000);
+                client.setTransport(transport);
+                
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+                AtomicBoolean interrupted = new AtomicBoolean();
+                Thread caller = new Thread(() -> {
+                    try {
+                        client.get(client.constructLink().path("/stub"), StubEntity.class);
+                    } catch (RuntimeException e) {
+                        failure.set(e);
+                        interrupted.set(Thread.currentThread().isInterrupted());
+                    }
+                });
+                caller.start();
+                while (server.getHits("/stub") == 0) {
+                    Thread.sleep(10);
+                }
+                //Give the client time to read the 429 and start backing off
+                Thread.sleep(500);
+                caller.interrupt();
+                caller.join(5000);
+                
+                assertFalse(caller.isAlive(), transport.getClass().getSimpleName());
+                assertTrue(failure.get() instanceof AlmaConnectionException, transport.getClass().getSimpleName());
+                assertTrue(interrupted.get(), transport.getClass().getSimpleName());
+                assertEquals(1, server.getHits("/stub"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testRelativeRedirect() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/items", StubServer.Reply.redirect("/bibs/1/holdings/2/items/3"))
+                      .always("/bibs/1/holdings/2/items/3", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                StubEntity entity = client.get(client.constructLink().path("/items").query("item_barcode", "42"),
+                                               StubEntity.class,
+                                               false);
+                assertEquals("hello", entity.value, transport.getClass().getSimpleName());
+                assertEquals(1, server.getHits("/bibs/1/holdings/2/items/3"), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testKnownError() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(400, errorBody("402203")));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                AlmaKnownException e = assertThrows(AlmaKnownException.class,
+                                                    () -> client.get(client.constructLink().path("/stub"),
+                                                                     StubEntity.class));
+                assertEquals("402203", e.getErrorCode(), transport.getClass().getSimpleName());
+                assertEquals(400, e.getResponse().getStatus(), transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @Test
+    void testNotFound() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(400, errorBody("NOT_FOUND")));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                
+                assertThrows(AlmaNotFoundException.class,
+                             () -> client.get(client.constructLink().path("/stub"), StubEntity.class),
+                             transport.getClass().getSimpleName());
+            }
+        }
+    }
+    
+    @XmlRootElement(name = "stub")
+    public static class StubEntity {
+        public String value;
+    }
+}
@@ -0,0 +1,114 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.HttpUtils;
+import dk.kb.alma.client.utils.InMemoryClientMetrics;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryClientMetricsTest {
+    
+    @Test
+    void testEndpointTemplate() {
+        assertEquals("/almaws/v1/bibs/{id}/holdings/{id}/items",
+                     HttpUtils.getEndpointTemplate(URI.create(
+                             "https://alma/almaws/v1/bibs/99122652604305763/holdings/22475975970005763/items?limit=100")));
+        assertEquals("/almaws/v1/electronic/e-collections/{id}/e-services",
+                     HttpUtils.getEndpointTemplate(URI.create("/almaws/v1/electronic/e-collections/6123/e-services")));
+        assertEquals("/almaws/v1/conf/libraries/{id}/locations",
+                     HttpUtils.getEndpointTemplate(URI.create("/almaws/v1/conf/libraries/KB/locations/")));
+        //Ids are found by their position, not by how they look
+        assertEquals("/almaws/v1/users/{id}", HttpUtils.getEndpointTemplate(URI.create("/almaws/v1/users/abcd")));
+        assertEquals("/almaws/v1/users/{id}/loans/{id}",
+                     HttpUtils.getEndpointTemplate(URI.create("/almaws/v1/users/abcd/loans/1234")));
+        assertEquals("/almaws/v1/conf/code-tables/{id}",
+                     HttpUtils.getEndpointTemplate(URI.create("/almaws/v1/conf/code-tables/UserGroups")));
+        assertEquals("/almaws/v1/task-lists/rs/lending-requests",
+                     HttpUtils.getEndpointTemplate(URI.create("/almaws/v1/task-lists/rs/lending-requests")));
+        assertEquals("/", HttpUtils.getEndpointTemplate(URI.create("http://alma")));
+    }
+    
+    @Test
+    void testLatencyPercentiles() {
+        InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordResponse(HttpClient.Operation.GET,
+                                   "/bibs/{id}",
+                                   200,
+                                   TimeUnit.MILLISECONDS.toNanos(i <= 90 ? 3 : 700),
+                                   10);
+        }
+        InMemoryClientMetrics.EndpointMetrics endpoint = metrics.getEndpoint(HttpClient.Operation.GET, "/bibs/{id}");
+        assertEquals(100, endpoint.getRequests());
+        assertEquals(1000, endpoint.getBytesReceived());
+        assertEquals(5, endpoint.getLatencyP50Millis());
+        assertEquals(700, endpoint.getLatencyP95Millis());
+        assertEquals(700, endpoint.getLatencyMaxMillis());
+        assertEquals((90 * 3 + 10 * 700) / 100, endpoint.getLatencyMeanMillis());
+    }
+    
+    @Test
+    void testClientReportsRetriesRedirectsAndCache() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/old/1", StubServer.Reply.redirect("/bibs/1"))
+                      .enqueue("/bibs/1", StubServer.Reply.status(429))
+                      .always("/bibs/1", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+                client.setMetrics(metrics);
+                String message = transport.getClass().getSimpleName();
+                
+                client.get(client.constructLink().path("/old/1"), HttpClientTransportTest.StubEntity.class);
+                client.getAsync(client.constructLink().path("/old/1"), HttpClientTransportTest.StubEntity.class).get();
+                
+                InMemoryClientMetrics.EndpointMetrics old = metrics.getEndpoint(HttpClient.Operation.GET, "/old/{id}");
+                assertEquals(1, old.getRequests(), message);
+                assertEquals(1, old.getRedirects(), message);
+                assertEquals(1, old.getCacheMisses(), message);
+                assertEquals(1, old.getCacheHits(), message);
+                
+                InMemoryClientMetrics.EndpointMetrics bib = metrics.getEndpoint(HttpClient.Operation.GET, "/bibs/{id}");
+                assertEquals(2, bib.getRequests(), message);
+                assertEquals(1, bib.getRateLimited(), message);
+                assertEquals(1, bib.getErrors(), message);
+                assertEquals(1, bib.getOtherRetries(), message);
+                assertTrue(bib.getBackOffMillis() >= 10, message);
+                assertEquals(STUB_BODY.getBytes().length, bib.getBytesReceived(), message);
+                assertTrue(bib.getLatencyMaxMillis() >= bib.getLatencyP50Millis(), message);
+                assertEquals(1, metrics.getRateLimited(), message);
+            }
+        }
+    }
+    
+    @Test
+    void testJmx() throws Exception {
+        InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+        metrics.recordResponse(HttpClient.Operation.PUT, "/users/{id}", 429, TimeUnit.MILLISECONDS.toNanos(15), 0);
+        ObjectName name = metrics.registerMBean("test");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RateLimited"));
+            TabularData endpoints
+                    = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Endpoints");
+            CompositeData endpoint = (CompositeData) endpoints.get(new Object[]{"PUT /users/{id}"}).get("value");
+            assertEquals(1L, endpoint.get("requests"));
+            assertEquals(15L, endpoint.get("latencyP99Millis"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
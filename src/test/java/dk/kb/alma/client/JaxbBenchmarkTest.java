@@ -0,0 +1,79 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.JaxbContexts;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the cost per call of marshalling and unmarshalling with a new context (as {@code XML.marshall} does), with
+ * a cached context but new (un)marshallers (as the default CXF provider does), and with the pooled
+ * {@link JaxbContexts}.
+ */
+@Tag("slow")
+class JaxbBenchmarkTest {
+    
+    private static final Logger log = LoggerFactory.getLogger(JaxbBenchmarkTest.class);
+    
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 20_000;
+    
+    @Test
+    void benchmarkMarshalling() throws Exception {
+        HttpClientTransportTest.StubEntity stub = new HttpClientTransportTest.StubEntity();
+        stub.value = "hello";
+        byte[] xml = HttpClientTransportTest.STUB_BODY.getBytes(StandardCharsets.UTF_8);
+        JAXBContext cachedContext = JAXBContext.newInstance(HttpClientTransportTest.StubEntity.class);
+        JaxbContexts pooled = new JaxbContexts(16);
+        
+        measure("marshal, new context", WARMUP / 10, ITERATIONS / 10, () -> {
+            Marshaller marshaller = JAXBContext.newInstance(stub.getClass()).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            StringWriter writer = new StringWriter();
+            marshaller.marshal(stub, writer);
+            return writer.toString();
+        });
+        measure("marshal, new marshaller", WARMUP, ITERATIONS, () -> {
+            Marshaller marshaller = cachedContext.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            StringWriter writer = new StringWriter();
+            marshaller.marshal(stub, writer);
+            return writer.toString();
+        });
+        measure("marshal, pooled", WARMUP, ITERATIONS, () -> pooled.marshal(stub));
+        
+        measure("unmarshal, new unmarshaller", WARMUP, ITERATIONS, () -> {
+            Unmarshaller unmarshaller = cachedContext.createUnmarshaller();
+            return unmarshaller.unmarshal(new ByteArrayInputStream(xml));
+        });
+        measure("unmarshal, pooled", WARMUP, ITERATIONS, () -> {
+            HttpClientTransportTest.StubEntity result
+                    = pooled.unmarshal(new ByteArrayInputStream(xml), HttpClientTransportTest.StubEntity.class);
+            assertEquals("hello", result.value);
+            return result;
+        });
+    }
+    
+    private void measure(String name, int warmup, int iterations, Callable<Object> call) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            call.call();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.call();
+        }
+        long nanosPerCall = (System.nanoTime() - start) / iterations;
+        log.info("{}: {} ns/call over {} calls", name, nanosPerCall, iterations);
+    }
+}
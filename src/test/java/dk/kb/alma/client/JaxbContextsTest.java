@@ -0,0 +1,100 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.JaxbContexts;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JaxbContextsTest {
+    
+    @Test
+    void testPoolsUnmarshallers() throws Exception {
+        JaxbContexts contexts = new JaxbContexts(4);
+        for (int i = 0; i < 100; i++) {
+            HttpClientTransportTest.StubEntity stub = contexts.unmarshal(stream(HttpClientTransportTest.STUB_BODY),
+                                                                         HttpClientTransportTest.StubEntity.class);
+            assertEquals("hello", stub.value);
+        }
+        assertEquals(1, contexts.getContextCount());
+        assertEquals(1, contexts.getCreatedUnmarshallers());
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 800; i++) {
+                String value = "value" + i;
+                futures.add(executor.submit(() -> contexts.unmarshal(stream("<stub><value>" + value + "</value></stub>"),
+                                                                     HttpClientTransportTest.StubEntity.class).value));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("value" + i, futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        //At most one per thread, however many calls
+        assertTrue(contexts.getCreatedUnmarshallers() <= 9, "Created " + contexts.getCreatedUnmarshallers());
+    }
+    
+    @Test
+    void testMarshal() throws JAXBException {
+        JaxbContexts contexts = new JaxbContexts(4);
+        HttpClientTransportTest.StubEntity stub = new HttpClientTransportTest.StubEntity();
+        stub.value = "hello";
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        contexts.marshal(stub, out);
+        assertTrue(out.toString(StandardCharsets.UTF_8).endsWith(HttpClientTransportTest.STUB_BODY),
+                   out.toString(StandardCharsets.UTF_8));
+        //Indented for log messages
+        assertTrue(contexts.marshal(stub).contains("\n    <value>hello</value>"), contexts.marshal(stub));
+        
+        //Types without a root element are named after the class
+        NoRoot noRoot = new NoRoot();
+        noRoot.name = "test";
+        assertTrue(contexts.marshal(noRoot).contains("<noRoot>"), contexts.marshal(noRoot));
+        //One marshaller for each of the two contexts, reused for the later calls
+        assertEquals(2, contexts.getCreatedMarshallers());
+    }
+    
+    @Test
+    void testRejectsDoctype() {
+        JaxbContexts contexts = new JaxbContexts(4);
+        String xxe = "<?xml version=\"1.0\"?><!DOCTYPE stub [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+                     + "<stub><value>&xxe;</value></stub>";
+        assertThrows(JAXBException.class,
+                     () -> contexts.unmarshal(stream(xxe), HttpClientTransportTest.StubEntity.class));
+    }
+    
+    @Test
+    void testPrewarmSkipsMissingPackages() {
+        JaxbContexts contexts = new JaxbContexts(4);
+        assertEquals(0, contexts.prewarm(List.of("dk.kb.alma.gen.does_not_exist")));
+        assertEquals(0, contexts.getContextCount());
+    }
+    
+    private static ByteArrayInputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @XmlType
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class NoRoot {
+        public String name;
+    }
+}
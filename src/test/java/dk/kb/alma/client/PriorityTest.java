@@ -0,0 +1,84 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.AdaptiveConcurrencyLimiter;
+import dk.kb.alma.client.utils.InMemoryClientMetrics;
+import dk.kb.alma.client.utils.Priority;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriorityTest {
+    
+    @Test
+    void testScopesKeepInnermost() {
+        assertNull(Priority.current());
+        try (Priority.Scope ignored = Priority.BULK.apply()) {
+            assertEquals(Priority.BULK, Priority.current());
+            try (Priority.Scope ignored2 = Priority.INTERACTIVE.apply()) {
+                assertEquals(Priority.INTERACTIVE, Priority.current());
+            }
+            assertEquals(Priority.BULK, Priority.current());
+        }
+        assertNull(Priority.current());
+    }
+    
+    @Test
+    void testInteractiveOvertakesBulk() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/bulk", StubServer.Reply.xml(200, STUB_BODY).delay(50))
+                      .always("/interactive", StubServer.Reply.xml(200, STUB_BODY))
+                      .always("/warmup", StubServer.Reply.xml(200, STUB_BODY));
+                HttpClient bulkClient = server.newClient(1000);
+                bulkClient.setTransport(transport);
+                bulkClient.get(bulkClient.constructLink().path("/warmup"), HttpClientTransportTest.StubEntity.class);
+                
+                //Two clients sharing one request at a time, like the batch and desk parts of one application
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+                InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+                bulkClient.setConcurrencyLimiter(limiter);
+                bulkClient.setDefaultPriority(Priority.BULK);
+                bulkClient.setMetrics(metrics);
+                HttpClient interactiveClient = server.newClient(1000);
+                interactiveClient.setTransport(transport);
+                interactiveClient.setConcurrencyLimiter(limiter);
+                interactiveClient.setMetrics(metrics);
+                String message = transport.getClass().getSimpleName();
+                
+                List<CompletableFuture<HttpClientTransportTest.StubEntity>> bulk = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    bulk.add(bulkClient.getAsync(bulkClient.constructLink().path("/bulk").query("i", i),
+                                                 HttpClientTransportTest.StubEntity.class));
+                }
+                CompletableFuture<HttpClientTransportTest.StubEntity> interactive;
+                try (Priority.Scope ignored = Priority.INTERACTIVE.apply()) {
+                    interactive = interactiveClient.getAsync(interactiveClient.constructLink().path("/interactive"),
+                                                             HttpClientTransportTest.StubEntity.class);
+                }
+                interactive.get();
+                //The interactive request waited for the bulk request in flight, not for the queue
+                long bulkDone = bulk.stream().filter(CompletableFuture::isDone).count();
+                assertTrue(bulkDone <= 2, message + ": " + bulkDone + " bulk requests were sent first");
+                CompletableFuture.allOf(bulk.toArray(new CompletableFuture[0])).get();
+                
+                InMemoryClientMetrics.QueueMetrics bulkQueue = metrics.getQueue(Priority.BULK);
+                InMemoryClientMetrics.QueueMetrics interactiveQueue = metrics.getQueue(Priority.INTERACTIVE);
+                assertEquals(10, bulkQueue.getRequests(), message);
+                assertEquals(1, interactiveQueue.getRequests(), message);
+                assertTrue(interactiveQueue.getQueueMaxMillis() < bulkQueue.getQueueMaxMillis(),
+                           message + ": " + metrics);
+                assertFalse(metrics.getQueues().containsKey(Priority.NORMAL.name()), message);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.ResponseCache;
+import dk.kb.alma.client.utils.Transport;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCacheTest {
+    
+    @Test
+    void testEvictsByWeight() {
+        ResponseCache cache = new ResponseCache(30_000, 60_000);
+        for (int i = 0; i < 100; i++) {
+            cache.put(URI.create("/bibs/" + i), String.class, "bib " + i, 1000);
+        }
+        assertTrue(cache.getWeightBytes() <= 30_000, cache.toString());
+        assertTrue(cache.size() <= 30, cache.toString());
+        assertEquals(100 - cache.size(), cache.getStats().evictionCount());
+        
+        //The most recent entry is kept
+        assertEquals("bib 99", cache.get(URI.create("/bibs/99"), String.class));
+        assertNull(cache.get(URI.create("/bibs/0"), String.class));
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(1, cache.getStats().missCount());
+    }
+    
+    @Test
+    void testLimitsPerType() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(1000, 60_000);
+        cache.setLimits(Integer.class, 1000, 50);
+        cache.put(URI.create("/string"), String.class, "string", 10);
+        cache.put(URI.create("/integer"), Integer.class, 42, 10);
+        
+        Thread.sleep(100);
+        assertEquals("string", cache.get(URI.create("/string"), String.class));
+        assertNull(cache.get(URI.create("/integer"), Integer.class));
+        assertEquals(1, cache.getStats(Integer.class).missCount());
+        assertEquals(0, cache.getStats(Integer.class).hitCount());
+        //Not cached as another type
+        assertNull(cache.get(URI.create("/string"), Integer.class));
+    }
+    
+    @Test
+    void testClientWeighsByBodySize() throws Exception {
+        try (StubServer server = new StubServer()) {
+            server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+            HttpClient client = server.newClient(1000);
+            
+            client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+            client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+            
+            assertEquals(1, server.getHits("/stub"));
+            assertEquals(STUB_BODY.getBytes().length, client.getResponseCache().getWeightBytes());
+            assertEquals(1, client.getResponseCache().getStats().hitCount());
+        }
+    }
+    
+    @Test
+    void testRevalidatesExpiredEntries() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.enqueue("/stub", StubServer.Reply.xml(200, STUB_BODY).header("ETag", "\"v1\""))
+                      .always("/stub", StubServer.Reply.status(304));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                client.setResponseCache(new ResponseCache(1_000_000, 50));
+                String message = transport.getClass().getSimpleName();
+                
+                HttpClientTransportTest.StubEntity first
+                        = client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+                Thread.sleep(100);
+                HttpClientTransportTest.StubEntity second
+                        = client.get(client.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class);
+                assertSame(first, second, message);
+                assertEquals("\"v1\"", server.getLastRequestHeaders("/stub").getFirst("If-None-Match"), message);
+                
+                Thread.sleep(100);
+                assertSame(first,
+                           client.getAsync(client.constructLink().path("/stub"),
+                                           HttpClientTransportTest.StubEntity.class).get(),
+                           message);
+                
+                assertEquals(3, server.getHits("/stub"), message);
+                assertEquals(2, client.getResponseCache().getRevalidationCount(), message);
+                assertEquals(2, client.getResponseCache().getNotModifiedCount(), message);
+                assertEquals(2L * STUB_BODY.getBytes().length, client.getResponseCache().getNotModifiedBytes(), message);
+            }
+        }
+    }
+    
+    @Test
+    void testInvalidatesPathsAndPrefixes() {
+        ResponseCache cache = new ResponseCache(1_000_000, 60_000);
+        cache.put(URI.create("/bibs/1"), String.class, "bib", 10);
+        cache.put(URI.create("/bibs/1?view=brief"), String.class, "brief bib", 10);
+        cache.put(URI.create("/bibs/1/holdings"), String.class, "holdings", 10);
+        cache.put(URI.create("/bibs/10"), String.class, "other bib", 10);
+        
+        cache.invalidatePath(URI.create("/bibs/1/"));
+        assertNull(cache.get(URI.create("/bibs/1"), String.class));
+        assertNull(cache.get(URI.create("/bibs/1?view=brief"), String.class));
+        assertEquals("holdings", cache.get(URI.create("/bibs/1/holdings"), String.class));
+        
+        cache.invalidatePrefix(URI.create("/bibs/1"));
+        assertNull(cache.get(URI.create("/bibs/1/holdings"), String.class));
+        assertEquals("other bib", cache.get(URI.create("/bibs/10"), String.class));
+        assertEquals(1, cache.size());
+    }
+    
+    @Test
+    void testWritesInvalidateHierarchy() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                String item = "/bibs/1/holdings/2/items/3";
+                for (String path : List.of(item, "/bibs/1/holdings/2/items", "/items", "/bibs/9")) {
+                    server.always(path, StubServer.Reply.xml(200, STUB_BODY));
+                }
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                
+                List<Supplier<WebClient>> links = List.of(() -> client.constructLink().path(item),
+                                                          () -> client.constructLink().path(item).query("view", "label"),
+                                                          () -> client.constructLink().path("/bibs/1/holdings/2/items"),
+                                                          () -> client.constructLink().path("/items")
+                                                                      .query("item_barcode", "1234"),
+                                                          () -> client.constructLink().path("/bibs/9"));
+                for (int i = 0; i < 2; i++) {
+                    for (Supplier<WebClient> link : links) {
+                        client.get(link.get(), HttpClientTransportTest.StubEntity.class);
+                    }
+                }
+                assertEquals(5, client.getResponseCache().size(), message);
+                
+                client.put(client.constructLink().path(item), HttpClientTransportTest.StubEntity.class, null);
+                assertEquals(1, client.getResponseCache().size(), message);
+                for (Supplier<WebClient> link : links) {
+                    client.get(link.get(), HttpClientTransportTest.StubEntity.class);
+                }
+                //The item and the item with a view, both before and after the PUT
+                assertEquals(2 + 1 + 2, server.getHits(item), message);
+                assertEquals(2, server.getHits("/bibs/1/holdings/2/items"), message);
+                assertEquals(2, server.getHits("/items"), message);
+                assertEquals(1, server.getHits("/bibs/9"), message);
+                
+                client.deleteAsync(client.constructLink().path("/bibs/1"), HttpClientTransportTest.StubEntity.class)
+                      .handle((value, throwable) -> null)
+                      .get();
+                //Only the item lookup and the other bib are left
+                assertEquals(2, client.getResponseCache().size(), message);
+            }
+        }
+    }
+}
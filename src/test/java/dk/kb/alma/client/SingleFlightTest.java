@@ -0,0 +1,198 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.exceptions.AlmaDeadlineExceededException;
+import dk.kb.alma.client.utils.Deadline;
+import dk.kb.alma.client.utils.Priority;
+import dk.kb.alma.client.utils.SingleFlight;
+import dk.kb.alma.client.utils.Transport;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+    
+    @Test
+    void testConcurrentCallsShareResultAndException() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        IllegalStateException failure = new IllegalStateException("boom");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw failure;
+            }));
+            started.await();
+            List<Future<String>> others = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                others.add(executor.submit(() -> singleFlight.execute("key", () -> {
+                    calls.incrementAndGet();
+                    return "not coalesced";
+                })));
+            }
+            //Wait for the others to join the flight before completing it
+            while (singleFlight.getCoalesced() < 3) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            
+            for (Future<String> future : others) {
+                Exception e = assertThrows(Exception.class, future::get);
+                assertSame(failure, e.getCause());
+            }
+            assertSame(failure, assertThrows(Exception.class, first::get).getCause());
+            assertEquals(1, calls.get());
+            assertEquals(1, singleFlight.getPerformed());
+            assertEquals(0, singleFlight.getInFlight());
+            
+            //The flight is over, so the next call is performed again
+            assertEquals("again", singleFlight.execute("key", () -> "again"));
+            assertEquals(2, singleFlight.getPerformed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void testCancelOnlyWhenAllCallersCancel() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CompletableFuture<String> source = new CompletableFuture<>();
+        
+        CompletableFuture<String> first = singleFlight.executeAsync("key", () -> source);
+        CompletableFuture<String> second = singleFlight.executeAsync("key", CompletableFuture::new);
+        assertEquals(1, singleFlight.getCoalesced());
+        
+        first.cancel(true);
+        assertFalse(source.isCancelled());
+        second.cancel(true);
+        assertTrue(source.isCancelled());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+    
+    @Test
+    void testConcurrentGetsAreCoalesced() throws Exception {
+        for (Transport transport : transports()) {
+            for (boolean useCache : new boolean[]{true, false}) {
+                try (StubServer server = new StubServer()) {
+                    server.always("/stub", StubServer.Reply.xml(200, STUB_BODY).delay(300));
+                    HttpClient client = server.newClient(2000);
+                    client.setTransport(transport);
+                    String message = transport.getClass().getSimpleName() + " useCache=" + useCache;
+                    
+                    List<WebClient> links = new ArrayList<>();
+                    for (int i = 0; i < 10; i++) {
+                        links.add(client.constructLink().path("/stub"));
+                    }
+                    List<CompletableFuture<HttpClientTransportTest.StubEntity>> futures = new ArrayList<>();
+                    for (WebClient link : links) {
+                        futures.add(client.getAsync(link, HttpClientTransportTest.StubEntity.class, useCache));
+                    }
+                    //A blocking GET joins the same request
+                    assertEquals("hello",
+                                 client.get(client.constructLink().path("/stub"),
+                                            HttpClientTransportTest.StubEntity.class,
+                                            useCache).value,
+                                 message);
+                    for (CompletableFuture<HttpClientTransportTest.StubEntity> future : futures) {
+                        assertEquals("hello", future.get(5, TimeUnit.SECONDS).value, message);
+                    }
+                    assertEquals(1, server.getHits("/stub"), message);
+                    assertEquals(10, client.getSingleFlight().getCoalesced(), message);
+                }
+            }
+        }
+    }
+    
+    @Test
+    void testOnlyAlikeGetsAreCoalesced() throws Exception {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/stub", StubServer.Reply.xml(200, STUB_BODY).delay(300))
+                      .always("/slow", StubServer.Reply.xml(200, STUB_BODY).delay(2500));
+                HttpClient client = server.newClient(5000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                
+                //Cached and uncached GETs do not share a request
+                CompletableFuture<HttpClientTransportTest.StubEntity> cached
+                        = client.getAsync(client.constructLink().path("/stub"),
+                                          HttpClientTransportTest.StubEntity.class);
+                HttpClientTransportTest.StubEntity uncached = client.get(client.constructLink().path("/stub"),
+                                                                         HttpClientTransportTest.StubEntity.class,
+                                                                         false);
+                assertEquals("hello", uncached.value, message);
+                assertEquals("hello", cached.get(5, TimeUnit.SECONDS).value, message);
+                assertEquals(2, server.getHits("/stub"), message);
+                
+                //Nor do GETs of different priorities
+                CompletableFuture<HttpClientTransportTest.StubEntity> bulk;
+                try (Priority.Scope scope = Priority.BULK.apply()) {
+                    bulk = client.getAsync(client.constructLink().path("/stub"),
+                                           HttpClientTransportTest.StubEntity.class,
+                                           false);
+                }
+                try (Priority.Scope scope = Priority.INTERACTIVE.apply()) {
+                    assertEquals("hello",
+                                 client.get(client.constructLink().path("/stub"),
+                                            HttpClientTransportTest.StubEntity.class,
+                                            false).value,
+                                 message);
+                }
+                assertEquals("hello", bulk.get(5, TimeUnit.SECONDS).value, message);
+                assertEquals(4, server.getHits("/stub"), message);
+                
+                //A caller waiting for a GET that fails on the deadline of its caller makes its own. The GET is slower
+                // than the second it can take the CXF conduit to notice a timeout
+                CompletableFuture<HttpClientTransportTest.StubEntity> hurried;
+                try (Deadline.Scope scope = Deadline.after(Duration.ofMillis(200)).apply()) {
+                    hurried = client.getAsync(client.constructLink().path("/slow"),
+                                              HttpClientTransportTest.StubEntity.class,
+                                              false);
+                }
+                CompletableFuture<HttpClientTransportTest.StubEntity> patient
+                        = client.getAsync(client.constructLink().path("/slow"),
+                                          HttpClientTransportTest.StubEntity.class,
+                                          false);
+                assertEquals("hello",
+                             client.get(client.constructLink().path("/slow"),
+                                        HttpClientTransportTest.StubEntity.class,
+                                        false).value,
+                             message);
+                assertEquals("hello", patient.get(10, TimeUnit.SECONDS).value, message);
+                ExecutionException e = assertThrows(ExecutionException.class,
+                                                    () -> hurried.get(5, TimeUnit.SECONDS),
+                                                    message);
+                assertTrue(e.getCause() instanceof AlmaDeadlineExceededException, message + ": " + e.getCause());
+                assertEquals(2, server.getHits("/slow"), message);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.StreamingListReader;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.ProcessingException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingListReaderTest {
+    
+    static final String STUBS_BODY = "<stubs total_record_count=\"3\">"
+                                     + "<link>http://example.com/stubs</link>"
+                                     + "<stub><value>a</value></stub><stub><value>b</value></stub>\n"
+                                     + "  <stub><value>c</value></stub>"
+                                     + "</stubs>";
+    
+    @Test
+    void testReadsLazily() {
+        ClosingStream stream = new ClosingStream(STUBS_BODY);
+        try (StreamingListReader<HttpClientTransportTest.StubEntity> reader
+                     = new StreamingListReader<>(stream, HttpClientTransportTest.StubEntity.class)) {
+            assertEquals(3L, reader.getTotalRecordCount());
+            assertEquals(0, reader.getCount());
+            
+            assertTrue(reader.hasNext());
+            assertEquals("a", reader.next().value);
+            assertEquals(1, reader.getCount());
+            //Adjacent elements are not skipped
+            assertEquals("b", reader.next().value);
+            assertTrue(reader.hasNext());
+            assertTrue(reader.hasNext());
+            assertEquals("c", reader.next().value);
+            assertFalse(stream.closed);
+            assertFalse(reader.hasNext());
+            //Released at the end of the list, also if the reader is never closed
+            assertTrue(stream.closed);
+        }
+    }
+    
+    @Test
+    void testClosesWhenReadingFails() {
+        ClosingStream stream = new ClosingStream("<stubs><stub><value>a</value></stub><stub><value>b</stub></stubs>");
+        StreamingListReader<HttpClientTransportTest.StubEntity> reader
+                = new StreamingListReader<>(stream, HttpClientTransportTest.StubEntity.class);
+        assertEquals("a", reader.next().value);
+        assertThrows(ProcessingException.class, reader::next);
+        assertTrue(stream.closed);
+        assertFalse(reader.hasNext());
+    }
+    
+    @Test
+    void testEmptyList() {
+        List<HttpClientTransportTest.StubEntity> stubs = new ArrayList<>();
+        Long total = StreamingListReader.forEach(stream("<stubs/>"),
+                                                 "stub",
+                                                 HttpClientTransportTest.StubEntity.class,
+                                                 stubs::add);
+        assertNull(total);
+        assertTrue(stubs.isEmpty());
+    }
+    
+    @Test
+    void testClientStreams() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.enqueue("/stubs", StubServer.Reply.status(429))
+                      .always("/stubs", StubServer.Reply.xml(200, STUBS_BODY));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                
+                List<String> values = new ArrayList<>();
+                Long total = client.getStreaming(client.constructLink().path("/stubs"),
+                                                 "stub",
+                                                 HttpClientTransportTest.StubEntity.class,
+                                                 stub -> values.add(stub.value));
+                assertEquals(3L, total, message);
+                assertEquals(List.of("a", "b", "c"), values, message);
+                //Retried as any other GET
+                assertEquals(2, server.getHits("/stubs"), message);
+                assertEquals("application/xml", server.getLastRequestHeaders("/stubs").getFirst("Accept"), message);
+            }
+        }
+    }
+    
+    @Test
+    void testElementsAreReadBeforeTheResponseIsReceived() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                //The rest of the list is sent 3 seconds after the first element
+                server.always("/stubs",
+                              StubServer.Reply.xml(200, STUBS_BODY).stall(STUBS_BODY.indexOf("b</value>"), 3000));
+                HttpClient client = server.newClient(10000);
+                client.setTransport(transport);
+                String message = transport.getClass().getSimpleName();
+                
+                long start = System.nanoTime();
+                try (StreamingListReader<HttpClientTransportTest.StubEntity> reader
+                             = client.getIterator(client.constructLink().path("/stubs"),
+                                                  "stub",
+                                                  HttpClientTransportTest.StubEntity.class)) {
+                    assertEquals("a", reader.next().value, message);
+                    long firstMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    assertTrue(firstMillis < 2000, message + " waited " + firstMillis + " ms for the first element");
+                    assertEquals("b", reader.next().value, message);
+                    assertEquals("c", reader.next().value, message);
+                    assertFalse(reader.hasNext(), message);
+                }
+            }
+        }
+    }
+    
+    @Test
+    void testTimeoutBeforeTheFirstElementIsRetried() throws IOException {
+        //The JDK client does not time out reads of the body, so only the default transport is tested
+        try (StubServer server = new StubServer()) {
+            server.enqueue("/stubs", StubServer.Reply.xml(200, STUBS_BODY).stall(0, 3000))
+                  .always("/stubs", StubServer.Reply.xml(200, STUBS_BODY));
+            HttpClient client = server.newClient(1000);
+            
+            List<String> values = new ArrayList<>();
+            client.getStreaming(client.constructLink().path("/stubs"),
+                                "stub",
+                                HttpClientTransportTest.StubEntity.class,
+                                stub -> values.add(stub.value));
+            assertEquals(List.of("a", "b", "c"), values);
+            assertEquals(2, server.getHits("/stubs"));
+        }
+    }
+    
+    private static class ClosingStream extends ByteArrayInputStream {
+        private boolean closed = false;
+        
+        private ClosingStream(String xml) {
+            super(xml.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+    
+    private static ByteArrayInputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
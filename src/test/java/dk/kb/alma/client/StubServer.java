@@ -0,0 +1,236 @@
+package dk.kb.alma.client;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.cxf.jaxrs.client.WebClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP server that answers with scripted responses, so HttpClient can be tested without Alma.
+ * <p>
+ * Responses queued with {@link #enqueue(String, Reply)} are used once, in order. When the queue for a path is empty,
+ * the reply set with {@link #always(String, Reply)} is used.
+ */
+public class StubServer implements AutoCloseable {
+    
+    public static final String XML = "application/xml;charset=UTF-8";
+    
+    private final HttpServer server;
+    
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    
+    private final Map<String, Queue<Reply>> queued = new ConcurrentHashMap<>();
+    
+    private final Map<String, Reply> defaults = new ConcurrentHashMap<>();
+    
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    
+    private final Map<String, Headers> lastRequestHeaders = new ConcurrentHashMap<>();
+    
+    private final Map<String, byte[]> lastRequestBodies = new ConcurrentHashMap<>();
+    
+    //The client end of each connection a request was received on
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    
+    public StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    public URI getBaseUri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+    
+    /**
+     * @param readTimeout the read timeout in milliseconds
+     * @return a client for this server, with short back-off times and no authentication
+     */
+    public HttpClient newClient(int readTimeout) {
+        return newClient(readTimeout, 10);
+    }
+    
+    /**
+     * @param readTimeout the read timeout in milliseconds
+     * @param minSleep    the minimum back-off time in milliseconds
+     * @return a client for this server, with no authentication
+     */
+    public HttpClient newClient(int readTimeout, long minSleep) {
+        return new HttpClient(getBaseUri().toString(), minSleep, 10, Map.of(), 1000, readTimeout, 60_000, 3) {
+            @Override
+            protected WebClient removeAuth(WebClient link) {
+                return link;
+            }
+            
+            @Override
+            protected WebClient addAuth(WebClient link) {
+                return link;
+            }
+        };
+    }
+    
+    public StubServer enqueue(String path, Reply reply) {
+        queued.computeIfAbsent(path, key -> new ConcurrentLinkedQueue<>()).add(reply);
+        return this;
+    }
+    
+    public StubServer always(String path, Reply reply) {
+        defaults.put(path, reply);
+        return this;
+    }
+    
+    /**
+     * @param path the path, without query
+     * @return the number of requests received for the path
+     */
+    public int getHits(String path) {
+        return hits.getOrDefault(path, new AtomicInteger()).get();
+    }
+    
+    /**
+     * @param path the path, without query
+     * @return the headers of the last request received for the path, or null if none was received
+     */
+    public Headers getLastRequestHeaders(String path) {
+        return lastRequestHeaders.get(path);
+    }
+    
+    /**
+     * @param path the path, without query
+     * @return the body of the last request received for the path, or null if none was received
+     */
+    public String getLastRequestBody(String path) {
+        byte[] body = lastRequestBodies.get(path);
+        return body == null ? null : new String(body, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * @return the number of connections the requests were received on
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        connections.add(exchange.getRemoteAddress());
+        lastRequestHeaders.put(path, exchange.getRequestHeaders());
+        hits.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            lastRequestBodies.put(path, requestBody.readAllBytes());
+        }
+        Reply reply = null;
+        Queue<Reply> queue = queued.get(path);
+        if (queue != null) {
+            reply = queue.poll();
+        }
+        if (reply == null) {
+            reply = defaults.getOrDefault(path, Reply.status(404));
+        }
+        reply.send(exchange);
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * A scripted response
+     */
+    public static class Reply {
+        private final int status;
+        private final Map<String, String> headers = new ConcurrentHashMap<>();
+        private final byte[] body;
+        private long delayMillis = 0;
+        private int stallAfterBytes = -1;
+        private long stallMillis = 0;
+        
+        private Reply(int status, byte[] body) {
+            this.status = status;
+            this.body   = body;
+        }
+        
+        public static Reply status(int status) {
+            return new Reply(status, new byte[0]);
+        }
+        
+        public static Reply xml(int status, String body) {
+            return new Reply(status, body.getBytes(StandardCharsets.UTF_8)).header("Content-Type", XML);
+        }
+        
+        public static Reply bytes(int status, byte[] body) {
+            return new Reply(status, body);
+        }
+        
+        public static Reply redirect(String location) {
+            return status(302).header("Location", location);
+        }
+        
+        public Reply header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+        
+        public Reply delay(long delayMillis) {
+            this.delayMillis = delayMillis;
+            return this;
+        }
+        
+        /**
+         * Send the first bytes of the body, then pause before sending the rest
+         */
+        public Reply stall(int afterBytes, long stallMillis) {
+            this.stallAfterBytes = afterBytes;
+            this.stallMillis     = stallMillis;
+            return this;
+        }
+        
+        void send(HttpExchange exchange) throws IOException {
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                if (stallAfterBytes >= 0 && stallAfterBytes < body.length) {
+                    responseBody.write(body, 0, stallAfterBytes);
+                    responseBody.flush();
+                    try {
+                        Thread.sleep(stallMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    responseBody.write(body, stallAfterBytes, body.length - stallAfterBytes);
+                } else {
+                    responseBody.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
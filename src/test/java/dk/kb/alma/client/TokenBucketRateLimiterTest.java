@@ -0,0 +1,162 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.Priority;
+import dk.kb.alma.client.utils.TokenBucketRateLimiter;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketRateLimiterTest {
+    
+    @Test
+    void testBurstThenPaced() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 3);
+        
+        //The burst is free
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.acquireAsync().isDone());
+        }
+        //Then callers are queued in order, about 100ms after each other
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> tokens = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tokens.add(limiter.acquireAsync());
+        }
+        assertEquals(5, limiter.getQueued());
+        tokens.get(2).cancel(false);
+        assertEquals(4, limiter.getQueued());
+        
+        CompletableFuture.anyOf(tokens.get(4)).exceptionally(e -> null).get(2, TimeUnit.SECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        //The cancelled caller does not hold a token, so the fifth gets the fourth token
+        assertTrue(elapsedMillis >= 390 && elapsedMillis < 600, "waited " + elapsedMillis + "ms");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(tokens.get(i).isDone());
+        }
+        assertEquals(4, limiter.getDelayed());
+        assertEquals(7, limiter.getAcquired());
+        assertEquals(0, limiter.getQueued());
+    }
+    
+    @Test
+    void testHigherPrioritiesJumpTheQueue() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(20, 1);
+        assertTrue(limiter.acquireAsync(Priority.BULK).isDone());
+        List<CompletableFuture<Void>> bulk = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            bulk.add(limiter.acquireAsync(Priority.BULK));
+        }
+        CompletableFuture<Void> normal = limiter.acquireAsync(Priority.NORMAL);
+        CompletableFuture<Void> interactive = limiter.acquireAsync(Priority.INTERACTIVE);
+        assertEquals(12, limiter.getQueued());
+        assertEquals(10, limiter.getQueued(Priority.BULK));
+        
+        //Interactive requests do not wait for the queued bulk requests, but get the next token
+        interactive.get(1, TimeUnit.SECONDS);
+        assertFalse(normal.isDone());
+        normal.get(1, TimeUnit.SECONDS);
+        assertTrue(bulk.stream().noneMatch(CompletableFuture::isDone));
+        
+        //They took tokens from the one bucket, so the bulk requests are pushed back
+        CompletableFuture.allOf(bulk.toArray(new CompletableFuture[0])).get(2, TimeUnit.SECONDS);
+        assertEquals(12, limiter.getDelayed());
+    }
+    
+    @Test
+    void testLowPrioritiesAreNotStarved() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(100, 1);
+        limiter.setMaxPassOvers(2);
+        assertTrue(limiter.acquireAsync(Priority.INTERACTIVE).isDone());
+        CompletableFuture<Void> bulk = limiter.acquireAsync(Priority.BULK);
+        List<CompletableFuture<Void>> interactive = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            interactive.add(limiter.acquireAsync(Priority.INTERACTIVE));
+        }
+        bulk.get(1, TimeUnit.SECONDS);
+        long interactiveFirst = interactive.stream().filter(CompletableFuture::isDone).count();
+        assertEquals(2, interactiveFirst);
+    }
+    
+    @Test
+    void testMixedPrioritiesKeepTheRate() throws Exception {
+        double permitsPerSecond = 50;
+        int burstSize = 5;
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(permitsPerSecond, burstSize);
+        ConcurrentLinkedQueue<Long> sent = new ConcurrentLinkedQueue<>();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        //Interactive requests arrive while a bulk job has filled the queue, as they would in an application
+        for (int i = 0; i < 40; i++) {
+            futures.add(limiter.acquireAsync(Priority.BULK).thenRun(() -> sent.add(System.nanoTime())));
+        }
+        for (int i = 0; i < 20; i++) {
+            Priority priority = i % 2 == 0 ? Priority.INTERACTIVE : Priority.NORMAL;
+            futures.add(limiter.acquireAsync(priority).thenRun(() -> sent.add(System.nanoTime())));
+            Thread.sleep(10);
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        
+        List<Long> times = new ArrayList<>(sent);
+        times.sort(null);
+        assertEquals(60, times.size());
+        //No window of time sees more requests than the burst plus the rate allows
+        for (int first = 0; first < times.size(); first++) {
+            for (int last = first; last < times.size(); last++) {
+                double windowSeconds = (times.get(last) - times.get(first)) / 1e9;
+                int count = last - first + 1;
+                assertTrue(count <= burstSize + Math.ceil(windowSeconds * permitsPerSecond) + 1,
+                           count + " requests sent in " + windowSeconds * 1000 + "ms");
+            }
+        }
+        double totalSeconds = (times.get(times.size() - 1) - start) / 1e9;
+        assertTrue(totalSeconds >= (60 - burstSize) / permitsPerSecond * 0.95,
+                   "60 requests sent in " + totalSeconds * 1000 + "ms");
+    }
+    
+    @Test
+    void testSharedBetweenClients() throws Exception {
+        try (StubServer server = new StubServer()) {
+            server.always("/stub", StubServer.Reply.xml(200, HttpClientTransportTest.STUB_BODY));
+            HttpClient client1 = server.newClient(1000);
+            HttpClient client2 = server.newClient(1000);
+            //Warm up, so the time is spent waiting for the rate limiter, not loading classes
+            client1.getAsync(client1.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class).get();
+            client2.getAsync(client2.constructLink().path("/stub"), HttpClientTransportTest.StubEntity.class).get();
+            
+            TokenBucketRateLimiter shared = new TokenBucketRateLimiter(50, 5);
+            client1.setRateLimiter(shared);
+            client2.setRateLimiter(shared);
+            
+            List<WebClient> links1 = new ArrayList<>();
+            List<WebClient> links2 = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                links1.add(client1.constructLink().path("/stub").query("i", i));
+                links2.add(client2.constructLink().path("/stub").query("i", i));
+            }
+            
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(client1.getAsync(links1.get(i), HttpClientTransportTest.StubEntity.class));
+                futures.add(client2.getAsync(links2.get(i), HttpClientTransportTest.StubEntity.class));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+            long elapsed = System.currentTimeMillis() - start;
+            
+            //20 requests with a burst of 5 at 50 per second takes at least 300ms
+            assertTrue(elapsed >= 290, "Took only " + elapsed + "ms");
+            assertEquals(20, shared.getAcquired());
+            assertEquals(22, server.getHits("/stub"));
+            assertTrue(shared.getDelayed() >= 10, "Only " + shared.getDelayed() + " requests were delayed");
+        }
+    }
+}
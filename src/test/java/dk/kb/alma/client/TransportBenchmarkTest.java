@@ -0,0 +1,93 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.CxfTransport;
+import dk.kb.alma.client.utils.JdkHttpTransport;
+import dk.kb.alma.client.utils.Transport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares throughput and latency of the transports with 8, 32 and 128 concurrent callers against a local stub that
+ * answers after a few milliseconds. Note that the stub server only speaks HTTP/1.1, so this measures connection
+ * handling and overhead, not HTTP/2 multiplexing.
+ */
+@Tag("slow")
+class TransportBenchmarkTest {
+    
+    private static final Logger log = LoggerFactory.getLogger(TransportBenchmarkTest.class);
+    
+    private static final int REQUESTS_PER_CALLER = 50;
+    
+    @Test
+    void benchmarkTransports() throws Exception {
+        try (StubServer server = new StubServer()) {
+            server.always("/stub", StubServer.Reply.xml(200, HttpClientTransportTest.STUB_BODY).delay(5));
+            
+            for (Transport transport : List.of(new CxfTransport(), new JdkHttpTransport())) {
+                //Warm up connections and JIT
+                run(server, transport, 8);
+                for (int callers : new int[]{8, 32, 128}) {
+                    long start = System.nanoTime();
+                    long[] latencies = run(server, transport, callers);
+                    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    log.info("{} with {} callers: {} requests in {}ms ({} req/s), median {}ms, p99 {}ms",
+                             transport.getClass().getSimpleName(),
+                             callers,
+                             latencies.length,
+                             elapsedMillis,
+                             latencies.length * 1000L / Math.max(1, elapsedMillis),
+                             TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]),
+                             TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length * 99 / 100]));
+                }
+            }
+        }
+    }
+    
+    private long[] run(StubServer server, Transport transport, int callers) throws Exception {
+        HttpClient client = server.newClient(10000);
+        client.setTransport(transport);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(executor.submit(() -> {
+                    long[] latencies = new long[REQUESTS_PER_CALLER];
+                    for (int j = 0; j < REQUESTS_PER_CALLER; j++) {
+                        long start = System.nanoTime();
+                        HttpClientTransportTest.StubEntity entity
+                                = client.get(client.constructLink().path("/stub"),
+                                             HttpClientTransportTest.StubEntity.class,
+                                             false);
+                        latencies[j] = System.nanoTime() - start;
+                        assertEquals("hello", entity.value);
+                    }
+                    return latencies;
+                }));
+            }
+            long[] result = new long[callers * REQUESTS_PER_CALLER];
+            int index = 0;
+            for (Future<long[]> future : futures) {
+                for (long latency : future.get()) {
+                    result[index++] = latency;
+                }
+            }
+            Arrays.sort(result);
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.WebClientFactory;
+import org.apache.cxf.jaxrs.client.ClientProviderFactory;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.apache.cxf.message.MessageImpl;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import java.lang.annotation.Annotation;
+
+import static dk.kb.alma.client.HttpClientTransportTest.STUB_BODY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebClientFactoryTest {
+    
+    @Test
+    void testClientsShareProvidersAndBus() {
+        try (WebClientFactory factory = new WebClientFactory(10, 5, 60000, 60000)) {
+            WebClient first = factory.create("http://127.0.0.1");
+            WebClient second = factory.create("http://127.0.0.1");
+            
+            assertSame(WebClient.getConfig(first).getBus(), WebClient.getConfig(second).getBus());
+            MessageBodyReader<?> reader = reader(first, MediaType.APPLICATION_XML_TYPE);
+            assertSame(reader, reader(second, MediaType.APPLICATION_XML_TYPE));
+            assertTrue(factory.getProviders().contains(reader), reader + " is not a provider of the factory");
+            assertSame(reader(first, MediaType.APPLICATION_JSON_TYPE), reader(second, MediaType.APPLICATION_JSON_TYPE));
+        }
+    }
+    
+    @Test
+    void testSequentialRequestsReuseTheConnection() throws Exception {
+        try (StubServer server = new StubServer();
+             WebClientFactory factory = new WebClientFactory(10, 5, 60000, 60000)) {
+            server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+            for (int i = 0; i < 5; i++) {
+                WebClient client = factory.create(server.getBaseUri().toString()).path("/stub");
+                try (Response response = client.get()) {
+                    assertEquals(STUB_BODY, response.readEntity(String.class));
+                } finally {
+                    client.close();
+                }
+                //The conduit returns the connection to the pool on its own thread, after the response is closed
+                Thread.sleep(100);
+            }
+            assertEquals(5, server.getHits("/stub"));
+            assertEquals(1, server.getConnections());
+        }
+    }
+    
+    @Test
+    void testNoClientsAfterClose() throws Exception {
+        try (StubServer server = new StubServer()) {
+            server.always("/stub", StubServer.Reply.xml(200, STUB_BODY));
+            WebClientFactory factory = new WebClientFactory(10, 5, 60000, 60000);
+            factory.close();
+            
+            assertThrows(IllegalStateException.class, () -> factory.create(server.getBaseUri().toString()));
+            assertEquals(0, server.getHits("/stub"));
+        }
+    }
+    
+    private static MessageBodyReader<?> reader(WebClient client, MediaType mediaType) {
+        return ClientProviderFactory.getInstance(WebClient.getConfig(client).getEndpoint())
+                                    .createMessageBodyReader(HttpClientTransportTest.StubEntity.class,
+                                                             HttpClientTransportTest.StubEntity.class,
+                                                             new Annotation[0],
+                                                             mediaType,
+                                                             new MessageImpl());
+    }
+}
@@ -0,0 +1,195 @@
+package dk.kb.alma.client;
+
+import dk.kb.alma.client.utils.EntityCodec;
+import dk.kb.alma.client.utils.InMemoryClientMetrics;
+import dk.kb.alma.client.utils.JaxbContexts;
+import dk.kb.alma.client.utils.WebClientFactory;
+import dk.kb.alma.client.utils.WireFormat;
+import dk.kb.alma.gen.bibs.Bib;
+import dk.kb.alma.gen.items.Items;
+import dk.kb.alma.gen.users.User;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares XML and JSON for {@link Bib}, {@link Items} and {@link User}: the bytes on the wire, plain and gzipped, and
+ * the CPU time spent parsing, both directly with the {@link EntityCodec} and through HttpClient against a local stub.
+ * Also checks that the types survive the round trip through JSON unchanged.
+ */
+@Tag("slow")
+class WireFormatBenchmarkTest {
+    
+    private static final Logger log = LoggerFactory.getLogger(WireFormatBenchmarkTest.class);
+    
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 5_000;
+    private static final int REQUESTS = 100;
+    
+    private static final String USER_XML
+            = "<user link=\"https://api-eu.hosted.exlibrisgroup.com/almaws/v1/users/1234\">"
+              + "<record_type desc=\"Public\">PUBLIC</record_type>"
+              + "<primary_id>1234</primary_id>"
+              + "<first_name>Karen</first_name>"
+              + "<last_name>Blixen</last_name>"
+              + "<user_group desc=\"Patron\">01</user_group>"
+              + "<preferred_language desc=\"Danish\">da</preferred_language>"
+              + "<expiry_date>2030-12-31Z</expiry_date>"
+              + "<account_type desc=\"Internal\">INTERNAL</account_type>"
+              + "<status desc=\"Active\">ACTIVE</status>"
+              + "<contact_info><addresses>"
+              + "<address preferred=\"true\" segment_type=\"Internal\">"
+              + "<line1>Rungstedlund</line1><city>Rungsted</city>"
+              + "<postal_code>2960</postal_code><country desc=\"Denmark\">DNK</country>"
+              + "<address_types><address_type desc=\"Home\">home</address_type>"
+              + "</address_types></address></addresses>"
+              + "<emails><email preferred=\"true\" segment_type=\"Internal\">"
+              + "<email_address>karen@example.com</email_address>"
+              + "<email_types><email_type desc=\"Personal\">personal</email_type>"
+              + "</email_types></email></emails></contact_info>"
+              + "<user_identifiers><user_identifier segment_type=\"Internal\">"
+              + "<id_type desc=\"Barcode\">BARCODE</id_type><value>KB1234</value>"
+              + "<status>ACTIVE</status></user_identifier></user_identifiers>"
+              + "</user>";
+    
+    private final EntityCodec codec = WebClientFactory.getDefault().getEntityCodec();
+    
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    
+    @Test
+    void benchmarkWireFormats() throws Exception {
+        compare("Bib", Bib.class, bibXml(40));
+        compare("Items", Items.class, itemsXml(25));
+        compare("User", User.class, USER_XML);
+    }
+    
+    private <T> void compare(String name, Class<T> type, String fixture) throws Exception {
+        T value = JaxbContexts.getDefault()
+                              .unmarshal(new ByteArrayInputStream(fixture.getBytes(StandardCharsets.UTF_8)), type);
+        byte[] xml = codec.write(value, MediaType.APPLICATION_XML_TYPE);
+        byte[] json = codec.write(value, MediaType.APPLICATION_JSON_TYPE);
+        
+        //Nothing is lost on the way through JSON
+        T fromJson = codec.read(json, MediaType.APPLICATION_JSON_TYPE, type);
+        assertEquals(new String(xml, StandardCharsets.UTF_8),
+                     new String(codec.write(fromJson, MediaType.APPLICATION_XML_TYPE), StandardCharsets.UTF_8),
+                     name);
+        
+        log.info("{} as XML: {} bytes, {} gzipped, {} ns CPU/parse",
+                 name, xml.length, gzip(xml).length, parseCpuNanos(xml, MediaType.APPLICATION_XML_TYPE, type));
+        log.info("{} as JSON: {} bytes, {} gzipped, {} ns CPU/parse",
+                 name, json.length, gzip(json).length, parseCpuNanos(json, MediaType.APPLICATION_JSON_TYPE, type));
+        
+        try (StubServer server = new StubServer()) {
+            server.always("/xml", StubServer.Reply.bytes(200, gzip(xml))
+                                                  .header("Content-Type", MediaType.APPLICATION_XML)
+                                                  .header("Content-Encoding", "gzip"))
+                  .always("/json", StubServer.Reply.bytes(200, gzip(json))
+                                                   .header("Content-Type", MediaType.APPLICATION_JSON)
+                                                   .header("Content-Encoding", "gzip"));
+            for (WireFormat format : WireFormat.values()) {
+                HttpClient client = server.newClient(10000);
+                client.setWireFormat(format);
+                InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+                client.setMetrics(metrics);
+                String path = "/" + format.name().toLowerCase();
+                
+                for (int i = 0; i < REQUESTS / 5; i++) {
+                    client.get(client.constructLink().path(path), type, false);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < REQUESTS; i++) {
+                    client.get(client.constructLink().path(path), type, false);
+                }
+                long micros = (System.nanoTime() - start) / 1000 / REQUESTS;
+                InMemoryClientMetrics.EndpointMetrics endpoint = metrics.getEndpoints().values().iterator().next();
+                log.info("{} as {} from stub: {} us/call, {} bytes on the wire/call, {} ms parsing in total",
+                         name,
+                         format,
+                         micros,
+                         endpoint.getWireBytesReceived() / endpoint.getRequests(),
+                         endpoint.getParseMillis());
+            }
+        }
+    }
+    
+    private long parseCpuNanos(byte[] body, MediaType mediaType, Class<?> type) {
+        for (int i = 0; i < WARMUP; i++) {
+            codec.read(body, mediaType, type);
+        }
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.read(body, mediaType, type);
+        }
+        return (threads.getCurrentThreadCpuTime() - start) / ITERATIONS;
+    }
+    
+    private static String bibXml(int dataFields) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<bib link=\"https://api-eu.hosted.exlibrisgroup.com/almaws/v1/bibs/99123\">"
+                   + "<mms_id>99123</mms_id>"
+                   + "<title>Den afrikanske farm</title>"
+                   + "<author>Blixen, Karen</author>"
+                   + "<network_numbers><network_number>(DK-810010)123</network_number>"
+                   + "</network_numbers>"
+                   + "<place_of_publication>Copenhagen</place_of_publication>"
+                   + "<publisher_const>Gyldendal</publisher_const>"
+                   + "<suppress_from_publishing>false</suppress_from_publishing>"
+                   + "<record_format>marc21</record_format>"
+                   + "<created_date>2020-01-31Z</created_date>"
+                   + "<record><leader>00000nam a2200000 c 4500</leader>"
+                   + "<controlfield tag=\"001\">99123</controlfield>"
+                   + "<controlfield tag=\"008\">200131s1937    dk            000 0 dan d"
+                   + "</controlfield>");
+        for (int i = 0; i < dataFields; i++) {
+            xml.append("<datafield tag=\"5").append(10 + i).append("\" ind1=\" \" ind2=\" \">")
+               .append("<subfield code=\"a\">Note number ").append(i).append(" about the book</subfield>")
+               .append("<subfield code=\"b\">Further detail ").append(i).append("</subfield>")
+               .append("</datafield>");
+        }
+        return xml.append("</record></bib>").toString();
+    }
+    
+    private static String itemsXml(int items) {
+        StringBuilder xml = new StringBuilder("<items total_record_count=\"").append(items).append("\">");
+        for (int i = 0; i < items; i++) {
+            xml.append("<item link=\"https://api-eu.hosted.exlibrisgroup.com/almaws/v1/bibs/99123/holdings/22123/")
+               .append("items/23").append(i).append("\">")
+               .append("<bib_data><mms_id>99123</mms_id><title>Den afrikanske farm</title>")
+               .append("<author>Blixen, Karen</author></bib_data>")
+               .append("<holding_data><holding_id>22123</holding_id>")
+               .append("<call_number>Blixen 1937</call_number></holding_data>")
+               .append("<item_data><pid>23").append(i).append("</pid>")
+               .append("<barcode>KB").append(100000 + i).append("</barcode>")
+               .append("<creation_date>2020-01-31Z</creation_date>")
+               .append("<base_status desc=\"Item in place\">1</base_status>")
+               .append("<physical_material_type desc=\"Book\">BOOK</physical_material_type>")
+               .append("<policy desc=\"Loan\">loan</policy>")
+               .append("<library desc=\"Main library\">MAIN</library>")
+               .append("<location desc=\"Stacks\">STACKS</location>")
+               .append("<description>Copy ").append(i).append("</description>")
+               .append("</item_data></item>");
+        }
+        return xml.append("</items>").toString();
+    }
+    
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,251 @@
+package dk.kb.alma.client;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.alma.client.utils.AlmaJsonModule;
+import dk.kb.alma.client.utils.EntityCodec;
+import dk.kb.alma.client.utils.Transport;
+import dk.kb.alma.client.utils.WebClientFactory;
+import dk.kb.alma.client.utils.WireFormat;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAnyElement;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlSchemaType;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.XmlValue;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static dk.kb.alma.client.HttpClientTransportTest.transports;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WireFormatTest {
+    
+    //As Alma serves a bib as JSON, with the MARC record as an XML string
+    static final String BIB_JSON = "{\"mms_id\":\"99123\","
+                                   + "\"created_date\":\"2020-01-31Z\","
+                                   + "\"record_format\":{\"value\":\"marc21\",\"desc\":\"MARC 21 Bibliographic\"},"
+                                   + "\"anies\":[\"<record><leader>00000nam</leader>"
+                                   + "<controlfield tag=\\\"001\\\">99123</controlfield></record>\"],"
+                                   + "\"not_in_the_schema\":\"ignored\","
+                                   + "\"link\":\"https://api-eu.hosted.exlibrisgroup.com/almaws/v1/bibs/99123\"}";
+    
+    //As Alma serves a user as JSON, with no wrappers around the lists
+    static final String USER_JSON = "{\"primary_id\":\"1234\","
+                                    + "\"contact_info\":{\"address\":[{\"line1\":\"Rungstedlund\","
+                                    + "\"address_type\":[{\"value\":\"home\",\"desc\":\"Home\"}],"
+                                    + "\"preferred\":true}]},"
+                                    + "\"user_identifier\":[{\"id_type\":{\"value\":\"BARCODE\",\"desc\":\"Barcode\"},"
+                                    + "\"value\":\"KB1234\"},"
+                                    + "{\"id_type\":{\"value\":\"UNIV_ID\",\"desc\":\"University ID\"},"
+                                    + "\"value\":\"u1234\"}],"
+                                    + "\"link\":\"https://api-eu.hosted.exlibrisgroup.com/almaws/v1/users/1234\"}";
+    
+    private final EntityCodec codec = WebClientFactory.getDefault().getEntityCodec();
+    
+    @Test
+    void testReadsAlmaJson() {
+        MarcBib bib = codec.read(BIB_JSON.getBytes(StandardCharsets.UTF_8),
+                                 MediaType.APPLICATION_JSON_TYPE,
+                                 MarcBib.class);
+        assertBib(bib);
+    }
+    
+    @Test
+    void testJsonRoundTrip() {
+        MarcBib bib = codec.read(BIB_JSON.getBytes(StandardCharsets.UTF_8),
+                                 MediaType.APPLICATION_JSON_TYPE,
+                                 MarcBib.class);
+        String json = new String(codec.write(bib, MediaType.APPLICATION_JSON_TYPE), StandardCharsets.UTF_8);
+        //Dates are written as Alma writes them, and unset fields are left out
+        assertTrue(json.contains("\"created_date\":\"2020-01-31Z\""), json);
+        assertTrue(json.contains("\"anies\":[\"<record>"), json);
+        assertFalse(json.contains("null"), json);
+        
+        MarcBib fromJson = codec.read(json.getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_JSON_TYPE,
+                                      MarcBib.class);
+        assertBib(fromJson);
+        //The same object, whichever format it went through
+        assertEquals(new String(codec.write(bib, MediaType.APPLICATION_XML_TYPE), StandardCharsets.UTF_8),
+                     new String(codec.write(fromJson, MediaType.APPLICATION_XML_TYPE), StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    void testWrappedListsAreUnwrapped() throws IOException {
+        //Fail on anything not mapped, so fields read under the wrong name are not silently dropped
+        ObjectMapper mapper = AlmaJsonModule.createObjectMapper()
+                                            .enable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        Patron patron = mapper.readValue(USER_JSON, Patron.class);
+        assertPatron(patron);
+        
+        //Written back as Alma writes it
+        String json = mapper.writeValueAsString(patron);
+        assertEquals(mapper.readTree(USER_JSON), mapper.readTree(json), json);
+        assertPatron(codec.read(json.getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_JSON_TYPE, Patron.class));
+        
+        //The XML keeps the wrappers
+        String xml = new String(codec.write(patron, MediaType.APPLICATION_XML_TYPE), StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<user_identifiers><user_identifier>"), xml);
+        assertTrue(xml.contains("<address_types><address_type desc=\"Home\">home</address_type></address_types>"),
+                   xml);
+        assertPatron(codec.read(xml.getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_XML_TYPE, Patron.class));
+    }
+    
+    @Test
+    void testClientUsesWireFormat() throws IOException {
+        for (Transport transport : transports()) {
+            try (StubServer server = new StubServer()) {
+                server.always("/bibs/99123", StubServer.Reply.bytes(200, BIB_JSON.getBytes(StandardCharsets.UTF_8))
+                                                             .header("Content-Type", "application/json"));
+                HttpClient client = server.newClient(1000);
+                client.setTransport(transport);
+                client.setCachingEnabled(false);
+                String message = transport.getClass().getSimpleName();
+                
+                //The other format is still accepted, so XML clients can read JSON responses
+                assertBib(client.get(client.constructLink().path("/bibs/99123"), MarcBib.class));
+                assertTrue(server.getLastRequestHeaders("/bibs/99123").getFirst("Accept")
+                                 .startsWith("application/xml"), message);
+                
+                client.setWireFormat(WireFormat.JSON);
+                MarcBib bib = client.get(client.constructLink().path("/bibs/99123"), MarcBib.class);
+                assertBib(bib);
+                assertTrue(server.getLastRequestHeaders("/bibs/99123").getFirst("Accept")
+                                 .startsWith("application/json"), message);
+                
+                client.put(client.constructLink().path("/bibs/99123"), MarcBib.class, bib);
+                assertTrue(server.getLastRequestHeaders("/bibs/99123").getFirst("Content-Type")
+                                 .startsWith("application/json"), message);
+                assertBib(codec.read(server.getLastRequestBody("/bibs/99123").getBytes(StandardCharsets.UTF_8),
+                                     MediaType.APPLICATION_JSON_TYPE,
+                                     MarcBib.class));
+            }
+        }
+    }
+    
+    private static void assertBib(MarcBib bib) {
+        assertEquals("99123", bib.mmsId);
+        assertEquals("2020-01-31Z", bib.createdDate.toXMLFormat());
+        assertEquals("marc21", bib.recordFormat.value);
+        assertEquals("MARC 21 Bibliographic", bib.recordFormat.desc);
+        assertEquals(1, bib.anies.size());
+        Element record = bib.anies.get(0);
+        assertEquals("record", record.getLocalName());
+        assertEquals("99123", record.getElementsByTagName("controlfield").item(0).getTextContent());
+    }
+    
+    private static void assertPatron(Patron patron) {
+        assertEquals("1234", patron.primaryId);
+        Address address = patron.contactInfo.addresses.address.get(0);
+        assertEquals("Rungstedlund", address.line1);
+        assertTrue(address.preferred);
+        assertEquals("home", address.addressTypes.addressType.get(0).value);
+        assertEquals("Home", address.addressTypes.addressType.get(0).desc);
+        assertEquals(2, patron.userIdentifiers.userIdentifier.size());
+        assertEquals("BARCODE", patron.userIdentifiers.userIdentifier.get(0).idType.value);
+        assertEquals("u1234", patron.userIdentifiers.userIdentifier.get(1).value);
+    }
+    
+    /**
+     * Shaped like the classes xjc generates from the Alma schemas
+     */
+    @XmlRootElement(name = "bib")
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "bib", propOrder = {"mmsId", "createdDate", "recordFormat", "anies"})
+    public static class MarcBib {
+        @XmlElement(name = "mms_id")
+        protected String mmsId;
+        @XmlElement(name = "created_date")
+        @XmlSchemaType(name = "date")
+        protected XMLGregorianCalendar createdDate;
+        @XmlElement(name = "record_format")
+        protected CodeValue recordFormat;
+        @XmlAnyElement
+        protected List<Element> anies = new ArrayList<>();
+        @XmlAttribute(name = "link")
+        protected String link;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "", propOrder = {"value"})
+    public static class CodeValue {
+        @XmlValue
+        protected String value;
+        @XmlAttribute(name = "desc")
+        protected String desc;
+    }
+    
+    /**
+     * Shaped like the User class xjc generates, with a named list type, a list in a named type and an anonymous one
+     */
+    @XmlRootElement(name = "user")
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "user", propOrder = {"primaryId", "contactInfo", "userIdentifiers"})
+    public static class Patron {
+        @XmlElement(name = "primary_id")
+        protected String primaryId;
+        @XmlElement(name = "contact_info")
+        protected ContactInfo contactInfo;
+        @XmlElement(name = "user_identifiers")
+        protected UserIdentifiers userIdentifiers;
+        @XmlAttribute(name = "link")
+        protected String link;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "contact_info", propOrder = {"addresses"})
+    public static class ContactInfo {
+        protected Addresses addresses;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "addresses", propOrder = {"address"})
+    public static class Addresses {
+        protected List<Address> address;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "address", propOrder = {"line1", "addressTypes"})
+    public static class Address {
+        protected String line1;
+        @XmlElement(name = "address_types", required = true)
+        protected AddressTypes addressTypes;
+        @XmlAttribute(name = "preferred")
+        protected Boolean preferred;
+        
+        @XmlAccessorType(XmlAccessType.FIELD)
+        @XmlType(name = "", propOrder = {"addressType"})
+        public static class AddressTypes {
+            @XmlElement(name = "address_type")
+            protected List<CodeValue> addressType;
+        }
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "user_identifiers", propOrder = {"userIdentifier"})
+    public static class UserIdentifiers {
+        @XmlElement(name = "user_identifier")
+        protected List<UserIdentifier> userIdentifier;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(name = "user_identifier", propOrder = {"idType", "value"})
+    public static class UserIdentifier {
+        @XmlElement(name = "id_type", required = true)
+        protected CodeValue idType;
+        @XmlElement(required = true)
+        protected String value;
+    }
+}